@@ -0,0 +1,82 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Checking Basic credentials with MessageDatabase.authenticateUser: served from the credential cache,
+* and verified against the stored SHA-512 crypt hash (a cache miss or a wrong password).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationBenchmark {
+
+    private File database;
+    private MessageDatabase db;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException, PasswordHasher.BusyException {
+        database = BenchmarkData.copyOf(BenchmarkData.messageDatabase(1000));
+        db = BenchmarkData.open(database);
+        JSONObject user = new JSONObject();
+        user.put("username", "bench");
+        user.put("password", "benchmark password");
+        user.put("email", "bench@example.com");
+        user.put("userNickname", "bench");
+        db.insertUser(user);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        db.close();
+        BenchmarkData.deleteDatabase(database);
+    }
+
+    @Benchmark
+    public String cached() throws SQLException, PasswordHasher.BusyException {
+        return db.authenticateUser("bench", "benchmark password");
+    }
+
+    @Benchmark
+    public String wrongPassword() throws SQLException, PasswordHasher.BusyException {
+        return db.authenticateUser("bench", "wrong password");
+    }
+
+    @Benchmark
+    public String uncached(CacheCleaner cleaner) throws SQLException, PasswordHasher.BusyException {
+        return db.authenticateUser("bench", "benchmark password");
+    }
+
+    /**
+    * Empties the credential cache before every call, so that the password is verified each time.
+    * Hashing takes milliseconds, so the per invocation setup does not distort the result.
+    */
+    @State(Scope.Thread)
+    public static class CacheCleaner {
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            MessageDatabase.getInstance().getCredentialCache().invalidate("bench");
+        }
+    }
+}
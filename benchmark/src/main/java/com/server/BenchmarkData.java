@@ -0,0 +1,255 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+/**
+* Generates the data used by the benchmarks. Everything is generated from fixed seeds, so every run (and every release) gets the same data.
+* Generated message databases are kept in benchmark.dataDir (default target/benchmark-data) and reused by later runs.
+*/
+public class BenchmarkData {
+
+    public static final long SEED = 20240221L;
+
+    private static final String dataDir = System.getProperty("benchmark.dataDir", "target/benchmark-data");
+
+    private static final String[][] CITIES = {
+        {"Oulu", "Finland"}, {"Helsinki", "Finland"}, {"Tampere", "Finland"}, {"Turku", "Finland"}, {"Rovaniemi", "Finland"},
+        {"Stockholm", "Sweden"}, {"Gothenburg", "Sweden"}, {"Oslo", "Norway"}, {"Bergen", "Norway"}, {"Copenhagen", "Denmark"},
+        {"Tallinn", "Estonia"}, {"Riga", "Latvia"}, {"Berlin", "Germany"}, {"Munich", "Germany"}, {"Paris", "France"},
+        {"Lyon", "France"}, {"Madrid", "Spain"}, {"Lisbon", "Portugal"}, {"Rome", "Italy"}, {"Vienna", "Austria"}
+    };
+
+    private static final String[] WORDS = {
+        "old", "harbour", "market", "church", "bridge", "park", "museum", "square", "tower", "cafe",
+        "river", "station", "library", "castle", "garden", "beach", "hill", "street", "gallery", "theatre"
+    };
+
+    // Coordinates of the cities, in the same order as CITIES
+    private static final double[][] COORDINATES = {
+        {65.01, 25.47}, {60.17, 24.94}, {61.50, 23.79}, {60.45, 22.27}, {66.50, 25.73},
+        {59.33, 18.07}, {57.71, 11.97}, {59.91, 10.75}, {60.39, 5.32}, {55.68, 12.57},
+        {59.44, 24.75}, {56.95, 24.11}, {52.52, 13.40}, {48.14, 11.58}, {48.86, 2.35},
+        {45.76, 4.84}, {40.42, -3.70}, {38.72, -9.14}, {41.90, 12.50}, {48.21, 16.37}
+    };
+
+    // 2023-01-01T00:00:00.000Z, the posting time of the first generated message
+    private static final long FIRST_POSTING_TIME = 1672531200000L;
+
+    private BenchmarkData() {}
+
+    /**
+    * @return the cities used in generated messages, as {city, country} pairs.
+    */
+    public static String[][] getCities() {
+        return CITIES;
+    }
+
+    /**
+    * @return the words the names, descriptions and street addresses of generated messages are made of.
+    */
+    public static String[] getWords() {
+        return WORDS;
+    }
+
+    /**
+    * @return the coordinates of the cities, in the same order as getCities(). Messages are placed up to 0.1 degrees north-east of them.
+    */
+    public static double[][] getCoordinates() {
+        return COORDINATES;
+    }
+
+    /**
+    * @return the posting time of the first generated message, in Epoch milliseconds.
+    */
+    public static long getFirstPostingTime() {
+        return FIRST_POSTING_TIME;
+    }
+
+    /**
+    * Generates a message like the ones clients post. Half of the messages have coordinates.
+    * @param random the source of the message, create it with SEED for reproducible messages.
+    * @param postingTime the posting time of the message, in Epoch milliseconds.
+    * @param withWeather whether messages with coordinates also ask for weather.
+    * @return the message as JSON.
+    */
+    public static JSONObject messageJson(Random random, long postingTime, boolean withWeather) {
+
+        int city = random.nextInt(CITIES.length);
+        JSONObject json = new JSONObject();
+        json.put("locationName", words(random, 2));
+        json.put("locationDescription", words(random, 6 + random.nextInt(10)));
+        json.put("locationCity", CITIES[city][0]);
+        json.put("locationCountry", CITIES[city][1]);
+        json.put("locationStreetAddress", words(random, 2) + " " + (1 + random.nextInt(200)));
+        json.put("originalPostingTime", TimestampConverter.convertToString(postingTime));
+        if(random.nextBoolean()) {
+            json.put("latitude", COORDINATES[city][0] + random.nextInt(100) / 1000.0);
+            json.put("longitude", COORDINATES[city][1] + random.nextInt(100) / 1000.0);
+            if(withWeather) {
+                json.put("weather", "");
+            }
+        }
+        return json;
+    }
+
+    /**
+    * Generates messages with increasing posting times.
+    * @param random the source of the messages.
+    * @param count the number of messages.
+    * @param withWeather whether messages with coordinates also ask for weather.
+    * @return the messages.
+    */
+    public static List<UserMessage> messages(Random random, int count, boolean withWeather) {
+        List<UserMessage> messages = new ArrayList<>(count);
+        long postingTime = FIRST_POSTING_TIME;
+        for(int i = 0; i < count; i++) {
+            messages.add(new UserMessage(messageJson(random, postingTime, withWeather)));
+            postingTime += random.nextInt(60000);
+        }
+        return messages;
+    }
+
+    /**
+    * Gets a message database with the given amount of generated messages, posted by 50 different users.
+    * The messages do not ask for weather, so reading them does not contact the weather service.
+    * The database is generated on the first call and kept in the data directory, so do not write to it; use copyOf() instead.
+    * @param rows the number of messages.
+    * @return the database file.
+    * @throws SQLException if the database cannot be generated.
+    * @throws IOException if the data directory cannot be created.
+    */
+    public static synchronized File messageDatabase(int rows) throws SQLException, IOException {
+
+        File database = new File(dataDir, "messages-" + rows + ".db");
+        if(database.exists()) {
+            open(database).close(); // Adds the indexes of a newer server version once, instead of to every copy
+            return database;
+        }
+        Files.createDirectories(database.toPath().getParent());
+
+        // Generated under a temporary name, so that an interrupted run does not leave an incomplete database behind
+        File partial = new File(dataDir, "messages-" + rows + ".partial");
+        deleteDatabase(partial);
+        MessageDatabase db = open(partial);
+        fill(db, rows);
+        db.close();
+
+        Files.move(partial.toPath(), database.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return database;
+    }
+
+    /**
+    * Adds generated messages to a store, the same messages for every engine, posted by 50 different users in batches of 10000.
+    * @param store the store the messages are added to.
+    * @param rows the number of messages.
+    * @throws SQLException if adding the messages fails.
+    */
+    public static void fill(MessageStore store, int rows) throws SQLException {
+
+        Random random = new Random(SEED);
+        long postingTime = FIRST_POSTING_TIME;
+        int chunkSize = 10000;
+        for(int start = 0; start < rows; start += chunkSize) {
+            List<UserMessage> chunk = new ArrayList<>(chunkSize);
+            for(int i = start; i < Math.min(rows, start + chunkSize); i++) {
+                chunk.add(new UserMessage(messageJson(random, postingTime, false)));
+                postingTime += random.nextInt(60000);
+            }
+            store.insertMessages(chunk, "user" + (start / chunkSize % 50));
+        }
+    }
+
+    /**
+    * Copies a database to a new temporary file, which the caller may modify and should delete with deleteDatabase().
+    * @param database the database to copy.
+    * @return the copy.
+    * @throws IOException if copying fails.
+    */
+    public static File copyOf(File database) throws IOException {
+        Path copy = Files.createTempFile("benchmark-", ".db");
+        Files.copy(database.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy.toFile();
+    }
+
+    /**
+    * Deletes a database file together with its WAL files.
+    * @param database the database file.
+    */
+    public static void deleteDatabase(File database) {
+        database.delete();
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+    }
+
+    /**
+    * Opens a copy of the database as the MessageDatabase instance, so that the default MessageDB file is not touched.
+    * @param database the database to open.
+    * @return the database instance.
+    * @throws SQLException if opening fails.
+    */
+    public static MessageDatabase open(File database) throws SQLException {
+        System.setProperty("db.name", database.getPath()); // Used if the instance does not exist yet
+        MessageDatabase db = MessageDatabase.getInstance();
+        db.open(database.getPath());
+        return db;
+    }
+
+    /**
+    * Opens a log store in a new temporary directory as the LogMessageStore instance, so that the default store is not touched.
+    * Delete it with deleteLog() when done.
+    * @return the name the store was opened with, its files are in name + ".log".
+    * @throws IOException if the directory cannot be created.
+    * @throws SQLException if opening fails.
+    */
+    public static String openLog() throws IOException, SQLException {
+        String name = Files.createTempDirectory("benchmark-").resolve("messages").toString();
+        System.setProperty("db.name", name); // Used if the instance does not exist yet
+        LogMessageStore.getInstance().open(name);
+        return name;
+    }
+
+    /**
+    * Deletes the files of a log store opened with openLog().
+    * @param name the name returned by openLog().
+    * @throws IOException if deleting fails.
+    */
+    public static void deleteLog(String name) throws IOException {
+        Path directory = Path.of(name).getParent();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) { // Files before their directories
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+    * A weather service response like the one WeatherLookup parses.
+    */
+    public static String weatherXml(double latitude, double longitude, int temperature) {
+        return "<weather><latitude>" + latitude + "</latitude><longitude>" + longitude + "</longitude>"
+            + "<temperature>" + temperature + "</temperature><Unit>celsius</Unit></weather>";
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+* An HttpExchange without a connection, so that handlers and writers can be benchmarked without the network.
+* The response body is discarded, or kept if the exchange is created with keepResponse.
+*/
+public class BenchmarkExchange extends HttpExchange {
+
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final String method;
+    private final URI uri;
+    private final InputStream requestBody;
+    private final OutputStream responseBody;
+    private int responseCode = -1;
+    private HttpPrincipal principal = null;
+
+    public BenchmarkExchange(String method, String uri, byte[] requestBody, boolean keepResponse) {
+        this.method = method;
+        this.uri = URI.create(uri);
+        this.requestBody = new ByteArrayInputStream(requestBody != null ? requestBody : new byte[0]);
+        this.responseBody = keepResponse ? new ByteArrayOutputStream() : OutputStream.nullOutputStream();
+    }
+
+    /**
+    * @return the response body, or null if the exchange does not keep it.
+    */
+    public byte[] getResponseBytes() {
+        return responseBody instanceof ByteArrayOutputStream ? ((ByteArrayOutputStream) responseBody).toByteArray() : null;
+    }
+
+    public void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("localhost", 0);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("localhost", 8001);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) { }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) { }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+}
@@ -0,0 +1,64 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* The CPU cost of compressing realistic message listings. The bytes saved are printed when the listings are created.
+* The compression level is a server setting; compare levels by running with -jvmArgsAppend -Dcompression.level=N.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int messages;
+
+    @Param({"gzip", "deflate"})
+    public String encoding;
+
+    private byte[] listing;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException {
+
+        File database = BenchmarkData.copyOf(BenchmarkData.messageDatabase(1000));
+        MessageDatabase db = BenchmarkData.open(database);
+        MessageQuery query = new MessageQuery();
+        query.setLimit(messages);
+        BenchmarkExchange exchange = new BenchmarkExchange("GET", "/info", null, true);
+        MessageStreamWriter writer = new MessageStreamWriter(exchange);
+        db.writeMessages(query, writer);
+        writer.close();
+        db.close();
+        BenchmarkData.deleteDatabase(database);
+
+        listing = exchange.getResponseBytes();
+        int compressed = ResponseCompression.compress(listing, encoding).length;
+        System.out.printf("%n%d messages: %d bytes, %s %d bytes (%.1f %%)%n", messages, listing.length, encoding, compressed, 100.0 * compressed / listing.length);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return ResponseCompression.compress(listing, encoding);
+    }
+}
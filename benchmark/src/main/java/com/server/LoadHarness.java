@@ -0,0 +1,535 @@
+package com.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+* Measures the throughput and latency of the whole server over HTTPS.
+* The harness generates a keystore, starts the server (Main) in its own JVM with a temporary database, starts a stub weather service
+* in this JVM, registers users and preloads messages, and then runs concurrent clients that register, post and get in a configurable mix.
+* Latencies are recorded per operation in HdrHistograms; with --rate the clients send on a schedule and latencies are measured
+* from the scheduled time, so that a stalled server is not hidden by clients that wait for it (coordinated omission).
+*
+* Usage: java -cp target/benchmarks.jar com.server.LoadHarness [options], see printUsage() for the options.
+*/
+public class LoadHarness {
+
+    private static final String PASSWORD = "load password";
+    private static final String KEYSTORE_PASSWORD = "loadtest";
+
+    // Options
+    private int clients = 32;
+    private long durationSeconds = 30;
+    private long warmupSeconds = 10;
+    private double rate = 0; // Requests per second over all clients, 0 = as fast as possible
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private int users = 100;
+    private int preload = 10000;
+    private int pageSize = 100;
+    private double weatherFraction = 0.5;
+    private long weatherDelayMillis = 20;
+    private boolean compressed = false;
+    private String executor = "cached";
+    private int port = 8001;
+    private int weatherPort = 4001;
+    private final List<String> serverOptions = new ArrayList<>();
+    private String output = null;
+
+    // Run state
+    private Path workDirectory;
+    private Process server;
+    private StubWeatherService weatherService;
+    private HttpClient client;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicInteger registrations = new AtomicInteger();
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        if(!harness.parseOptions(args)) {
+            printUsage();
+            System.exit(2);
+        }
+        int status = harness.run() ? 0 : 1;
+        System.exit(status); // Does not wait for the HttpClient's threads
+    }
+
+    private static void printUsage() {
+        System.err.println("Options:");
+        System.err.println("  --clients N            concurrent clients (32)");
+        System.err.println("  --duration S           measured seconds (30)");
+        System.err.println("  --warmup S             seconds before measuring (10)");
+        System.err.println("  --rate R               requests per second over all clients, 0 = as fast as possible (0)");
+        System.err.println("  --mix op=w,...         weights of register, post and get (register=1,post=19,get=80)");
+        System.err.println("  --users N              users registered before the run (100)");
+        System.err.println("  --preload N            messages posted before the run (10000)");
+        System.err.println("  --page N               limit of each get (100)");
+        System.err.println("  --weather-fraction F   fraction of messages with coordinates that ask for weather (0.5)");
+        System.err.println("  --weather-delay MS     delay of the stub weather service (20)");
+        System.err.println("  --compressed           ask for gzip responses");
+        System.err.println("  --executor MODE        server.executor of the server: cached, virtual or bounded (cached)");
+        System.err.println("  --server-option OPT    extra JVM option for the server, may be repeated (e.g. -Ddb.poolSize=8)");
+        System.err.println("  --port N               server port (8001)");
+        System.err.println("  --weather-port N       stub weather service port (4001)");
+        System.err.println("  --output FILE          also write the results as JSON");
+    }
+
+    private boolean parseOptions(String[] args) {
+        mix.put("register", 1);
+        mix.put("post", 19);
+        mix.put("get", 80);
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--clients": clients = Integer.parseInt(args[++i]); break;
+                    case "--duration": durationSeconds = Long.parseLong(args[++i]); break;
+                    case "--warmup": warmupSeconds = Long.parseLong(args[++i]); break;
+                    case "--rate": rate = Double.parseDouble(args[++i]); break;
+                    case "--mix":
+                        mix.clear();
+                        for(String weight : args[++i].split(",")) {
+                            String[] parts = weight.split("=");
+                            if(!List.of("register", "post", "get").contains(parts[0])) {
+                                return false;
+                            }
+                            mix.put(parts[0], Integer.parseInt(parts[1]));
+                        }
+                        break;
+                    case "--users": users = Integer.parseInt(args[++i]); break;
+                    case "--preload": preload = Integer.parseInt(args[++i]); break;
+                    case "--page": pageSize = Integer.parseInt(args[++i]); break;
+                    case "--weather-fraction": weatherFraction = Double.parseDouble(args[++i]); break;
+                    case "--weather-delay": weatherDelayMillis = Long.parseLong(args[++i]); break;
+                    case "--compressed": compressed = true; break;
+                    case "--executor": executor = args[++i]; break;
+                    case "--server-option": serverOptions.add(args[++i]); break;
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    case "--weather-port": weatherPort = Integer.parseInt(args[++i]); break;
+                    case "--output": output = args[++i]; break;
+                    default: return false;
+                }
+            }
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        return clients > 0 && users > 0 && mix.values().stream().mapToInt(Integer::intValue).sum() > 0;
+    }
+
+    private boolean run() throws Exception {
+
+        workDirectory = Files.createTempDirectory("load-harness-");
+        boolean completed = false;
+        try {
+            File keystore = createKeystore();
+            weatherService = new StubWeatherService(weatherPort, weatherDelayMillis);
+            startServer(keystore);
+            client = createClient(keystore);
+
+            System.out.printf("Registering %d users and posting %d messages%n", users, preload);
+            prepare();
+
+            for(String operation : mix.keySet()) {
+                recorders.put(operation, new Recorder(TimeUnit.SECONDS.toMicros(60), 3));
+            }
+            ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+            List<Future<?>> clientTasks = new ArrayList<>();
+            for(int i = 0; i < clients; i++) {
+                int clientIndex = i;
+                clientTasks.add(clientThreads.submit(() -> runClient(clientIndex)));
+            }
+
+            System.out.printf("Warming up for %d s%n", warmupSeconds);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            for(Recorder recorder : recorders.values()) {
+                recorder.getIntervalHistogram(); // Discards the warmup
+            }
+            failures.clear();
+            long lookupsBefore = weatherService.getRequests();
+
+            System.out.printf("Measuring for %d s with %d clients (%s executor)%n", durationSeconds, clients, executor);
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            Map<String, Histogram> histograms = new LinkedHashMap<>();
+            for(Map.Entry<String, Recorder> recorder : recorders.entrySet()) {
+                histograms.put(recorder.getKey(), recorder.getValue().getIntervalHistogram());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long lookups = weatherService.getRequests() - lookupsBefore;
+
+            running = false;
+            for(Future<?> clientTask : clientTasks) {
+                clientTask.get();
+            }
+            clientThreads.shutdown();
+
+            report(histograms, seconds, lookups);
+            completed = true;
+        } catch(Exception e) {
+            e.printStackTrace();
+        } finally {
+            stop(completed);
+        }
+        return completed;
+    }
+
+    /**
+    * Generates a self-signed certificate for localhost with keytool.
+    */
+    private File createKeystore() throws IOException, InterruptedException {
+        File keystore = workDirectory.resolve("keystore.jks").toFile();
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2", "-storetype", "JKS",
+            "-keystore", keystore.getPath(), "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+            .redirectErrorStream(true)
+            .redirectOutput(workDirectory.resolve("keytool.log").toFile())
+            .start();
+        if(process.waitFor() != 0) {
+            throw new IOException("keytool failed, see " + workDirectory.resolve("keytool.log"));
+        }
+        return keystore;
+    }
+
+    /**
+    * Starts Main in a new JVM with the same class path as this one and waits until it accepts connections.
+    */
+    private void startServer(File keystore) throws IOException, InterruptedException {
+
+        try (ServerSocket probe = new ServerSocket(port)) {
+            // The port is free
+        } catch(IOException e) {
+            throw new IOException("Port " + port + " is already in use, is another server running?");
+        }
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dserver.port=" + port);
+        command.add("-Dserver.executor=" + executor);
+        command.add("-Ddb.name=" + workDirectory.resolve("MessageDB"));
+        command.add("-Dweather.url=" + weatherService.getUrl());
+        command.addAll(serverOptions);
+        command.add("com.server.Main");
+        command.add(keystore.getPath());
+        command.add(KEYSTORE_PASSWORD);
+
+        File log = workDirectory.resolve("server.log").toFile();
+        server = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while(System.currentTimeMillis() < deadline) {
+            if(!server.isAlive()) {
+                throw new IOException("The server exited, see " + log);
+            }
+            try (Socket socket = new Socket("localhost", port)) {
+                return;
+            } catch(IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("The server did not start in 30 s, see " + log);
+    }
+
+    /**
+    * Creates an HTTP client that trusts the generated certificate.
+    */
+    private HttpClient createClient(File keystore) throws IOException, GeneralSecurityException {
+        KeyStore trusted = KeyStore.getInstance("JKS");
+        try (InputStream input = new FileInputStream(keystore)) {
+            trusted.load(input, KEYSTORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManager = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManager.init(trusted);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManager.getTrustManagers(), null);
+
+        return HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .sslContext(sslContext)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+    }
+
+    /**
+    * Registers the users the clients post and get as, and preloads messages through /info/batch.
+    */
+    private void prepare() throws Exception {
+
+        ExecutorService preparation = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for(int i = 0; i < users; i++) {
+                String username = "user" + i;
+                results.add(preparation.submit(() -> sendWithRetry(registration(username)).statusCode()));
+            }
+            for(Future<Integer> status : results) {
+                int code = status.get();
+                if(code != 200 && code != 409) { // 409 if a retried registration had already gone through
+                    throw new IOException("Registering a user failed with " + code);
+                }
+            }
+        } finally {
+            preparation.shutdown();
+        }
+
+        Random random = new Random(BenchmarkData.SEED);
+        for(int posted = 0; posted < preload; posted += 1000) {
+            JSONArray batch = new JSONArray();
+            for(int i = posted; i < Math.min(preload, posted + 1000); i++) {
+                batch.put(message(random));
+            }
+            HttpResponse<String> response = sendWithRetry(authorized(HttpRequest.newBuilder(uri("/info/batch")), "user0")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(batch.toString()))
+                .build());
+            if(response.statusCode() != 200) {
+                throw new IOException("Preloading messages failed with " + response.statusCode() + ": " + response.body());
+            }
+        }
+    }
+
+    /**
+    * Sends requests until the run ends. Without a rate each client sends its next request as soon as the previous one is answered.
+    */
+    private void runClient(int clientIndex) {
+
+        Random random = new Random(BenchmarkData.SEED + clientIndex);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        long interval = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+        long next = System.nanoTime() + (interval > 0 ? random.nextLong(interval) : 0); // Spread the clients over the interval
+
+        while(running) {
+            if(interval > 0) {
+                long wait = next - System.nanoTime();
+                if(wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            String operation = pick(random, totalWeight);
+            long start = interval > 0 ? next : System.nanoTime(); // Scheduled requests are timed from when they should have been sent
+            int status;
+            try {
+                status = send(request(operation, random)).statusCode();
+            } catch(Exception e) {
+                status = -1;
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            recorders.get(operation).recordValue(Math.min(micros, TimeUnit.SECONDS.toMicros(60)));
+            if(status < 200 || status >= 300) {
+                failures.computeIfAbsent(operation + " " + (status < 0 ? "error" : Integer.toString(status)), key -> new LongAdder()).increment();
+            }
+            next += interval;
+        }
+    }
+
+    private String pick(Random random, int totalWeight) {
+        int choice = random.nextInt(totalWeight);
+        for(Map.Entry<String, Integer> weight : mix.entrySet()) {
+            choice -= weight.getValue();
+            if(choice < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private HttpRequest request(String operation, Random random) {
+        String user = "user" + random.nextInt(users);
+        switch(operation) {
+            case "register":
+                return registration("load-" + runId + "-" + registrations.incrementAndGet());
+            case "post":
+                return authorized(HttpRequest.newBuilder(uri("/info")), user)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(message(random).toString()))
+                    .build();
+            default:
+                HttpRequest.Builder get = authorized(HttpRequest.newBuilder(uri("/info?limit=" + pageSize)), user).GET();
+                if(compressed) {
+                    get.header("Accept-Encoding", "gzip");
+                }
+                return get.build();
+        }
+    }
+
+    private HttpRequest registration(String username) {
+        JSONObject user = new JSONObject();
+        user.put("username", username);
+        user.put("password", PASSWORD);
+        user.put("email", username + "@example.com");
+        user.put("userNickname", username);
+        return HttpRequest.newBuilder(uri("/registration"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(user.toString()))
+            .build();
+    }
+
+    private JSONObject message(Random random) {
+        return BenchmarkData.messageJson(random, System.currentTimeMillis(), random.nextDouble() < weatherFraction);
+    }
+
+    private HttpRequest.Builder authorized(HttpRequest.Builder request, String username) {
+        String credentials = Base64.getEncoder().encodeToString((username + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+        return request.header("Authorization", "Basic " + credentials).timeout(Duration.ofSeconds(60));
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+    * Sends a request of the preparation, retrying once if the connection fails. The HttpClient does not retry POST requests itself,
+    * and a pooled connection the server has already closed fails the request. During the run such failures are counted instead.
+    */
+    private HttpResponse<String> sendWithRetry(HttpRequest request) throws IOException, InterruptedException {
+        try {
+            return send(request);
+        } catch(IOException e) {
+            return send(request);
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("https://localhost:" + port + path);
+    }
+
+    private void report(Map<String, Histogram> histograms, double seconds, long weatherLookups) throws IOException {
+
+        JSONObject results = new JSONObject();
+        results.put("clients", clients);
+        results.put("executor", executor);
+        results.put("rate", rate);
+        results.put("seconds", seconds);
+        results.put("weatherDelayMillis", weatherDelayMillis);
+        results.put("weatherLookups", weatherLookups);
+
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s%n", "Operation", "Requests", "Req/s", "p50 ms", "p99 ms", "p99.9 ms", "Max ms", "Failed");
+        Histogram total = new Histogram(TimeUnit.SECONDS.toMicros(60), 3);
+        JSONObject operations = new JSONObject();
+        long totalFailed = 0;
+        for(Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            total.add(histogram);
+            long failed = failures.entrySet().stream().filter(failure -> failure.getKey().startsWith(entry.getKey() + " "))
+                .mapToLong(failure -> failure.getValue().sum()).sum();
+            totalFailed += failed;
+            printRow(entry.getKey(), histogram, seconds, failed);
+            operations.put(entry.getKey(), toJson(histogram, seconds, failed));
+        }
+        printRow("total", total, seconds, totalFailed);
+        results.put("operations", operations);
+        results.put("total", toJson(total, seconds, totalFailed));
+
+        if(!failures.isEmpty()) {
+            System.out.println();
+            System.out.println("Failed requests:");
+            JSONObject failed = new JSONObject();
+            failures.forEach((failure, count) -> {
+                System.out.printf("  %-20s %d%n", failure, count.sum());
+                failed.put(failure, count.sum());
+            });
+            results.put("failures", failed);
+        }
+        System.out.printf("%nWeather lookups: %d (%.1f/s)%n", weatherLookups, weatherLookups / seconds);
+
+        if(output != null) {
+            Files.writeString(Path.of(output), results.toString(2), StandardCharsets.UTF_8);
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    private static void printRow(String name, Histogram histogram, double seconds, long failed) {
+        System.out.printf("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10d%n", name, histogram.getTotalCount(), histogram.getTotalCount() / seconds,
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0, failed);
+    }
+
+    private static JSONObject toJson(Histogram histogram, double seconds, long failed) {
+        JSONObject json = new JSONObject();
+        json.put("requests", histogram.getTotalCount());
+        json.put("throughput", histogram.getTotalCount() / seconds);
+        json.put("failed", failed);
+        json.put("p50Millis", histogram.getValueAtPercentile(50) / 1000.0);
+        json.put("p99Millis", histogram.getValueAtPercentile(99) / 1000.0);
+        json.put("p999Millis", histogram.getValueAtPercentile(99.9) / 1000.0);
+        json.put("maxMillis", histogram.getMaxValue() / 1000.0);
+        return json;
+    }
+
+    /**
+    * Stops the server and the weather service. The work directory (with the server's log) is kept if the run failed.
+    */
+    private void stop(boolean deleteFiles) {
+        if(server != null) {
+            server.destroy();
+            try {
+                if(!server.waitFor(10, TimeUnit.SECONDS)) {
+                    server.destroyForcibly();
+                }
+            } catch(InterruptedException e) {
+                server.destroyForcibly();
+            }
+        }
+        if(weatherService != null) {
+            weatherService.stop();
+        }
+        if(!deleteFiles) {
+            System.err.println("The server's files were left in " + workDirectory);
+        }
+        else {
+            try (Stream<Path> files = Files.walk(workDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
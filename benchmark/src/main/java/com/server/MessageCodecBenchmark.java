@@ -0,0 +1,152 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* The message formats compared: encoding a listing with MessageStreamWriter and decoding posted messages into UserMessages,
+* in JSON and in CBOR. The sizes of the encoded listings and messages, plain and gzip compressed, are printed in the setup.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int messages;
+
+    @Param({"JSON", "CBOR"})
+    public MessageFormat format;
+
+    private List<UserMessage> listing;
+    private byte[][] bodies;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        Random random = new Random(BenchmarkData.SEED);
+        listing = BenchmarkData.messages(random, messages, true);
+        bodies = new byte[listing.size()][];
+        long bodyBytes = 0;
+        for(int i = 0; i < bodies.length; i++) {
+            bodies[i] = encodeBody(listing.get(i));
+            bodyBytes += bodies[i].length;
+        }
+
+        BenchmarkExchange exchange = new BenchmarkExchange("GET", "/info", null, true);
+        writeListing(exchange);
+        byte[] encoded = exchange.getResponseBytes();
+        int compressed = ResponseCompression.compress(encoded, ResponseCompression.GZIP).length;
+        System.out.printf("%n%s listing of %d messages: %d bytes, gzip %d bytes; posted messages %.1f bytes on average%n",
+            format, messages, encoded.length, compressed, (double) bodyBytes / bodies.length);
+    }
+
+    @Benchmark
+    public BenchmarkExchange encodeListing() throws IOException {
+        BenchmarkExchange exchange = new BenchmarkExchange("GET", "/info", null, false);
+        writeListing(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public UserMessage decodeMessage() throws IOException {
+        byte[] body = bodies[next++ % bodies.length];
+        if(format == MessageFormat.CBOR) {
+            CborReader reader = new CborReader(body);
+            UserMessage message = new UserMessage(reader);
+            reader.checkEnd();
+            return message;
+        }
+        return new UserMessage(new JSONObject(new String(body, StandardCharsets.UTF_8)));
+    }
+
+    // The same fields MessageDatabase writes for a listing
+    private void writeListing(BenchmarkExchange exchange) throws IOException {
+        MessageStreamWriter writer = new MessageStreamWriter(exchange, format);
+        long id = 1;
+        for(UserMessage message : listing) {
+            writer.beginMessage();
+            writer.field("id", id++);
+            writer.field("locationName", message.getLocationName());
+            writer.field("locationDescription", message.getDescription());
+            writer.field("locationCity", message.getCity());
+            writer.field("locationCountry", message.getLocationCountry());
+            writer.field("locationStreetAddress", message.getLocationStreetAddress());
+            writer.field("originalPoster", "nickname");
+            writer.timestampField("originalPostingTime", message.getPostDateAsLong());
+            if(message.getLatitude() != 0 && message.getLongitude() != 0) {
+                writer.field("latitude", message.getLatitude());
+                writer.field("longitude", message.getLongitude());
+            }
+            writer.endMessage();
+        }
+        writer.close();
+    }
+
+    // A message as a client posts it
+    private byte[] encodeBody(UserMessage message) throws IOException {
+
+        boolean hasCoordinates = message.getLatitude() != 0 && message.getLongitude() != 0;
+        if(format == MessageFormat.JSON) {
+            JSONObject json = new JSONObject();
+            json.put("locationName", message.getLocationName());
+            json.put("locationDescription", message.getDescription());
+            json.put("locationCity", message.getCity());
+            json.put("locationCountry", message.getLocationCountry());
+            json.put("locationStreetAddress", message.getLocationStreetAddress());
+            json.put("originalPostingTime", TimestampConverter.convertToString(message.getPostDateAsLong()));
+            if(hasCoordinates) {
+                json.put("latitude", message.getLatitude());
+                json.put("longitude", message.getLongitude());
+            }
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        CborWriter cbor = new CborWriter(body);
+        cbor.startMap();
+        cbor.writeString("locationName");
+        cbor.writeString(message.getLocationName());
+        cbor.writeString("locationDescription");
+        cbor.writeString(message.getDescription());
+        cbor.writeString("locationCity");
+        cbor.writeString(message.getCity());
+        cbor.writeString("locationCountry");
+        cbor.writeString(message.getLocationCountry());
+        cbor.writeString("locationStreetAddress");
+        cbor.writeString(message.getLocationStreetAddress());
+        cbor.writeString("originalPostingTime");
+        cbor.writeLong(message.getPostDateAsLong());
+        if(hasCoordinates) {
+            cbor.writeString("latitude");
+            cbor.writeDouble(message.getLatitude());
+            cbor.writeString("longitude");
+            cbor.writeDouble(message.getLongitude());
+        }
+        cbor.end();
+        cbor.close();
+        return body.toByteArray();
+    }
+}
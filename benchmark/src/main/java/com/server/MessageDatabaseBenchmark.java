@@ -0,0 +1,146 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Posting and reading messages against a copy of a generated database with 1k, 100k or 1M messages.
+* The databases are generated on the first run (the 1M one takes a while) and reused afterwards, see BenchmarkData.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageDatabaseBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private File database;
+    private MessageDatabase db;
+    private List<UserMessage> messages;
+    private final AtomicInteger nextMessage = new AtomicInteger();
+    private String[][] cities;
+    private double[][] coordinates;
+    private String[] words;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException {
+        database = BenchmarkData.copyOf(BenchmarkData.messageDatabase(rows));
+        db = BenchmarkData.open(database);
+        messages = BenchmarkData.messages(new Random(BenchmarkData.SEED + 1), 4096, false);
+        cities = BenchmarkData.getCities();
+        coordinates = BenchmarkData.getCoordinates();
+        words = BenchmarkData.getWords();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        db.close();
+        BenchmarkData.deleteDatabase(database);
+    }
+
+    /**
+    * One client posting at a time, each message waits for its own commit.
+    */
+    @Benchmark
+    public void insertMessage() throws SQLException {
+        db.insertMessage(messages.get(nextMessage.getAndIncrement() & 4095), "bench");
+    }
+
+    /**
+    * Concurrent clients posting, so that messages share commits.
+    */
+    @Benchmark
+    @Threads(8)
+    public void insertMessageConcurrent() throws SQLException {
+        db.insertMessage(messages.get(nextMessage.getAndIncrement() & 4095), "bench");
+    }
+
+    @Benchmark
+    public int getFirstPage() throws SQLException, IOException {
+        return getMessages(new MessageQuery());
+    }
+
+    @Benchmark
+    public int getRandomPage() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setAfter(ThreadLocalRandom.current().nextInt(rows));
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getByCity() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setCity(cities[ThreadLocalRandom.current().nextInt(cities.length)][0]);
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getSinceLatest() throws SQLException, IOException {
+        // The newest few messages, about a day's worth
+        MessageQuery query = new MessageQuery();
+        query.setSince(BenchmarkData.getFirstPostingTime() + rows * 30000L - 24 * 3600 * 1000L);
+        return getMessages(query);
+    }
+
+    /**
+    * A map view of a part of one city, with about a sixth of the messages of the city that have coordinates.
+    */
+    @Benchmark
+    public int getBoundingBox() throws SQLException, IOException {
+        double[] city = coordinates[ThreadLocalRandom.current().nextInt(coordinates.length)];
+        MessageQuery query = new MessageQuery();
+        query.setBoundingBox(new BoundingBox(city[0] + 0.02, city[1] + 0.02, city[0] + 0.06, city[1] + 0.06));
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getNearest() throws SQLException, IOException {
+        double[] city = coordinates[ThreadLocalRandom.current().nextInt(coordinates.length)];
+        MessageQuery query = new MessageQuery();
+        query.setNear(city[0] + 0.05, city[1] + 0.05);
+        return getMessages(query);
+    }
+
+    /**
+    * The generated messages only use 20 different words, so each search word matches a large part of the messages.
+    */
+    @Benchmark
+    public int getSearch() throws SQLException, IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MessageQuery query = new MessageQuery();
+        query.setSearch(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " " + cities[random.nextInt(cities.length)][0]);
+        return getMessages(query);
+    }
+
+    private int getMessages(MessageQuery query) throws SQLException, IOException {
+        MessageStreamWriter writer = new MessageStreamWriter(new BenchmarkExchange("GET", "/info", null, false));
+        int count = db.writeMessages(query, writer);
+        writer.close();
+        return count;
+    }
+}
@@ -0,0 +1,148 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* The storage engines compared on the same generated messages: the SQLite MessageDatabase and the LogMessageStore.
+* Posting and reading the newest messages is what the log is made for; the filtered, near and search listings show what
+* scanning costs it compared to the indexes of SQLite. Both engines sync every commit to the disk, as they do by default.
+* The log store is filled in the setup, the SQLite database is copied from the one generated for MessageDatabaseBenchmark.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    @Param({"sqlite", "log"})
+    public String engine;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private MessageStore store;
+    private File database;
+    private String logName;
+    private List<UserMessage> messages;
+    private final AtomicInteger nextMessage = new AtomicInteger();
+    private String[][] cities;
+    private double[][] coordinates;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException, IOException {
+        if(engine.equals("sqlite")) {
+            database = BenchmarkData.copyOf(BenchmarkData.messageDatabase(rows));
+            store = BenchmarkData.open(database);
+        }
+        else {
+            logName = BenchmarkData.openLog();
+            store = LogMessageStore.getInstance();
+            BenchmarkData.fill(store, rows);
+        }
+        messages = BenchmarkData.messages(new Random(BenchmarkData.SEED + 1), 4096, false);
+        cities = BenchmarkData.getCities();
+        coordinates = BenchmarkData.getCoordinates();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException, IOException {
+        store.close();
+        if(database != null) {
+            BenchmarkData.deleteDatabase(database);
+        }
+        if(logName != null) {
+            BenchmarkData.deleteLog(logName);
+        }
+    }
+
+    /**
+    * One client posting at a time, each message waits for its own commit.
+    */
+    @Benchmark
+    public void insertMessage() throws SQLException {
+        store.insertMessage(messages.get(nextMessage.getAndIncrement() & 4095), "bench");
+    }
+
+    /**
+    * Concurrent clients posting, so that messages share commits.
+    */
+    @Benchmark
+    @Threads(8)
+    public void insertMessageConcurrent() throws SQLException {
+        store.insertMessage(messages.get(nextMessage.getAndIncrement() & 4095), "bench");
+    }
+
+    /**
+    * A client polling for what was posted since it last asked: the newest 20 messages.
+    */
+    @Benchmark
+    public int getNewest() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setAfter(store.getLatestMessageId() - 20);
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getRandomPage() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setAfter(ThreadLocalRandom.current().nextInt(rows));
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getByCity() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setCity(cities[ThreadLocalRandom.current().nextInt(cities.length)][0]);
+        return getMessages(query);
+    }
+
+    @Benchmark
+    public int getNearest() throws SQLException, IOException {
+        double[] city = coordinates[ThreadLocalRandom.current().nextInt(coordinates.length)];
+        MessageQuery query = new MessageQuery();
+        query.setNear(city[0] + 0.05, city[1] + 0.05);
+        return getMessages(query);
+    }
+
+    /**
+    * One of the words of the generated messages, which most of them contain, and one of the cities.
+    */
+    @Benchmark
+    public int getSearch() throws SQLException, IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MessageQuery query = new MessageQuery();
+        query.setSearch(BenchmarkData.getWords()[random.nextInt(BenchmarkData.getWords().length)] + " " + cities[random.nextInt(cities.length)][0]);
+        return getMessages(query);
+    }
+
+    private int getMessages(MessageQuery query) throws SQLException, IOException {
+        MessageStreamWriter writer = new MessageStreamWriter(new BenchmarkExchange("GET", "/info", null, false));
+        int count = store.writeMessages(query, writer);
+        writer.close();
+        return count;
+    }
+}
@@ -0,0 +1,97 @@
+package com.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.Crypt;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Password hashing throughput: SHA-512 crypt on the calling thread, as registration used to do it, and through PasswordHasher.
+* With more callers than hash.threads the pooled throughput stays at what the pool's threads can hash, and the callers
+* over the queue are rejected instead of taking more cores; its "hashed" and "rejected" columns count the two outcomes.
+* Run with -jvmArgs -Dhash.threads=N -Dhash.queueSize=M to compare pool sizes.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark {
+
+    private static final String PASSWORD = "benchmark password";
+    private static final String SALT = "$6$c2FsdHNhbHRzYWx0cw==";
+
+    private PasswordHasher hasher;
+    private String storedHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws PasswordHasher.BusyException {
+        hasher = PasswordHasher.getInstance();
+        storedHash = hasher.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public String inline() {
+        return Crypt.crypt(PASSWORD, SALT);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String inlineConcurrent() {
+        return Crypt.crypt(PASSWORD, SALT);
+    }
+
+    @Benchmark
+    public String pooled() throws PasswordHasher.BusyException {
+        return hasher.hash(PASSWORD);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String pooledConcurrent(Outcomes outcomes) {
+        try {
+            String hashedPassword = hasher.hash(PASSWORD);
+            outcomes.hashed++;
+            return hashedPassword;
+        } catch(PasswordHasher.BusyException e) {
+            outcomes.rejected++;
+            return null;
+        }
+    }
+
+    @Benchmark
+    public boolean verify() throws PasswordHasher.BusyException {
+        return hasher.verify(PASSWORD, storedHash);
+    }
+
+    /**
+    * Counts the passwords that were hashed and the calls that were rejected because the hashing queue was full.
+    * The primary score of pooledConcurrent includes both.
+    */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Outcomes {
+
+        public long hashed;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hashed = 0;
+            rejected = 0;
+        }
+    }
+}
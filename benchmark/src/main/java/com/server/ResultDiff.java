@@ -0,0 +1,78 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+* Compares two JMH result files (written with -rf json) and prints the change of every benchmark that is in both.
+* Usage: java -cp target/benchmarks.jar com.server.ResultDiff old.json new.json
+*/
+public class ResultDiff {
+
+    private ResultDiff() {}
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length != 2) {
+            System.err.println("Usage: ResultDiff <old results.json> <new results.json>");
+            System.exit(2);
+        }
+        Map<String, JSONObject> before = readResults(args[0]);
+        Map<String, JSONObject> after = readResults(args[1]);
+
+        System.out.printf("%-70s %14s %14s %9s  %s%n", "Benchmark", "Old", "New", "Change", "Unit");
+        for(Map.Entry<String, JSONObject> result : after.entrySet()) {
+            JSONObject old = before.get(result.getKey());
+            double newScore = result.getValue().getDouble("score");
+            String unit = result.getValue().getString("scoreUnit");
+            if(old == null) {
+                System.out.printf("%-70s %14s %14.3f %9s  %s%n", result.getKey(), "-", newScore, "new", unit);
+                continue;
+            }
+            double oldScore = old.getDouble("score");
+            double change = oldScore != 0 ? (newScore - oldScore) / oldScore * 100 : 0;
+            // The change is only reported as a difference if it is larger than the error margins
+            boolean significant = Math.abs(newScore - oldScore) > errorOf(old) + errorOf(result.getValue());
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%s %s%n", result.getKey(), oldScore, newScore, change, significant ? "*" : " ", unit);
+        }
+        for(String removed : before.keySet()) {
+            if(!after.containsKey(removed)) {
+                System.out.printf("%-70s %14.3f %14s %9s%n", removed, before.get(removed).getDouble("score"), "-", "removed");
+            }
+        }
+        System.out.println("* = the difference is larger than the combined error margins");
+    }
+
+    /**
+    * Reads the primary metric of every benchmark, keyed by the benchmark name and its parameters.
+    */
+    private static Map<String, JSONObject> readResults(String file) throws IOException {
+
+        JSONArray results = new JSONArray(Files.readString(Path.of(file), StandardCharsets.UTF_8));
+        Map<String, JSONObject> metrics = new LinkedHashMap<>();
+        for(int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            StringBuilder key = new StringBuilder(result.getString("benchmark").replace("com.server.", ""));
+            JSONObject params = result.optJSONObject("params");
+            if(params != null) {
+                for(String name : params.keySet().stream().sorted().toList()) {
+                    key.append(' ').append(name).append('=').append(params.get(name));
+                }
+            }
+            metrics.put(key.toString(), result.getJSONObject("primaryMetric"));
+        }
+        return metrics;
+    }
+
+    private static double errorOf(JSONObject metric) {
+        double error = metric.optDouble("scoreError", 0);
+        return Double.isNaN(error) ? 0 : error;
+    }
+}
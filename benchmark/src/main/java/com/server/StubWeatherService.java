@@ -0,0 +1,101 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+* A stand-in for the weather service: answers every POST to /weather with an XML response like the real service,
+* after a configurable delay. The temperature is derived from the coordinates, so the same place always gets the same weather.
+*/
+public class StubWeatherService {
+
+    private static final Pattern LATITUDE = Pattern.compile("<latitude>([^<]*)</latitude>");
+    private static final Pattern LONGITUDE = Pattern.compile("<longitude>([^<]*)</longitude>");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long delayMillis;
+    private final LongAdder requests = new LongAdder();
+
+    /**
+    * Starts the service.
+    * @param port the port to listen on, 4001 is the weather service's default.
+    * @param delayMillis how long each response is delayed, to simulate a slow service.
+    * @throws IOException if the port cannot be bound.
+    */
+    public StubWeatherService(int port, long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/weather", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+    * @return the URL of the service, for the weather.url property of the server.
+    */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/weather";
+    }
+
+    /**
+    * @return the number of lookups answered so far.
+    */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        String request;
+        try (InputStream body = exchange.getRequestBody()) {
+            request = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        String latitude = find(LATITUDE, request);
+        String longitude = find(LONGITUDE, request);
+        if(latitude == null || longitude == null) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+
+        if(delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int temperature = (int) Math.round(Math.abs(Double.parseDouble(latitude) * 7 + Double.parseDouble(longitude) * 3)) % 40 - 15;
+        byte[] response = BenchmarkData.weatherXml(Double.parseDouble(latitude), Double.parseDouble(longitude), temperature)
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+        }
+        requests.increment();
+    }
+
+    private static String find(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1).trim() : null;
+    }
+}
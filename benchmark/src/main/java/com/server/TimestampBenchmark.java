@@ -0,0 +1,70 @@
+package com.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Timestamp conversions in both directions, with the hand written conversions of TimestampConverter
+* and the formatter they replaced (through ZonedDateTime) for comparison.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampBenchmark {
+
+    private long[] dates;
+    private String[] strings;
+    private final char[] buffer = new char[TimestampConverter.TIMESTAMP_LENGTH];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(BenchmarkData.SEED);
+        dates = new long[1024];
+        strings = new String[dates.length];
+        for(int i = 0; i < dates.length; i++) {
+            dates[i] = BenchmarkData.getFirstPostingTime() + (long) (random.nextDouble() * 365 * 24 * 3600 * 1000L);
+            strings[i] = TimestampConverter.convertToString(dates[i]);
+        }
+    }
+
+    @Benchmark
+    public String formatToString() {
+        return TimestampConverter.convertToString(dates[next++ & 1023]);
+    }
+
+    @Benchmark
+    public char[] formatToChars() {
+        TimestampConverter.convertToChars(dates[next++ & 1023], buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public String formatWithFormatter() {
+        return TimestampConverter.convertToString(TimestampConverter.convertToZonedDateTime(dates[next++ & 1023]));
+    }
+
+    @Benchmark
+    public long parse() {
+        return TimestampConverter.convertToLong(strings[next++ & 1023]);
+    }
+
+    @Benchmark
+    public long parseWithFormatter() {
+        return TimestampConverter.convertToLong(TimestampConverter.convertToZonedDateTime(strings[next++ & 1023]));
+    }
+}
@@ -0,0 +1,86 @@
+package com.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Parsing of posted messages: the request body into a JSONObject and the JSONObject into a UserMessage,
+* and the body straight into a UserMessage with UserMessageDecoder. readBody is the way MessageHandler read the body
+* before the decoder. Run with -prof gc to compare the bytes allocated per message (gc.alloc.rate.norm).
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserMessageBenchmark {
+
+    private String[] bodies;
+    private ByteArrayInputStream[] streams;
+    private JSONObject[] objects;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(BenchmarkData.SEED);
+        bodies = new String[1024];
+        streams = new ByteArrayInputStream[bodies.length];
+        objects = new JSONObject[bodies.length];
+        for(int i = 0; i < bodies.length; i++) {
+            objects[i] = BenchmarkData.messageJson(random, BenchmarkData.getFirstPostingTime() + i * 1000L, true);
+            bodies[i] = objects[i].toString();
+            streams[i] = new ByteArrayInputStream(bodies[i].getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public UserMessage parseBody() {
+        return new UserMessage(new JSONObject(bodies[next++ & 1023]));
+    }
+
+    @Benchmark
+    public UserMessage fromJsonObject() {
+        return new UserMessage(objects[next++ & 1023]);
+    }
+
+    @Benchmark
+    public UserMessage readBody() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(nextStream(), StandardCharsets.UTF_8));
+        return new UserMessage(new JSONObject(reader.lines().collect(Collectors.joining("\n"))));
+    }
+
+    @Benchmark
+    public UserMessage decodeStream() throws IOException {
+        return UserMessageDecoder.decode(nextStream(), Long.MAX_VALUE);
+    }
+
+    private ByteArrayInputStream nextStream() {
+        ByteArrayInputStream stream = streams[next++ & 1023];
+        stream.reset(); // Back to the start, the streams are reused so that creating them is not measured
+        return stream;
+    }
+
+    @Benchmark
+    public JSONObject jsonOnly() {
+        return new JSONObject(bodies[next++ & 1023]);
+    }
+}
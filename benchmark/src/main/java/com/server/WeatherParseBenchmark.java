@@ -0,0 +1,44 @@
+package com.server;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Parsing of the weather service's XML responses.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeatherParseBenchmark {
+
+    private String[] responses;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        responses = new String[64];
+        for(int i = 0; i < responses.length; i++) {
+            responses[i] = BenchmarkData.weatherXml(60 + i / 10.0, 25 - i / 10.0, i - 30);
+        }
+    }
+
+    @Benchmark
+    public String parseWeatherResponse() throws XMLStreamException {
+        return WeatherLookup.parseWeatherResponse(responses[next++ & 63]);
+    }
+}
@@ -0,0 +1,260 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+* Handles bulk uploads of messages. The body is either a JSON array of messages (application/json)
+* or newline delimited JSON with one message per line (application/x-ndjson). A body starting with '[' is read as an array,
+* anything else as lines; either way the framing must be exact, so that a malformed body is rejected rather than guessed at.
+* The body is decoded one message at a time with the UserMessageDecoder that MessageHandler uses, so every message is validated
+* the same way and no JSONObject is built for it, and all the valid messages are inserted in one transaction. The response tells the outcome of each message.
+*/
+public class BatchMessageHandler implements HttpHandler {
+
+    final MessageStore db = MessageStore.getInstance();
+    private final int maxItems = Integer.getInteger("batch.maxItems", 10000);
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        String responseString = null;
+
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            responseString = "Not supported; Only POST is accepted";
+            handleResponse(exchange, responseString, 400);
+            return;
+        }
+
+        if(!checkContentType(exchange)){
+            return; // response handled inside checkContentType()
+        }
+
+        List<UserMessage> messages = new ArrayList<>();
+        JSONArray results = new JSONArray();
+
+        try (InputStream input = exchange.getRequestBody();
+            UserMessageDecoder decoder = UserMessageDecoder.open(input, Long.MAX_VALUE)) {
+            ItemReader items = new ItemReader(decoder);
+            int index = 0;
+            int first;
+            while((first = items.next()) != -1) {
+                if(index >= maxItems) {
+                    responseString = "Too many messages, at most " + maxItems + " can be posted at once";
+                    handleResponse(exchange, responseString, 413);
+                    return;
+                }
+                results.put(readItem(decoder, first, index, messages));
+                index++;
+            }
+        } catch(UserMessageDecoder.SyntaxException e) {
+            responseString = "Messages could not be read - JSON was faulty";
+            handleResponse(exchange, responseString, 400);
+            return;
+        }
+
+        if(results.isEmpty()) {
+            responseString = "No messages provided";
+            handleResponse(exchange, responseString, 400);
+            return;
+        }
+
+        if(!messages.isEmpty()) {
+            try {
+                db.insertMessages(messages, ((UserPrincipal) exchange.getPrincipal()).getNickname()); // Add all the valid messages to the database
+            } catch(SQLException e) {
+                e.printStackTrace();
+                responseString = "Messages could not be stored, try again later";
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                handleResponse(exchange, responseString, 503);
+                return;
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        handleResponse(exchange, results.toString(), 200);
+    }
+
+    /**
+    * Decodes one item of the batch and adds it to the messages if it is a valid message.
+    * @param decoder the decoder of the body.
+    * @param first the first character of the item.
+    * @param index the position of the item in the batch.
+    * @param messages the valid messages so far.
+    * @return the result of the item: {"index": 0, "posted": true} or {"index": 0, "posted": false, "error": "..."}
+    * @throws UserMessageDecoder.SyntaxException if the item is not valid JSON, so the rest of the batch cannot be read.
+    * @throws IOException if reading the body fails.
+    */
+    private JSONObject readItem(UserMessageDecoder decoder, int first, int index, List<UserMessage> messages) throws IOException {
+
+        JSONObject result = new JSONObject();
+        result.put("index", index);
+
+        try {
+            UserMessage message = decoder.readItem(first);
+            if(message == null) {
+                result.put("posted", false);
+                result.put("error", "Item is not a JSON object");
+                return result;
+            }
+            messages.add(message);
+            result.put("posted", true);
+        } catch(UserMessageDecoder.SyntaxException e) {
+            throw e;
+        } catch(JSONException | DateTimeParseException e) { // Valid JSON but not a valid message, the next item can still be read
+            result.put("posted", false);
+            result.put("error", "Message could not be posted - JSON was faulty");
+        }
+        return result;
+    }
+
+    /**
+    * Checks that the request header has a content type of either "application/json" or "application/x-ndjson". Handles the response if header is faulty.
+    * @param exchange The HTTP request
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    * @return True if the content type is accepted. Otherwise returns false.
+    */
+    private boolean checkContentType(HttpExchange exchange) throws IOException {
+
+        Headers requestHeader = exchange.getRequestHeaders();
+        String contentType = requestHeader.getFirst("Content-Type");
+
+        if (contentType == null) {
+            handleResponse(exchange, "Content-Type missing", 400);
+            return false;
+        }
+        if (!contentType.equalsIgnoreCase("application/json") && !contentType.equalsIgnoreCase("application/x-ndjson")) {
+            handleResponse(exchange, "Content type must be application/json or application/x-ndjson", 400);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+    * Constructs and sends a response to the request with given parameters.
+    * @param exchange The HTTP request
+    * @param response Message to inform user of the outcome
+    * @param code The status code
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    private void handleResponse(HttpExchange exchange, String response, int code) throws IOException {
+
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, responseBytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(responseBytes);
+        output.flush();
+        output.close();
+    }
+
+    /**
+    * Finds the items of the body one at a time, checking the framing between them: either one array,
+    * value (',' value)* between '[' and ']' with nothing after it, or values each on a line of its own.
+    * The items themselves are read with UserMessageDecoder.readItem.
+    */
+    static class ItemReader {
+
+        private final UserMessageDecoder decoder;
+        private boolean array;
+        private boolean started = false;
+        private boolean finished = false;
+
+        ItemReader(UserMessageDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        /**
+        * Moves to the next item in the body. The previous item must have been read.
+        * @return the first character of the next item, or -1 when there are no more items.
+        * @throws UserMessageDecoder.SyntaxException if the items are not framed as an array or as lines.
+        * @throws IOException if reading the body fails.
+        */
+        int next() throws IOException {
+
+            if(finished) {
+                return -1;
+            }
+            if(!started) {
+                started = true;
+                int first = decoder.nextClean();
+                if(first == -1) {
+                    finished = true;
+                    return -1;
+                }
+                array = first == '[';
+                if(array) {
+                    first = decoder.nextClean();
+                    if(first == ']') {
+                        return finish();
+                    }
+                    return item(first);
+                }
+                return first;
+            }
+            return array ? nextInArray() : nextLine();
+        }
+
+        private int nextInArray() throws IOException {
+            int separator = decoder.nextClean();
+            if(separator == ']') {
+                return finish();
+            }
+            if(separator != ',') {
+                throw decoder.syntaxError("Expected ',' or ']' between the messages");
+            }
+            return item(decoder.nextClean());
+        }
+
+        // An array that ends where an item should be is cut short, not finished
+        private int item(int first) {
+            if(first == -1) {
+                throw decoder.syntaxError("Expected a message");
+            }
+            return first;
+        }
+
+        /**
+        * Skips the rest of the line of the previous item, which may only contain whitespace, and finds the item on the next
+        * line that is not blank.
+        */
+        private int nextLine() throws IOException {
+            int c = decoder.next();
+            while(c == ' ' || c == '\t' || c == '\r') {
+                c = decoder.next();
+            }
+            if(c != '\n' && c != -1) {
+                throw decoder.syntaxError("Expected a new line after a message");
+            }
+            int first = decoder.nextClean();
+            if(first == -1) {
+                finished = true;
+            }
+            return first;
+        }
+
+        /**
+        * Ends the array, which must be all there is in the body.
+        */
+        private int finish() throws IOException {
+            if(decoder.nextClean() != -1) {
+                throw decoder.syntaxError("Unexpected data after the messages");
+            }
+            finished = true;
+            return -1;
+        }
+    }
+}
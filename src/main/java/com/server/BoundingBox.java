@@ -0,0 +1,154 @@
+package com.server;
+
+/**
+* An area between two latitudes and two longitudes, in degrees. A box whose west edge is east of its east edge
+* crosses the 180th meridian, for example west 170 and east -170 covers the 20 degrees around the date line.
+*/
+public class BoundingBox {
+
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final double south;
+    private final double west;
+    private final double north;
+    private final double east;
+
+    /**
+    * @param south the southern latitude, -90 to 90.
+    * @param west the western longitude, -180 to 180.
+    * @param north the northern latitude, at least south.
+    * @param east the eastern longitude, -180 to 180.
+    * @throws IllegalArgumentException if a coordinate is out of range or the south edge is north of the north edge.
+    */
+    public BoundingBox(double south, double west, double north, double east) throws IllegalArgumentException {
+        if(!isLatitude(south) || !isLatitude(north) || !isLongitude(west) || !isLongitude(east) || south > north) {
+            throw new IllegalArgumentException("Invalid bounding box");
+        }
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+    }
+
+    /**
+    * Parses a box written as "south,west,north,east". Example: {@code 64.9,25.3,65.1,25.6}
+    * @param value the box.
+    * @return the parsed box.
+    * @throws IllegalArgumentException if the value is not four valid coordinates.
+    */
+    public static BoundingBox parse(String value) throws IllegalArgumentException {
+        double[] coordinates = parseCoordinates(value, 4);
+        return new BoundingBox(coordinates[0], coordinates[1], coordinates[2], coordinates[3]);
+    }
+
+    /**
+    * Parses comma separated numbers.
+    * @param value the numbers.
+    * @param count how many numbers there must be.
+    * @return the numbers.
+    * @throws NumberFormatException if there is a different number of values or a value is not a finite number.
+    */
+    static double[] parseCoordinates(String value, int count) throws NumberFormatException {
+        String[] parts = value.split(",", -1);
+        if(parts.length != count) {
+            throw new NumberFormatException("Expected " + count + " comma separated coordinates");
+        }
+        double[] coordinates = new double[count];
+        for(int i = 0; i < count; i++) {
+            coordinates[i] = Double.parseDouble(parts[i].trim());
+            if(!Double.isFinite(coordinates[i])) {
+                throw new NumberFormatException("Expected " + count + " comma separated coordinates");
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+    * Creates the smallest box that contains every point within the distance of the center.
+    * Near the poles, or when the distance is large, the box covers all longitudes.
+    * @param latitude the latitude of the center.
+    * @param longitude the longitude of the center.
+    * @param radiusKm the distance in kilometres.
+    * @return the box.
+    */
+    public static BoundingBox around(double latitude, double longitude, double radiusKm) {
+
+        double angle = radiusKm / EARTH_RADIUS_KM;
+        if(angle >= Math.PI) {
+            return new BoundingBox(-90, -180, 90, 180);
+        }
+        double latitudeRadians = Math.toRadians(latitude);
+        double south = latitudeRadians - angle;
+        double north = latitudeRadians + angle;
+        if(south <= -Math.PI / 2 || north >= Math.PI / 2) { // The circle contains a pole
+            return new BoundingBox(Math.toDegrees(Math.max(south, -Math.PI / 2)), -180, Math.toDegrees(Math.min(north, Math.PI / 2)), 180);
+        }
+
+        // The widest point of the circle is east and west of the center along a great circle, not along the parallel
+        double deltaLongitude = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(latitudeRadians)));
+        double west = longitude - deltaLongitude;
+        double east = longitude + deltaLongitude;
+        if(west < -180) {
+            west += 360;
+        }
+        if(east > 180) {
+            east -= 360;
+        }
+        return new BoundingBox(Math.toDegrees(south), west, Math.toDegrees(north), east);
+    }
+
+    /**
+    * Calculates the great-circle distance between two points with the haversine formula.
+    * @return the distance in kilometres.
+    */
+    public static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double deltaLatitude = Math.toRadians(latitude2 - latitude1);
+        double deltaLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(deltaLatitude / 2) * Math.sin(deltaLatitude / 2)
+            + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(deltaLongitude / 2) * Math.sin(deltaLongitude / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    static boolean isLatitude(double latitude) {
+        return latitude >= -90 && latitude <= 90;
+    }
+
+    static boolean isLongitude(double longitude) {
+        return longitude >= -180 && longitude <= 180;
+    }
+
+    /**
+    * @return true if the box crosses the 180th meridian, so that it is made of two longitude ranges: west to 180 and -180 to east.
+    */
+    public boolean crossesDateLine() {
+        return west > east;
+    }
+
+    /**
+    * @return true if the box covers the whole globe.
+    */
+    public boolean coversWorld() {
+        return south == -90 && north == 90 && west == -180 && east == 180;
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    @Override
+    public String toString() {
+        return south + "," + west + "," + north + "," + east;
+    }
+}
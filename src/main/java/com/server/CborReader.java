@@ -0,0 +1,332 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Decodes CBOR (RFC 8949) from a byte array, one data item at a time. Reads what CborWriter writes, and also
+* the other forms a client's encoder may choose: definite length maps, chunked strings, tags and smaller floats.
+* Malformed or truncated input throws a FormatException.
+*/
+public class CborReader {
+
+    private static final int MAX_DEPTH = 64; // Of nested arrays and maps that are skipped
+
+    private final byte[] data;
+    private int position;
+    private final int end;
+
+    public CborReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public CborReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+    * Reads the start of an array, such as a listing of messages.
+    * @return the number of items, or -1 if the array has an indefinite length and ends with a break (see readBreak()).
+    * @throws FormatException if the next item is not an array.
+    */
+    public int readArrayStart() throws FormatException {
+        int initial = readInitial(CborWriter.ARRAY);
+        if((initial & 31) == CborWriter.INDEFINITE) {
+            return -1;
+        }
+        long items = readArgument(initial);
+        if(items < 0 || items > end - position) { // Every item takes at least one byte
+            throw new FormatException("Array is longer than the data");
+        }
+        return (int) items;
+    }
+
+    /**
+    * Reads the start of a map.
+    * @return the number of key and value pairs, or -1 if the map has an indefinite length and ends with a break (see readBreak()).
+    * @throws FormatException if the next item is not a map.
+    */
+    public int readMapStart() throws FormatException {
+        int initial = readInitial(CborWriter.MAP);
+        if((initial & 31) == CborWriter.INDEFINITE) {
+            return -1;
+        }
+        long pairs = readArgument(initial);
+        if(pairs < 0 || pairs > end - position) { // Every pair takes at least two bytes
+            throw new FormatException("Map is longer than the data");
+        }
+        return (int) pairs;
+    }
+
+    /**
+    * Reads the break that ends an array or map of indefinite length, if it is next.
+    * @return true if the break was read, false if there are more items.
+    */
+    public boolean readBreak() throws FormatException {
+        if((peek() & 0xff) == CborWriter.BREAK) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+    * Checks if the next item is a text string, without reading it. Tags before the item are skipped.
+    * @return true if the next item is a text string.
+    * @throws FormatException if there is no next item.
+    */
+    public boolean isTextString() throws FormatException {
+        skipTags();
+        return (peek() & 0xe0) == CborWriter.TEXT_STRING;
+    }
+
+    /**
+    * Reads a text string, which may be split in chunks.
+    * @throws FormatException if the next item is not a text string.
+    */
+    public String readString() throws FormatException {
+        int initial = readInitial(CborWriter.TEXT_STRING);
+        if((initial & 31) != CborWriter.INDEFINITE) {
+            int length = readLength(initial);
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        while(!readBreak()) {
+            int length = readChunk(CborWriter.TEXT_STRING);
+            chunks.write(data, position, length);
+            position += length;
+        }
+        return new String(chunks.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+    * Reads an integer.
+    * @throws FormatException if the next item is not an integer or does not fit in a long.
+    */
+    public long readLong() throws FormatException {
+        skipTags();
+        int initial = peek() & 0xff;
+        int majorType = initial & 0xe0;
+        if(majorType != CborWriter.UNSIGNED_INTEGER && majorType != CborWriter.NEGATIVE_INTEGER) {
+            throw new FormatException("Expected an integer");
+        }
+        position++;
+        long argument = readArgument(initial);
+        if(argument < 0) { // Over 2^63 - 1
+            throw new FormatException("Integer is too large");
+        }
+        return majorType == CborWriter.UNSIGNED_INTEGER ? argument : -1 - argument;
+    }
+
+    /**
+    * Reads a number, which may be a floating point number of any precision or an integer.
+    * @throws FormatException if the next item is not a number.
+    */
+    public double readDouble() throws FormatException {
+        skipTags();
+        int initial = peek() & 0xff;
+        switch(initial) {
+            case CborWriter.SIMPLE | 25:
+                position++;
+                return halfToDouble((int) readBigEndian(2));
+            case CborWriter.SIMPLE | 26:
+                position++;
+                return Float.intBitsToFloat((int) readBigEndian(4));
+            case CborWriter.DOUBLE:
+                position++;
+                return Double.longBitsToDouble(readBigEndian(8));
+            default:
+                return readLong();
+        }
+    }
+
+    /**
+    * Reads a null or undefined value, if it is next.
+    * @return true if the value was read, false if the next item is something else.
+    */
+    public boolean readNull() throws FormatException {
+        int initial = peek() & 0xff;
+        if(initial == (CborWriter.SIMPLE | 22) || initial == (CborWriter.SIMPLE | 23)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+    * Skips the next item, including everything inside it.
+    */
+    public void skip() throws FormatException {
+        skip(0);
+    }
+
+    /**
+    * Checks that all the data has been read.
+    * @throws FormatException if there is something after the items that were read.
+    */
+    public void checkEnd() throws FormatException {
+        if(position != end) {
+            throw new FormatException("Unexpected data after the item");
+        }
+    }
+
+    private void skip(int depth) throws FormatException {
+
+        if(depth > MAX_DEPTH) {
+            throw new FormatException("Too deeply nested");
+        }
+        skipTags();
+        int initial = next() & 0xff;
+        int majorType = initial & 0xe0;
+        boolean indefinite = (initial & 31) == CborWriter.INDEFINITE;
+
+        if(majorType == CborWriter.SIMPLE) {
+            if(indefinite) { // A break outside of an indefinite item
+                throw new FormatException("Unexpected break");
+            }
+            readArgument(initial); // The value of the simple value or float
+        }
+        else if(indefinite) {
+            if(majorType < (2 << 5)) {
+                throw new FormatException("Integer with an indefinite length");
+            }
+            boolean string = majorType == (2 << 5) || majorType == CborWriter.TEXT_STRING;
+            while(!readBreak()) {
+                if(string) {
+                    int length = readChunk(majorType); // Moves past the header, so not in the same expression as position
+                    position += length;
+                }
+                else {
+                    skip(depth + 1);
+                }
+            }
+        }
+        else if(majorType == CborWriter.ARRAY || majorType == CborWriter.MAP) {
+            long items = readArgument(initial) * (majorType == CborWriter.MAP ? 2 : 1);
+            if(items < 0 || items > end - position) {
+                throw new FormatException("Item is longer than the data");
+            }
+            for(long i = 0; i < items; i++) {
+                skip(depth + 1);
+            }
+        }
+        else if(majorType == (2 << 5) || majorType == CborWriter.TEXT_STRING) { // Byte or text string
+            position += readLength(initial);
+        }
+        else {
+            readArgument(initial);
+        }
+    }
+
+    // Tags only add meaning to the item after them, such as a date, so they are ignored
+    private void skipTags() throws FormatException {
+        while((peek() & 0xe0) == (6 << 5)) {
+            readArgument(next() & 0xff);
+        }
+    }
+
+    private int readInitial(int majorType) throws FormatException {
+        skipTags();
+        int initial = next() & 0xff;
+        if((initial & 0xe0) != majorType) {
+            throw new FormatException(majorType == CborWriter.MAP ? "Expected a map" : majorType == CborWriter.ARRAY ? "Expected an array" : "Expected a text string");
+        }
+        return initial;
+    }
+
+    /**
+    * Reads the header of a chunk of a chunked string, which must be a string of the same type with a definite length.
+    * @return the length of the chunk.
+    */
+    private int readChunk(int majorType) throws FormatException {
+        int chunk = next() & 0xff;
+        if((chunk & 0xe0) != majorType) {
+            throw new FormatException("Chunk of the wrong type in a chunked string");
+        }
+        if((chunk & 31) == CborWriter.INDEFINITE) {
+            throw new FormatException("Nested chunked string");
+        }
+        return readLength(chunk);
+    }
+
+    private int readLength(int initial) throws FormatException {
+        long length = readArgument(initial);
+        if(length < 0 || length > end - position) {
+            throw new FormatException("String is longer than the data");
+        }
+        return (int) length;
+    }
+
+    /**
+    * Reads the argument that follows the initial byte. A value over 2^63 - 1 is returned as a negative number.
+    */
+    private long readArgument(int initial) throws FormatException {
+        int information = initial & 31;
+        if(information < 24) {
+            return information;
+        }
+        switch(information) {
+            case 24: return readBigEndian(1);
+            case 25: return readBigEndian(2);
+            case 26: return readBigEndian(4);
+            case 27: return readBigEndian(8);
+            default: throw new FormatException("Invalid additional information " + information);
+        }
+    }
+
+    private long readBigEndian(int bytes) throws FormatException {
+        if(end - position < bytes) {
+            throw new FormatException("Unexpected end of data");
+        }
+        long value = 0;
+        for(int i = 0; i < bytes; i++) {
+            value = (value << 8) | (data[position++] & 0xff);
+        }
+        return value;
+    }
+
+    private byte peek() throws FormatException {
+        if(position >= end) {
+            throw new FormatException("Unexpected end of data");
+        }
+        return data[position];
+    }
+
+    private byte next() throws FormatException {
+        byte value = peek();
+        position++;
+        return value;
+    }
+
+    // IEEE 754 half precision, as in the appendix of RFC 8949
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if(exponent == 0) {
+            value = Math.scalb((double) mantissa, -24);
+        }
+        else if(exponent != 31) {
+            value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+        }
+        else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+    * Thrown when the data is not valid CBOR or not the expected item.
+    */
+    public static class FormatException extends IOException {
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+}
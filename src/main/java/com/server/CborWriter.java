@@ -0,0 +1,166 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Encodes values in CBOR (RFC 8949), the subset the messages need: text strings, integers, doubles,
+* and arrays and maps of unknown length. Writes to the stream through a buffer of its own, so the stream need not be buffered.
+*/
+public class CborWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Major types, shifted to the top three bits of the initial byte
+    static final int UNSIGNED_INTEGER = 0 << 5;
+    static final int NEGATIVE_INTEGER = 1 << 5;
+    static final int TEXT_STRING = 3 << 5;
+    static final int ARRAY = 4 << 5;
+    static final int MAP = 5 << 5;
+    static final int SIMPLE = 7 << 5;
+
+    static final int INDEFINITE = 31; // Additional information of an array or map whose length is not known beforehand
+    static final int BREAK = 0xff; // Ends an array or map of indefinite length
+    static final int DOUBLE = SIMPLE | 27;
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    public CborWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+    * Starts an array of indefinite length, which is ended with end().
+    */
+    public void startArray() throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) (ARRAY | INDEFINITE);
+    }
+
+    /**
+    * Starts a map of indefinite length, which is ended with end(). The keys and values are written in turns.
+    */
+    public void startMap() throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) (MAP | INDEFINITE);
+    }
+
+    /**
+    * Ends the innermost array or map.
+    */
+    public void end() throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) BREAK;
+    }
+
+    public void writeString(String value) throws IOException {
+
+        int length = value.length();
+        if(length > BUFFER_SIZE - 9) {
+            writeEncodedString(value.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        ensure(9 + length);
+        int start = position + headerLength(length);
+        int end = start;
+        for(int i = 0; i < length; i++) { // Most strings are ASCII, which is copied without encoding it to a byte array first
+            char c = value.charAt(i);
+            if(c >= 0x80) {
+                writeEncodedString(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[end++] = (byte) c;
+        }
+        writeHeader(TEXT_STRING, length);
+        position = end;
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(9);
+        if(value >= 0) {
+            writeHeader(UNSIGNED_INTEGER, value);
+        }
+        else {
+            writeHeader(NEGATIVE_INTEGER, -1 - value);
+        }
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(9);
+        buffer[position++] = (byte) DOUBLE;
+        writeBigEndian(Double.doubleToLongBits(value), 8);
+    }
+
+    /**
+    * Writes the buffered bytes to the stream.
+    */
+    public void flush() throws IOException {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+    * Flushes and closes the stream.
+    */
+    public void close() throws IOException {
+        flush();
+        output.close();
+    }
+
+    private void writeEncodedString(byte[] bytes) throws IOException {
+        ensure(9);
+        writeHeader(TEXT_STRING, bytes.length);
+        if(bytes.length > buffer.length - position) {
+            flush();
+            output.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+    * Writes the initial byte and the argument (a length or an integer) in the fewest bytes.
+    */
+    private void writeHeader(int majorType, long argument) {
+        if(argument < 24) {
+            buffer[position++] = (byte) (majorType | argument);
+        }
+        else if(argument < 0x100) {
+            buffer[position++] = (byte) (majorType | 24);
+            writeBigEndian(argument, 1);
+        }
+        else if(argument < 0x10000) {
+            buffer[position++] = (byte) (majorType | 25);
+            writeBigEndian(argument, 2);
+        }
+        else if(argument < 0x100000000L) {
+            buffer[position++] = (byte) (majorType | 26);
+            writeBigEndian(argument, 4);
+        }
+        else {
+            buffer[position++] = (byte) (majorType | 27);
+            writeBigEndian(argument, 8);
+        }
+    }
+
+    private static int headerLength(long argument) {
+        return argument < 24 ? 1 : argument < 0x100 ? 2 : argument < 0x10000 ? 3 : argument < 0x100000000L ? 5 : 9;
+    }
+
+    private void writeBigEndian(long value, int bytes) {
+        for(int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    // Makes room for the given number of bytes, if they fit in the buffer at all
+    private void ensure(int bytes) throws IOException {
+        if(position + bytes > buffer.length) {
+            flush();
+        }
+    }
+}
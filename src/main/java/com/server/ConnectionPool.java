@@ -0,0 +1,151 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+* A fixed size pool of SQLite connections. The database is switched to WAL mode so that readers do not block the writer.
+* Connections are borrowed with {@link #borrow()} and returned by closing the borrowed PooledConnection.
+* A connection that breaks is replaced with a new one, so that errors do not shrink the pool.
+*/
+public class ConnectionPool implements AutoCloseable {
+
+    private final String url;
+    private final BlockingQueue<PooledConnection> idleConnections;
+    private final List<PooledConnection> allConnections = new ArrayList<>();
+    private volatile int missingConnections = 0; // Broken connections that could not be replaced yet
+    private boolean closed = false;
+    private final long borrowTimeout = Long.getLong("db.borrowTimeoutMillis", 10000);
+    private final LatencyHistogram waitTime = Metrics.getInstance().histogram("db_connection_wait_seconds",
+        "Time spent waiting for a free database connection");
+
+    /**
+    * Opens all the connections of the pool.
+    * @param url the JDBC url of the database.
+    * @param size the number of connections.
+    * @throws SQLException if a connection could not be opened.
+    */
+    public ConnectionPool(String url, int size) throws SQLException {
+
+        this.url = url;
+        idleConnections = new ArrayBlockingQueue<>(size);
+        try {
+            for(int i = 0; i < size; i++) {
+                PooledConnection pooled = openConnection();
+                allConnections.add(pooled);
+                idleConnections.add(pooled);
+            }
+        } catch(SQLException e) {
+            close();
+            throw e;
+        }
+        Metrics.getInstance().gauge("db_connections_idle", "Database connections that are not in use", idleConnections::size);
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement pragmas = connection.createStatement()) {
+            pragmas.execute("PRAGMA journal_mode=WAL"); // Readers see the last commit while a write is in progress
+            pragmas.execute("PRAGMA busy_timeout=" + Long.getLong("db.busyTimeoutMillis", 5000)); // Wait for the write lock instead of failing
+        } catch(SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledConnection(this, connection);
+    }
+
+    /**
+    * Borrows a connection from the pool, waiting for one to become free if all are in use.
+    * @return the connection, which must be closed to return it to the pool.
+    * @throws SQLException if no connection became free in time or the thread was interrupted.
+    */
+    public PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        reopenMissing();
+        try {
+            PooledConnection connection = idleConnections.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+            waitTime.recordSince(start);
+            if(connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            return connection;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    /**
+    * Returns a connection to the pool. Called by PooledConnection.close().
+    * @param connection the returned connection.
+    */
+    void release(PooledConnection connection) {
+        idleConnections.offer(connection);
+    }
+
+    /**
+    * Closes a broken connection and puts a new one in its place. Called by PooledConnection.close().
+    * If the new connection cannot be opened either, it is opened again by the next borrow.
+    * @param broken the connection that is no longer usable.
+    */
+    void replace(PooledConnection broken) {
+        broken.closeConnection();
+        synchronized(this) {
+            if(closed || !allConnections.remove(broken)) {
+                return;
+            }
+            missingConnections++;
+        }
+        reopenMissing();
+    }
+
+    private void reopenMissing() {
+        if(missingConnections == 0) { // Checked without the lock first, since it is checked on every borrow
+            return;
+        }
+        synchronized(this) {
+            if(missingConnections == 0 || closed) {
+                return;
+            }
+            missingConnections--;
+        }
+        PooledConnection connection;
+        try {
+            connection = openConnection();
+        } catch(SQLException e) {
+            e.printStackTrace();
+            synchronized(this) {
+                missingConnections++;
+            }
+            return;
+        }
+        synchronized(this) {
+            if(closed) {
+                connection.closeConnection();
+                return;
+            }
+            allConnections.add(connection);
+        }
+        release(connection);
+    }
+
+    /**
+    * Closes all the connections of the pool.
+    */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for(PooledConnection connection : allConnections) {
+            connection.closeConnection();
+        }
+        allConnections.clear();
+        idleConnections.clear();
+    }
+}
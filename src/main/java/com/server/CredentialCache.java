@@ -0,0 +1,133 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+* Remembers credentials that have recently been verified so that repeated requests from the same user do not have to run the password hash again.
+* Passwords are never stored: the cache keeps an HMAC of the password, keyed with a random key generated at startup, together with the user's nickname.
+* Entries expire after a configurable time and only the least recently used users are kept once the cache is full.
+*/
+public class CredentialCache {
+
+    private final long timeToLive = Long.getLong("auth.cacheTtlMillis", 5 * 60 * 1000);
+    private final int maxEntries = Integer.getInteger("auth.cacheSize", 10000);
+
+    private final Map<String, VerifiedCredential> cache;
+    private final SecretKeySpec hmacKey;
+    private final ThreadLocal<Mac> hmac;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CredentialCache() {
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        hmacKey = new SecretKeySpec(key, "HmacSHA256");
+
+        hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(hmacKey);
+                return mac;
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        });
+
+        cache = new LinkedHashMap<String, VerifiedCredential>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerifiedCredential> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+    * Checks whether the credentials have been verified recently.
+    * @param username
+    * @param password in plaintext.
+    * @return The nickname of the user if the same username and password were verified and have not expired, null otherwise.
+    */
+    public String getVerifiedNickname(String username, String password) {
+
+        VerifiedCredential cached;
+        synchronized(cache) {
+            cached = cache.get(username);
+        }
+
+        if(cached != null && cached.expiresAt > System.currentTimeMillis()
+            && MessageDigest.isEqual(cached.passwordHash, hash(username, password))) {
+            hits.incrementAndGet();
+            return cached.nickname;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+    * Remembers credentials that have just been verified against the database.
+    * @param username
+    * @param password in plaintext, only its HMAC is stored.
+    * @param nickname the nickname of the user.
+    */
+    public void add(String username, String password, String nickname) {
+        VerifiedCredential verified = new VerifiedCredential(hash(username, password), nickname, System.currentTimeMillis() + timeToLive);
+        synchronized(cache) {
+            cache.put(username, verified);
+        }
+    }
+
+    /**
+    * Forgets the credentials of the user. Must be called whenever the user is added, changed or removed.
+    * @param username
+    */
+    public void invalidate(String username) {
+        synchronized(cache) {
+            cache.remove(username);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+
+    private byte[] hash(String username, String password) {
+        Mac mac = hmac.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0); // Separator so that "ab" + "c" and "a" + "bc" differ
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class VerifiedCredential {
+
+        final byte[] passwordHash;
+        final String nickname;
+        final long expiresAt;
+
+        VerifiedCredential(byte[] passwordHash, String nickname, long expiresAt) {
+            this.passwordHash = passwordHash;
+            this.nickname = nickname;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
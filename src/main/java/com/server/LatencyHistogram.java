@@ -0,0 +1,73 @@
+package com.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* A lock-free histogram of durations with logarithmic buckets: each bucket covers durations up to twice the previous one,
+* from 8 microseconds to about 69 seconds. Finding the bucket takes one leading zeros count, and the counts are LongAdders,
+* so recording from many threads at once does not contend on a single value.
+*/
+public class LatencyHistogram {
+
+    // Bucket i holds durations up to 2^(MIN_POWER + i) nanoseconds, the last bucket holds everything longer
+    private static final int MIN_POWER = 13;
+    private static final int BUCKETS = 24;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+    * Records a duration.
+    * @param nanos the duration in nanoseconds.
+    */
+    public void record(long nanos) {
+        int power = 64 - Long.numberOfLeadingZeros(Math.max(nanos - 1, 0)); // The smallest power of two that is at least nanos
+        int bucket = Math.min(Math.max(power - MIN_POWER, 0), BUCKETS);
+        counts[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+    * Records the time passed since the start.
+    * @param startNanos the start, from System.nanoTime().
+    */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+    * @return the number of buckets, the last one of which has no upper bound.
+    */
+    public static int getBucketCount() {
+        return BUCKETS + 1;
+    }
+
+    /**
+    * @param bucket the bucket, except the last one.
+    * @return the upper bound of the bucket in seconds.
+    */
+    public static double getUpperBoundSeconds(int bucket) {
+        return (1L << (MIN_POWER + bucket)) / 1e9;
+    }
+
+    /**
+    * @param bucket the bucket.
+    * @return the number of durations recorded in the bucket.
+    */
+    public long getCount(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    /**
+    * @return the sum of all the recorded durations in seconds.
+    */
+    public double getSumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
@@ -0,0 +1,138 @@
+package com.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Keeps the encoded bytes of recently requested message listings, so that a repeated GET only has to write a byte array.
+* Each listing is stored with the ETag of the listings at the time it was read; once messages are added
+* (or cached weather changes) the ETag changes and the stored listings are no longer used.
+* The total size of the stored listings is capped, least recently used listings are dropped first.
+* Only the uncompressed size counts towards the cap; the gzip copies are a fraction of it.
+*/
+public class ListingCache {
+
+    private final long maxBytes = Long.getLong("listing.cacheBytes", 32 * 1024 * 1024);
+    private final int maxEntryBytes = Integer.getInteger("listing.maxEntryBytes", 1024 * 1024);
+
+    private final LinkedHashMap<String, CachedListing> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+    * Gets the stored listing if it is still current.
+    * @param key the canonical form of the query, see MessageQuery.toCacheKey().
+    * @param etag the current ETag of the listings.
+    * @return the listing, or null if there is no current listing for the query.
+    */
+    public synchronized CachedListing get(String key, String etag) {
+        CachedListing cached = cache.get(key);
+        if(cached != null && cached.etag.equals(etag)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        if(cached != null) { // Outdated, no point in keeping it
+            remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+    * Stores an encoded listing. Listings larger than the maximum entry size are not stored.
+    * @param key the canonical form of the query.
+    * @param etag the ETag of the listings when the listing was read.
+    * @param body the encoded listing.
+    */
+    public synchronized void put(String key, String etag, byte[] body) {
+
+        if(body.length > maxEntryBytes) {
+            return;
+        }
+        remove(key);
+        cache.put(key, new CachedListing(etag, body));
+        cachedBytes += body.length;
+
+        // Drop the least recently used listings until the cache fits in its limit
+        Iterator<Map.Entry<String, CachedListing>> eldest = cache.entrySet().iterator();
+        while(cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().body.length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+    * @return the largest listing that is stored, in bytes.
+    */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private void remove(String key) {
+        CachedListing removed = cache.remove(key);
+        if(removed != null) {
+            cachedBytes -= removed.body.length;
+        }
+    }
+
+    /**
+    * An encoded listing. The gzip compressed copy is made when it is first needed and kept with the listing,
+    * so a listing that is requested repeatedly is compressed only once.
+    */
+    public static class CachedListing {
+
+        private final String etag;
+        private final byte[] body;
+        private volatile byte[] gzipBody = null;
+
+        CachedListing(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+
+        /**
+        * @return the encoded listing, empty if there were no messages.
+        */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+        * @return the encoded listing compressed with gzip.
+        */
+        public byte[] getGzipBody() {
+            byte[] compressed = gzipBody;
+            if(compressed == null) { // Two threads may both compress it, which is harmless
+                compressed = ResponseCompression.compress(body, ResponseCompression.GZIP);
+                gzipBody = compressed;
+            }
+            return compressed;
+        }
+    }
+}
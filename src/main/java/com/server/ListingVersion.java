@@ -0,0 +1,53 @@
+package com.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* The version of the message listings for conditional GET requests. It changes whenever the listings may have changed:
+* when messages are added, when cached weather changes, and when the cached weather may have expired.
+* Every MessageStore keeps one and bumps it after every commit that adds messages.
+*/
+public class ListingVersion {
+
+    private final WeatherCache weatherCache = WeatherCache.getInstance();
+    private final String instanceTag = Long.toString(System.currentTimeMillis(), 36); // Versions restart from 0 when the server restarts
+    private final AtomicLong messagesVersion = new AtomicLong();
+    private volatile long messagesLastModified = System.currentTimeMillis();
+    private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+
+    /**
+    * Bumps the version and calls the commit listeners. Called after every commit that adds messages.
+    */
+    public void messagesChanged() {
+        messagesLastModified = System.currentTimeMillis();
+        messagesVersion.incrementAndGet();
+        for(Runnable listener : commitListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+    * Adds a listener that is called after every commit that adds messages, on the committing thread, so it must not block.
+    * @param listener the listener.
+    */
+    public void addCommitListener(Runnable listener) {
+        commitListeners.add(listener);
+    }
+
+    /**
+    * Example: W/"lz3k9q2a-15-3-2849"
+    * @return the entity tag for the message listings.
+    */
+    public String getETag() {
+        return "W/\"" + instanceTag + "-" + messagesVersion.get() + "-" + weatherCache.getVersion() + "-" + weatherCache.getExpiryWindow() + "\"";
+    }
+
+    /**
+    * @return the time the message listings may have last changed, in Epoch milliseconds.
+    */
+    public long getLastModified() {
+        return Math.max(messagesLastModified, Math.max(weatherCache.getLastChanged(), weatherCache.getExpiryWindowStart()));
+    }
+}
@@ -0,0 +1,773 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.json.JSONObject;
+
+/**
+* The log engine of the MessageStore: the users and the messages are records of two SegmentLogs, "users" and "messages",
+* in the directory db.name + ".log". The id of a message is its sequence number in the log.
+* Made for posting many messages and reading the newest ones: posting a message is one append, synced together with
+* the concurrent posts, and a page after a cursor is read straight from the mapped segments by the offsets kept in memory,
+* with no indexes to update. Filtered listings scan the messages after the cursor until the page is full, and near and
+* search queries scan all of them, so they cost more than with the indexes of MessageDatabase. A search matches words like
+* the full-text index of MessageDatabase does, but the results are ordered by id instead of by rank.
+* The users are also kept in memory, read from their log when the store is opened.
+*
+* Configured with log.segmentBytes (default 64 MiB, also the largest batch of messages), log.fsync (default true)
+* and log.compactionIntervalSeconds (default 60).
+*/
+public class LogMessageStore implements MessageStore {
+
+    private static LogMessageStore storeInstance = null;
+
+    private final int segmentBytes = Integer.getInteger("log.segmentBytes", 64 * 1024 * 1024);
+    private final boolean fsync = Boolean.parseBoolean(System.getProperty("log.fsync", "true"));
+    private final long compactionIntervalSeconds = Long.getLong("log.compactionIntervalSeconds", 60);
+
+    private volatile SegmentLog messageLog = null;
+    private volatile SegmentLog userLog = null;
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private ScheduledExecutorService compactor = null;
+
+    private final PasswordHasher passwordHasher = PasswordHasher.getInstance();
+    private final WeatherCache weatherCache = WeatherCache.getInstance();
+    private final CredentialCache credentialCache = new CredentialCache();
+    private final ListingVersion listingVersion = new ListingVersion();
+
+    // Timings for the metrics
+    private final LatencyHistogram selectMessagesTime = queryTimer("select_messages");
+    private final LatencyHistogram selectNearestTime = queryTimer("select_nearest");
+    private final LatencyHistogram insertUserTime = queryTimer("insert_user");
+    private final LatencyHistogram insertMessagesTime = queryTimer("insert_messages");
+    private final LatencyHistogram weatherRefreshTime = Metrics.getInstance().histogram("weather_refresh_duration_seconds",
+        "Time a listing waits for the weather of its messages");
+
+    // Layout of a message record: the fixed size fields first, so that the time and coordinate filters need not decode the strings
+    private static final int POSTING_TIME = 0;
+    private static final int LATITUDE = 8;
+    private static final int LONGITUDE = 16;
+    private static final int STRINGS = 24; // Then each string as an int length (-1 for null) and UTF-8, in this order:
+    private static final int CITY = 0;
+    private static final int COUNTRY = 1;
+    private static final int NAME = 2;
+    private static final int DESCRIPTION = 3;
+    private static final int STREET_ADDRESS = 4;
+    private static final int POSTER = 5;
+    private static final int WEATHER = 6;
+    private static final int STRING_COUNT = 7;
+
+    private LogMessageStore() {
+        try {
+            open(System.getProperty("db.name", "MessageDB"));
+        } catch(SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * Gets the store instance. If one does not exist, a new instance is created.
+    * @return the store instance.
+    */
+    public static synchronized LogMessageStore getInstance() {
+        if(storeInstance == null){
+            storeInstance = new LogMessageStore();
+        }
+        return storeInstance;
+    }
+
+    /**
+    * Opens the logs in the directory name + ".log", creating them if they do not exist, and recovers them after a crash.
+    * If the store is already open, it is closed first.
+    * @param name the name of the store, as the name of the SQLite database file.
+    * @throws SQLException if the logs could not be opened.
+    */
+    @Override
+    public synchronized void open(String name) throws SQLException {
+
+        close();
+
+        Path directory = Path.of(name + ".log");
+        SegmentLog openedUsers = new SegmentLog(directory.resolve("users"), segmentBytes, fsync, "users");
+        SegmentLog openedMessages = new SegmentLog(directory.resolve("messages"), segmentBytes, fsync, "messages");
+        try {
+            openedUsers.open();
+            users.clear();
+            openedUsers.scan(1, (sequence, payload) -> {
+                User user = decodeUser(payload);
+                users.put(user.getUsername(), user);
+                return true;
+            });
+            openedMessages.open();
+        } catch(IOException e) {
+            try {
+                openedUsers.close();
+            } catch(IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw new SQLException("Could not open the log store in " + directory, e);
+        }
+        userLog = openedUsers;
+        messageLog = openedMessages;
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+    * Merges the small segments of both logs, on the compactor thread.
+    */
+    private void compact() {
+        try {
+            for(SegmentLog log : new SegmentLog[] {messageLog, userLog}) {
+                int merged;
+                do { // Until no adjacent segments fit in one
+                    merged = log.compact();
+                } while(merged > 0);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * Stops the compaction and closes the logs, syncing everything appended to them.
+    * @throws SQLException if a log could not be synced.
+    */
+    @Override
+    public synchronized void close() throws SQLException {
+        if(compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+        try {
+            if(messageLog != null) {
+                messageLog.close();
+            }
+            if(userLog != null) {
+                userLog.close();
+            }
+        } catch(IOException e) {
+            throw new SQLException("Could not close the log store", e);
+        }
+    }
+
+    /**
+    * Creates a new user if the username is not taken. The password is hashed before the user is appended to the log.
+    * @param user
+    * @throws SQLException if the user could not be appended.
+    * @throws PasswordHasher.BusyException if the password could not be hashed because too many are being hashed.
+    * @return True if the user could be added, False if the username is taken.
+    */
+    @Override
+    public boolean insertUser(JSONObject user) throws SQLException, PasswordHasher.BusyException {
+
+        String hashedPassword = passwordHasher.hash(user.getString("password"));
+        User stored = new User(user.getString("username"), hashedPassword, user.getString("email"), user.getString("userNickname"));
+
+        long start = System.nanoTime();
+        synchronized(users) { // Registrations are rare, so the check and the append are simply done one registration at a time
+            if(users.containsKey(stored.getUsername())) {
+                return false;
+            }
+            append(userLog, List.of(encodeUser(stored)));
+            users.put(stored.getUsername(), stored);
+        }
+        insertUserTime.recordSince(start);
+        credentialCache.invalidate(stored.getUsername());
+
+        return true;
+    }
+
+    /**
+    * Checks that the provided credentials are correct, from the cache of verified credentials or against the users in memory.
+    * @param username
+    * @param password
+    * @throws PasswordHasher.BusyException if the password could not be verified because too many are being hashed.
+    * @return The nickname of the user if the authentication is successful, null if credentials are wrong.
+    */
+    @Override
+    public String authenticateUser(String username, String password) throws PasswordHasher.BusyException {
+
+        String nickname = credentialCache.getVerifiedNickname(username, password);
+        if(nickname != null) {
+            return nickname;
+        }
+        User stored = users.get(username);
+        if(stored == null) {
+            return null;
+        }
+        if(passwordHasher.verify(password, stored.getPassword())) {
+            credentialCache.add(username, password, stored.getNickname());
+            return stored.getNickname();
+        }
+        return null;
+    }
+
+    /**
+    * Appends the message with the sender's nickname. Returns once the append has been synced, together with the messages
+    * posted by other requests at the same time.
+    * @param msg the message to be added
+    * @param nickname the nickname of the sender, from the authenticated UserPrincipal
+    * @throws SQLException if the message could not be appended.
+    */
+    @Override
+    public void insertMessage(UserMessage msg, String nickname) throws SQLException {
+        insertMessages(List.of(msg), nickname);
+    }
+
+    /**
+    * Appends the messages with the sender's nickname as one batch, which is recovered after a crash as a whole or not at all.
+    * @param messages the messages to be added
+    * @param nickname the nickname of the sender, from the authenticated UserPrincipal
+    * @throws SQLException if the messages could not be appended, in which case none of them were.
+    */
+    @Override
+    public void insertMessages(List<UserMessage> messages, String nickname) throws SQLException {
+
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        for(UserMessage msg : messages) {
+            payloads.add(encodeMessage(msg, nickname));
+        }
+        long start = System.nanoTime();
+        append(messageLog, payloads);
+        insertMessagesTime.recordSince(start);
+        listingVersion.messagesChanged();
+    }
+
+    private static void append(SegmentLog log, List<byte[]> payloads) throws SQLException {
+        try {
+            log.append(payloads);
+        } catch(IOException e) {
+            throw new SQLException("Could not append to the log: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void addCommitListener(Runnable listener) {
+        listingVersion.addCommitListener(listener);
+    }
+
+    @Override
+    public String getMessagesETag() {
+        return listingVersion.getETag();
+    }
+
+    @Override
+    public long getMessagesLastModified() {
+        return listingVersion.getLastModified();
+    }
+
+    @Override
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    @Override
+    public long getLatestMessageId() {
+        return messageLog.getLastSequence();
+    }
+
+    /**
+    * Writes one page of messages matching the query to the writer. The page is found first, then the weather of its messages
+    * is refreshed, and then the messages are written, like in MessageDatabase.
+    * @param query the paging and filtering parameters.
+    * @param writer the writer the messages are streamed to.
+    * @return the number of messages written, if 0 there are no (more) messages
+    * @throws SQLException if the log could not be read
+    * @throws IOException if writing a message fails
+    */
+    @Override
+    public int writeMessages(MessageQuery query, MessageStreamWriter writer) throws SQLException, IOException {
+
+        long start = System.nanoTime();
+        Page page = query.isNearQuery() ? findNearest(query) : findPage(query);
+        (query.isNearQuery() ? selectNearestTime : selectMessagesTime).recordSince(start);
+
+        refreshWeather(page);
+        for(int i = 0; i < page.size(); i++) {
+            writeMessage(page.ids.get(i), page.payloads.get(i), writer, page.distances != null ? page.distances[i] : null);
+        }
+        return writer.getMessageCount();
+    }
+
+    /**
+    * Writes the messages posted after the given one, oldest first, for the message stream. The weather is refreshed like for a listing.
+    * @param afterId the id of the last message that is not written.
+    * @param max the largest number of messages written.
+    * @param writer the writer the messages are written to, usually one that writes separate messages.
+    * @param written called with the id of each message after it has been written.
+    * @return the number of messages written.
+    * @throws SQLException if the log could not be read
+    * @throws IOException if writing a message fails
+    */
+    @Override
+    public int writeMessagesAfter(long afterId, int max, MessageStreamWriter writer, LongConsumer written) throws SQLException, IOException {
+
+        MessageQuery query = new MessageQuery();
+        query.setAfter(afterId);
+        query.setLimit(max);
+        Page page = findPage(query);
+
+        refreshWeather(page);
+        for(int i = 0; i < page.size(); i++) {
+            writeMessage(page.ids.get(i), page.payloads.get(i), writer, null);
+            written.accept(page.ids.get(i));
+        }
+        return page.size();
+    }
+
+    /**
+    * Finds the page of messages after the cursor that match the filters, in the order of their ids. Without filters this reads
+    * only the messages of the page. A search skips the first offset matches.
+    */
+    private Page findPage(MessageQuery query) throws SQLException {
+
+        Filter filter = new Filter(query);
+        Page page = new Page();
+        int[] skipped = {0};
+        scan(query.getAfter() + 1, (id, payload) -> {
+            if(filter.matches(payload)) {
+                if(query.getSearch() != null && skipped[0] < query.getOffset()) {
+                    skipped[0]++;
+                }
+                else {
+                    page.add(id, payload);
+                }
+            }
+            return page.size() < query.getLimit();
+        });
+        return page;
+    }
+
+    /**
+    * Finds the k messages with coordinates nearest to the point of a near query by comparing all the messages after the cursor
+    * that match the filters, nearest first and then by id.
+    */
+    private Page findNearest(MessageQuery query) throws SQLException {
+
+        Filter filter = new Filter(query);
+        Comparator<Candidate> nearestFirst = Comparator.<Candidate>comparingDouble(candidate -> candidate.distance)
+            .thenComparingLong(candidate -> candidate.id);
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>(query.getK() + 1, nearestFirst.reversed()); // The farthest is at the head
+
+        scan(query.getAfter() + 1, (id, payload) -> {
+            double latitude = payload.getDouble(LATITUDE);
+            double longitude = payload.getDouble(LONGITUDE);
+            if(latitude != 0 && longitude != 0 && filter.matches(payload)) {
+                Candidate candidate = new Candidate(id, payload,
+                    BoundingBox.distanceKm(query.getNearLatitude(), query.getNearLongitude(), latitude, longitude));
+                if(nearest.size() < query.getK()) {
+                    nearest.add(candidate);
+                }
+                else if(nearestFirst.compare(candidate, nearest.peek()) < 0) {
+                    nearest.poll();
+                    nearest.add(candidate);
+                }
+            }
+            return true;
+        });
+
+        Candidate[] sorted = nearest.toArray(new Candidate[0]);
+        Arrays.sort(sorted, nearestFirst);
+        Page page = new Page();
+        page.distances = new double[sorted.length];
+        for(int i = 0; i < sorted.length; i++) {
+            page.add(sorted[i].id, sorted[i].payload);
+            page.distances[i] = sorted[i].distance;
+        }
+        return page;
+    }
+
+    private void scan(long fromId, SegmentLog.RecordVisitor visitor) throws SQLException {
+        try {
+            messageLog.scan(fromId, visitor);
+        } catch(IOException e) {
+            throw new SQLException("Could not read the log", e);
+        }
+    }
+
+    /**
+    * Refreshes the weather of all the messages on the page before the page is written, so that the lookups run in parallel.
+    */
+    private void refreshWeather(Page page) {
+
+        List<double[]> coordinates = new ArrayList<>();
+        for(ByteBuffer payload : page.payloads) {
+            double latitude = payload.getDouble(LATITUDE);
+            double longitude = payload.getDouble(LONGITUDE);
+            if(latitude != 0 && longitude != 0 && readStrings(payload)[WEATHER] != null) {
+                coordinates.add(new double[] {latitude, longitude});
+            }
+        }
+        long start = System.nanoTime();
+        weatherCache.refresh(coordinates);
+        weatherRefreshTime.recordSince(start);
+    }
+
+    /**
+    * Writes a message with the same fields as MessageDatabase writes from a row.
+    * @param distance the distance for a near query, or null.
+    */
+    private void writeMessage(long id, ByteBuffer payload, MessageStreamWriter writer, Double distance) throws IOException {
+
+        String[] strings = readStrings(payload);
+        writer.beginMessage();
+        writer.field("id", id);
+        writer.field("locationName", strings[NAME]);
+        writer.field("locationDescription", strings[DESCRIPTION]);
+        writer.field("locationCity", strings[CITY]);
+        writer.field("locationCountry", strings[COUNTRY]);
+        writer.field("locationStreetAddress", strings[STREET_ADDRESS]);
+        writer.field("originalPoster", strings[POSTER]);
+        writer.timestampField("originalPostingTime", payload.getLong(POSTING_TIME));
+
+        // Since coordinates are optional, only add them if they are available
+        double latitude = payload.getDouble(LATITUDE);
+        double longitude = payload.getDouble(LONGITUDE);
+        if(latitude != 0 && longitude != 0) {
+            writer.field("latitude", latitude);
+            writer.field("longitude", longitude);
+
+            if(strings[WEATHER] != null) {
+                // refreshWeather() has already fetched it, null if getting it failed
+                String weather = weatherCache.getWeather(latitude, longitude);
+                if(weather != null) {
+                    writer.field("weather", weather);
+                }
+            }
+        }
+        if(distance != null) {
+            writer.field("distance", distance);
+        }
+        writer.endMessage();
+    }
+
+    private static byte[] encodeMessage(UserMessage msg, String nickname) {
+
+        byte[][] strings = new byte[STRING_COUNT][];
+        strings[CITY] = utf8(msg.getCity());
+        strings[COUNTRY] = utf8(msg.getLocationCountry());
+        strings[NAME] = utf8(msg.getLocationName());
+        strings[DESCRIPTION] = utf8(msg.getDescription());
+        strings[STREET_ADDRESS] = utf8(msg.getLocationStreetAddress());
+        strings[POSTER] = utf8(nickname);
+        strings[WEATHER] = utf8(msg.getWeather());
+
+        ByteBuffer payload = ByteBuffer.allocate(STRINGS + encodedLength(strings));
+        payload.putLong(msg.getPostDateAsLong()).putDouble(msg.getLatitude()).putDouble(msg.getLongitude());
+        putStrings(payload, strings);
+        return payload.array();
+    }
+
+    private static byte[] encodeUser(User user) {
+        byte[][] strings = {utf8(user.getUsername()), utf8(user.getPassword()), utf8(user.getEmail()), utf8(user.getNickname())};
+        ByteBuffer payload = ByteBuffer.allocate(encodedLength(strings));
+        putStrings(payload, strings);
+        return payload.array();
+    }
+
+    private static User decodeUser(ByteBuffer payload) {
+        String[] strings = readStrings(payload, 0, 4);
+        return new User(strings[0], strings[1], strings[2], strings[3]);
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int encodedLength(byte[][] strings) {
+        int length = 0;
+        for(byte[] string : strings) {
+            length += 4 + (string != null ? string.length : 0);
+        }
+        return length;
+    }
+
+    private static void putStrings(ByteBuffer payload, byte[][] strings) {
+        for(byte[] string : strings) {
+            if(string == null) {
+                payload.putInt(-1);
+            }
+            else {
+                payload.putInt(string.length).put(string);
+            }
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer payload) {
+        return readStrings(payload, STRINGS, STRING_COUNT);
+    }
+
+    private static String[] readStrings(ByteBuffer payload, int position, int count) {
+        String[] strings = new String[count];
+        for(int i = 0; i < count; i++) {
+            int length = payload.getInt(position);
+            position += 4;
+            if(length >= 0) {
+                byte[] bytes = new byte[length];
+                payload.get(position, bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                position += length;
+            }
+        }
+        return strings;
+    }
+
+    /**
+    * @return the position of the length of the string in a message record.
+    */
+    private static int stringPosition(ByteBuffer payload, int string) {
+        int position = STRINGS;
+        for(int i = 0; i < string; i++) {
+            position += 4 + Math.max(0, payload.getInt(position));
+        }
+        return position;
+    }
+
+    private static LatencyHistogram queryTimer(String query) {
+        return Metrics.getInstance().histogram("log_query_duration_seconds",
+            "Time spent reading and appending the message log, including reading the results", "query", query);
+    }
+
+    /**
+    * The filters of a query, checked against message records: the cheap checks of the fixed size fields first,
+    * then the city and the country as UTF-8 without decoding them, and the search last.
+    */
+    private static class Filter {
+
+        private final Long since;
+        private final Long until;
+        private final byte[] city;
+        private final byte[] country;
+        private final BoundingBox box;
+        private final List<String[]> searchPhrases;
+        private final boolean[] prefixSearches;
+
+        Filter(MessageQuery query) {
+            since = query.getSince();
+            until = query.getUntil();
+            city = utf8(query.getCity());
+            country = utf8(query.getCountry());
+            box = query.isNearQuery() ? null : query.getBoundingBox(); // As in MessageDatabase, a near query does not use the box
+
+            if(query.getSearch() != null && !query.isNearQuery()) {
+                searchPhrases = new ArrayList<>();
+                String[] words = query.getSearch().trim().split("\\s+");
+                prefixSearches = new boolean[words.length];
+                for(String word : words) {
+                    boolean prefix = word.length() > 1 && word.endsWith("*");
+                    List<String> tokens = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+                    if(!tokens.isEmpty()) { // Like FTS5, a word without letters or digits is left out
+                        prefixSearches[searchPhrases.size()] = prefix;
+                        searchPhrases.add(tokens.toArray(new String[0]));
+                    }
+                }
+            }
+            else {
+                searchPhrases = null;
+                prefixSearches = null;
+            }
+        }
+
+        boolean matches(ByteBuffer payload) {
+
+            long postingTime = payload.getLong(POSTING_TIME);
+            if((since != null && postingTime < since) || (until != null && postingTime > until)) {
+                return false;
+            }
+            if(box != null && !inBox(payload.getDouble(LATITUDE), payload.getDouble(LONGITUDE))) {
+                return false;
+            }
+            if(city != null && !stringEquals(payload, stringPosition(payload, CITY), city)) {
+                return false;
+            }
+            if(country != null && !stringEquals(payload, stringPosition(payload, COUNTRY), country)) {
+                return false;
+            }
+            return searchPhrases == null || matchesSearch(readStrings(payload));
+        }
+
+        // Like in the R*Tree, a message at 0,0 has no coordinates
+        private boolean inBox(double latitude, double longitude) {
+            if(latitude == 0 || longitude == 0) {
+                return false;
+            }
+            if(box.coversWorld()) {
+                return true;
+            }
+            if(latitude < box.getSouth() || latitude > box.getNorth()) {
+                return false;
+            }
+            if(box.crossesDateLine()) {
+                return longitude >= box.getWest() || longitude <= box.getEast();
+            }
+            return longitude >= box.getWest() && longitude <= box.getEast();
+        }
+
+        private static boolean stringEquals(ByteBuffer payload, int position, byte[] expected) {
+            if(payload.getInt(position) != expected.length) {
+                return false;
+            }
+            for(int i = 0; i < expected.length; i++) {
+                if(payload.get(position + 4 + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+        * Every word must be found in the name, the description, the city or the street address, a word of several tokens
+        * (such as "harbour-side") as consecutive tokens of one of them.
+        */
+        private boolean matchesSearch(String[] strings) {
+
+            if(searchPhrases.isEmpty()) {
+                return false;
+            }
+            List<List<String>> columns = new ArrayList<>(4);
+            for(int string : new int[] {NAME, DESCRIPTION, CITY, STREET_ADDRESS}) {
+                if(strings[string] != null) {
+                    columns.add(tokenize(strings[string]));
+                }
+            }
+            for(int i = 0; i < searchPhrases.size(); i++) {
+                boolean found = false;
+                for(List<String> tokens : columns) {
+                    if(containsPhrase(tokens, searchPhrases.get(i), prefixSearches[i])) {
+                        found = true;
+                        break;
+                    }
+                }
+                if(!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean containsPhrase(List<String> tokens, String[] phrase, boolean prefix) {
+            for(int start = 0; start + phrase.length <= tokens.size(); start++) {
+                int matched = 0;
+                while(matched < phrase.length) {
+                    String token = tokens.get(start + matched);
+                    boolean last = matched == phrase.length - 1;
+                    if(!(last && prefix ? token.startsWith(phrase[matched]) : token.equals(phrase[matched]))) {
+                        break;
+                    }
+                    matched++;
+                }
+                if(matched == phrase.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+        * Splits the text into tokens like the unicode61 tokenizer of FTS5: letters, numbers and private use characters
+        * make up the tokens, everything else separates them, and the tokens are folded to lower case without diacritics.
+        */
+        static List<String> tokenize(String text) {
+
+            String folded = text;
+            for(int i = 0; i < text.length(); i++) {
+                if(text.charAt(i) >= 0x80) { // Most text is ASCII, which has no diacritics to remove
+                    folded = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{Mn}+", "");
+                    break;
+                }
+            }
+            folded = folded.toLowerCase(Locale.ROOT);
+
+            List<String> tokens = new ArrayList<>();
+            int start = -1;
+            for(int i = 0; i < folded.length(); ) {
+                int codePoint = folded.codePointAt(i);
+                if(isTokenCharacter(codePoint)) {
+                    if(start < 0) {
+                        start = i;
+                    }
+                }
+                else if(start >= 0) {
+                    tokens.add(folded.substring(start, i));
+                    start = -1;
+                }
+                i += Character.charCount(codePoint);
+            }
+            if(start >= 0) {
+                tokens.add(folded.substring(start));
+            }
+            return tokens;
+        }
+
+        private static boolean isTokenCharacter(int codePoint) {
+            switch(Character.getType(codePoint)) {
+                case Character.UPPERCASE_LETTER:
+                case Character.LOWERCASE_LETTER:
+                case Character.TITLECASE_LETTER:
+                case Character.MODIFIER_LETTER:
+                case Character.OTHER_LETTER:
+                case Character.DECIMAL_DIGIT_NUMBER:
+                case Character.LETTER_NUMBER:
+                case Character.OTHER_NUMBER:
+                case Character.PRIVATE_USE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+    * The messages of a page in the order they are written, with the distances of a near query.
+    */
+    private static class Page {
+
+        private final List<Long> ids = new ArrayList<>();
+        private final List<ByteBuffer> payloads = new ArrayList<>();
+        private double[] distances = null;
+
+        void add(long id, ByteBuffer payload) {
+            ids.add(id);
+            payloads.add(payload);
+        }
+
+        int size() {
+            return ids.size();
+        }
+    }
+
+    private static class Candidate {
+
+        private final long id;
+        private final ByteBuffer payload;
+        private final double distance;
+
+        Candidate(long id, ByteBuffer payload, double distance) {
+            this.id = id;
+            this.payload = payload;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+* One file of a SegmentLog, holding the records with consecutive sequence numbers from its base sequence number on.
+* The file is memory-mapped: the active segment read-write at its full capacity (a sparse file until it is written),
+* a sealed segment read-only at the size of its records. The offsets of the records are kept in memory, so reading
+* a record by its sequence number does not search the file.
+*
+* A record is, in big-endian: the int length of the payload, with the top bit set if the next record belongs to the same batch,
+* the int CRC-32C of the sequence number and the payload, the long sequence number, and the payload.
+* A record is only valid if its checksum matches and its sequence number is the next one, so a torn write is always detected.
+*/
+public class LogSegment {
+
+    static final int HEADER_BYTES = 16;
+    static final int CONTINUED = 0x80000000; // Set in the length of every record of a batch except the last
+
+    private final Path path;
+    private final long baseSequence;
+    private volatile MappedByteBuffer buffer;
+    private volatile int[] offsets;
+    private volatile int count = 0; // Written by the appending thread, while holding the log's lock
+    private int size = 0;
+    private int syncedSize = 0;
+    private final CRC32C checksum = new CRC32C();
+
+    private LogSegment(Path path, long baseSequence, MappedByteBuffer buffer, int[] offsets, int count, int size) {
+        this.path = path;
+        this.baseSequence = baseSequence;
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.count = count;
+        this.size = size;
+        this.syncedSize = size;
+    }
+
+    /**
+    * @return the name of the file of the segment starting at the sequence number, which sorts in the order of the segments.
+    */
+    static String fileName(long baseSequence) {
+        return String.format("%020d.log", baseSequence);
+    }
+
+    /**
+    * Creates an empty segment for appending, with a file of the given capacity.
+    * @param directory the directory of the log.
+    * @param baseSequence the sequence number of the first record.
+    * @param capacity the size of the file, the most bytes of records the segment can hold.
+    * @return the active segment.
+    * @throws IOException if the file could not be created.
+    */
+    static LogSegment create(Path directory, long baseSequence, int capacity) throws IOException {
+
+        Path path = directory.resolve(fileName(baseSequence));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new LogSegment(path, baseSequence, buffer, new int[1024], 0, 0);
+        }
+    }
+
+    /**
+    * Opens an existing segment and reads the offsets of its records. Reading stops at the first record that is not valid:
+    * at the end of the records, at the unwritten end of a segment that was active, or at a record torn by a crash.
+    * A batch whose last record is missing is left out as a whole. What is after the valid records is cut off the file.
+    * Only the last segment can have been cut short by a crash, since a segment is synced and truncated before the next one is created.
+    * @param path the file of the segment.
+    * @param baseSequence the sequence number of the first record, from the name of the file.
+    * @param last true if this is the last segment of the log.
+    * @return the sealed segment.
+    * @throws IOException if the file could not be read, or if a segment other than the last has invalid records.
+    */
+    static LogSegment recover(Path path, long baseSequence, boolean last) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            if(fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + path + " is too large");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            CRC32C checksum = new CRC32C();
+
+            int[] offsets = new int[1024];
+            int count = 0;
+            int position = 0;
+            int committedCount = 0; // Records up to the end of the last complete batch
+            int committedSize = 0;
+            while(position + HEADER_BYTES <= fileSize) {
+                int header = mapped.getInt(position);
+                int length = header & ~CONTINUED;
+                if(length == 0 || length > fileSize - position - HEADER_BYTES
+                    || mapped.getLong(position + 8) != baseSequence + count
+                    || mapped.getInt(position + 4) != checksum(checksum, mapped, position, length)) {
+                    break;
+                }
+                if(count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = position;
+                position += HEADER_BYTES + length;
+                if((header & CONTINUED) == 0) {
+                    committedCount = count;
+                    committedSize = position;
+                }
+            }
+
+            if(committedSize < fileSize) {
+                if(!last) {
+                    throw new IOException("Segment " + path + " has an invalid record at offset " + committedSize);
+                }
+                channel.truncate(committedSize);
+                channel.force(true);
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, committedSize);
+            }
+            return new LogSegment(path, baseSequence, mapped, offsets, committedCount, committedSize);
+        }
+    }
+
+    /**
+    * Maps a segment that was written by compaction, whose records are already known.
+    */
+    static LogSegment openCompacted(Path path, long baseSequence, int[] offsets, int count, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LogSegment(path, baseSequence, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), offsets, count, size);
+        }
+    }
+
+    private static int checksum(CRC32C checksum, ByteBuffer buffer, int position, int length) {
+        checksum.reset();
+        checksum.update(buffer.slice(position + 8, 8 + length));
+        return (int) checksum.getValue();
+    }
+
+    /**
+    * @return the number of bytes left for records, headers included.
+    */
+    long remaining() {
+        return (long) buffer.capacity() - size;
+    }
+
+    /**
+    * Writes a record at the end of the segment. The caller holds the log's lock and has checked that it fits.
+    * The record is neither durable nor visible to readers until the log has synced it.
+    * @param payload the payload of the record.
+    * @param continued true if the next record belongs to the same batch.
+    */
+    void append(byte[] payload, boolean continued) {
+
+        long sequence = baseSequence + count;
+        checksum.reset();
+        checksum.update(ByteBuffer.allocate(8).putLong(0, sequence));
+        checksum.update(payload);
+
+        MappedByteBuffer target = buffer;
+        target.putInt(size, payload.length | (continued ? CONTINUED : 0));
+        target.putInt(size + 4, (int) checksum.getValue());
+        target.putLong(size + 8, sequence);
+        target.put(size + HEADER_BYTES, payload);
+
+        int[] current = offsets;
+        if(count == current.length) {
+            current = Arrays.copyOf(current, count * 2);
+            offsets = current;
+        }
+        current[count] = size;
+        size += HEADER_BYTES + payload.length;
+        count = count + 1;
+    }
+
+    /**
+    * Takes the range of the file written since the previous sync, which the caller then forces with force().
+    * The caller holds the log's lock.
+    * @return the start and the end of the range.
+    */
+    long[] unsyncedRange() {
+        long[] range = {syncedSize, size};
+        syncedSize = size;
+        return range;
+    }
+
+    /**
+    * Forces a range of the file to the disk. Does not need the log's lock, so appends continue while the disk is busy.
+    */
+    void force(long from, long to) {
+        if(to > from) {
+            buffer.force((int) from, (int) (to - from));
+        }
+    }
+
+    /**
+    * Seals the active segment: forces all its records to the disk, cuts the unused capacity off the file
+    * and maps the records read-only. Readers may keep using the earlier mapping of the records.
+    * @throws IOException if the file could not be synced or truncated.
+    */
+    void seal() throws IOException {
+        buffer.force(0, size);
+        syncedSize = size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(true);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+    * Reads the payload of a record. Any thread may read records the log has made visible.
+    * @param sequence the sequence number of the record, which must be in this segment.
+    * @return the payload, a read-only view of the mapped file.
+    */
+    ByteBuffer read(long sequence) {
+        MappedByteBuffer mapped = buffer;
+        int offset = offsets[(int) (sequence - baseSequence)];
+        int length = mapped.getInt(offset) & ~CONTINUED;
+        return mapped.slice(offset + HEADER_BYTES, length);
+    }
+
+    /**
+    * @return the records of the segment as they are in the file, for copying them to a compacted segment.
+    */
+    ByteBuffer records() {
+        return buffer.slice(0, size);
+    }
+
+    int[] getOffsets() {
+        return offsets;
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+    * @return the sequence number of the last record, or baseSequence - 1 if the segment is empty.
+    */
+    long getLastSequence() {
+        return baseSequence + count - 1;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getSize() {
+        return size;
+    }
+}
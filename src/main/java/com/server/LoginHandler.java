@@ -0,0 +1,62 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+* Issues session tokens. The request is authenticated with Basic credentials by the context's UserAuthenticator,
+* and the response contains a token that can be sent in later requests as {@code Authorization: Bearer <token>}.
+* Example response: { "token" : "...", "expiresIn" : 900 }
+*/
+public class LoginHandler implements HttpHandler {
+
+    final UserAuthenticator authenticator;
+
+    public LoginHandler(UserAuthenticator auth) {
+        authenticator = auth;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        String responseString = null;
+
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            // The authenticator has already checked the credentials
+            JSONObject json = new JSONObject();
+            json.put("token", authenticator.issueToken((UserPrincipal) exchange.getPrincipal()));
+            json.put("expiresIn", authenticator.getTokenTimeToLiveSeconds());
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            handleResponse(exchange, json.toString(), 200);
+        }
+        else {
+            responseString = "Not supported; Only POST is accepted";
+            handleResponse(exchange, responseString, 400);
+        }
+    }
+
+    /**
+    * Constructs and sends a response to the request with given parameters.
+    * @param exchange The HTTP request
+    * @param response Message to inform user of the outcome
+    * @param code The status code
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    private void handleResponse(HttpExchange exchange, String response, int code) throws IOException {
+
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, responseBytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(responseBytes);
+        output.flush();
+        output.close();
+    }
+}
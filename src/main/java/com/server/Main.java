@@ -4,7 +4,11 @@ import java.io.FileInputStream;
 import java.net.InetSocketAddress;
 import java.security.KeyStore;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -20,17 +24,17 @@ public class Main {
     
     public static void main(String[] args) throws Exception {
 
-        // Open the database
+        // Open the database, with the engine selected by store.engine
         try {
-            MessageDatabase database = MessageDatabase.getInstance();
-            database.open("MessageDB");
+            MessageStore store = MessageStore.getInstance();
+            store.open(System.getProperty("db.name", "MessageDB"));
         } catch(SQLException e){
             e.printStackTrace();
         }
 
         // Open the server
         try {
-            HttpsServer server = HttpsServer.create(new InetSocketAddress(8001), 0);
+            HttpsServer server = HttpsServer.create(new InetSocketAddress(Integer.getInteger("server.port", 8001)), 0);
             SSLContext sslContext = ServerSSLContext(args[0], args[1]);
     
             // Configure the HttpsServer to use the sslContext by adding this call to setHttpsConfigurator
@@ -46,10 +50,33 @@ public class Main {
             UserAuthenticator authenticator = new UserAuthenticator();
     
             // Create context that defines path for the resource
-            HttpContext httpContext = server.createContext("/info", new MessageHandler());
+            MessageHandler messageHandler = new MessageHandler();
+            HttpContext httpContext = server.createContext("/info", messageHandler);
             httpContext.setAuthenticator(authenticator);
-            server.createContext("/registration", new RegistrationHandler(authenticator));
-            server.setExecutor(Executors.newCachedThreadPool()); // Use multiple threads
+            HttpContext batchContext = server.createContext("/info/batch", new BatchMessageHandler());
+            batchContext.setAuthenticator(authenticator);
+            HttpContext streamContext = server.createContext("/info/stream", new MessageStreamHandler(new MessageBroadcaster(MessageStore.getInstance())));
+            streamContext.setAuthenticator(authenticator);
+            HttpContext registrationContext = server.createContext("/registration", new RegistrationHandler(authenticator));
+            UserAuthenticator loginAuthenticator = authenticator.basicOnly(); // A token must not renew itself
+            HttpContext loginContext = server.createContext("/login", new LoginHandler(loginAuthenticator));
+            loginContext.setAuthenticator(loginAuthenticator);
+
+            HttpContext metricsContext = server.createContext("/metrics", new MetricsHandler());
+            if(Boolean.parseBoolean(System.getProperty("metrics.authenticate", "true"))) { // The metrics reveal users' activity
+                metricsContext.setAuthenticator(authenticator);
+            }
+
+            // Requests rejected by the bounded executor are answered with 503 before authentication
+            MetricsFilter metricsFilter = new MetricsFilter();
+            OverloadFilter overloadFilter = new OverloadFilter();
+            for(HttpContext context : new HttpContext[] {httpContext, batchContext, streamContext, registrationContext, loginContext, metricsContext}) {
+                context.getFilters().add(metricsFilter); // First, so that overloaded and unauthorized requests are counted too
+                context.getFilters().add(overloadFilter);
+            }
+            registerCacheMetrics(messageHandler.getListingCache());
+
+            server.setExecutor(createExecutor(System.getProperty("server.executor", "cached"))); // Use multiple threads
             server.start();
 
         } catch (Exception e){
@@ -57,6 +84,63 @@ public class Main {
         }
     }
 
+    /**
+    * Exposes the statistics the caches and the batch writer keep themselves on the /metrics endpoint.
+    * @param listingCache the cache of the /info listings.
+    */
+    private static void registerCacheMetrics(ListingCache listingCache) {
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.counterFunction("listing_cache_hits_total", "Listings served from the cache", listingCache::getHits);
+        metrics.counterFunction("listing_cache_misses_total", "Listings that were not in the cache", listingCache::getMisses);
+        metrics.counterFunction("listing_cache_evictions_total", "Listings dropped from the full cache", listingCache::getEvictions);
+        metrics.gauge("listing_cache_bytes", "Size of the cached listings", listingCache::getCachedBytes);
+        metrics.gauge("listing_cache_entries", "Number of cached listings", listingCache::size);
+
+        MessageStore store = MessageStore.getInstance();
+        CredentialCache credentialCache = store.getCredentialCache();
+        metrics.counterFunction("credential_cache_hits_total", "Logins verified from the cache", credentialCache::getHits);
+        metrics.counterFunction("credential_cache_misses_total", "Logins verified against the database", credentialCache::getMisses);
+        metrics.gauge("credential_cache_entries", "Number of cached credentials", credentialCache::size);
+
+        WeatherCache weatherCache = WeatherCache.getInstance();
+        metrics.gauge("weather_cache_entries", "Number of cached weather values", weatherCache::size);
+        metrics.gauge("weather_lookups_in_flight", "Lookups to the weather service in progress", weatherCache::getLookupsInFlight);
+
+        // The log engine commits in the appending threads and keeps metrics of its own
+        MessageBatchWriter batchWriter = store instanceof MessageDatabase database ? database.getBatchWriter() : null;
+        if(batchWriter != null) { // The database could not be opened
+            metrics.counterFunction("batch_writer_batches_total", "Transactions committed by the batch writer", batchWriter::getBatchCount);
+            metrics.counterFunction("batch_writer_messages_total", "Messages committed by the batch writer", batchWriter::getCommittedMessages);
+            metrics.gauge("batch_writer_largest_batch", "Most messages committed in one transaction", batchWriter::getLargestBatch);
+            metrics.gauge("batch_writer_queue_length", "Messages waiting to be committed", batchWriter::getQueueLength);
+        }
+    }
+
+    /**
+    * Creates the executor that runs the requests. The mode is selected with the server.executor system property:
+    * "cached" creates platform threads as needed (unbounded), "virtual" runs every request on its own virtual thread,
+    * and "bounded" uses server.threads platform threads with a queue of server.queueSize requests, answering requests over that with 503.
+    * @param mode the executor mode.
+    * @return the executor.
+    */
+    private static ExecutorService createExecutor(String mode) {
+
+        switch(mode) {
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case "bounded":
+                int threads = Integer.getInteger("server.threads", Runtime.getRuntime().availableProcessors() * 2);
+                int queueSize = Integer.getInteger("server.queueSize", 100);
+                return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueSize), OverloadFilter.rejectionHandler());
+            case "cached":
+                return Executors.newCachedThreadPool();
+            default:
+                throw new IllegalArgumentException("Unknown server.executor mode: " + mode + " (expected cached, virtual or bounded)");
+        }
+    }
+
     private static SSLContext ServerSSLContext(String keystore, String password) throws Exception {
         
         char[] passphrase = password.toCharArray();
@@ -0,0 +1,297 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Inserts messages posted by concurrent requests in shared transactions (group commit), so that the cost of a commit is paid once per batch instead of once per message.
+* A single writer thread collects messages until the batch is full or the first message has waited for the maximum linger time, and then commits them together.
+* Callers of {@link #insert(UserMessage, String)} wait until the batch containing their message has been committed.
+*/
+public class MessageBatchWriter implements AutoCloseable {
+
+    private final int maxBatchSize = Integer.getInteger("db.maxBatchSize", 64);
+    private final long maxLinger = Long.getLong("db.maxLingerMillis", 2);
+    private final long enqueueTimeout = Long.getLong("db.enqueueTimeoutMillis", 5000);
+    private final long commitTimeout = Long.getLong("db.commitTimeoutMillis", 30000);
+
+    private final ConnectionPool connectionPool;
+    private final String insertSql;
+    private final Runnable afterCommit;
+    private final BlockingQueue<PendingMessage> queue = new ArrayBlockingQueue<>(Integer.getInteger("db.writeQueueSize", 10000));
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    // Metrics
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong committedMessages = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalCommitNanos = new AtomicLong();
+    private final AtomicLong slowestCommitNanos = new AtomicLong();
+    private final LatencyHistogram commitTime = Metrics.getInstance().histogram("db_query_duration_seconds",
+        "Time spent executing database statements, including reading the results", "query", "commit_batch");
+
+    /**
+    * Creates the writer and starts its thread.
+    * @param connectionPool the pool the writer borrows its connection from for each batch.
+    * @param insertSql the insert statement, with the parameters in the same order as the messages table columns.
+    * @param afterCommit called on the writer thread after each commit, before the waiting requests are released.
+    */
+    public MessageBatchWriter(ConnectionPool connectionPool, String insertSql, Runnable afterCommit) {
+        this.connectionPool = connectionPool;
+        this.insertSql = insertSql;
+        this.afterCommit = afterCommit;
+        writerThread = new Thread(this::run, "message-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+    * Queues the message for insertion and waits until the batch containing it has been committed.
+    * @param msg the message to be added.
+    * @param nickname the nickname of the poster.
+    * @throws SQLException if the message could not be inserted, the queue stayed full for too long,
+    * or the commit did not finish in time (in which case the message may still be inserted later).
+    */
+    public void insert(UserMessage msg, String nickname) throws SQLException {
+
+        PendingMessage pending = new PendingMessage(msg, nickname);
+        try {
+            if(!running || !queue.offer(pending, enqueueTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Message could not be queued for insertion");
+            }
+            // Closed while queueing: the writer may already have drained the queue, so take the message back.
+            // If it is no longer there, the writer or close() has it and completes it.
+            if(!running && queue.remove(pending)) {
+                throw new SQLException("Message writer has been closed");
+            }
+            pending.committed.get(commitTimeout, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the message to be inserted", e);
+        } catch(TimeoutException e) {
+            throw new SQLException("Message was not committed in " + commitTimeout + " ms", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+    * The writer thread: takes the next batch from the queue and commits it, until the writer is closed.
+    * An unexpected exception fails the batch it happened in, not the writer.
+    */
+    private void run() {
+
+        List<PendingMessage> batch = new ArrayList<>(maxBatchSize);
+        try {
+            writeBatches(batch);
+        } finally {
+            running = false;
+            failQueued();
+        }
+    }
+
+    private void writeBatches(List<PendingMessage> batch) {
+        while(running) {
+            try {
+                batch.add(queue.take());
+
+                // Wait a moment for more messages to share the commit with
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLinger);
+                while(batch.size() < maxBatchSize) {
+                    PendingMessage next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch(InterruptedException e) { // Closed while collecting a batch
+                for(PendingMessage pending : batch) {
+                    pending.committed.completeExceptionally(new SQLException("Message writer has been closed"));
+                }
+                break;
+            } catch(Throwable e) {
+                e.printStackTrace();
+                SQLException failed = new SQLException("Message could not be inserted", e);
+                for(PendingMessage pending : batch) {
+                    pending.committed.completeExceptionally(failed); // No effect on the messages already completed
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+    * Fails everything that was left in the queue when the writer was closed.
+    */
+    private void failQueued() {
+        SQLException closed = new SQLException("Message writer has been closed");
+        PendingMessage pending;
+        while((pending = queue.poll()) != null) {
+            pending.committed.completeExceptionally(closed);
+        }
+    }
+
+    /**
+    * Inserts the batch in one transaction. If the transaction fails, the messages are retried one by one
+    * so that one faulty message does not fail the whole batch.
+    */
+    private void commit(List<PendingMessage> batch) {
+
+        long start = System.nanoTime();
+        try (PooledConnection pooled = connectionPool.borrow()) {
+            Connection connection = pooled.getConnection();
+            PreparedStatement prep = pooled.prepare(insertSql);
+
+            try {
+                connection.setAutoCommit(false);
+                for(PendingMessage pending : batch) {
+                    setParameters(prep, pending);
+                    prep.addBatch();
+                }
+                prep.executeBatch();
+                connection.commit();
+                connection.setAutoCommit(true);
+            } catch(SQLException | RuntimeException e) {
+                prep.clearBatch();
+                connection.rollback();
+                connection.setAutoCommit(true);
+                commitOneByOne(prep, batch);
+                return;
+            }
+
+            recordCommit(batch.size(), System.nanoTime() - start);
+            for(PendingMessage pending : batch) {
+                pending.committed.complete(null);
+            }
+        } catch(SQLException e) { // No connection or it broke, the whole batch fails
+            for(PendingMessage pending : batch) {
+                pending.committed.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void commitOneByOne(PreparedStatement prep, List<PendingMessage> batch) {
+        for(PendingMessage pending : batch) {
+            long start = System.nanoTime();
+            try {
+                setParameters(prep, pending);
+                prep.executeUpdate();
+                recordCommit(1, System.nanoTime() - start);
+                pending.committed.complete(null);
+            } catch(SQLException | RuntimeException e) {
+                pending.committed.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void setParameters(PreparedStatement prep, PendingMessage pending) throws SQLException {
+        setParameters(prep, pending.message, pending.nickname);
+    }
+
+    /**
+    * Sets the parameters of the message insert statement.
+    * @param prep the insert statement.
+    * @param msg the message to be added.
+    * @param nickname the nickname of the poster.
+    * @throws SQLException
+    */
+    static void setParameters(PreparedStatement prep, UserMessage msg, String nickname) throws SQLException {
+        prep.setString(1, msg.getLocationName());
+        prep.setString(2, msg.getDescription());
+        prep.setString(3, msg.getCity());
+        prep.setString(4, msg.getLocationCountry());
+        prep.setString(5, msg.getLocationStreetAddress());
+        prep.setString(6, nickname);
+        prep.setLong(7, msg.getPostDateAsLong());
+        prep.setDouble(8, msg.getLatitude());
+        prep.setDouble(9, msg.getLongitude());
+        prep.setString(10, msg.getWeather());
+    }
+
+    private void recordCommit(int batchSize, long commitNanos) {
+        try {
+            afterCommit.run();
+        } catch(RuntimeException e) { // The messages are committed all the same
+            e.printStackTrace();
+        }
+        batchCount.incrementAndGet();
+        committedMessages.addAndGet(batchSize);
+        largestBatch.accumulateAndGet(batchSize, Math::max);
+        totalCommitNanos.addAndGet(commitNanos);
+        commitTime.record(commitNanos);
+        slowestCommitNanos.accumulateAndGet(commitNanos, Math::max);
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getCommittedMessages() {
+        return committedMessages.get();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) committedMessages.get() / batches;
+    }
+
+    public double getAverageCommitMillis() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : totalCommitNanos.get() / 1e6 / batches;
+    }
+
+    public double getSlowestCommitMillis() {
+        return slowestCommitNanos.get() / 1e6;
+    }
+
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+    * Stops the writer thread. Messages still waiting in the queue fail.
+    */
+    @Override
+    public void close() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(1000);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued(); // Queued after the writer thread drained the queue
+    }
+
+    private static class PendingMessage {
+
+        final UserMessage message;
+        final String nickname;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        PendingMessage(UserMessage message, String nickname) {
+            this.message = message;
+            this.nickname = nickname;
+        }
+    }
+}
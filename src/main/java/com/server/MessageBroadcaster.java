@@ -0,0 +1,245 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+* Pushes newly posted messages to the clients of the message stream as Server-Sent Events.
+* After every commit one thread reads the new messages once and encodes each as an event once, and the same bytes are
+* queued to every subscriber. Each subscriber has a bounded queue and a virtual thread writing it to the client, so a slow
+* client never blocks the others or the writers: a client whose queue is full is disconnected, and it can resume with Last-Event-ID.
+* Event ids are message ids, so a client can also resume after the server has restarted.
+*/
+public class MessageBroadcaster {
+
+    private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = new byte[0]; // Tells a subscriber thread to stop
+
+    private final int queueSize = Integer.getInteger("stream.queueSize", 1024);
+    private final long heartbeatMillis = Long.getLong("stream.heartbeatMillis", 15000);
+    private final long retryMillis = Long.getLong("stream.retryMillis", 1000);
+    private final int readBatchSize = 256;
+
+    private final MessageStore db;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Semaphore committed = new Semaphore(0);
+    private long lastPublishedId; // Changed by the publisher thread while holding the lock, so that subscribing sees a consistent value
+
+    private final LongAdder publishedEvents = Metrics.getInstance().counter("stream_events_total", "Messages published to the message stream");
+    private final LongAdder droppedSubscribers = Metrics.getInstance().counter("stream_dropped_subscribers_total",
+        "Message stream clients disconnected because they could not keep up");
+
+    /**
+    * Creates the broadcaster and starts publishing the messages committed to the database from now on.
+    * @param db the store the messages are read from.
+    * @throws SQLException if the newest message could not be fetched
+    */
+    public MessageBroadcaster(MessageStore db) throws SQLException {
+        this.db = db;
+        this.lastPublishedId = db.getLatestMessageId();
+        db.addCommitListener(committed::release);
+        Metrics.getInstance().gauge("stream_subscribers", "Clients connected to the message stream", subscribers::size);
+
+        Thread publisher = new Thread(this::publish, "message-broadcaster");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+    * Starts streaming messages to the client. The response headers must have been sent. Returns immediately;
+    * the messages are written by a thread of the subscriber until the client disconnects or falls behind.
+    * @param exchange the exchange of the client.
+    * @param lastEventId the id of the last message the client has received, whose newer messages are sent first, or null for none.
+    */
+    public void subscribe(HttpExchange exchange, Long lastEventId) {
+
+        Subscriber subscriber = new Subscriber(exchange);
+        long startId;
+        synchronized(this) {
+            subscribers.add(subscriber);
+            startId = lastPublishedId; // Messages after this are queued by the publisher
+        }
+        long replayAfter = lastEventId != null ? Math.min(lastEventId, startId) : startId;
+        subscriber.thread = Thread.ofVirtual().name("message-stream").start(() -> subscriber.run(replayAfter, startId));
+    }
+
+    /**
+    * @return the number of connected clients.
+    */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+    * Waits for commits and publishes the new messages. A heartbeat is sent when nothing has been published for a while,
+    * so that disconnected clients are noticed and proxies do not close idle streams.
+    * If reading the messages fails, it is retried every stream.retryMillis until it succeeds, without waiting for another commit.
+    */
+    private void publish() {
+        boolean retryPending = false;
+        long lastQueued = System.nanoTime();
+        while(true) {
+            try {
+                boolean signalled = committed.tryAcquire(retryPending ? Math.min(retryMillis, heartbeatMillis) : heartbeatMillis, TimeUnit.MILLISECONDS);
+                committed.drainPermits(); // Commits made meanwhile are read at the same time
+                if(!signalled && System.nanoTime() - lastQueued >= TimeUnit.MILLISECONDS.toNanos(heartbeatMillis)) {
+                    queueToAll(HEARTBEAT);
+                    lastQueued = System.nanoTime();
+                }
+                if(!signalled && !retryPending) {
+                    continue;
+                }
+                retryPending = false;
+                if(subscribers.isEmpty()) { // Nobody to encode the messages for
+                    long latest = db.getLatestMessageId();
+                    synchronized(this) {
+                        if(subscribers.isEmpty()) { // Checked again, a client subscribing now must not miss the messages after latest
+                            lastPublishedId = Math.max(lastPublishedId, latest);
+                            continue;
+                        }
+                    }
+                }
+                List<Event> events;
+                do {
+                    events = readEvents(lastPublishedId, Long.MAX_VALUE);
+                    synchronized(this) {
+                        for(Event event : events) {
+                            queueToAll(event.bytes);
+                            lastPublishedId = event.id;
+                        }
+                    }
+                    publishedEvents.add(events.size());
+                    if(!events.isEmpty()) {
+                        lastQueued = System.nanoTime();
+                    }
+                } while(events.size() == readBatchSize);
+            } catch(InterruptedException e) {
+                return;
+            } catch(Exception e) { // Keep publishing, the messages are read again after retryMillis
+                e.printStackTrace();
+                retryPending = true;
+            }
+        }
+    }
+
+    /**
+    * Reads up to readBatchSize messages after the given id and encodes them as events.
+    * @param afterId the id of the last message not read.
+    * @param untilId the id of the last message that may be read.
+    * @return the events, oldest first.
+    */
+    private List<Event> readEvents(long afterId, long untilId) throws SQLException, IOException {
+        List<Event> events = new ArrayList<>();
+        StringWriter json = new StringWriter();
+        MessageStreamWriter writer = new MessageStreamWriter(json);
+        db.writeMessagesAfter(afterId, readBatchSize, writer, id -> {
+            if(id <= untilId) {
+                // JSON strings have no line breaks to escape
+                events.add(new Event(id, ("id: " + id + "\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            json.getBuffer().setLength(0);
+        });
+        return events;
+    }
+
+    private void queueToAll(byte[] event) {
+        for(Subscriber subscriber : subscribers) {
+            if(!subscriber.queue.offer(event)) {
+                drop(subscriber);
+            }
+        }
+    }
+
+    /**
+    * Disconnects a client that has fallen behind. Its thread may be blocked writing to the client, so it is interrupted,
+    * which closes the connection.
+    */
+    private void drop(Subscriber subscriber) {
+        if(subscribers.remove(subscriber)) {
+            droppedSubscribers.increment();
+            subscriber.queue.clear();
+            subscriber.queue.offer(CLOSE);
+            Thread thread = subscriber.thread;
+            if(thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private class Subscriber {
+
+        final HttpExchange exchange;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueSize);
+        volatile Thread thread;
+
+        Subscriber(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+        * Sends the messages the client missed, straight from the database, and then the published events as they are queued.
+        * @param replayAfter the id of the last message the client has.
+        * @param startId the id after which the published events are queued.
+        */
+        void run(long replayAfter, long startId) {
+
+            try (OutputStream output = exchange.getResponseBody()) {
+                long lastId = replayAfter;
+                while(lastId < startId) {
+                    List<Event> events = readEvents(lastId, startId); // The newer ones are in the queue
+                    if(events.isEmpty()) {
+                        break;
+                    }
+                    for(Event event : events) {
+                        output.write(event.bytes);
+                        lastId = event.id;
+                    }
+                    output.flush();
+                }
+
+                while(true) {
+                    byte[] event = queue.take();
+                    if(event == CLOSE) {
+                        break;
+                    }
+                    output.write(event);
+                    if(queue.isEmpty()) {
+                        output.flush();
+                    }
+                }
+            } catch(IOException | InterruptedException e) {
+                // The client disconnected or was dropped
+            } catch(SQLException e) {
+                e.printStackTrace();
+            } finally {
+                subscribers.remove(this);
+                exchange.close();
+            }
+        }
+    }
+
+    private static class Event {
+
+        final long id;
+        final byte[] bytes;
+
+        Event(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+}
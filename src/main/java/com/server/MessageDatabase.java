@@ -1,32 +1,64 @@
 package com.server;
 
 import java.io.File;
-import java.security.SecureRandom;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
 
-import org.apache.commons.codec.digest.Crypt;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-public class MessageDatabase {
+/**
+* The SQLite engine of the MessageStore, the default one. Messages are found with indexes: the id for the cursor,
+* B-trees for the time, city and country filters, an R*Tree for the bbox and near queries and FTS5 for the search.
+* The id is an AUTOINCREMENT primary key, so that it never changes (VACUUM may renumber an implicit rowid) and is never reused;
+* clients keep it as their cursor and stream position, and the indexes refer to the messages with it.
+*/
+public class MessageDatabase implements MessageStore {
     
-    private Connection dbConnection = null;
+    private ConnectionPool connectionPool = null;
+    private MessageBatchWriter batchWriter = null;
     private static MessageDatabase dbInstance = null;
-    private ThreadLocal<String> currentUser = new ThreadLocal<>(); // The current user's username stored during authentication
-    private SecureRandom secureRandom = new SecureRandom();
-
-    private String preparedInsertUser = "INSERT INTO users VALUES (?, ?, ?, ?)";
-    private String preparedInsertMessage = "INSERT INTO messages VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private final int poolSize = Integer.getInteger("db.poolSize", Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private PasswordHasher passwordHasher = PasswordHasher.getInstance();
+    private WeatherCache weatherCache = WeatherCache.getInstance();
+    private CredentialCache credentialCache = new CredentialCache();
+
+    private final ListingVersion listingVersion = new ListingVersion();
+
+    // Timings for the metrics
+    private final LatencyHistogram selectMessagesTime = queryTimer("select_messages");
+    private final LatencyHistogram selectNearestTime = queryTimer("select_nearest");
+    private final LatencyHistogram selectPasswordTime = queryTimer("select_password");
+    private final LatencyHistogram insertUserTime = queryTimer("insert_user");
+    private final LatencyHistogram insertMessagesTime = queryTimer("insert_messages");
+    private final LatencyHistogram weatherRefreshTime = Metrics.getInstance().histogram("weather_refresh_duration_seconds",
+        "Time a listing waits for the weather of its messages");
+
+    // The columns of the messages table, and the columns that are given when a message is inserted
+    private static final String MESSAGE_TABLE_COLUMNS = "id INTEGER PRIMARY KEY AUTOINCREMENT, locationName TEXT, locationDescription TEXT, "
+        + "locationCity TEXT, locationCountry TEXT, locationStreetAddress TEXT, originalPoster TEXT, originalPostingTime INTEGER, "
+        + "latitude REAL, longitude REAL, weather TEXT";
+    private static final String MESSAGE_COLUMNS = "locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, "
+        + "originalPoster, originalPostingTime, latitude, longitude, weather";
+    private String preparedInsertUser = "INSERT INTO users VALUES (?, ?, ?, ?) ON CONFLICT(username) DO NOTHING";
+    private String preparedInsertMessage = "INSERT INTO messages (" + MESSAGE_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private String preparedPasswordSelect = "SELECT username, password, userNickname FROM users WHERE username = ?";
+
+    // Great-circle distance in kilometres from the point given as the parameters (latitude, latitude, longitude)
+    private static final String DISTANCE_SQL = "2 * " + BoundingBox.EARTH_RADIUS_KM + " * asin(min(1, sqrt("
+        + "pow(sin(radians(latitude - ?) / 2), 2) + cos(radians(?)) * cos(radians(latitude)) * pow(sin(radians(longitude - ?) / 2), 2))))";
+    private final double initialNearRadiusKm = Double.parseDouble(System.getProperty("geo.initialRadiusKm", "1"));
 
     private MessageDatabase() {
         try {
-            open("MessageDB");
+            open(System.getProperty("db.name", "MessageDB"));
         } catch(SQLException e) {
             e.printStackTrace();
         }
@@ -44,218 +76,704 @@ public class MessageDatabase {
     }
 
     /**
-    * Opens the database file. New file is created and initialized if one does not exists.
+    * Opens the database file with a pool of connections. New file is created and initialized if one does not exists.
+    * If a database is already open, it is closed first.
     * @param dbName The name of the database file.
     * @throws SQLException when database file initialization fails.
     */
-    public void open(String dbName) throws SQLException {
+    @Override
+    public synchronized void open(String dbName) throws SQLException {
+
+        close();
 
         File dbFile = new File(dbName); // Check if the file exists and is not a directory
         boolean fileExists = dbFile.exists() && !dbFile.isDirectory();
         
         String database = "jdbc:sqlite:" + dbName; // SQLite will automatically create a file is one did not exist
-        dbConnection = DriverManager.getConnection(database);
+        connectionPool = new ConnectionPool(database, poolSize);
 
-        // Initialize the automatically created file
-        if(!fileExists) {
-            initializeDatabase();
+        try (PooledConnection connection = connectionPool.borrow()) {
+            // Initialize the automatically created file
+            if(!fileExists) {
+                initializeDatabase(connection.getConnection());
+            }
+            migrateMessageIds(connection.getConnection()); // Older databases use the implicit rowid as the id
+            createIndexes(connection.getConnection()); // Also done for existing files so that older databases get the indexes
         }
+        batchWriter = new MessageBatchWriter(connectionPool, preparedInsertMessage, listingVersion::messagesChanged);
     }
 
     /**
     * Initializes the database by creating USERS and MESSAGES tables.
+    * @param dbConnection the connection used for creating the tables.
     * @throws SQLException
     */
-    private void initializeDatabase() throws SQLException {
+    private void initializeDatabase(Connection dbConnection) throws SQLException {
 
         if(dbConnection != null) {
             
             String createUserTable = "create table users (username varchar(50) NOT NULL, password varchar(50) NOT NULL, email varchar(50), userNickname varchar(50) NOT NULL, primary key(username))";
-            String createMessageTable = "create table messages (locationName TEXT, locationDescription TEXT, locationCity TEXT, locationCountry TEXT, locationStreetAddress TEXT, " 
-            + "originalPoster TEXT, originalPostingTime INTEGER, latitude REAL, longitude REAL, weather TEXT)";
+            String createMessageTable = "create table messages (" + MESSAGE_TABLE_COLUMNS + ")";
             
-            Statement createStatement = dbConnection.createStatement();
-            createStatement.executeUpdate(createUserTable);
-            createStatement.executeUpdate(createMessageTable);
-            createStatement.close();
+            try (Statement createStatement = dbConnection.createStatement()) {
+                createStatement.executeUpdate(createUserTable);
+                createStatement.executeUpdate(createMessageTable);
+            }
         }
     }
 
     /**
-    * Closes the connection to the database and sets it to null.
-    * @throws SQLException if a database access error occurs
+    * Gives the messages table of an older database an id column, once. The messages keep their rowids as their ids,
+    * so the ids that clients already have stay valid. The indexes are dropped with the old table and created again
+    * by createIndexes, since they refer to the messages by the rowid.
+    * @param dbConnection the connection used for converting the table.
+    * @throws SQLException
     */
-    public void close() throws SQLException {
-        if(dbConnection != null){
-            dbConnection.close();
-            dbConnection = null;
+    private void migrateMessageIds(Connection dbConnection) throws SQLException {
+
+        try (Statement migrateStatement = dbConnection.createStatement()) {
+            try (ResultSet columns = migrateStatement.executeQuery("SELECT name FROM pragma_table_info('messages') WHERE name = 'id'")) {
+                if(columns.next()) {
+                    return;
+                }
+            }
+
+            dbConnection.setAutoCommit(false);
+            try {
+                migrateStatement.executeUpdate("DROP TABLE IF EXISTS messages_fts");
+                migrateStatement.executeUpdate("DROP TABLE IF EXISTS messages_geo");
+                migrateStatement.executeUpdate("CREATE TABLE messages_migrated (" + MESSAGE_TABLE_COLUMNS + ")");
+                migrateStatement.executeUpdate("INSERT INTO messages_migrated (id, " + MESSAGE_COLUMNS + ") SELECT rowid, " + MESSAGE_COLUMNS
+                    + " FROM messages ORDER BY rowid");
+                migrateStatement.executeUpdate("DROP TABLE messages"); // Also drops its indexes and triggers
+                migrateStatement.executeUpdate("ALTER TABLE messages_migrated RENAME TO messages");
+                dbConnection.commit();
+            } catch(SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
         }
     }
 
     /**
-    * Creates a new user in the database if the provided user does not already exist.
-    * @param user
+    * Creates the indexes used by the message queries if they do not exist yet.
+    * The cursor uses the id which SQLite already indexes, the other indexes serve the time, city and country filters.
+    * Messages with coordinates are also kept in the messages_geo R*Tree by triggers, for the bbox and near queries,
+    * and the text columns in the messages_fts full-text index, for the search queries.
+    * @param dbConnection the connection used for creating the indexes.
     * @throws SQLException
-    * @return True if the user could be added, False if not.
     */
-    public boolean insertUser(JSONObject user) throws SQLException {
+    private void createIndexes(Connection dbConnection) throws SQLException {
 
-        if(checkIfUserExists(user.getString("username"))){
-            return false;
+        if(dbConnection != null) {
+
+            try (Statement indexStatement = dbConnection.createStatement()) {
+                indexStatement.executeUpdate("CREATE INDEX IF NOT EXISTS messages_time ON messages (originalPostingTime)");
+                indexStatement.executeUpdate("CREATE INDEX IF NOT EXISTS messages_city ON messages (locationCity)");
+                indexStatement.executeUpdate("CREATE INDEX IF NOT EXISTS messages_country ON messages (locationCountry)");
+                createGeoIndex(dbConnection, indexStatement);
+                createSearchIndex(dbConnection, indexStatement);
+            }
         }
+    }
+
+    /**
+    * Creates the messages_geo R*Tree and the triggers that keep it up to date, and fills it from the existing messages
+    * when an older database gets it for the first time. Like in the responses, a message at 0,0 has no coordinates.
+    * @param dbConnection the connection used for creating the index.
+    * @param indexStatement the statement used for creating the index.
+    * @throws SQLException
+    */
+    private void createGeoIndex(Connection dbConnection, Statement indexStatement) throws SQLException {
 
-        PreparedStatement prepUser = dbConnection.prepareStatement(preparedInsertUser);
-        prepUser.setString(1, user.getString("username"));
-        prepUser.setString(2, encryptPassword(user.getString("password")));
-        prepUser.setString(3, user.getString("email"));
-        prepUser.setString(4, user.getString("userNickname"));
-        prepUser.executeUpdate();
-        prepUser.close();
+        if(tableExists(indexStatement, "messages_geo")) {
+            return;
+        }
 
-        return true;
+        dbConnection.setAutoCommit(false);
+        try {
+            indexStatement.executeUpdate("CREATE VIRTUAL TABLE messages_geo USING rtree(id, minLatitude, maxLatitude, minLongitude, maxLongitude)");
+            indexStatement.executeUpdate("CREATE TRIGGER messages_geo_insert AFTER INSERT ON messages WHEN new.latitude != 0 AND new.longitude != 0 BEGIN "
+                + "INSERT INTO messages_geo VALUES (new.id, new.latitude, new.latitude, new.longitude, new.longitude); END");
+            indexStatement.executeUpdate("CREATE TRIGGER messages_geo_delete AFTER DELETE ON messages BEGIN "
+                + "DELETE FROM messages_geo WHERE id = old.id; END");
+            indexStatement.executeUpdate("INSERT INTO messages_geo SELECT id, latitude, latitude, longitude, longitude FROM messages "
+                + "WHERE latitude != 0 AND longitude != 0");
+            dbConnection.commit();
+        } catch(SQLException e) {
+            dbConnection.rollback();
+            throw e;
+        } finally {
+            dbConnection.setAutoCommit(true);
+        }
     }
 
     /**
-    * Takes a plaintext password and hashes it.
-    * @param password in plaintext.
-    * @return The hashed password.
+    * Creates the messages_fts full-text index of the name, description, city and street address of the messages, and the triggers
+    * that keep it up to date. The index does not store the text again but reads it from the messages table (external content).
+    * It is filled from the existing messages when an older database gets it for the first time.
+    * Matches in the name weigh the most in the ranking, then the city and the street address, then the description.
+    * @param dbConnection the connection used for creating the index.
+    * @param indexStatement the statement used for creating the index.
+    * @throws SQLException
     */
-    private String encryptPassword(String password) {
-        
-        byte bytes[] = new byte[13];
-        secureRandom.nextBytes(bytes);
+    private void createSearchIndex(Connection dbConnection, Statement indexStatement) throws SQLException {
 
-        String saltBytes = new String(Base64.getEncoder().encode(bytes));
-        String salt = "$6$" + saltBytes;
+        if(tableExists(indexStatement, "messages_fts")) {
+            return;
+        }
 
-        String hashedPassword = Crypt.crypt(password, salt);
-        return hashedPassword;
+        String columns = "locationName, locationDescription, locationCity, locationStreetAddress";
+        String newValues = "new.id, new.locationName, new.locationDescription, new.locationCity, new.locationStreetAddress";
+        String oldValues = "'delete', old.id, old.locationName, old.locationDescription, old.locationCity, old.locationStreetAddress";
+
+        dbConnection.setAutoCommit(false);
+        try {
+            indexStatement.executeUpdate("CREATE VIRTUAL TABLE messages_fts USING fts5(" + columns + ", content='messages', content_rowid='id')");
+            indexStatement.executeUpdate("INSERT INTO messages_fts(messages_fts, rank) VALUES ('rank', 'bm25(4.0, 1.0, 2.0, 2.0)')");
+            indexStatement.executeUpdate("CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages BEGIN "
+                + "INSERT INTO messages_fts(rowid, " + columns + ") VALUES (" + newValues + "); END");
+            indexStatement.executeUpdate("CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages BEGIN "
+                + "INSERT INTO messages_fts(messages_fts, rowid, " + columns + ") VALUES (" + oldValues + "); END");
+            indexStatement.executeUpdate("CREATE TRIGGER messages_fts_update AFTER UPDATE OF " + columns + " ON messages BEGIN "
+                + "INSERT INTO messages_fts(messages_fts, rowid, " + columns + ") VALUES (" + oldValues + "); "
+                + "INSERT INTO messages_fts(rowid, " + columns + ") VALUES (" + newValues + "); END");
+            indexStatement.executeUpdate("INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')");
+            dbConnection.commit();
+        } catch(SQLException e) {
+            dbConnection.rollback();
+            throw e;
+        } finally {
+            dbConnection.setAutoCommit(true);
+        }
+    }
+
+    private boolean tableExists(Statement statement, String name) throws SQLException {
+        try (ResultSet result = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + name + "'")) {
+            return result.next();
+        }
     }
 
     /**
-    * Checks if the provided username is already in the database.
-    * @param username
+    * Closes the connections to the database and sets the pool to null.
+    * @throws SQLException if a database access error occurs
+    */
+    @Override
+    public synchronized void close() throws SQLException {
+        if(batchWriter != null){
+            batchWriter.close();
+            batchWriter = null;
+        }
+        if(connectionPool != null){
+            connectionPool.close();
+            connectionPool = null;
+        }
+    }
+
+    /**
+    * Creates a new user in the database if the provided user does not already exist.
+    * The password is hashed before a connection is borrowed, and an existing username is detected by the insert itself.
+    * @param user
     * @throws SQLException
-    * @return True if the username is taken, false if the username is not taken.
+    * @throws PasswordHasher.BusyException if the password could not be hashed because too many are being hashed.
+    * @return True if the user could be added, False if the username is taken.
     */
-    private boolean checkIfUserExists(String username) throws SQLException {
-        
-        String preparedUserSelect = "SELECT username FROM users WHERE username = ?";
-        PreparedStatement prep = dbConnection.prepareStatement(preparedUserSelect);
-        prep.setString(1, username);
-        ResultSet result = prep.executeQuery();
+    @Override
+    public boolean insertUser(JSONObject user) throws SQLException, PasswordHasher.BusyException {
+
+        String hashedPassword = passwordHasher.hash(user.getString("password"));
+        int inserted;
+
+        try (PooledConnection connection = connectionPool.borrow()) {
+
+            PreparedStatement prepUser = connection.prepare(preparedInsertUser);
+            prepUser.setString(1, user.getString("username"));
+            prepUser.setString(2, hashedPassword);
+            prepUser.setString(3, user.getString("email"));
+            prepUser.setString(4, user.getString("userNickname"));
+            long start = System.nanoTime();
+            inserted = prepUser.executeUpdate(); // 0 if the username already exists
+            insertUserTime.recordSince(start);
+        }
+        if(inserted == 0) {
+            return false;
+        }
+        credentialCache.invalidate(user.getString("username"));
 
-        return result.next();
+        return true;
     }
 
     /**
-    * Checks that the provided credentials are correct. If they are, also sets the current user.
+    * Checks that the provided credentials are correct.
+    * Credentials that have been verified recently are found from the cache without querying the database or hashing the password.
     * @param username
     * @param password
     * @throws SQLException
-    * @return True if the authentication is successful, false if credentials are wrong.
+    * @throws PasswordHasher.BusyException if the password could not be verified because too many are being hashed.
+    * @return The nickname of the user if the authentication is successful, null if credentials are wrong.
     */
-    public boolean authenticateUser(String username, String password) throws SQLException {
-
-        PreparedStatement prep = null;
-        ResultSet result = null;
-        boolean status = false; // Whether or not the authentication is successful
-
-        String prepSelection = "SELECT username, password FROM users WHERE username = ?";
-        prep = dbConnection.prepareStatement(prepSelection);
-        prep.setString(1, username);
-        result = prep.executeQuery();
-
-        if(result.next()){ 
-            String storedHashedPassword = result.getString("password"); 
-            if(storedHashedPassword.equals(Crypt.crypt(password, storedHashedPassword))){ // Compare the stored password and the given password
-                currentUser.set(username); // Store the current user's username since it is later used for getting the nickname
-                status = true; // Passwords match, authentication OK
+    @Override
+    public String authenticateUser(String username, String password) throws SQLException, PasswordHasher.BusyException {
+
+        String nickname = credentialCache.getVerifiedNickname(username, password);
+        if(nickname != null) {
+            return nickname;
+        }
+
+        String storedHashedPassword = null;
+
+        // The connection is only held for the query, the hash is compared after it has been returned to the pool
+        try (PooledConnection connection = connectionPool.borrow()) {
+            long start = System.nanoTime();
+            PreparedStatement prep = connection.prepare(preparedPasswordSelect);
+            prep.setString(1, username);
+            try (ResultSet result = prep.executeQuery()) {
+                if(result.next()){ 
+                    storedHashedPassword = result.getString("password"); 
+                    nickname = result.getString("userNickname");
+                }
             }
+            selectPasswordTime.recordSince(start);
+        }
+
+        if(storedHashedPassword == null) {
+            return null;
+        }
+        if(passwordHasher.verify(password, storedHashedPassword)){ // Compare the stored password and the given password
+            credentialCache.add(username, password, nickname);
+            return nickname; // Passwords match, authentication OK
         }
 
-        prep.close();
-        return status;
+        return null;
     }
-    
+
     /**
     * Adds the message to the database and attaches the sender's nickname to it.
+    * The insert is committed together with messages posted by other requests at the same time, this returns once that commit is done.
     * @param msg the message to be added
-    * @throws SQLException if the message could not be inserted (UserMessage was faulty).
+    * @param nickname the nickname of the sender, from the authenticated UserPrincipal
+    * @throws SQLException if the message could not be inserted or was not committed in time.
     */
-    public void insertMessage(UserMessage msg) throws SQLException {
-        PreparedStatement prep = dbConnection.prepareStatement(preparedInsertMessage);
-        prep.setString(1, msg.getLocationName());
-        prep.setString(2, msg.getDescription());
-        prep.setString(3, msg.getCity());
-        prep.setString(4, msg.getLocationCountry());
-        prep.setString(5, msg.getLocationStreetAddress());
-        prep.setString(6, getUserNickname());
-        prep.setLong(7, msg.getPostDateAsLong());
-        prep.setDouble(8, msg.getLatitude());
-        prep.setDouble(9, msg.getLongitude());
-        prep.setString(10, msg.getWeather());
-        prep.executeUpdate();
-        prep.close();
+    @Override
+    public void insertMessage(UserMessage msg, String nickname) throws SQLException {
+        batchWriter.insert(msg, nickname);
     }
 
     /**
-    * Gets the current user's nickname from the database.
-    * @return the nickname of the current user
+    * Adds all the messages to the database in one transaction and attaches the sender's nickname to them.
+    * @param messages the messages to be added
+    * @param nickname the nickname of the sender, from the authenticated UserPrincipal
+    * @throws SQLException if the messages could not be inserted, in which case none of them were.
     */
-    private String getUserNickname() throws SQLException {
+    @Override
+    public void insertMessages(List<UserMessage> messages, String nickname) throws SQLException {
+
+        try (PooledConnection pooled = connectionPool.borrow()) {
+            Connection connection = pooled.getConnection();
+            PreparedStatement prep = pooled.prepare(preparedInsertMessage);
+
+            long start = System.nanoTime();
+            try {
+                connection.setAutoCommit(false);
+                for(UserMessage msg : messages) {
+                    MessageBatchWriter.setParameters(prep, msg, nickname);
+                    prep.addBatch();
+                }
+                prep.executeBatch();
+                connection.commit();
+                connection.setAutoCommit(true);
+                insertMessagesTime.recordSince(start);
+            } catch(SQLException | RuntimeException e) {
+                prep.clearBatch(); // The statement is cached with the connection, so no message of the batch must stay in it
+                throw e;
+            }
+        } // Closing the connection rolls back the transaction if it was not committed
+        listingVersion.messagesChanged();
+    }
+
+    @Override
+    public void addCommitListener(Runnable listener) {
+        listingVersion.addCommitListener(listener);
+    }
 
-        String prepSelection = "SELECT userNickname FROM users WHERE username = ?";
-        PreparedStatement prep = dbConnection.prepareStatement(prepSelection);
-        prep.setString(1, currentUser.get());
-        ResultSet result = prep.executeQuery();
-        currentUser.remove();
+    @Override
+    public String getMessagesETag() {
+        return listingVersion.getETag();
+    }
 
-        return result.getString("userNickname");
+    @Override
+    public long getMessagesLastModified() {
+        return listingVersion.getLastModified();
     }
 
     /**
-    * Gets all the messages stored in the database and places them in a JSONArray.
-    * @return the messages in a JSONArray, if the array is empty there are no messages
+    * @return the cache of verified credentials, for reading its metrics.
     */
-    public JSONArray getMessages() throws SQLException {
-
-        String prepSelection = "SELECT * FROM messages";
-        PreparedStatement prep = dbConnection.prepareStatement(prepSelection);
-        ResultSet result = prep.executeQuery();
-        JSONArray array = new JSONArray();
-
-        while (result.next()) {
-            JSONObject json = new JSONObject();
-            json.put("locationName", result.getString("locationName"));
-            json.put("locationDescription", result.getString("locationDescription"));
-            json.put("locationCity", result.getString("locationCity"));
-            json.put("locationCountry", result.getString("locationCountry"));
-            json.put("locationStreetAddress", result.getString("locationStreetAddress"));
-            json.put("originalPoster", result.getString("originalPoster"));
-
-            String timestamp = TimestampConverter.convertToString(result.getLong("originalPostingTime"));
-            json.put("originalPostingTime", timestamp);
-
-            // Since coordinates are optional, only add them if they are available
-            if(result.getDouble("latitude") != 0 && result.getDouble("longitude") != 0){
-                json.put("latitude", result.getDouble("latitude"));
-                json.put("longitude", result.getDouble("longitude"));
-
-                // Check if weather should be attached
-                if(result.getString("weather") != null) {
-                    // Get latest weather information
-                    String weather = WeatherLookup.getWeatherInformation(result.getDouble("latitude"), result.getDouble("longitude"));
-                    
-                    // Getting weather has failed if weather is null
-                    if(weather != null){
-                        json.put("weather", weather);
+    @Override
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+    * @return the writer that commits the inserted messages, for reading its metrics.
+    */
+    public MessageBatchWriter getBatchWriter() {
+        return batchWriter;
+    }
+
+    /**
+    * Writes one page of messages matching the query to the writer.
+    * Messages are ordered by their id, which is also the cursor used for getting the next page.
+    * The page is read once and the connection returned to the pool, then the weather of the page is refreshed and the messages written.
+    * @param query the paging and filtering parameters.
+    * @param writer the writer the messages are streamed to.
+    * @return the number of messages written, if 0 there are no (more) messages
+    * @throws SQLException if the messages could not be fetched
+    * @throws IOException if writing a message fails
+    */
+    @Override
+    public int writeMessages(MessageQuery query, MessageStreamWriter writer) throws SQLException, IOException {
+
+        List<Long> nearest = null;
+        if(query.isNearQuery()) {
+            long searchStart = System.nanoTime();
+            nearest = findNearest(query);
+            selectNearestTime.recordSince(searchStart);
+            if(nearest.isEmpty()) {
+                return 0;
+            }
+        }
+
+        long start = System.nanoTime();
+        List<MessageRow> page = readPage(query, nearest);
+        selectMessagesTime.recordSince(start);
+
+        long refreshStart = System.nanoTime();
+        refreshWeather(page);
+        weatherRefreshTime.recordSince(refreshStart);
+
+        for(MessageRow row : page) {
+            writeMessage(row, writer);
+        }
+        return writer.getMessageCount();
+    }
+
+    /**
+    * Reads a page of messages. A page is at most MessageQuery.MAX_LIMIT rows, so it is kept in memory.
+    * @param query the paging and filtering parameters.
+    * @param nearest the messages found for a near query, or null.
+    * @return the messages of the page in the order they are listed.
+    * @throws SQLException if the messages could not be fetched
+    */
+    private List<MessageRow> readPage(MessageQuery query, List<Long> nearest) throws SQLException {
+
+        List<MessageRow> page = new ArrayList<>(nearest != null ? nearest.size() : Math.min(query.getLimit(), 64));
+        try (PooledConnection connection = connectionPool.borrow();
+            ResultSet result = prepareMessageSelection(connection, "messages.*", query, nearest).executeQuery()) {
+
+            while (result.next()) {
+                page.add(new MessageRow(result, nearest != null));
+            }
+        }
+        return page;
+    }
+
+    /**
+    * Writes a message of a page.
+    * @param row the message.
+    * @param writer the writer the message is written to.
+    */
+    private void writeMessage(MessageRow row, MessageStreamWriter writer) throws IOException {
+        writer.beginMessage();
+        writer.field("id", row.id);
+        writer.field("locationName", row.locationName);
+        writer.field("locationDescription", row.locationDescription);
+        writer.field("locationCity", row.locationCity);
+        writer.field("locationCountry", row.locationCountry);
+        writer.field("locationStreetAddress", row.locationStreetAddress);
+        writer.field("originalPoster", row.originalPoster);
+        writer.timestampField("originalPostingTime", row.originalPostingTime);
+
+        // Since coordinates are optional, only add them if they are available
+        if(row.hasCoordinates()){
+            writer.field("latitude", row.latitude);
+            writer.field("longitude", row.longitude);
+
+            // Check if weather should be attached
+            if(row.withWeather) {
+                // Get latest weather information, refreshWeather() has already fetched it
+                String weather = weatherCache.getWeather(row.latitude, row.longitude);
+
+                // Getting weather has failed if weather is null
+                if(weather != null){
+                    writer.field("weather", weather);
+                }
+            }
+        }
+        if(row.distance != null) {
+            writer.field("distance", row.distance);
+        }
+        writer.endMessage();
+    }
+
+    /**
+    * Writes the messages posted after the given one, oldest first, for the message stream. The weather is refreshed like for a listing.
+    * @param afterId the id of the last message that is not written.
+    * @param max the largest number of messages written.
+    * @param writer the writer the messages are written to, usually one that writes separate messages.
+    * @param written called with the id of each message after it has been written.
+    * @return the number of messages written.
+    * @throws SQLException if the messages could not be fetched
+    * @throws IOException if writing a message fails
+    */
+    @Override
+    public int writeMessagesAfter(long afterId, int max, MessageStreamWriter writer, LongConsumer written) throws SQLException, IOException {
+
+        MessageQuery query = new MessageQuery();
+        query.setAfter(afterId);
+        query.setLimit(max);
+        List<MessageRow> page = readPage(query, null);
+        refreshWeather(page);
+
+        for(MessageRow row : page) {
+            writeMessage(row, writer);
+            written.accept(row.id);
+        }
+        return page.size();
+    }
+
+    /**
+    * @return the id of the newest message, or 0 if there are no messages.
+    * @throws SQLException if the id could not be fetched
+    */
+    @Override
+    public long getLatestMessageId() throws SQLException {
+        try (PooledConnection connection = connectionPool.borrow();
+            ResultSet result = connection.prepare("SELECT max(id) FROM messages").executeQuery()) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    /**
+    * Refreshes the weather of all the messages on the page before the page is written, so that the lookups run in parallel
+    * instead of one by one while the messages are being written. The page has already been read, so no connection is held meanwhile.
+    * @param page the messages of the page.
+    */
+    private void refreshWeather(List<MessageRow> page) {
+
+        List<double[]> coordinates = new ArrayList<>();
+        for(MessageRow row : page) {
+            if(row.hasCoordinates() && row.withWeather) {
+                coordinates.add(new double[] {row.latitude, row.longitude});
+            }
+        }
+        weatherCache.refresh(coordinates);
+    }
+
+    private static LatencyHistogram queryTimer(String query) {
+        return Metrics.getInstance().histogram("db_query_duration_seconds",
+            "Time spent executing database statements, including reading the results", "query", query);
+    }
+
+    /**
+    * Finds the k messages nearest to the point of a near query. The search starts from a circle of geo.initialRadiusKm kilometres
+    * and grows it until the k-th nearest message in the box around the circle is inside the circle, so that no message outside
+    * the box can be nearer. Only the messages in the box are compared, so the cost depends on how many messages are about as near
+    * as the k-th nearest, not on the size of the table.
+    * @param query the near query.
+    * @return the ids of the nearest messages, nearest first.
+    * @throws SQLException if the messages could not be fetched
+    */
+    private List<Long> findNearest(MessageQuery query) throws SQLException {
+
+        List<Long> nearest = new ArrayList<>(query.getK());
+        double radius = initialNearRadiusKm;
+        try (PooledConnection connection = connectionPool.borrow()) {
+            while(true) {
+                BoundingBox box = BoundingBox.around(query.getNearLatitude(), query.getNearLongitude(), radius);
+                nearest.clear();
+                double farthest = 0;
+                try (ResultSet result = prepareNearestSelection(connection, query, box).executeQuery()) {
+                    while(result.next()) {
+                        nearest.add(result.getLong("id"));
+                        farthest = result.getDouble("distance");
                     }
                 }
+                if(box.coversWorld() || (nearest.size() == query.getK() && farthest <= radius)) {
+                    return nearest;
+                }
+                // With k messages found, none of the nearest can be farther than the k-th of them
+                radius = nearest.size() == query.getK() ? farthest : radius * 2;
             }
-            array.put(json);
         }
-        prep.close();
-        return array;
+    }
+
+    /**
+    * Creates the statement selecting the k messages in the box nearest to the point of a near query, with their "distance" in kilometres.
+    */
+    private PreparedStatement prepareNearestSelection(PooledConnection connection, MessageQuery query, BoundingBox box) throws SQLException {
+
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder prepSelection = new StringBuilder("SELECT messages.id");
+        appendDistance(prepSelection, parameters, query);
+        appendFilters(prepSelection, parameters, query);
+        appendBoxCondition(prepSelection, parameters, box);
+        prepSelection.append(" ORDER BY distance, messages.id LIMIT ?");
+        parameters.add(query.getK());
+        return prepare(connection, prepSelection, parameters);
+    }
+
+    /**
+    * Creates the statement selecting one page of messages matching the query. For a near query, the messages found by
+    * findNearest are selected instead, nearest first and with a "distance" column in kilometres.
+    * @param connection the connection the statement is prepared (or found from the cache) on.
+    * @param columns the selected columns.
+    * @param query the paging and filtering parameters.
+    * @param nearest the ids of the messages found for a near query, or null.
+    * @return the prepared statement with all the parameters set.
+    * @throws SQLException
+    */
+    private PreparedStatement prepareMessageSelection(PooledConnection connection, String columns, MessageQuery query, List<Long> nearest) throws SQLException {
+
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder prepSelection = new StringBuilder("SELECT " + columns);
+        if(nearest != null) {
+            appendDistance(prepSelection, parameters, query);
+            // The ids are bound as one JSON array so that the statement is the same for any k and stays cached
+            prepSelection.append(" FROM messages WHERE id IN (SELECT value FROM json_each(?)) ORDER BY distance, id");
+            parameters.add(nearest.toString());
+            return prepare(connection, prepSelection, parameters);
+        }
+
+        appendFilters(prepSelection, parameters, query);
+        if(query.getBoundingBox() != null) {
+            appendBoxCondition(prepSelection, parameters, query.getBoundingBox());
+        }
+        if(query.getSearch() != null) {
+            prepSelection.append(" ORDER BY matchRank, messages.id LIMIT ? OFFSET ?");
+            Collections.addAll(parameters, query.getLimit(), query.getOffset());
+        }
+        else {
+            prepSelection.append(" ORDER BY messages.id LIMIT ?");
+            parameters.add(query.getLimit());
+        }
+        return prepare(connection, prepSelection, parameters);
+    }
+
+    private void appendDistance(StringBuilder prepSelection, List<Object> parameters, MessageQuery query) {
+        prepSelection.append(", ").append(DISTANCE_SQL).append(" AS distance");
+        Collections.addAll(parameters, query.getNearLatitude(), query.getNearLatitude(), query.getNearLongitude());
+    }
+
+    /**
+    * Adds the FROM clause with the cursor and the time, city and country filters. A search joins the matches of the full-text index
+    * with their rank; CROSS JOIN makes SQLite start from the matches instead of matching every message a filter selects one by one.
+    */
+    private void appendFilters(StringBuilder prepSelection, List<Object> parameters, MessageQuery query) {
+
+        if(query.getSearch() != null) {
+            prepSelection.append(" FROM (SELECT rowid AS matchId, rank AS matchRank FROM messages_fts WHERE messages_fts MATCH ?)"
+                + " CROSS JOIN messages ON messages.id = matchId");
+            parameters.add(query.getSearchExpression());
+        }
+        else {
+            prepSelection.append(" FROM messages");
+        }
+        prepSelection.append(" WHERE messages.id > ?");
+        parameters.add(query.getAfter());
+        if(query.getSince() != null) {
+            prepSelection.append(" AND originalPostingTime >= ?");
+            parameters.add(query.getSince());
+        }
+        if(query.getUntil() != null) {
+            prepSelection.append(" AND originalPostingTime <= ?");
+            parameters.add(query.getUntil());
+        }
+        if(query.getCity() != null) {
+            prepSelection.append(" AND locationCity = ?");
+            parameters.add(query.getCity());
+        }
+        if(query.getCountry() != null) {
+            prepSelection.append(" AND locationCountry = ?");
+            parameters.add(query.getCountry());
+        }
+    }
+
+    private PreparedStatement prepare(PooledConnection connection, StringBuilder prepSelection, List<Object> parameters) throws SQLException {
+        PreparedStatement prep = connection.prepare(prepSelection.toString());
+        for(int index = 0; index < parameters.size(); index++) {
+            prep.setObject(index + 1, parameters.get(index));
+        }
+        return prep;
+    }
+
+    /**
+    * Limits the selection to the messages in the box. The R*Tree finds the candidates; it stores the coordinates as 32-bit floats
+    * rounded outwards, so the exact coordinates in the messages table are checked as well.
+    */
+    private void appendBoxCondition(StringBuilder prepSelection, List<Object> parameters, BoundingBox box) {
+
+        if(box.coversWorld()) {
+            prepSelection.append(" AND messages.id IN (SELECT id FROM messages_geo)");
+            return;
+        }
+
+        String latitudeRange = "maxLatitude >= ? AND minLatitude <= ?";
+        if(box.crossesDateLine()) { // Two ranges of longitude, each of which the R*Tree can search
+            prepSelection.append(" AND messages.id IN (SELECT id FROM messages_geo WHERE " + latitudeRange + " AND maxLongitude >= ?"
+                + " UNION ALL SELECT id FROM messages_geo WHERE " + latitudeRange + " AND minLongitude <= ?)");
+            prepSelection.append(" AND latitude BETWEEN ? AND ? AND (longitude >= ? OR longitude <= ?)");
+            Collections.addAll(parameters, box.getSouth(), box.getNorth(), box.getWest(), box.getSouth(), box.getNorth(), box.getEast());
+        }
+        else {
+            prepSelection.append(" AND messages.id IN (SELECT id FROM messages_geo WHERE " + latitudeRange + " AND maxLongitude >= ? AND minLongitude <= ?)");
+            prepSelection.append(" AND latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?");
+            Collections.addAll(parameters, box.getSouth(), box.getNorth(), box.getWest(), box.getEast());
+        }
+        Collections.addAll(parameters, box.getSouth(), box.getNorth(), box.getWest(), box.getEast());
+    }
+
+    /**
+    * A message of a page, read from a row of the messages table.
+    */
+    private static class MessageRow {
+
+        final long id;
+        final String locationName;
+        final String locationDescription;
+        final String locationCity;
+        final String locationCountry;
+        final String locationStreetAddress;
+        final String originalPoster;
+        final long originalPostingTime;
+        final double latitude;
+        final double longitude;
+        final boolean withWeather;
+        final Double distance;
+
+        /**
+        * @param result the selected messages, with all the columns of the messages table, on the row of the message.
+        * @param withDistance true if the result has a distance column.
+        */
+        MessageRow(ResultSet result, boolean withDistance) throws SQLException {
+            id = result.getLong("id");
+            locationName = result.getString("locationName");
+            locationDescription = result.getString("locationDescription");
+            locationCity = result.getString("locationCity");
+            locationCountry = result.getString("locationCountry");
+            locationStreetAddress = result.getString("locationStreetAddress");
+            originalPoster = result.getString("originalPoster");
+            originalPostingTime = result.getLong("originalPostingTime");
+            latitude = result.getDouble("latitude");
+            longitude = result.getDouble("longitude");
+            withWeather = result.getString("weather") != null;
+            distance = withDistance ? result.getDouble("distance") : null;
+        }
+
+        boolean hasCoordinates() {
+            return latitude != 0 && longitude != 0;
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.server;
+
+import java.util.Arrays;
+
+/**
+* The encodings messages can be posted and listed in. JSON is the default; CBOR (application/cbor) is the same
+* objects in a compact binary form, with the posting time as an integer of Epoch milliseconds instead of a string.
+*/
+public enum MessageFormat {
+
+    JSON("application/json"),
+    CBOR("application/cbor");
+
+    private final String contentType;
+
+    MessageFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+    * Finds the format of a request body.
+    * @param contentType the Content-Type header, parameters such as charset are ignored.
+    * @return the format, or null if the content type is not supported.
+    */
+    public static MessageFormat fromContentType(String contentType) {
+        if(contentType == null) {
+            return null;
+        }
+        String mediaType = contentType.split(";", 2)[0].trim();
+        for(MessageFormat format : values()) {
+            if(format.contentType.equalsIgnoreCase(mediaType)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+    * Chooses the format of a response from the request's Accept header. The quality of each format comes from the most
+    * specific range that matches it (RFC 9110 12.5.1), so "application/json;q=0.1, application/cbor;q=0.5, *&#47;*" prefers CBOR:
+    * the wildcard does not raise the quality the client gave JSON. CBOR is only sent to clients that prefer it over JSON,
+    * and JSON is sent when the header is missing or accepts both or neither, as the server did before CBOR.
+    * @param accept the Accept header, or null.
+    * @return the format of the response.
+    */
+    public static MessageFormat negotiate(String accept) {
+
+        if(accept == null) {
+            return JSON;
+        }
+        MessageFormat[] formats = values();
+        int[] specificities = new int[formats.length];
+        double[] qualities = new double[formats.length];
+        Arrays.fill(specificities, -1);
+        for(String range : accept.split(",")) {
+            String[] parts = range.trim().split(";");
+            String mediaType = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for(int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if(parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch(NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            for(MessageFormat format : formats) {
+                int specificity = format.specificity(mediaType);
+                int i = format.ordinal();
+                if(specificity > specificities[i]) {
+                    specificities[i] = specificity;
+                    qualities[i] = quality;
+                }
+                else if(specificity == specificities[i] && specificity >= 0) { // The same range twice
+                    qualities[i] = Math.max(qualities[i], quality);
+                }
+            }
+        }
+        return qualities[CBOR.ordinal()] > qualities[JSON.ordinal()] ? CBOR : JSON;
+    }
+
+    /**
+    * @return how specifically a media range of an Accept header names this format: 2 for the type itself,
+    * 1 for application/*, 0 for the range of all types and -1 if the range does not match it.
+    */
+    private int specificity(String mediaRange) {
+        if(mediaRange.equals(contentType)) {
+            return 2;
+        }
+        if(mediaRange.equals("application/*")) {
+            return 1;
+        }
+        return mediaRange.equals("*/*") ? 0 : -1;
+    }
+
+    /**
+    * Makes the ETag of the message listings specific to this format, since the listings have the same version in every format.
+    * @param etag the ETag of the listings, see MessageStore.getMessagesETag().
+    * @return the ETag of the listings in this format.
+    */
+    public String tag(String etag) {
+        if(this == JSON) {
+            return etag; // As before, so that clients keep their cached listings
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + name().toLowerCase() + "\"";
+    }
+}
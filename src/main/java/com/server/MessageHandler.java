@@ -1,21 +1,24 @@
 package com.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.stream.Collectors;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 
 import com.sun.net.httpserver.*;
 
 public class MessageHandler implements HttpHandler {
    
-    final MessageDatabase db = MessageDatabase.getInstance();
+    final MessageStore db = MessageStore.getInstance();
+    final ListingCache listingCache = new ListingCache();
+    private final int maxMessageBytes = Integer.getInteger("message.maxBytes", 64 * 1024);
+    private static final DateTimeFormatter httpDateFormatter = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -25,30 +28,52 @@ public class MessageHandler implements HttpHandler {
         // Handle POST requests here (users send this for sending messages)
         if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
 
-            if(checkContentType(exchange)){ // Accept only JSON format
+            MessageFormat format = checkContentType(exchange);
+            if(format != null){ // Accept only JSON and CBOR
 
-                // Read incoming message
-                InputStreamReader inputReader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
-                BufferedReader buffer = new BufferedReader(inputReader);
-                String message = buffer.lines().collect(Collectors.joining("\n"));
-                inputReader.close();
-
-                if(message != null && message.length() != 0){
-
-                    JSONObject json = null;
-                    try { 
-                        json = new JSONObject(message); // Create a json object (or try at least)
-                        UserMessage userMessage = new UserMessage(json);
-                        db.insertMessage(userMessage); // Add message to database
-
-                    } catch(Exception e) {
-                        responseString = "Message could not be posted - JSON was faulty";
-                        handleResponse(exchange, responseString, 400);
+                // Bodies that are known to be too large are not read at all
+                if(exchange.getRequestHeaders().containsKey("Content-Length")) {
+                    try {
+                        if(Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length")) > maxMessageBytes) {
+                            sendTooLarge(exchange);
+                            return;
+                        }
+                    } catch(NumberFormatException e) {
+                        // The server has already rejected an invalid length, so this does not happen
                     }
                 }
-                else {
+
+                // Read incoming message
+                UserMessage userMessage = null;
+                try (InputStream input = exchange.getRequestBody()) {
+                    userMessage = readMessage(input, format);
+                } catch(UserMessageDecoder.TooLargeException e) {
+                    sendTooLarge(exchange);
+                    return;
+                } catch(Exception e) {
+                    responseString = "Message could not be posted - " + format.name() + " was faulty";
+                    handleResponse(exchange, responseString, 400);
+                    return;
+                }
+
+                if(userMessage == null) {
                     responseString = "No message provided";
                     handleResponse(exchange, responseString, 400);
+                    return;
+                }
+
+                try {
+                    db.insertMessage(userMessage, ((UserPrincipal) exchange.getPrincipal()).getNickname()); // Add message to database
+                } catch(SQLException e) { // The message was valid, but the store is busy or unavailable
+                    e.printStackTrace();
+                    responseString = "Message could not be stored, try again later";
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    handleResponse(exchange, responseString, 503);
+                    return;
+                } catch(Exception e) {
+                    responseString = "Message could not be posted - " + format.name() + " was faulty";
+                    handleResponse(exchange, responseString, 400);
+                    return;
                 }
 
                 // All good, message has been posted
@@ -60,19 +85,57 @@ public class MessageHandler implements HttpHandler {
         // Handle GET requests here (users use this to get messages)
         else if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
 
+            MessageQuery query = null;
             try {
-                JSONArray messages = db.getMessages();
-                if(!messages.isEmpty()) {
-                    responseString = messages.toString();
-                    handleResponse(exchange, responseString, 200);
-                }
-                else { // No stored messages
+                query = MessageQuery.fromQueryString(exchange.getRequestURI().getRawQuery());
+            } catch(IllegalArgumentException e) {
+                responseString = e.getMessage();
+                handleResponse(exchange, responseString, 400);
+                return;
+            }
+
+            // Mobile clients can ask for the smaller CBOR encoding with the Accept header
+            MessageFormat format = MessageFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+
+            // Polling clients that already have the latest listing only get the headers
+            String etag = format.tag(db.getMessagesETag());
+            if(isNotModified(exchange, etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            // The same listing may have been read since the last write
+            String cacheKey = format.name() + " " + query.toCacheKey();
+            ListingCache.CachedListing cachedListing = listingCache.get(cacheKey, etag);
+            if(cachedListing != null) {
+                sendCachedListing(exchange, cachedListing, format);
+                return;
+            }
+
+            MessageStreamWriter writer = new MessageStreamWriter(exchange, format);
+            writer.captureResponse(listingCache.getMaxEntryBytes());
+            try {
+                // The messages are written to the response as they are read from the database
+                if(db.writeMessages(query, writer) == 0) { // No stored messages (or no more pages)
                     exchange.sendResponseHeaders(204, -1);
                 }
+                writer.close();
+
+                byte[] listing = writer.getCapturedResponse();
+                if(listing != null) { // Too large listings are not captured
+                    listingCache.put(cacheKey, etag, listing);
+                }
             } 
             catch(SQLException e) {
-                responseString = "Messages could not be fetched";
-                handleResponse(exchange, responseString, 500);
+                if(!writer.isStarted()) {
+                    responseString = "Messages could not be fetched";
+                    handleResponse(exchange, responseString, 500);
+                }
+                else { // Part of the response has already been sent, the client sees a truncated response
+                    e.printStackTrace();
+                    exchange.close();
+                }
             }
         } 
         
@@ -83,38 +146,143 @@ public class MessageHandler implements HttpHandler {
         }
     }
 
+    /**
+    * Sends a listing from the listing cache.
+    * @param exchange The HTTP request
+    * @param listing The cached listing, its body is empty if there were no messages
+    * @param format The format of the listing
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    private void sendCachedListing(HttpExchange exchange, ListingCache.CachedListing listing, MessageFormat format) throws IOException {
+
+        byte[] body = listing.getBody();
+        if(body.length == 0) {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+        // The gzip copy is only made if the listing is large enough to be compressed
+        boolean gzip = body.length >= ResponseCompression.getMinBytes() && ResponseCompression.GZIP.equals(ResponseCompression.negotiate(exchange));
+        ResponseCompression.send(exchange, 200, body, gzip ? listing.getGzipBody() : null);
+    }
+
+    /**
+    * @return the cache of encoded listings, for reading its metrics.
+    */
+    public ListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /**
+    * Sets the validators of the message listing (ETag and Last-Modified) to the response
+    * and checks them against the request's If-None-Match or If-Modified-Since header.
+    * @param exchange The HTTP request
+    * @param etag The current ETag of the listings
+    * @return True if the client's copy of the listing is still current and 304 Not Modified can be sent.
+    */
+    private boolean isNotModified(HttpExchange exchange, String etag) {
+
+        long lastModified = db.getMessagesLastModified() / 1000 * 1000; // HTTP dates have a precision of one second
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("ETag", etag);
+        responseHeaders.set("Last-Modified", httpDateFormatter.format(Instant.ofEpochMilli(lastModified)));
+        responseHeaders.set("Cache-Control", "no-cache"); // Caches may keep the listing, but must revalidate it
+        ResponseCompression.vary(responseHeaders, "Accept"); // The listing may be sent as CBOR
+        ResponseCompression.vary(responseHeaders, "Accept-Encoding"); // The listing may be sent compressed
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        List<String> ifNoneMatch = requestHeaders.get("If-None-Match");
+        if(ifNoneMatch != null) { // If-Modified-Since is ignored when If-None-Match is present
+            for(String line : ifNoneMatch) { // A list may be split on several header lines
+                for(String tag : line.split(",")) {
+                    tag = tag.trim();
+                    if(tag.equals("*") || weakTag(tag).equals(weakTag(etag))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+        if(ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, httpDateFormatter).toInstant().toEpochMilli();
+                return lastModified <= since;
+            } catch(DateTimeParseException e) {
+                return false; // Invalid dates are ignored
+            }
+        }
+        return false;
+    }
+
+    // Weak comparison: W/"x" and "x" match
+    private static String weakTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+    * Reads a posted message from the body. JSON is decoded as it is read; a CBOR body is read whole first, it is compact.
+    * @param input The request body
+    * @param format The format of the body
+    * @return the message, or null if the body is empty
+    * @throws UserMessageDecoder.TooLargeException if the body is longer than message.maxBytes
+    * @throws Exception if the body is not a valid message, see UserMessageDecoder and UserMessage(CborReader)
+    */
+    private UserMessage readMessage(InputStream input, MessageFormat format) throws Exception {
+
+        if(format == MessageFormat.CBOR) {
+            byte[] message = input.readNBytes(maxMessageBytes + 1);
+            if(message.length > maxMessageBytes) {
+                throw new UserMessageDecoder.TooLargeException(maxMessageBytes);
+            }
+            if(message.length == 0) {
+                return null;
+            }
+            CborReader reader = new CborReader(message);
+            UserMessage userMessage = new UserMessage(reader);
+            reader.checkEnd();
+            return userMessage;
+        }
+        return UserMessageDecoder.decode(input, maxMessageBytes);
+    }
+
+    /**
+    * Answers a message that is longer than message.maxBytes with 413.
+    * @param exchange The HTTP request
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    private void sendTooLarge(HttpExchange exchange) throws IOException {
+        String responseString = "Message is too large, at most " + maxMessageBytes + " bytes can be posted";
+        handleResponse(exchange, responseString, 413);
+    }
+
     /**
     * Checks that the request header has a correct content type. Handles the response if header is faulty.
     * @param exchange The HTTP request
     * @throws IOException if the response headers have already been sent or an I/O error occurs
-    * @return True if header contains a content type and the type is "application/json". Otherwise returns false.
+    * @return the format of the body if the content type is "application/json" or "application/cbor". Otherwise returns null.
     */
-    private boolean checkContentType(HttpExchange exchange) throws IOException {
+    private MessageFormat checkContentType(HttpExchange exchange) throws IOException {
 
         String responseString = null;
         Headers requestHeader = exchange.getRequestHeaders();
-        boolean contentIsValid = false;
 
         // See if Content-Type is attached
-        if (requestHeader.containsKey("Content-Type")) {
-
-            String contentType = requestHeader.getFirst("Content-Type");
-            if (contentType.equalsIgnoreCase("application/json")) {
-                contentIsValid = true;
-            } 
-            else {
-                responseString = "Content type must be application/json";
-                handleResponse(exchange, responseString, 400);
-                contentIsValid = false;
-            }
-        } 
-        else {
+        if (!requestHeader.containsKey("Content-Type")) {
             responseString = "Content-Type missing";
             handleResponse(exchange, responseString, 400);
-            contentIsValid = false;
+            return null;
         }
 
-        return contentIsValid;
+        MessageFormat format = MessageFormat.fromContentType(requestHeader.getFirst("Content-Type"));
+        if (format == null) {
+            responseString = "Content type must be application/json or application/cbor";
+            handleResponse(exchange, responseString, 400);
+        }
+        return format;
     }
 
     /**
@@ -125,11 +293,6 @@ public class MessageHandler implements HttpHandler {
     * @throws IOException if the response headers have already been sent or an I/O error occurs
     */
     private void handleResponse(HttpExchange exchange, String response, int code) throws IOException {
-
-        exchange.sendResponseHeaders(code, response.getBytes("UTF-8").length);
-        OutputStream output = exchange.getResponseBody();
-        output.write(response.getBytes());
-        output.flush();
-        output.close();
+        ResponseCompression.send(exchange, code, response.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,298 @@
+package com.server;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+
+/**
+* Holds the paging and filtering parameters of a GET request for messages.
+* Messages are paged with a cursor: each returned message carries an "id" and the next page is requested with {@code after=<last id>}.
+* A query with {@code near=<latitude>,<longitude>} instead returns the k messages nearest to the point, nearest first, and is not paged.
+* A query with {@code search=<words>} returns the matching messages best match first, paged with {@code offset=<number of messages to skip>}.
+*/
+public class MessageQuery {
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+    public static final int DEFAULT_K = 10;
+    public static final int MAX_SEARCH_LENGTH = 256;
+
+    private long after = 0;
+    private int limit = DEFAULT_LIMIT;
+    private Long since = null;
+    private Long until = null;
+    private String city = null;
+    private String country = null;
+    private BoundingBox boundingBox = null;
+    private double[] near = null;
+    private int k = DEFAULT_K;
+    private String search = null;
+    private int offset = 0;
+
+    public MessageQuery() { }
+
+    /**
+    * Creates a query from a raw URL query string. Example: {@code after=120&limit=50&city=Oulu&since=2024-01-01T00:00:00.000Z}
+    * or {@code bbox=64.9,25.3,65.1,25.6} (south,west,north,east) or {@code near=65.01,25.47&k=20} or {@code search=harbour caf*&offset=100}.
+    * Unknown parameters are ignored.
+    * @param queryString the raw (still URL encoded) query string, may be null.
+    * @return the parsed query.
+    * @throws IllegalArgumentException if a parameter has an invalid value.
+    */
+    public static MessageQuery fromQueryString(String queryString) throws IllegalArgumentException {
+
+        MessageQuery query = new MessageQuery();
+        if(queryString == null || queryString.isEmpty()){
+            return query;
+        }
+
+        for(String pair : queryString.split("&")) {
+            int separator = pair.indexOf('=');
+            if(separator <= 0){
+                continue;
+            }
+            String key = URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8);
+            String value = URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+
+            try {
+                switch(key) {
+                    case "after":
+                        query.setAfter(Long.parseLong(value));
+                        break;
+                    case "limit":
+                        query.setLimit(Integer.parseInt(value));
+                        break;
+                    case "since":
+                        query.setSince(TimestampConverter.convertToLong(value));
+                        break;
+                    case "until":
+                        query.setUntil(TimestampConverter.convertToLong(value));
+                        break;
+                    case "city":
+                        query.setCity(value);
+                        break;
+                    case "country":
+                        query.setCountry(value);
+                        break;
+                    case "bbox":
+                        query.setBoundingBox(BoundingBox.parse(value));
+                        break;
+                    case "near":
+                        double[] point = BoundingBox.parseCoordinates(value, 2);
+                        query.setNear(point[0], point[1]);
+                        break;
+                    case "k":
+                        query.setK(Integer.parseInt(value));
+                        break;
+                    case "search":
+                        query.setSearch(value);
+                        break;
+                    case "offset":
+                        query.setOffset(Integer.parseInt(value));
+                        break;
+                    default:
+                        break;
+                }
+            } catch(NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid value for " + key);
+            }
+        }
+        if(query.boundingBox != null && query.near != null) {
+            throw new IllegalArgumentException("bbox and near cannot be used together");
+        }
+        if(query.search != null && query.near != null) {
+            throw new IllegalArgumentException("search and near cannot be used together");
+        }
+        if(query.offset > 0 && query.search == null) {
+            throw new IllegalArgumentException("offset can only be used with search, other listings are paged with after");
+        }
+        return query;
+    }
+
+    /**
+    * Creates a canonical form of the query, so that the same query written in a different order or with defaults left out gives the same key.
+    * @return the query as a string. Example: "after=0&limit=100&since=&until=&city=Oulu&country=&bbox=&near=&k=10&search=&offset=0"
+    */
+    public String toCacheKey() {
+        StringBuilder key = new StringBuilder();
+        key.append("after=").append(after);
+        key.append("&limit=").append(limit);
+        key.append("&since=").append(since != null ? since : "");
+        key.append("&until=").append(until != null ? until : "");
+        key.append("&city=").append(city != null ? URLEncoder.encode(city, StandardCharsets.UTF_8) : "");
+        key.append("&country=").append(country != null ? URLEncoder.encode(country, StandardCharsets.UTF_8) : "");
+        key.append("&bbox=").append(boundingBox != null ? boundingBox : "");
+        key.append("&near=").append(near != null ? near[0] + "," + near[1] : "");
+        key.append("&k=").append(k);
+        key.append("&search=").append(search != null ? URLEncoder.encode(search, StandardCharsets.UTF_8) : "");
+        key.append("&offset=").append(offset);
+        return key.toString();
+    }
+
+    public void setAfter(long after) {
+        if(after < 0){
+            throw new IllegalArgumentException("Invalid value for after");
+        }
+        this.after = after;
+    }
+
+    public long getAfter() {
+        return after;
+    }
+
+    /**
+    * Sets the page size. Values above MAX_LIMIT are clamped to MAX_LIMIT.
+    * @param limit the maximum number of messages returned, must be positive.
+    */
+    public void setLimit(int limit) {
+        if(limit <= 0){
+            throw new IllegalArgumentException("Invalid value for limit");
+        }
+        this.limit = Math.min(limit, MAX_LIMIT);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    public Long getSince() {
+        return since;
+    }
+
+    public void setUntil(Long until) {
+        this.until = until;
+    }
+
+    public Long getUntil() {
+        return until;
+    }
+
+    public void setCity(String city) {
+        this.city = city;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public void setCountry(String country) {
+        this.country = country;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    /**
+    * Only returns messages located inside the box.
+    * @param boundingBox the box, or null for messages anywhere.
+    */
+    public void setBoundingBox(BoundingBox boundingBox) {
+        this.boundingBox = boundingBox;
+    }
+
+    public BoundingBox getBoundingBox() {
+        return boundingBox;
+    }
+
+    /**
+    * Returns the k messages nearest to the point instead of a page ordered by id.
+    * @param latitude the latitude of the point, -90 to 90.
+    * @param longitude the longitude of the point, -180 to 180.
+    */
+    public void setNear(double latitude, double longitude) {
+        if(!BoundingBox.isLatitude(latitude) || !BoundingBox.isLongitude(longitude)){
+            throw new IllegalArgumentException("Invalid value for near");
+        }
+        this.near = new double[] {latitude, longitude};
+    }
+
+    /**
+    * @return true if the query asks for the messages nearest to a point.
+    */
+    public boolean isNearQuery() {
+        return near != null;
+    }
+
+    public double getNearLatitude() {
+        return near[0];
+    }
+
+    public double getNearLongitude() {
+        return near[1];
+    }
+
+    /**
+    * Sets the number of messages returned by a near query. Values above MAX_LIMIT are clamped to MAX_LIMIT.
+    * @param k the number of nearest messages, must be positive.
+    */
+    public void setK(int k) {
+        if(k <= 0){
+            throw new IllegalArgumentException("Invalid value for k");
+        }
+        this.k = Math.min(k, MAX_LIMIT);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+    * Only returns messages whose name, description, city or street address contain all the words, best match first.
+    * A word ending with * matches any word starting with it. Other search syntax is not interpreted.
+    * @param search the words, or null for no search.
+    */
+    public void setSearch(String search) {
+        if(search != null && (search.isBlank() || search.length() > MAX_SEARCH_LENGTH)){
+            throw new IllegalArgumentException("Invalid value for search");
+        }
+        this.search = search;
+    }
+
+    public String getSearch() {
+        return search;
+    }
+
+    /**
+    * Converts the search to an FTS5 query in which every word is a quoted string, so that quotes, operators
+    * and column filters typed by the user are searched for as text instead of being interpreted.
+    * @return the query for the MATCH operator. Example: {@code "harbour" "caf"*} for "harbour caf*"
+    */
+    public String getSearchExpression() {
+        StringBuilder expression = new StringBuilder();
+        for(String word : search.trim().split("\\s+")) {
+            boolean prefix = word.length() > 1 && word.endsWith("*");
+            if(prefix) {
+                word = word.substring(0, word.length() - 1);
+            }
+            if(expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(word.replace("\"", "\"\"")).append('"');
+            if(prefix) {
+                expression.append('*');
+            }
+        }
+        return expression.toString();
+    }
+
+    /**
+    * Sets the number of matching messages skipped, for paging search results.
+    * @param offset the number of messages skipped, must not be negative.
+    */
+    public void setOffset(int offset) {
+        if(offset < 0){
+            throw new IllegalArgumentException("Invalid value for offset");
+        }
+        this.offset = offset;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,128 @@
+package com.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.json.JSONObject;
+
+/**
+* Stores the users and the messages. The handlers, the authenticator and the message stream only depend on this interface,
+* so the storage engine can be changed with the store.engine system property: "sqlite" (the default) is MessageDatabase,
+* "log" is LogMessageStore, an append-only log of segment files for write-mostly use where mostly the newest messages are read.
+* Both engines report storage failures as SQLException, so that the handlers answer them the same way whichever engine is used.
+*
+* Every engine must behave the same as seen by the clients: message ids are positive and increase in the order the messages
+* are committed, listings are ordered by id (near queries by distance, then id), and a message is listed only after the call
+* that added it has returned.
+*/
+public interface MessageStore {
+
+    /**
+    * Gets the instance of the engine selected with the store.engine system property.
+    * @return the store instance.
+    * @throws IllegalArgumentException if the engine is unknown.
+    */
+    static MessageStore getInstance() {
+        String engine = System.getProperty("store.engine", "sqlite");
+        switch(engine) {
+            case "sqlite":
+                return MessageDatabase.getInstance();
+            case "log":
+                return LogMessageStore.getInstance();
+            default:
+                throw new IllegalArgumentException("Unknown store.engine: " + engine + " (expected sqlite or log)");
+        }
+    }
+
+    /**
+    * Opens the store, creating it if it does not exist. If the store is already open, it is closed first.
+    * @param name the name of the database file; the log engine keeps its files in the directory name + ".log".
+    * @throws SQLException if the store could not be opened.
+    */
+    void open(String name) throws SQLException;
+
+    /**
+    * Closes the store. Adding messages fails until it is opened again.
+    * @throws SQLException if closing fails.
+    */
+    void close() throws SQLException;
+
+    /**
+    * Creates a new user if the username is not taken.
+    * @param user the username, password, email and userNickname.
+    * @return true if the user was added, false if the username is taken.
+    * @throws SQLException if the user could not be stored.
+    * @throws PasswordHasher.BusyException if the password could not be hashed because too many are being hashed.
+    */
+    boolean insertUser(JSONObject user) throws SQLException, PasswordHasher.BusyException;
+
+    /**
+    * Checks that the credentials are correct.
+    * @return the nickname of the user, or null if the credentials are wrong.
+    * @throws SQLException if the user could not be fetched.
+    * @throws PasswordHasher.BusyException if the password could not be verified because too many are being hashed.
+    */
+    String authenticateUser(String username, String password) throws SQLException, PasswordHasher.BusyException;
+
+    /**
+    * Adds the message with the sender's nickname. Returns once the message is durable.
+    * @throws SQLException if the message could not be added.
+    */
+    void insertMessage(UserMessage msg, String nickname) throws SQLException;
+
+    /**
+    * Adds all the messages with the sender's nickname, all or none of them. Returns once the messages are durable.
+    * @throws SQLException if the messages could not be added, in which case none of them were.
+    */
+    void insertMessages(List<UserMessage> messages, String nickname) throws SQLException;
+
+    /**
+    * Writes one page of messages matching the query to the writer.
+    * @param query the paging and filtering parameters.
+    * @param writer the writer the messages are streamed to.
+    * @return the number of messages written, if 0 there are no (more) messages.
+    * @throws SQLException if the messages could not be fetched.
+    * @throws IOException if writing a message fails.
+    */
+    int writeMessages(MessageQuery query, MessageStreamWriter writer) throws SQLException, IOException;
+
+    /**
+    * Writes the messages posted after the given one, oldest first, for the message stream.
+    * @param afterId the id of the last message that is not written.
+    * @param max the largest number of messages written.
+    * @param writer the writer the messages are written to.
+    * @param written called with the id of each message after it has been written.
+    * @return the number of messages written.
+    * @throws SQLException if the messages could not be fetched.
+    * @throws IOException if writing a message fails.
+    */
+    int writeMessagesAfter(long afterId, int max, MessageStreamWriter writer, LongConsumer written) throws SQLException, IOException;
+
+    /**
+    * @return the id of the newest message, or 0 if there are no messages.
+    * @throws SQLException if the id could not be fetched.
+    */
+    long getLatestMessageId() throws SQLException;
+
+    /**
+    * Adds a listener that is called after every commit that adds messages, on the committing thread, so it must not block.
+    */
+    void addCommitListener(Runnable listener);
+
+    /**
+    * @return the entity tag for the message listings, see ListingVersion.
+    */
+    String getMessagesETag();
+
+    /**
+    * @return the time the message listings may have last changed, in Epoch milliseconds.
+    */
+    long getMessagesLastModified();
+
+    /**
+    * @return the cache of verified credentials, for reading its metrics.
+    */
+    CredentialCache getCredentialCache();
+}
@@ -0,0 +1,100 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+* Streams newly posted messages as Server-Sent Events (text/event-stream). Each event has the message's id as its id and the
+* message, as in the GET /info listing, as its data. A client that reconnects with the Last-Event-ID header (which browsers send
+* automatically) first gets the messages it missed; {@code ?after=<id>} does the same for clients that cannot set headers.
+* Example event:
+* id: 42
+* data: {"id":42,"locationName":"...", ...}
+*/
+public class MessageStreamHandler implements HttpHandler {
+
+    final MessageBroadcaster broadcaster;
+
+    public MessageStreamHandler(MessageBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        String responseString = null;
+
+        if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+
+            Long lastEventId = null;
+            try {
+                lastEventId = parseLastEventId(exchange);
+            } catch(NumberFormatException e) {
+                responseString = "Invalid Last-Event-ID";
+                handleResponse(exchange, responseString, 400);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, 0); // Chunked, the stream does not end
+            exchange.getResponseBody().flush();
+
+            // The events are written by the broadcaster, so this thread is free for other requests
+            broadcaster.subscribe(exchange, lastEventId);
+        }
+        else {
+            responseString = "Not supported; Only GET is accepted";
+            handleResponse(exchange, responseString, 400);
+        }
+    }
+
+    /**
+    * Gets the id of the last message the client has, from the Last-Event-ID header or the after parameter.
+    * @return the id, or null if the client did not send one.
+    * @throws NumberFormatException if the id is not a valid message id.
+    */
+    private Long parseLastEventId(HttpExchange exchange) throws NumberFormatException {
+
+        String value = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if(value == null) {
+            String query = exchange.getRequestURI().getRawQuery();
+            if(query != null) {
+                for(String pair : query.split("&")) {
+                    if(pair.startsWith("after=")) {
+                        value = pair.substring("after=".length());
+                    }
+                }
+            }
+        }
+        if(value == null || value.isBlank()) {
+            return null;
+        }
+        long id = Long.parseLong(value.trim());
+        if(id < 0) {
+            throw new NumberFormatException("Negative id");
+        }
+        return id;
+    }
+
+    /**
+    * Constructs and sends a response to the request with given parameters.
+    * @param exchange The HTTP request
+    * @param response Message to inform user of the outcome
+    * @param code The status code
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    private void handleResponse(HttpExchange exchange, String response, int code) throws IOException {
+
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, responseBytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(responseBytes);
+        output.flush();
+        output.close();
+    }
+}
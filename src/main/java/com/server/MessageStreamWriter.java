@@ -0,0 +1,272 @@
+package com.server;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+* Writes an array of messages straight into the response body of an exchange, as JSON or CBOR (see MessageFormat).
+* The response headers are sent (with chunked transfer encoding) only when the first message is written,
+* so the caller can still send a different response (such as 204) if no messages were written.
+* The array is compressed on the fly if the client accepts gzip or deflate.
+* Messages can also be written one at a time as separate objects to a Writer, for the events of the message stream.
+*/
+public class MessageStreamWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpExchange exchange;
+    private final MessageFormat format;
+    private final boolean separateMessages;
+    private Writer output = null;
+    private CborWriter cbor = null; // Used instead of output for CBOR
+    private CapturingOutputStream capture = null;
+    private int maxCaptureBytes = -1;
+    private int messageCount = 0;
+    private boolean firstField = true;
+    private final char[] timestampBuffer = new char[TimestampConverter.TIMESTAMP_LENGTH + 2];
+
+    public MessageStreamWriter(HttpExchange exchange) {
+        this(exchange, MessageFormat.JSON);
+    }
+
+    /**
+    * Creates a writer that writes the messages to the response in the given format.
+    * @param exchange the exchange the response is sent to.
+    * @param format the format of the response.
+    */
+    public MessageStreamWriter(HttpExchange exchange, MessageFormat format) {
+        this.exchange = exchange;
+        this.format = format;
+        this.separateMessages = false;
+    }
+
+    /**
+    * Creates a writer that writes each message as an object of its own to the output, without an array around them.
+    * @param output where the messages are written.
+    */
+    public MessageStreamWriter(Writer output) {
+        this.exchange = null;
+        this.format = MessageFormat.JSON;
+        this.output = output;
+        this.separateMessages = true;
+    }
+
+    /**
+    * Starts a new message object. Sends the response headers and opens the array if this is the first message.
+    * @throws IOException if writing to the response fails
+    */
+    public void beginMessage() throws IOException {
+
+        if(separateMessages) {
+            // Nothing between the objects
+        }
+        else if(!isStarted()) {
+            exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+            String encoding = ResponseCompression.prepareStream(exchange);
+            exchange.sendResponseHeaders(200, 0); // 0 = chunked, the length is not known beforehand
+            OutputStream body = ResponseCompression.wrap(exchange.getResponseBody(), encoding);
+            if(maxCaptureBytes >= 0) { // The copy is taken before compression
+                capture = new CapturingOutputStream(body, maxCaptureBytes);
+                body = capture;
+            }
+            if(format == MessageFormat.CBOR) {
+                cbor = new CborWriter(body);
+                cbor.startArray();
+            }
+            else {
+                output = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), BUFFER_SIZE);
+                output.write('[');
+            }
+        }
+        else if(cbor == null) {
+            output.write(',');
+        }
+        messageCount++;
+        if(cbor != null) {
+            cbor.startMap();
+            return;
+        }
+        output.write('{');
+        firstField = true;
+    }
+
+    /**
+    * Writes a string field. Null values are left out, like JSONObject does.
+    */
+    public void field(String key, String value) throws IOException {
+        if(value == null) {
+            return;
+        }
+        if(cbor != null) {
+            cbor.writeString(key);
+            cbor.writeString(value);
+            return;
+        }
+        writeKey(key);
+        JSONObject.quote(value, output);
+    }
+
+    public void field(String key, long value) throws IOException {
+        if(cbor != null) {
+            cbor.writeString(key);
+            cbor.writeLong(value);
+            return;
+        }
+        writeKey(key);
+        output.write(Long.toString(value));
+    }
+
+    public void field(String key, double value) throws IOException {
+        if(cbor != null) {
+            cbor.writeString(key);
+            cbor.writeDouble(value);
+            return;
+        }
+        writeKey(key);
+        output.write(JSONObject.numberToString(value));
+    }
+
+    /**
+    * Writes a timestamp field as a string, without creating a String for the timestamp. In CBOR the timestamp is written as Epoch milliseconds.
+    * @param key the field name.
+    * @param dateAsEpoch the date as Epoch (Unix Time).
+    */
+    public void timestampField(String key, long dateAsEpoch) throws IOException {
+        if(cbor != null) {
+            field(key, dateAsEpoch);
+            return;
+        }
+        int length = TimestampConverter.convertToChars(dateAsEpoch, timestampBuffer, 1);
+        if(length < 0) { // Not a four digit year
+            field(key, TimestampConverter.convertToString(dateAsEpoch));
+            return;
+        }
+        writeKey(key);
+        timestampBuffer[0] = '"'; // Timestamps have nothing to escape
+        timestampBuffer[length + 1] = '"';
+        output.write(timestampBuffer, 0, length + 2);
+    }
+
+    public void endMessage() throws IOException {
+        if(cbor != null) {
+            cbor.end();
+            return;
+        }
+        output.write('}');
+    }
+
+    /**
+    * @return True if the response headers have been sent, meaning that no other response can be sent anymore.
+    */
+    public boolean isStarted() {
+        return output != null || cbor != null;
+    }
+
+    /**
+    * Keeps a copy of the written response, up to the given size. Must be called before the first message.
+    * @param maxBytes the largest response that is copied.
+    */
+    public void captureResponse(int maxBytes) {
+        maxCaptureBytes = maxBytes;
+    }
+
+    /**
+    * Gets the copy of the response. Only complete after close().
+    * @return the bytes of the response (empty if no messages were written), or null if capturing was not enabled or the response was too large.
+    */
+    public byte[] getCapturedResponse() {
+        if(maxCaptureBytes < 0) {
+            return null;
+        }
+        if(capture == null) {
+            return new byte[0];
+        }
+        return capture.getCaptured();
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+    * Closes the array and the response body. Does nothing if no messages were written.
+    * A writer of separate messages is only flushed.
+    * @throws IOException if writing to the response fails
+    */
+    @Override
+    public void close() throws IOException {
+        if(separateMessages) {
+            output.flush();
+        }
+        else if(cbor != null) {
+            cbor.end();
+            cbor.close();
+        }
+        else if(output != null) {
+            output.write(']');
+            output.close();
+        }
+    }
+
+    private void writeKey(String key) throws IOException {
+        if(!firstField) {
+            output.write(',');
+        }
+        firstField = false;
+        JSONObject.quote(key, output);
+        output.write(':');
+    }
+
+    /**
+    * Passes everything to the response and keeps a copy of it, until the copy would grow over its limit.
+    */
+    private static class CapturingOutputStream extends FilterOutputStream {
+
+        private final int maxBytes;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CapturingOutputStream(OutputStream out, int maxBytes) {
+            super(out);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if(copy != null) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if(copy != null) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        byte[] getCaptured() {
+            return copy != null ? copy.toByteArray() : null;
+        }
+
+        private void checkSize() {
+            if(copy.size() > maxBytes) {
+                copy = null; // Too large, stop copying
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+* Keeps the server's counters, histograms and gauges and writes them in the Prometheus text format.
+* Metrics are identified by a name and label pairs. Looking a metric up allocates, so code on hot paths
+* looks its metrics up once and keeps them in fields.
+* Example: {@code Metrics.getInstance().histogram("db_query_duration_seconds", "Time spent in database queries", "query", "select_messages")}
+*/
+public class Metrics {
+
+    private static Metrics metricsInstance = null;
+
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    /**
+    * Gets the metrics instance. If one does not exist, a new instance is created.
+    * @return the metrics instance.
+    */
+    public static synchronized Metrics getInstance() {
+        if(metricsInstance == null){
+            metricsInstance = new Metrics();
+        }
+        return metricsInstance;
+    }
+
+    /**
+    * Gets a counter, creating it if it does not exist yet.
+    * @param name the name of the metric, should end with _total.
+    * @param help the description of the metric.
+    * @param labels label names and values in pairs.
+    * @return the counter.
+    */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labelString(labels), key -> new LongAdder());
+    }
+
+    /**
+    * Gets a histogram of durations, creating it if it does not exist yet.
+    * @param name the name of the metric, should end with _seconds.
+    * @param help the description of the metric.
+    * @param labels label names and values in pairs.
+    * @return the histogram.
+    */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "histogram").series.computeIfAbsent(labelString(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+    * Adds a value that is read when the metrics are written, such as the size of a cache. Replaces an earlier value with the same name and labels.
+    * @param name the name of the metric.
+    * @param help the description of the metric.
+    * @param value reads the current value.
+    * @param labels label names and values in pairs.
+    */
+    public void gauge(String name, String help, Supplier<Number> value, String... labels) {
+        family(name, help, "gauge").series.put(labelString(labels), value);
+    }
+
+    /**
+    * Adds a counter that is kept elsewhere and read when the metrics are written, such as the hits of a cache.
+    * @param name the name of the metric, should end with _total.
+    * @param help the description of the metric.
+    * @param value reads the current value, which must never decrease.
+    * @param labels label names and values in pairs.
+    */
+    public void counterFunction(String name, String help, Supplier<Number> value, String... labels) {
+        family(name, help, "counter").series.put(labelString(labels), value);
+    }
+
+    /**
+    * Writes all the metrics in the Prometheus text exposition format (version 0.0.4), sorted by name and labels.
+    * @param output where the metrics are written.
+    * @throws IOException if writing fails.
+    */
+    @SuppressWarnings("unchecked")
+    public void write(Writer output) throws IOException {
+
+        for(Family family : new TreeMap<>(families).values()) {
+            output.write("# HELP " + family.name + " " + family.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            output.write("# TYPE " + family.name + " " + family.type + "\n");
+
+            for(Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+
+                if(metric instanceof LatencyHistogram) {
+                    writeHistogram(output, family.name, labels, (LatencyHistogram) metric);
+                }
+                else {
+                    Number value = metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((Supplier<Number>) metric).get();
+                    output.write(family.name + braces(labels) + " " + formatNumber(value) + "\n");
+                }
+            }
+        }
+    }
+
+    private void writeHistogram(Writer output, String name, String labels, LatencyHistogram histogram) throws IOException {
+
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        int buckets = LatencyHistogram.getBucketCount();
+        for(int bucket = 0; bucket < buckets; bucket++) {
+            cumulative += histogram.getCount(bucket);
+            String bound = bucket < buckets - 1 ? formatNumber(LatencyHistogram.getUpperBoundSeconds(bucket)) : "+Inf";
+            output.write(name + "_bucket{" + separator + "le=\"" + bound + "\"} " + cumulative + "\n");
+        }
+        output.write(name + "_sum" + braces(labels) + " " + formatNumber(histogram.getSumSeconds()) + "\n");
+        output.write(name + "_count" + braces(labels) + " " + cumulative + "\n");
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if(!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    // Renders the label pairs as they are written inside the braces: name="value",name2="value2"
+    private static String labelString(String... labels) {
+        if(labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name and value pairs");
+        }
+        StringBuilder rendered = new StringBuilder();
+        for(int i = 0; i < labels.length; i += 2) {
+            if(i > 0) {
+                rendered.append(',');
+            }
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            rendered.append(labels[i]).append("=\"").append(value).append('"');
+        }
+        return rendered.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String formatNumber(Number value) {
+        if(value instanceof Double || value instanceof Float) {
+            double number = value.doubleValue();
+            if(Double.isNaN(number)) {
+                return "NaN";
+            }
+            if(Double.isInfinite(number)) {
+                return number > 0 ? "+Inf" : "-Inf";
+            }
+            return Double.toString(number);
+        }
+        return Long.toString(value.longValue());
+    }
+
+    private static class Family {
+
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+* Counts the requests of a context by method and status code and records how long they take,
+* from the first filter to the end of the handler (so including authentication and writing the response).
+* The series are looked up once per context, method and status code and then kept, so a request does not build label strings.
+*/
+public class MetricsFilter extends Filter {
+
+    private static final List<String> METHODS = List.of("GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH");
+    private static final int OTHER = METHODS.size(); // Methods come from the client, unknown ones are grouped to keep the number of series small
+    private static final int STATUSES = 600; // 0 for no response, otherwise the status code
+
+    private final Metrics metrics = Metrics.getInstance();
+    private final ConcurrentHashMap<HttpContext, ContextMetrics> contexts = new ConcurrentHashMap<>();
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            long duration = System.nanoTime() - start;
+            ContextMetrics context = contexts.computeIfAbsent(exchange.getHttpContext(), ContextMetrics::new);
+            int method = methodIndex(exchange.getRequestMethod());
+            int code = exchange.getResponseCode();
+            int status = code > 0 && code < STATUSES ? code : 0; // No response was sent, the handler failed
+
+            context.requests(method, status).increment();
+            context.duration(method).record(duration);
+        }
+    }
+
+    private static int methodIndex(String method) {
+        for(int i = 0; i < METHODS.size(); i++) {
+            if(METHODS.get(i).equalsIgnoreCase(method)) {
+                return i;
+            }
+        }
+        return OTHER;
+    }
+
+    @Override
+    public String description() {
+        return "Counts and times the requests for the metrics";
+    }
+
+    /**
+    * The series of one context, created when first used so that only the methods and status codes seen are exported.
+    */
+    private class ContextMetrics {
+
+        final String context;
+        final AtomicReferenceArray<LongAdder> requests = new AtomicReferenceArray<>((OTHER + 1) * STATUSES);
+        final AtomicReferenceArray<LatencyHistogram> durations = new AtomicReferenceArray<>(OTHER + 1);
+
+        ContextMetrics(HttpContext context) {
+            this.context = context.getPath();
+        }
+
+        LongAdder requests(int method, int status) {
+            int index = method * STATUSES + status;
+            LongAdder counter = requests.get(index);
+            if(counter == null) { // Metrics returns the same series for the same labels, so a race is harmless
+                counter = metrics.counter("http_requests_total", "HTTP requests by context, method and status code",
+                    "context", context, "method", methodName(method), "status", status > 0 ? Integer.toString(status) : "none");
+                requests.set(index, counter);
+            }
+            return counter;
+        }
+
+        LatencyHistogram duration(int method) {
+            LatencyHistogram histogram = durations.get(method);
+            if(histogram == null) {
+                histogram = metrics.histogram("http_request_duration_seconds", "Time from receiving a request to finishing its response",
+                    "context", context, "method", methodName(method));
+                durations.set(method, histogram);
+            }
+            return histogram;
+        }
+
+        private String methodName(int method) {
+            return method == OTHER ? "OTHER" : METHODS.get(method);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+* Serves the metrics in the Prometheus text format for scraping.
+*/
+public class MetricsHandler implements HttpHandler {
+
+    final Metrics metrics = Metrics.getInstance();
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            StringWriter output = new StringWriter(16384);
+            metrics.write(output);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            ResponseCompression.send(exchange, 200, output.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        else {
+            ResponseCompression.send(exchange, 400, "Not supported; Only GET is accepted".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
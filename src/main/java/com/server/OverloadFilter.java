@@ -0,0 +1,95 @@
+package com.server;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+* Answers requests with 503 Service Unavailable when the bounded request executor is full.
+* The HttpServer gives the executor an opaque task per request, so a rejected task is run on a small separate
+* pool with a flag set, and this filter (which runs before authentication and the handler) answers it with 503.
+* The task still does the TLS handshake and reads the request headers, so a slow client must not hold a responder thread:
+* a task that takes longer than overload.timeoutMillis is interrupted, which closes its connection.
+* The responders are platform threads, since the server reads TLS connections while holding locks, which would pin virtual threads.
+*/
+public class OverloadFilter extends Filter {
+
+    private static final ThreadLocal<Boolean> rejected = new ThreadLocal<>();
+
+    private static final long timeout = Long.getLong("overload.timeoutMillis", 2000);
+
+    // Runs the rejected requests. If even this is full, the task is aborted and the server closes the connection.
+    private static final int responderThreads = Integer.getInteger("overload.threads", 8);
+    private static final ExecutorService rejectionExecutor = new ThreadPoolExecutor(responderThreads, responderThreads, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(Integer.getInteger("overload.queueSize", 64)), runnable -> {
+            Thread thread = new Thread(runnable, "overload-responder");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "overload-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ((ThreadPoolExecutor) rejectionExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+    * @return the rejection policy for the bounded request executor, which answers the rejected requests with 503.
+    */
+    public static RejectedExecutionHandler rejectionHandler() {
+        return (task, executor) -> rejectionExecutor.execute(() -> respond(task));
+    }
+
+    private static void respond(Runnable task) {
+        Thread current = Thread.currentThread();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            synchronized(running) { // Not after the task has finished, the thread is reused
+                if(running.get()) {
+                    current.interrupt();
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        rejected.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            deadline.cancel(false);
+            synchronized(running) {
+                running.set(false);
+            }
+            Thread.interrupted();
+            rejected.remove();
+        }
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if(Boolean.TRUE.equals(rejected.get())) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+        return "Answers requests rejected by the bounded executor with 503";
+    }
+}
@@ -0,0 +1,138 @@
+package com.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.digest.Crypt;
+
+/**
+* Hashes and verifies passwords with SHA-512 crypt on a pool of its own. A hash takes milliseconds of CPU on purpose,
+* so a burst of registrations or logins running on the request threads could take every core. The pool has
+* hash.threads threads (default half of the processors) and a queue of hash.queueSize passwords;
+* when the queue is full the password is not hashed at all and the caller gets a BusyException, to be answered with 503.
+*/
+public class PasswordHasher {
+
+    private static PasswordHasher hasherInstance = null;
+    private static final char[] SALT_CHARACTERS = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private final ThreadPoolExecutor executor;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final LatencyHistogram hashTime = cryptTimer("hash");
+    private final LatencyHistogram verifyTime = cryptTimer("verify");
+    private final LongAdder rejected = Metrics.getInstance().counter("password_hash_rejected_total",
+        "Passwords not hashed because the hashing queue was full");
+
+    private PasswordHasher() {
+        int threads = Integer.getInteger("hash.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int queueSize = Integer.getInteger("hash.queueSize", 64);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "password-hasher");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        Metrics.getInstance().gauge("password_hash_queue_length", "Passwords waiting to be hashed", executor.getQueue()::size);
+    }
+
+    /**
+    * Gets the password hasher instance. If one does not exist, a new instance is created.
+    * @return the password hasher instance.
+    */
+    public static synchronized PasswordHasher getInstance() {
+        if(hasherInstance == null){
+            hasherInstance = new PasswordHasher();
+        }
+        return hasherInstance;
+    }
+
+    /**
+    * Hashes a password with a new random salt.
+    * @param password in plaintext.
+    * @return the hashed password, which contains the salt.
+    * @throws BusyException if too many passwords are already waiting to be hashed.
+    */
+    public String hash(String password) throws BusyException {
+
+        // Crypt only accepts these characters in the salt, and at most 16 of them
+        StringBuilder salt = new StringBuilder("$6$");
+        for(int i = 0; i < 16; i++) {
+            salt.append(SALT_CHARACTERS[secureRandom.nextInt(SALT_CHARACTERS.length)]);
+        }
+
+        return run(() -> {
+            long start = System.nanoTime();
+            String hashedPassword = Crypt.crypt(password, salt.toString());
+            hashTime.recordSince(start);
+            return hashedPassword;
+        });
+    }
+
+    /**
+    * Checks a password against a stored hash.
+    * @param password in plaintext.
+    * @param hashedPassword the stored hash, from hash().
+    * @return True if the password is the one that was hashed.
+    * @throws BusyException if too many passwords are already waiting to be hashed.
+    */
+    public boolean verify(String password, String hashedPassword) throws BusyException {
+        return run(() -> {
+            long start = System.nanoTime();
+            boolean matches = hashedPassword.equals(Crypt.crypt(password, hashedPassword));
+            verifyTime.recordSince(start);
+            return matches;
+        });
+    }
+
+    /**
+    * Runs the task on the pool and waits for it.
+    */
+    private <T> T run(Callable<T> task) throws BusyException {
+
+        Future<T> result;
+        try {
+            result = executor.submit(task);
+        } catch(RejectedExecutionException e) {
+            rejected.increment();
+            throw new BusyException();
+        }
+
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return result.get();
+                } catch(InterruptedException e) {
+                    interrupted = true; // The hash is already being computed, wait for it anyway
+                }
+            }
+        } catch(ExecutionException e) {
+            throw new IllegalStateException("Hashing the password failed", e.getCause());
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static LatencyHistogram cryptTimer(String operation) {
+        return Metrics.getInstance().histogram("password_hash_duration_seconds", "Time spent hashing passwords", "operation", operation);
+    }
+
+    /**
+    * Thrown when a password is not hashed because the hashing pool is overloaded.
+    */
+    public static class BusyException extends Exception {
+
+        public BusyException() {
+            super("Too many passwords are being hashed");
+        }
+    }
+}
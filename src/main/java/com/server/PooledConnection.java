@@ -0,0 +1,75 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+* A connection borrowed from a ConnectionPool. Only one thread uses it at a time, so it keeps its prepared statements
+* and hands the same statement out again when the same SQL is prepared. Closing it returns it to the pool.
+*/
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /**
+    * Gets the cached statement for the SQL or prepares a new one. The statement must not be closed by the caller,
+    * but its result sets must be.
+    * @param sql the SQL of the statement.
+    * @return the prepared statement.
+    * @throws SQLException if the statement could not be prepared.
+    */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if(statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+    * Returns the connection to the pool. An unfinished transaction is rolled back first.
+    */
+    @Override
+    public void close() {
+        try {
+            if(!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            pool.release(this);
+        } catch(SQLException e) { // The connection is broken, a new one is returned to the pool instead
+            e.printStackTrace();
+            pool.replace(this);
+        }
+    }
+
+    /**
+    * Closes the statements and the underlying connection.
+    */
+    void closeConnection() {
+        try {
+            for(PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            connection.close();
+        } catch(SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.stream.Collectors;
 
@@ -128,6 +127,10 @@ public class RegistrationHandler implements HttpHandler {
         } catch(JSONException e) {
             responseString = "JSON is missing a key";
             handleResponse(exchange, responseString, 400);
+        } catch(PasswordHasher.BusyException e) {
+            responseString = "Too many registrations, try again later";
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            handleResponse(exchange, responseString, 503);
         }
     }
 
@@ -139,10 +142,6 @@ public class RegistrationHandler implements HttpHandler {
     * @throws IOException if the response headers have already been sent or an I/O error occurs
     */
     private void handleResponse(HttpExchange exchange, String responseMessage, int responseCode) throws IOException {
-        exchange.sendResponseHeaders(responseCode, responseMessage.getBytes("UTF-8").length);
-        OutputStream output = exchange.getResponseBody();
-        output.write(responseMessage.getBytes());
-        output.flush();
-        output.close();
+        ResponseCompression.send(exchange, responseCode, responseMessage.getBytes(StandardCharsets.UTF_8));
     }
 }
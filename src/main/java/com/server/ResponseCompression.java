@@ -0,0 +1,199 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+* Compresses responses with gzip or deflate when the client allows it in the Accept-Encoding header.
+* Responses with a known length are only compressed if they are at least compression.minBytes long,
+* streamed responses are always compressed since their length is not known beforehand.
+*/
+public class ResponseCompression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int minBytes = Integer.getInteger("compression.minBytes", 1024);
+    private static final int level = Integer.getInteger("compression.level", Deflater.DEFAULT_COMPRESSION);
+
+    private ResponseCompression() {}
+
+    /**
+    * Chooses the encoding of the response from the request's Accept-Encoding header. gzip is preferred over deflate when both are allowed.
+    * "*" stands for the codings that are not listed by name, so "gzip;q=0, *" does not allow gzip.
+    * @param exchange The HTTP request
+    * @return "gzip", "deflate", or null if the response should not be compressed.
+    */
+    public static String negotiate(HttpExchange exchange) {
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if(acceptEncoding == null) {
+            return null;
+        }
+
+        Boolean gzip = null; // null if not listed
+        Boolean deflate = null;
+        boolean any = false;
+        for(String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            boolean allowed = true;
+            for(int i = 1; i < parts.length; i++) { // A quality value of 0 means "not acceptable"
+                String parameter = parts[i].trim();
+                if(parameter.startsWith("q=")) {
+                    try {
+                        allowed = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch(NumberFormatException e) {
+                        allowed = false;
+                    }
+                }
+            }
+            if(name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = (gzip != null && gzip) || allowed;
+            }
+            else if(name.equals(DEFLATE)) {
+                deflate = (deflate != null && deflate) || allowed;
+            }
+            else if(name.equals("*")) {
+                any = any || allowed;
+            }
+        }
+        if(gzip != null ? gzip : any) {
+            return GZIP;
+        }
+        return (deflate != null ? deflate : any) ? DEFLATE : null;
+    }
+
+    /**
+    * Prepares a streamed response for compression. Must be called before the response headers are sent.
+    * @param exchange The HTTP request
+    * @return the encoding the body must be written with (see wrap()), or null if it is not compressed.
+    */
+    public static String prepareStream(HttpExchange exchange) {
+        vary(exchange.getResponseHeaders(), "Accept-Encoding");
+        String encoding = negotiate(exchange);
+        if(encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        return encoding;
+    }
+
+    /**
+    * Wraps the response body so that everything written to it is compressed with the encoding.
+    * @param body the response body.
+    * @param encoding the encoding from prepareStream(), or null for no compression.
+    * @return the stream to write the response to. Closing it finishes the compression and closes the body.
+    * @throws IOException if writing the compression header fails.
+    */
+    public static OutputStream wrap(OutputStream body, String encoding) throws IOException {
+        if(GZIP.equals(encoding)) {
+            return new GZIPOutputStream(body, 8192) {
+                { def.setLevel(level); }
+            };
+        }
+        if(DEFLATE.equals(encoding)) {
+            return new DeflaterOutputStream(body, new Deflater(level), 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end(); // A Deflater given to the stream is not ended by it, and its native memory would wait for the GC
+                    }
+                }
+            };
+        }
+        return body;
+    }
+
+    /**
+    * Sends a complete response, compressed if the client allows it and the body is large enough.
+    * @param exchange The HTTP request
+    * @param code The status code
+    * @param body The response body
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    public static void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        send(exchange, code, body, null);
+    }
+
+    /**
+    * Sends a complete response like send(exchange, code, body), using an already gzip compressed copy of the body if there is one.
+    * @param exchange The HTTP request
+    * @param code The status code
+    * @param body The response body
+    * @param gzipBody The body compressed with gzip, or null to compress it if needed.
+    * @throws IOException if the response headers have already been sent or an I/O error occurs
+    */
+    public static void send(HttpExchange exchange, int code, byte[] body, byte[] gzipBody) throws IOException {
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        vary(responseHeaders, "Accept-Encoding");
+        byte[] responseBytes = body;
+
+        String encoding = body.length >= minBytes ? negotiate(exchange) : null;
+        if(GZIP.equals(encoding)) {
+            responseBytes = gzipBody != null ? gzipBody : compress(body, GZIP);
+            responseHeaders.set("Content-Encoding", GZIP);
+        }
+        else if(DEFLATE.equals(encoding)) {
+            responseBytes = compress(body, DEFLATE);
+            responseHeaders.set("Content-Encoding", DEFLATE);
+        }
+
+        exchange.sendResponseHeaders(code, responseBytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(responseBytes);
+        output.flush();
+        output.close();
+    }
+
+    /**
+    * Adds a request header to the Vary header of the response, keeping the headers that are already listed.
+    * @param responseHeaders the headers of the response.
+    * @param requestHeader the request header the response depends on.
+    */
+    public static void vary(Headers responseHeaders, String requestHeader) {
+        String vary = responseHeaders.getFirst("Vary");
+        if(vary == null) {
+            responseHeaders.set("Vary", requestHeader);
+            return;
+        }
+        for(String listed : vary.split(",")) {
+            if(listed.trim().equalsIgnoreCase(requestHeader)) {
+                return;
+            }
+        }
+        responseHeaders.set("Vary", vary + ", " + requestHeader);
+    }
+
+    /**
+    * Compresses the bytes with the encoding.
+    * @param body the bytes to compress.
+    * @param encoding "gzip" or "deflate".
+    * @return the compressed bytes.
+    */
+    public static byte[] compress(byte[] body, String encoding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (OutputStream output = wrap(compressed, encoding)) {
+            output.write(body);
+        } catch(IOException e) { // Not possible with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+    * @return the smallest response with a known length that is compressed, in bytes.
+    */
+    public static int getMinBytes() {
+        return minBytes;
+    }
+}
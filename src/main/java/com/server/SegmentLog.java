@@ -0,0 +1,464 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* An append-only log of records with consecutive sequence numbers from 1, kept in segment files in one directory (see LogSegment).
+* Records are appended to the active segment, which is sealed and replaced by a new one when the next batch does not fit.
+* Appends are group committed: the records are written to the mapped file while holding a lock, and the first appender that
+* finds its records unsynced forces everything written so far to the disk while the others wait, so concurrent appends share a sync.
+* Records become visible to readers once they are durable. After a failed sync nothing more is appended, since the state of
+* the file is no longer known; the log must be opened again.
+*
+* Opening the log recovers it: the segments are read in order, the last one is cut at its last complete batch, and a new
+* active segment is started, so that a file that was being written during a crash is never written again.
+* Compaction merges adjacent sealed segments that fit in one, such as the partly filled ones every restart leaves, so that
+* the log keeps few files and mappings: the merged file is written under a temporary name, synced and renamed over the first
+* segment of the run, and the rest of the run is deleted. Segments that a crash left behind after the rename are deleted on recovery.
+*/
+public class SegmentLog {
+
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final boolean fsync;
+
+    private final Object appendLock = new Object();
+    private volatile List<LogSegment> segments = List.of(); // Replaced as a whole, so readers need no lock; the active segment is last
+    private LogSegment active = null;
+    private long nextSequence = 1;
+    private volatile IOException failure = null;
+
+    private final Object syncLock = new Object();
+    private boolean syncing = false;
+    private volatile long durableSequence = 0; // Also the last record visible to readers
+
+    private final Object compactionLock = new Object();
+
+    private final LatencyHistogram syncTime;
+    private final LongAdder compactions;
+
+    /**
+    * Creates the log, which is opened with open().
+    * @param directory the directory of the segment files, created if it does not exist.
+    * @param segmentBytes the size of a segment, which is also the largest batch that can be appended.
+    * @param fsync false to only write the records to the page cache, so that a crash of the machine (but not of the server) may lose them.
+    * @param name the name of the log in the metrics.
+    */
+    public SegmentLog(Path directory, int segmentBytes, boolean fsync, String name) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+
+        Metrics metrics = Metrics.getInstance();
+        syncTime = metrics.histogram("log_sync_duration_seconds", "Time spent forcing appended records to the disk", "log", name);
+        compactions = metrics.counter("log_compactions_total", "Runs of segments merged by compaction", "log", name);
+        metrics.gauge("log_segments", "Segment files of the log", this::getSegmentCount, "log", name);
+        metrics.gauge("log_bytes", "Bytes of records in the log", this::getSizeBytes, "log", name);
+    }
+
+    /**
+    * Opens the log and recovers it after a crash, see the description of the class.
+    * @throws IOException if the segments could not be read, or a segment other than the last is corrupt or missing.
+    */
+    public void open() throws IOException {
+
+        synchronized(appendLock) {
+            if(active != null) {
+                throw new IllegalStateException("The log is already open");
+            }
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*" + COMPACTING_SUFFIX)) {
+                for(Path leftover : leftovers) { // Never renamed, so the segments it was merged from are all still there
+                    Files.delete(leftover);
+                }
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files); // The names are zero-padded sequence numbers
+
+            List<LogSegment> recovered = new ArrayList<>();
+            long next = 1;
+            for(int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                long baseSequence = parseBaseSequence(file);
+                if(baseSequence < next) { // Merged into the segment before it by a compaction that was interrupted
+                    Files.delete(file);
+                    continue;
+                }
+                if(baseSequence != next) {
+                    throw new IOException("Segment " + file + " does not follow sequence number " + (next - 1));
+                }
+                LogSegment segment = LogSegment.recover(file, baseSequence, i == files.size() - 1);
+                if(segment.getCount() == 0) {
+                    segment.delete();
+                    continue;
+                }
+                recovered.add(segment);
+                next = segment.getLastSequence() + 1;
+            }
+
+            nextSequence = next;
+            durableSequence = next - 1;
+            failure = null;
+            active = LogSegment.create(directory, next, segmentBytes);
+            recovered.add(active);
+            segments = Collections.unmodifiableList(recovered);
+            syncDirectory();
+        }
+    }
+
+    private static long parseBaseSequence(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        } catch(NumberFormatException e) {
+            throw new IOException("Unexpected file " + file + " in the log");
+        }
+    }
+
+    /**
+    * Appends the payloads as one batch, which is recovered after a crash either as a whole or not at all.
+    * Returns once the records are durable and visible to readers.
+    * @param payloads the payloads of the records.
+    * @return the sequence number of the first record.
+    * @throws IOException if the log is closed or failed, the batch does not fit in a segment, or the records could not be synced.
+    */
+    public long append(List<byte[]> payloads) throws IOException {
+
+        long last;
+        synchronized(appendLock) {
+            if(active == null) {
+                throw new IOException("The log is closed");
+            }
+            if(failure != null) {
+                throw new IOException("The log cannot be written after a failed sync", failure);
+            }
+            long bytes = 0;
+            for(byte[] payload : payloads) {
+                bytes += LogSegment.HEADER_BYTES + payload.length;
+            }
+            if(bytes > active.remaining()) {
+                if(bytes > segmentBytes) {
+                    throw new IOException("A batch of " + bytes + " bytes does not fit in a segment of " + segmentBytes + " bytes");
+                }
+                roll();
+            }
+            for(int i = 0; i < payloads.size(); i++) {
+                active.append(payloads.get(i), i < payloads.size() - 1);
+            }
+            nextSequence += payloads.size();
+            last = nextSequence - 1;
+        }
+        awaitDurable(last);
+        return last - payloads.size() + 1;
+    }
+
+    /**
+    * Seals the active segment and starts a new one. Called while holding the append lock.
+    */
+    private void roll() throws IOException {
+        try {
+            active.seal();
+        } catch(IOException | UncheckedIOException e) {
+            failure = e instanceof UncheckedIOException unchecked ? unchecked.getCause() : (IOException) e;
+            throw failure;
+        }
+        LogSegment next = LogSegment.create(directory, nextSequence, segmentBytes);
+        List<LogSegment> replaced = new ArrayList<>(segments);
+        replaced.add(next);
+        segments = Collections.unmodifiableList(replaced);
+        active = next;
+        syncDirectory();
+    }
+
+    /**
+    * Waits until the record is durable. If no sync is running, this thread syncs everything appended so far;
+    * otherwise it waits for the running sync, after which its record is either durable or it syncs next.
+    */
+    private void awaitDurable(long sequence) throws IOException {
+
+        boolean interrupted = false;
+        try {
+            while(true) {
+                synchronized(syncLock) {
+                    while(syncing && durableSequence < sequence) {
+                        try {
+                            syncLock.wait();
+                        } catch(InterruptedException e) { // The record is already written, so it is waited for in any case
+                            interrupted = true;
+                        }
+                    }
+                    if(durableSequence >= sequence) {
+                        return;
+                    }
+                    syncing = true;
+                }
+
+                long target = 0;
+                boolean synced = false;
+                try {
+                    LogSegment segment;
+                    long[] range;
+                    synchronized(appendLock) {
+                        if(failure != null) {
+                            throw new IOException("The records could not be synced", failure);
+                        }
+                        target = nextSequence - 1;
+                        segment = active;
+                        range = segment != null ? segment.unsyncedRange() : null; // Closed, sealing synced the records
+                    }
+                    long start = System.nanoTime();
+                    if(fsync && segment != null) {
+                        segment.force(range[0], range[1]);
+                    }
+                    syncTime.recordSince(start);
+                    synced = true;
+                } catch(UncheckedIOException e) { // Thrown by MappedByteBuffer.force()
+                    failure = e.getCause();
+                    throw failure;
+                } finally {
+                    synchronized(syncLock) {
+                        syncing = false;
+                        if(synced) {
+                            durableSequence = Math.max(durableSequence, target);
+                        }
+                        syncLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+    * Calls the visitor with the visible records from the sequence number on, oldest first, until it returns false.
+    * Records appended while scanning may or may not be visited.
+    * @param fromSequence the sequence number of the first record visited.
+    * @param visitor called with every record.
+    * @throws IOException if the visitor throws it.
+    */
+    public void scan(long fromSequence, RecordVisitor visitor) throws IOException {
+
+        long last = durableSequence;
+        List<LogSegment> current = segments;
+        for(int i = findSegment(current, fromSequence); i < current.size(); i++) {
+            LogSegment segment = current.get(i);
+            long end = Math.min(last, segment.getLastSequence());
+            for(long sequence = Math.max(fromSequence, segment.getBaseSequence()); sequence <= end; sequence++) {
+                if(!visitor.visit(sequence, segment.read(sequence))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+    * Reads the payload of a visible record.
+    * @param sequence the sequence number of the record.
+    * @return a read-only view of the payload in the mapped file, or null if there is no such visible record.
+    */
+    public ByteBuffer read(long sequence) {
+        if(sequence < 1 || sequence > durableSequence) {
+            return null;
+        }
+        List<LogSegment> current = segments;
+        return current.get(findSegment(current, sequence)).read(sequence);
+    }
+
+    // The index of the segment holding the sequence number, or of the first one if the number is before it
+    private static int findSegment(List<LogSegment> segments, long sequence) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(segments.get(middle).getBaseSequence() <= sequence) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+    * @return the sequence number of the newest visible record, or 0 if the log is empty.
+    */
+    public long getLastSequence() {
+        return durableSequence;
+    }
+
+    /**
+    * Merges the first run of adjacent sealed segments that fit in one segment together.
+    * Readers and appenders are not blocked while the merged file is written.
+    * @return the number of segments merged into one, 0 if there was nothing to merge.
+    * @throws IOException if the merged segment could not be written; the log is unchanged then.
+    */
+    public int compact() throws IOException {
+
+        synchronized(compactionLock) {
+            List<LogSegment> current = segments;
+            for(int first = 0; first < current.size() - 1 && active != null; first++) { // The last one is active
+                long runBytes = current.get(first).getSize();
+                int end = first + 1;
+                while(end < current.size() - 1 && runBytes + current.get(end).getSize() <= segmentBytes) {
+                    runBytes += current.get(end).getSize();
+                    end++;
+                }
+                if(end - first >= 2) {
+                    merge(current.subList(first, end));
+                    return end - first;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private void merge(List<LogSegment> run) throws IOException {
+
+        LogSegment first = run.get(0);
+        Path temporary = directory.resolve(first.getPath().getFileName() + COMPACTING_SUFFIX);
+        int count = 0;
+        for(LogSegment segment : run) {
+            count += segment.getCount();
+        }
+        int[] offsets = new int[count];
+        count = 0;
+        int size = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for(LogSegment segment : run) {
+                ByteBuffer records = segment.records(); // Records are located by their offset and sequence number only, so they are copied as they are
+                while(records.hasRemaining()) {
+                    channel.write(records);
+                }
+                int[] segmentOffsets = segment.getOffsets();
+                for(int i = 0; i < segment.getCount(); i++) {
+                    offsets[count++] = size + segmentOffsets[i];
+                }
+                size += segment.getSize();
+            }
+            channel.force(true);
+        } catch(IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        // The rename replaces the first segment of the run at once; until the rest are deleted, recovery skips them
+        Files.move(temporary, first.getPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        LogSegment merged = LogSegment.openCompacted(first.getPath(), first.getBaseSequence(), offsets, count, size);
+
+        synchronized(appendLock) {
+            List<LogSegment> replaced = new ArrayList<>(segments.size());
+            for(LogSegment segment : segments) {
+                if(segment == first) {
+                    replaced.add(merged);
+                }
+                else if(!run.contains(segment)) {
+                    replaced.add(segment);
+                }
+            }
+            segments = Collections.unmodifiableList(replaced);
+        }
+        for(int i = 1; i < run.size(); i++) { // Readers that still use the old segments keep their mappings
+            run.get(i).delete();
+        }
+        syncDirectory();
+        compactions.increment();
+    }
+
+    /**
+    * Seals the active segment, so that every appended record is durable. The log can be opened again afterwards.
+    * @throws IOException if the active segment could not be synced.
+    */
+    public void close() throws IOException {
+
+        synchronized(compactionLock) {
+            synchronized(appendLock) {
+                if(active == null) {
+                    return;
+                }
+                LogSegment closing = active;
+                active = null;
+                if(closing.getCount() == 0) { // Created when the log was opened or rolled, and never written
+                    List<LogSegment> replaced = new ArrayList<>(segments);
+                    replaced.remove(closing);
+                    segments = Collections.unmodifiableList(replaced);
+                    closing.delete();
+                    return;
+                }
+                try {
+                    closing.seal();
+                } catch(UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                synchronized(syncLock) { // Sealing synced the records that appenders were waiting for
+                    durableSequence = nextSequence - 1;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+    * @return the bytes of records in all the segments.
+    */
+    public long getSizeBytes() {
+        long bytes = 0;
+        for(LogSegment segment : segments) {
+            bytes += segment.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+    * @return the number of segment files.
+    */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+    * Syncs the directory so that created, renamed and deleted segment files survive a crash.
+    */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException e) {
+            // Not supported on every platform, where the rename is still atomic but may be lost in a crash
+        }
+    }
+
+    /**
+    * Receives the records of a scan.
+    */
+    public interface RecordVisitor {
+
+        /**
+        * @param sequence the sequence number of the record.
+        * @param payload a read-only view of the payload, valid for as long as it is referenced.
+        * @return true to continue to the next record, false to stop.
+        * @throws IOException if handling the record fails, which ends the scan.
+        */
+        boolean visit(long sequence, ByteBuffer payload) throws IOException;
+    }
+}
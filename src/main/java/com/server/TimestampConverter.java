@@ -4,9 +4,13 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 /**
 * Provides different conversion methods for dates.
+* Timestamps are written and read as "yyyy-MM-dd'T'HH:mm:ss.SSSZ" in UTC. Dates with four digit years are converted
+* by hand without creating any date objects, other dates (and anything the fast path does not accept) go through the formatter,
+* so the results and errors are the same as with the formatter.
 */
 public class TimestampConverter {
 
@@ -14,6 +18,18 @@ public class TimestampConverter {
 
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
 
+    /**
+    * The length of a timestamp with a four digit year. Example: "2020-12-21T07:57:47.123Z"
+    */
+    public static final int TIMESTAMP_LENGTH = 24;
+
+    // The range of Epoch milliseconds with four digit years: 1000-01-01T00:00:00.000Z (inclusive) to 10000-01-01T00:00:00.000Z (exclusive)
+    private static final long FAST_PATH_MIN = -30610224000000L;
+    private static final long FAST_PATH_MAX = 253402300800000L;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
     /**
     * Converts the given date to ZonedDateTime from Unix Time.
     * @param dateAsEpoch the posting date as Epoch (Unix Time).
@@ -43,6 +59,34 @@ public class TimestampConverter {
         return date.toInstant().toEpochMilli();
     }
 
+    /**
+    * Converts the given date to long from a String, without creating a ZonedDateTime when the date is in the usual form.
+    * @param dateAsString the date as a String. It should follow this format: yyyy-MM-dd'T'HH:mm:ss.SSSX
+    * @return the date as Epoch long. Example: 1708506099097
+    * @throws DateTimeParseException if the date cannot be parsed.
+    */
+    public static long convertToLong(String dateAsString) throws DateTimeParseException {
+        long epoch = parseFast(dateAsString);
+        if(epoch != Long.MIN_VALUE) {
+            return epoch;
+        }
+        return convertToLong(convertToZonedDateTime(dateAsString));
+    }
+
+    /**
+    * Converts the given date to long like convertToLong(String), without creating a String when the date is in the usual form.
+    * @param date the date, for example in a buffer that is reused.
+    * @return the date as Epoch long.
+    * @throws DateTimeParseException if the date cannot be parsed.
+    */
+    public static long convertToLong(CharSequence date) throws DateTimeParseException {
+        long epoch = parseFast(date);
+        if(epoch != Long.MIN_VALUE) {
+            return epoch;
+        }
+        return convertToLong(convertToZonedDateTime(date.toString()));
+    }
+
     /**
     * Converts the given date to String from ZonedDateTime.
     * @param date the ZonedDateTime.
@@ -58,7 +102,124 @@ public class TimestampConverter {
     * @return the date as String. Example: "2020-12-21T07:57:47.123Z"
     */
     public static String convertToString(long dateAsEpoch) {
+        if(dateAsEpoch >= FAST_PATH_MIN && dateAsEpoch < FAST_PATH_MAX) {
+            char[] buffer = new char[TIMESTAMP_LENGTH];
+            writeFast(dateAsEpoch, buffer, 0);
+            return new String(buffer);
+        }
         ZonedDateTime date = convertToZonedDateTime(dateAsEpoch);
         return date.format(formatter);
     }
+
+    /**
+    * Writes the date into a buffer, in the same form as convertToString(long).
+    * @param dateAsEpoch the date as Epoch (Unix Time).
+    * @param buffer the buffer, which must have room for TIMESTAMP_LENGTH characters after the offset.
+    * @param offset the position of the first character.
+    * @return the number of characters written, or -1 if the year does not have four digits and the date must be converted with convertToString(long).
+    */
+    public static int convertToChars(long dateAsEpoch, char[] buffer, int offset) {
+        if(dateAsEpoch < FAST_PATH_MIN || dateAsEpoch >= FAST_PATH_MAX) {
+            return -1;
+        }
+        writeFast(dateAsEpoch, buffer, offset);
+        return TIMESTAMP_LENGTH;
+    }
+
+    private static void writeFast(long dateAsEpoch, char[] buffer, int offset) {
+
+        long epochDay = Math.floorDiv(dateAsEpoch, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(dateAsEpoch, MILLIS_PER_DAY);
+
+        // Civil date from days since 1970-01-01, in 400 year eras starting on March 1st (Howard Hinnant's algorithm)
+        long days = epochDay + 719468;
+        long era = Math.floorDiv(days, 146097);
+        int dayOfEra = (int) (days - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153; // 0 = March
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        int hour = millisOfDay / 3600000;
+        int minute = millisOfDay / 60000 % 60;
+        int second = millisOfDay / 1000 % 60;
+        int millis = millisOfDay % 1000;
+
+        writeDigits(buffer, offset, year, 4);
+        buffer[offset + 4] = '-';
+        writeDigits(buffer, offset + 5, month, 2);
+        buffer[offset + 7] = '-';
+        writeDigits(buffer, offset + 8, day, 2);
+        buffer[offset + 10] = 'T';
+        writeDigits(buffer, offset + 11, hour, 2);
+        buffer[offset + 13] = ':';
+        writeDigits(buffer, offset + 14, minute, 2);
+        buffer[offset + 16] = ':';
+        writeDigits(buffer, offset + 17, second, 2);
+        buffer[offset + 19] = '.';
+        writeDigits(buffer, offset + 20, millis, 3);
+        buffer[offset + 23] = 'Z';
+    }
+
+    private static void writeDigits(char[] buffer, int offset, int value, int digits) {
+        for(int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+    * Parses a valid date of the form "yyyy-MM-ddTHH:mm:ss.SSSZ" with a four digit year.
+    * @return the date as Epoch, or Long.MIN_VALUE if the date is in any other form and must be parsed with the formatter.
+    */
+    private static long parseFast(CharSequence date) {
+
+        if(date.length() != TIMESTAMP_LENGTH || date.charAt(4) != '-' || date.charAt(7) != '-' || date.charAt(10) != 'T'
+            || date.charAt(13) != ':' || date.charAt(16) != ':' || date.charAt(19) != '.' || date.charAt(23) != 'Z') {
+            return Long.MIN_VALUE;
+        }
+        int year = readDigits(date, 0, 4);
+        int month = readDigits(date, 5, 2);
+        int day = readDigits(date, 8, 2);
+        int hour = readDigits(date, 11, 2);
+        int minute = readDigits(date, 14, 2);
+        int second = readDigits(date, 17, 2);
+        int millis = readDigits(date, 20, 3);
+
+        // Out of range values are left to the formatter, which either rejects or adjusts them
+        if(year < 1000 || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23
+            || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) {
+            return Long.MIN_VALUE;
+        }
+        boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        int monthLength = month == 2 && leapYear ? 29 : DAYS_IN_MONTH[month - 1];
+        if(day > monthLength) {
+            return Long.MIN_VALUE;
+        }
+
+        // Days since 1970-01-01, the inverse of the conversion in writeFast
+        int shiftedYear = month <= 2 ? year - 1 : year;
+        int era = shiftedYear / 400; // Years are positive here
+        int yearOfEra = shiftedYear - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long epochDay = era * 146097L + dayOfEra - 719468;
+
+        return epochDay * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+    }
+
+    // Returns a negative value if any of the characters is not a digit
+    private static int readDigits(CharSequence date, int offset, int digits) {
+        int value = 0;
+        for(int i = offset; i < offset + digits; i++) {
+            int digit = date.charAt(i) - '0';
+            if(digit < 0 || digit > 9) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
 }
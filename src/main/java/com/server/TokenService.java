@@ -0,0 +1,113 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+* Issues and verifies short-lived session tokens. A token is an expiry time, the realm, the username and the nickname signed with HMAC-SHA256,
+* so it can be verified in memory without querying the database, and is only accepted in the realm it was issued in.
+* Example: {@code MTcwODUwNjA5OTA5NzphVzVtYnc6YW05b2JnOmFtOW9iakV5TXc.c2lnbmF0dXJl}
+* The signing key is read from the auth.tokenKey system property (Base64) or generated at startup, in which case tokens do not survive a restart.
+*/
+public class TokenService {
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final long timeToLive = Long.getLong("auth.tokenTtlMillis", 15 * 60 * 1000);
+    private final SecretKeySpec signingKey;
+    private final ThreadLocal<Mac> hmac;
+
+    public TokenService() {
+
+        byte[] key;
+        String configuredKey = System.getProperty("auth.tokenKey");
+        if(configuredKey != null) {
+            key = Base64.getDecoder().decode(configuredKey);
+        }
+        else {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        }
+        signingKey = new SecretKeySpec(key, "HmacSHA256");
+
+        hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(signingKey);
+                return mac;
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        });
+    }
+
+    /**
+    * Creates a new token for the user.
+    * @param user the authenticated user, whose realm the token is valid in.
+    * @return the signed token.
+    */
+    public String issue(UserPrincipal user) {
+        long expiresAt = System.currentTimeMillis() + timeToLive;
+        String content = expiresAt + ":" + encodeField(user.getRealm()) + ":" + encodeField(user.getUsername()) + ":" + encodeField(user.getNickname());
+        byte[] payload = content.getBytes(StandardCharsets.UTF_8);
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+    }
+
+    /**
+    * Checks the signature and expiry of the token.
+    * @param token the token sent by the client.
+    * @param realm the realm of the authenticator.
+    * @return The user the token was issued to, or null if the token is not valid, has expired or was issued in another realm.
+    */
+    public UserPrincipal verify(String token, String realm) {
+
+        int separator = token.indexOf('.');
+        if(separator <= 0) {
+            return null;
+        }
+
+        try {
+            byte[] payload = decoder.decode(token.substring(0, separator));
+            byte[] signature = decoder.decode(token.substring(separator + 1));
+            if(!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+
+            String[] fields = new String(payload, StandardCharsets.UTF_8).split(":", -1);
+            long expiresAt = Long.parseLong(fields[0]);
+            if(expiresAt < System.currentTimeMillis() || fields.length != 4 || !decodeField(fields[1]).equals(realm)) {
+                return null;
+            }
+            return new UserPrincipal(decodeField(fields[2]), decodeField(fields[3]), realm);
+        } catch(IllegalArgumentException | IndexOutOfBoundsException e) { // Not Base64 or not our payload format
+            return null;
+        }
+    }
+
+    /**
+    * @return how long issued tokens are valid, in seconds.
+    */
+    public long getTimeToLiveSeconds() {
+        return timeToLive / 1000;
+    }
+
+    // The fields are encoded so that they cannot contain the ':' separator
+    private static String encodeField(String field) {
+        return encoder.encodeToString(field.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeField(String field) {
+        return new String(decoder.decode(field), StandardCharsets.UTF_8);
+    }
+
+    private byte[] sign(byte[] payload) {
+        return hmac.get().doFinal(payload);
+    }
+}
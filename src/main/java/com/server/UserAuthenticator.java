@@ -1,35 +1,144 @@
 package com.server;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.Base64;
 
 import org.json.JSONObject;
 
-import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
 
+/**
+* Authenticates requests either with a session token ({@code Authorization: Bearer <token>}) issued by /login,
+* or with Basic credentials checked against the database.
+* Successfully authenticated requests get a UserPrincipal carrying the user's nickname.
+* The authenticator of /login, from {@link #basicOnly()}, does not accept tokens, so a new token always needs the password.
+*/
+public class UserAuthenticator extends Authenticator {
 
-public class UserAuthenticator extends BasicAuthenticator {
-
-    private MessageDatabase db = null;
+    private MessageStore db = null;
+    private final TokenService tokenService;
+    private final String realm;
+    private final boolean acceptTokens;
 
     // The String is the realm that the authentication is applied to
     public UserAuthenticator(){
-        super("info");
-        db = MessageDatabase.getInstance();
+        this("info", MessageStore.getInstance(), new TokenService());
+    }
+
+    /**
+    * Creates an authenticator that accepts tokens and Basic credentials.
+    * @param realm the realm of the authenticator, tokens issued in other realms are not accepted.
+    * @param db the store the credentials are checked against.
+    * @param tokenService the service that issues and verifies the tokens.
+    */
+    UserAuthenticator(String realm, MessageStore db, TokenService tokenService) {
+        this.realm = realm;
+        this.db = db;
+        this.tokenService = tokenService;
+        acceptTokens = true;
+    }
+
+    private UserAuthenticator(UserAuthenticator tokenAuthenticator) {
+        realm = tokenAuthenticator.realm;
+        db = tokenAuthenticator.db;
+        tokenService = tokenAuthenticator.tokenService;
+        acceptTokens = false;
+    }
+
+    /**
+    * @return an authenticator that only accepts Basic credentials and issues tokens that this one accepts.
+    */
+    public UserAuthenticator basicOnly() {
+        return new UserAuthenticator(this);
     }
     
     @Override
-    public boolean checkCredentials(String username, String password) {
-        
+    public Result authenticate(HttpExchange exchange) {
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null) { // Ask the client for credentials
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + realm + "\"");
+            return new Authenticator.Retry(401);
+        }
+
+        if(acceptTokens && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            // Tokens are verified in memory, no database query or password hash is needed
+            UserPrincipal user = tokenService.verify(authorization.substring(7).trim(), realm);
+            if(user == null) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"" + realm + "\", error=\"invalid_token\"");
+                return new Authenticator.Failure(401);
+            }
+            return new Authenticator.Success(user);
+        }
+
+        if(authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            UserPrincipal user;
+            try {
+                user = checkBasicCredentials(authorization.substring(6).trim());
+            } catch(PasswordHasher.BusyException e) { // The credentials are not known to be wrong, so the client should retry rather than ask again
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                return new Authenticator.Failure(503);
+            }
+            if(user != null) {
+                return new Authenticator.Success(user);
+            }
+        }
+
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + realm + "\"");
+        return new Authenticator.Failure(401);
+    }
+
+    /**
+    * Decodes Basic credentials ("username:password" in Base64) and checks them against the database.
+    * @param encodedCredentials the credentials from the Authorization header.
+    * @return The authenticated user, or null if the credentials are faulty or wrong.
+    * @throws PasswordHasher.BusyException if the password could not be verified because too many are being hashed.
+    */
+    private UserPrincipal checkBasicCredentials(String encodedCredentials) throws PasswordHasher.BusyException {
+
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(encodedCredentials), StandardCharsets.UTF_8);
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+
+        int colon = credentials.indexOf(':');
+        if(colon < 0) {
+            return null;
+        }
+        String username = credentials.substring(0, colon);
+        String password = credentials.substring(colon + 1);
+
         try {
-            return db.authenticateUser(username, password);
+            String nickname = db.authenticateUser(username, password);
+            return nickname != null ? new UserPrincipal(username, nickname, realm) : null;
         } 
         catch (SQLException e){
             System.out.println("User authentication failed");
             e.printStackTrace();
-            return false;
+            return null;
         }
     }
     
+    /**
+    * Issues a new session token for an authenticated user.
+    * @param user the authenticated user.
+    * @return the token.
+    */
+    public String issueToken(UserPrincipal user) {
+        return tokenService.issue(user);
+    }
+
+    /**
+    * @return how long issued tokens are valid, in seconds.
+    */
+    public long getTokenTimeToLiveSeconds() {
+        return tokenService.getTimeToLiveSeconds();
+    }
+
     /**
     * Attempts to add a new user with given parameters.
     * @param username The name used for registering/login
@@ -37,8 +146,9 @@ public class UserAuthenticator extends BasicAuthenticator {
     * @param email
     * @param nickname The name shown publicly
     * @return True if the user could be added. False if the user could not be added.
+    * @throws PasswordHasher.BusyException if the password could not be hashed because too many are being hashed.
     */
-    public boolean addUser(String username, String password, String email, String nickname) {
+    public boolean addUser(String username, String password, String email, String nickname) throws PasswordHasher.BusyException {
 
         JSONObject potentialUser = new User(username, password, email, nickname).toJsonObject();
         try {
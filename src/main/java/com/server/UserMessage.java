@@ -1,6 +1,6 @@
 package com.server;
 
-import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -12,7 +12,7 @@ public class UserMessage {
     private String locationCity;
     private String locationCountry;
     private String locationStreetAddress;
-    private ZonedDateTime postDate;
+    private long postDate; // Epoch milliseconds
     private double latitude;
     private double longitude;
     private String weather;
@@ -59,6 +59,65 @@ public class UserMessage {
         }
     }
 
+    /**
+    * Constructs a UserMessage from a CBOR map with the same keys as the JSON object, see UserMessage(JSONObject).
+    * The posting time is an integer of Epoch milliseconds, or a string like in JSON. Unknown keys and null values are ignored.
+    * @param cbor the reader, positioned at the map.
+    * @throws CborReader.FormatException if the map is malformed, a value has the wrong type, the posting time is invalid or a mandatory value is missing.
+    */
+    public UserMessage(CborReader cbor) throws CborReader.FormatException {
+
+        Double latitude = null;
+        Double longitude = null;
+        String weather = null;
+        boolean hasPostDate = false;
+
+        int pairs = cbor.readMapStart();
+        for(int i = 0; pairs < 0 ? !cbor.readBreak() : i < pairs; i++) {
+            String key = cbor.readString();
+            if(cbor.readNull()) {
+                continue;
+            }
+            switch(key) {
+                case "locationName": locationName = cbor.readString(); break;
+                case "locationDescription": locationDescription = cbor.readString(); break;
+                case "locationCity": locationCity = cbor.readString(); break;
+                case "locationCountry": locationCountry = cbor.readString(); break;
+                case "locationStreetAddress": locationStreetAddress = cbor.readString(); break;
+                case "originalPostingTime":
+                    if(cbor.isTextString()) { // A client may send the date as in JSON
+                        String date = cbor.readString();
+                        try {
+                            setPostDateFromString(date);
+                        } catch(DateTimeParseException e) {
+                            throw new CborReader.FormatException("Invalid posting time " + date);
+                        }
+                    }
+                    else {
+                        postDate = cbor.readLong();
+                    }
+                    hasPostDate = true;
+                    break;
+                case "latitude": latitude = cbor.readDouble(); break;
+                case "longitude": longitude = cbor.readDouble(); break;
+                case "weather": weather = cbor.readString(); break;
+                default: cbor.skip();
+            }
+        }
+
+        if(locationName == null || locationDescription == null || locationCity == null || locationCountry == null
+            || locationStreetAddress == null || !hasPostDate) {
+            throw new CborReader.FormatException("A mandatory value is missing");
+        }
+
+        // Coordinates are optional, and weather depends on them
+        if(latitude != null && longitude != null) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.weather = weather;
+        }
+    }
+
     public void setLocationName(String name){
         if(name != null){
             locationName = name;
@@ -134,11 +193,11 @@ public class UserMessage {
     }
 
     /**
-    * Sets the post date of this message to ZonedDateTime from Unix Time.
+    * Sets the post date of this message from Unix Time.
     * @param dateAsEpoch the posting date in Epoch (long)
     */
     public void setPostDate(long dateAsEpoch) {
-        postDate = TimestampConverter.convertToZonedDateTime(dateAsEpoch);
+        postDate = dateAsEpoch;
     }
 
     /**
@@ -147,15 +206,15 @@ public class UserMessage {
     * @return postDate as a long
     */
     public long getPostDateAsLong() {
-        return TimestampConverter.convertToLong(postDate);
+        return postDate;
     }
 
     /**
     * Sets the post date of this UserMessage using a String input.
-    * The String is converted to ZonedDateTime by parsing the String with a formatter.
+    * The String is converted to Unix Time, see TimestampConverter.convertToLong(String).
     * @param dateAsString the posting date as a String. It should follow this format: yyyy-MM-dd'T'HH:mm:ss.SSSX
     */
     public void setPostDateFromString(String dateAsString) {
-        postDate = TimestampConverter.convertToZonedDateTime(dateAsString);
+        postDate = TimestampConverter.convertToLong(dateAsString);
     }
 }
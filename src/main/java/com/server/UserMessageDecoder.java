@@ -0,0 +1,758 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.json.JSONException;
+
+/**
+* Decodes a posted JSON message from the request body straight into a UserMessage, without reading the body into a String
+* or building a JSONObject. The body is read through the buffers of a pooled decoder, so the only objects created
+* for a message are the UserMessage and its strings.
+* The message is validated like UserMessage(JSONObject) does it: faulty JSON, a missing mandatory value or a value of the wrong
+* type throws a JSONException, and an invalid posting time a DateTimeParseException. Like org.json, unknown keys and anything
+* after the object are ignored, and a key that appears twice in an object, known or not and at any depth, is an error.
+* Malformed UTF-8 is replaced with U+FFFD the way String and InputStreamReader replace it. Only standard JSON is accepted;
+* the extensions org.json also allows, such as single quoted or unquoted strings and trailing commas, are rejected.
+* The whole object is read before it is validated, so faulty JSON (a SyntaxException) is told apart from valid JSON that is
+* not a valid message, which lets BatchMessageHandler reject one message of a batch and go on with the next.
+*/
+public class UserMessageDecoder implements CharSequence, AutoCloseable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CHARS_SIZE = 1024;
+    private static final int MAX_DEPTH = 512; // Of the values under unknown keys, the same limit as org.json has
+
+    // Decoders whose buffers are free; a decoder is taken for each body and returned after it
+    private static final ArrayBlockingQueue<UserMessageDecoder> pool = new ArrayBlockingQueue<>(64);
+
+    private static final String[] KEYS = {"locationName", "locationDescription", "locationCity", "locationCountry",
+        "locationStreetAddress", "originalPostingTime", "latitude", "longitude", "weather"};
+    private static final int NAME = 0;
+    private static final int DESCRIPTION = 1;
+    private static final int CITY = 2;
+    private static final int COUNTRY = 3;
+    private static final int STREET_ADDRESS = 4;
+    private static final int POSTING_TIME = 5;
+    private static final int LATITUDE = 6;
+    private static final int LONGITUDE = 7;
+    private static final int WEATHER = 8;
+
+    // The states of the optional values, which are only checked if the message has both coordinates
+    private static final int ABSENT = 0;
+    private static final int VALID = 1;
+    private static final int INVALID = 2;
+
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private InputStream input;
+    private long maxBytes;
+    private long bytesRead;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private char[] chars = new char[CHARS_SIZE]; // The current string or number, which this decoder is a CharSequence of
+    private int length;
+    private double parsedNumber; // Set by readCoordinate
+
+    private UserMessageDecoder() {}
+
+    /**
+    * Decodes a message from the body. Stops reading after the message object.
+    * @param input the request body.
+    * @param maxBytes the largest body that is read.
+    * @return the message, or null if the body is empty.
+    * @throws TooLargeException if the body is longer than maxBytes.
+    * @throws JSONException if the body is not a valid message.
+    * @throws DateTimeParseException if the posting time is not a valid date.
+    * @throws IOException if reading the body fails.
+    */
+    public static UserMessage decode(InputStream input, long maxBytes) throws IOException, JSONException, DateTimeParseException {
+
+        try (UserMessageDecoder decoder = open(input, maxBytes)) {
+            int c = decoder.nextClean();
+            if(c == -1) {
+                return null;
+            }
+            if(c != '{') {
+                throw decoder.syntaxError("A message must begin with '{'");
+            }
+            return decoder.readMessage();
+        }
+    }
+
+    /**
+    * Takes a decoder for reading a body of many values, see readItem. The decoder must be closed after the body.
+    * @param input the request body.
+    * @param maxBytes the largest body that is read.
+    * @return the decoder.
+    */
+    static UserMessageDecoder open(InputStream input, long maxBytes) {
+
+        UserMessageDecoder decoder = pool.poll();
+        if(decoder == null) {
+            decoder = new UserMessageDecoder();
+        }
+        decoder.input = input;
+        decoder.maxBytes = maxBytes;
+        decoder.bytesRead = 0;
+        decoder.position = 0;
+        decoder.limit = 0;
+        return decoder;
+    }
+
+    /**
+    * Returns the decoder to the pool. The body is not closed.
+    */
+    @Override
+    public void close() {
+        input = null;
+        if(chars.length == CHARS_SIZE) { // A decoder that has grown for a long value is left for the garbage collector
+            pool.offer(this);
+        }
+    }
+
+    /**
+    * Reads a value of a body of many values as a message.
+    * @param c the first character of the value, from nextClean().
+    * @return the message, or null if the value is valid JSON but not an object.
+    * @throws SyntaxException if the value is not valid JSON, after which the rest of the body cannot be read.
+    * @throws JSONException if the value is an object but not a valid message. The whole object has been read.
+    * @throws DateTimeParseException if the posting time is not a valid date. The whole object has been read.
+    * @throws IOException if reading the body fails.
+    */
+    UserMessage readItem(int c) throws IOException, JSONException, DateTimeParseException {
+        if(c == '{') {
+            return readMessage();
+        }
+        skipValue(c, 0);
+        return null;
+    }
+
+    /**
+    * Reads a message object whose '{' has been read. Syntax errors are thrown as they are found, but the values
+    * are only checked once the whole object has been read, in the same order as UserMessage(JSONObject) checks them.
+    */
+    private UserMessage readMessage() throws IOException {
+
+        String name = null;
+        String description = null;
+        String city = null;
+        String country = null;
+        String streetAddress = null;
+        long postingTime = 0;
+        double latitude = 0;
+        double longitude = 0;
+        String weather = null;
+        int latitudeState = ABSENT;
+        int longitudeState = ABSENT;
+        int weatherState = ABSENT;
+        int keysSeen = 0;
+        int wrongTypes = 0; // The mandatory keys whose value is not a string
+        DateTimeParseException invalidPostingTime = null;
+        Set<String> otherKeys = null; // Only created if the message has keys that are not part of a message
+        int key;
+
+        int c = nextClean();
+        while(c != '}') {
+            if(c != '"') {
+                throw syntaxError("Expected a key");
+            }
+            key = readKey();
+            if(key >= 0) {
+                if((keysSeen & (1 << key)) != 0) {
+                    throw syntaxError("Duplicate key \"" + KEYS[key] + "\"");
+                }
+                keysSeen |= 1 << key;
+            }
+            else {
+                if(otherKeys == null) {
+                    otherKeys = new HashSet<>();
+                }
+                if(!otherKeys.add(toString())) {
+                    throw syntaxError("Duplicate key \"" + this + "\"");
+                }
+            }
+            if(nextClean() != ':') {
+                throw syntaxError("Expected a ':' after a key");
+            }
+
+            c = nextClean();
+            if(key >= NAME && key <= POSTING_TIME && c != '"') {
+                wrongTypes |= 1 << key;
+                key = -1; // The value is skipped like the value of an unknown key
+            }
+            switch(key) {
+                case NAME: name = readString(); break;
+                case DESCRIPTION: description = readString(); break;
+                case CITY: city = readString(); break;
+                case COUNTRY: country = readString(); break;
+                case STREET_ADDRESS: streetAddress = readString(); break;
+                case POSTING_TIME:
+                    readChars();
+                    try {
+                        postingTime = TimestampConverter.convertToLong(this);
+                    } catch(DateTimeParseException e) {
+                        invalidPostingTime = e;
+                    }
+                    break;
+                case LATITUDE:
+                    latitudeState = readCoordinate(c);
+                    latitude = latitudeState == VALID ? parsedNumber : 0;
+                    break;
+                case LONGITUDE:
+                    longitudeState = readCoordinate(c);
+                    longitude = longitudeState == VALID ? parsedNumber : 0;
+                    break;
+                case WEATHER:
+                    if(c == '"') {
+                        readChars();
+                        weather = toString();
+                        weatherState = VALID;
+                    }
+                    else {
+                        skipValue(c, 0);
+                        weatherState = INVALID;
+                    }
+                    break;
+                default:
+                    skipValue(c, 0);
+            }
+
+            c = nextClean();
+            if(c == ',') {
+                c = nextClean();
+                if(c == '}') {
+                    throw syntaxError("Expected a key after ','");
+                }
+            }
+            else if(c != '}') {
+                throw syntaxError("Expected a ',' or '}'");
+            }
+        }
+
+        // Checked in the same order as UserMessage(JSONObject) reads them
+        for(int mandatory = NAME; mandatory <= POSTING_TIME; mandatory++) {
+            if((keysSeen & (1 << mandatory)) == 0) {
+                throw new JSONException("JSONObject[\"" + KEYS[mandatory] + "\"] not found.");
+            }
+            if((wrongTypes & (1 << mandatory)) != 0) {
+                throw wrongType(mandatory, "a string");
+            }
+        }
+        if(invalidPostingTime != null) {
+            throw invalidPostingTime;
+        }
+
+        UserMessage message = new UserMessage();
+        message.setLocationName(name);
+        message.setDescription(description);
+        message.setCity(city);
+        message.setLocationCountry(country);
+        message.setLocationStreetAddress(streetAddress);
+        message.setPostDate(postingTime);
+
+        // Coordinates are optional, and weather depends on them
+        if(latitudeState != ABSENT && longitudeState != ABSENT) {
+            if(latitudeState == INVALID || longitudeState == INVALID) {
+                throw wrongType(latitudeState == INVALID ? LATITUDE : LONGITUDE, "a double");
+            }
+            message.setLatitude(latitude);
+            message.setLongitude(longitude);
+            if(weatherState == INVALID) {
+                throw wrongType(WEATHER, "a string");
+            }
+            message.setWeather(weather);
+        }
+        return message;
+    }
+
+    /**
+    * Reads a coordinate, which like in org.json may be a number or a string containing a number.
+    * @param c the first character of the value.
+    * @return VALID if the value is a number, which is then in parsedNumber, or INVALID.
+    */
+    private int readCoordinate(int c) throws IOException {
+        if(c == '"') {
+            readChars();
+            try {
+                parsedNumber = Double.parseDouble(toString());
+                return VALID;
+            } catch(NumberFormatException e) {
+                return INVALID;
+            }
+        }
+        if(c == '-' || (c >= '0' && c <= '9')) {
+            readNumber(c);
+            parsedNumber = parseNumber();
+            return VALID;
+        }
+        skipValue(c, 0);
+        return INVALID;
+    }
+
+    /**
+    * Reads a string value whose opening quote has been read.
+    */
+    private String readString() throws IOException {
+        readChars();
+        return toString();
+    }
+
+    /**
+    * Reads a key whose opening quote has been read.
+    * @return the index of the key in KEYS, or -1 if it is not a key of a message.
+    */
+    private int readKey() throws IOException {
+        readChars();
+        for(int key = 0; key < KEYS.length; key++) {
+            if(KEYS[key].contentEquals(this)) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    /**
+    * Reads the rest of a string whose opening quote has been read, into chars.
+    */
+    private void readChars() throws IOException {
+
+        length = 0;
+        while(true) {
+            // Copy the run of plain ASCII characters straight from the buffer
+            int run = position;
+            while(run < limit) {
+                byte b = buffer[run];
+                if(b == '"' || b == '\\' || b < 0x20) { // Also stops at non-ASCII bytes, which are negative
+                    break;
+                }
+                run++;
+            }
+            ensureCapacity(length + run - position);
+            while(position < run) {
+                chars[length++] = (char) buffer[position++];
+            }
+
+            int b = next();
+            if(b == '"') {
+                return;
+            }
+            if(b == -1 || b == '\n' || b == '\r' || b == 0) { // org.json reads a NUL character as the end of the text
+                throw syntaxError("Unterminated string");
+            }
+            ensureCapacity(length + 2);
+            if(b == '\\') {
+                chars[length++] = readEscape();
+            }
+            else if(b < 0x80) { // Other control characters are allowed, like in org.json
+                chars[length++] = (char) b;
+            }
+            else {
+                readUtf8(b);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int b = next();
+        switch(b) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int value = 0;
+                for(int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if(digit < 0) {
+                        throw syntaxError("Illegal escape");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("Illegal escape");
+        }
+    }
+
+    /**
+    * Decodes a character of two to four bytes. Malformed bytes become U+FFFD exactly as the JDK's UTF-8 decoder replaces them
+    * (one U+FFFD for each maximal invalid part of a sequence), as they did when the body was read into a String or with a Reader.
+    * Each byte is checked as it is read, so at most the byte that ends a malformed sequence is read again.
+    * @param first the first byte.
+    */
+    private void readUtf8(int first) throws IOException {
+
+        if(first >= 0xc2 && first <= 0xdf) {
+            int b2 = next();
+            if(!isContinuation(b2)) {
+                malformed(b2);
+                return;
+            }
+            chars[length++] = (char) (((first & 0x1f) << 6) | (b2 & 0x3f));
+        }
+        else if(first >= 0xe0 && first <= 0xef) {
+            int b2 = next();
+            if(!isContinuation(b2) || (first == 0xe0 && b2 < 0xa0)) { // Overlong
+                malformed(b2);
+                return;
+            }
+            int b3 = next();
+            if(!isContinuation(b3)) {
+                malformed(b3);
+                return;
+            }
+            char c = (char) (((first & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+            chars[length++] = Character.isSurrogate(c) ? '\uFFFD' : c;
+        }
+        else if(first >= 0xf0 && first <= 0xf4) {
+            int b2 = next();
+            if(!isContinuation(b2) || (first == 0xf0 && b2 < 0x90) || (first == 0xf4 && b2 > 0x8f)) { // Overlong or above U+10FFFF
+                malformed(b2);
+                return;
+            }
+            int b3 = next();
+            if(!isContinuation(b3)) {
+                malformed(b3);
+                return;
+            }
+            int b4 = next();
+            if(!isContinuation(b4)) {
+                malformed(b4);
+                return;
+            }
+            int codePoint = ((first & 0x07) << 18) | ((b2 & 0x3f) << 12) | ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+            chars[length++] = Character.highSurrogate(codePoint);
+            chars[length++] = Character.lowSurrogate(codePoint);
+        }
+        else { // A continuation byte without a start, or a byte that UTF-8 never uses
+            chars[length++] = '\uFFFD';
+        }
+    }
+
+    private static boolean isContinuation(int b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /**
+    * Replaces a malformed sequence with U+FFFD. The byte that ended it is not part of it and is read again.
+    */
+    private void malformed(int next) {
+        chars[length++] = '\uFFFD';
+        if(next != -1) {
+            position--;
+        }
+    }
+
+    /**
+    * Reads the characters of a number into chars.
+    * @param c the first character of the number.
+    */
+    private void readNumber(int c) throws IOException {
+        length = 0;
+        while(c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+            ensureCapacity(length + 1);
+            chars[length++] = (char) c;
+            c = next();
+        }
+        if(c != -1) {
+            position--; // The character after the number
+        }
+    }
+
+    /**
+    * Parses the number in chars, which must have the form of a JSON number. Numbers of up to 15 significant digits
+    * with a small exponent, such as coordinates, are calculated exactly without creating a String; the rest are parsed
+    * with Double.parseDouble.
+    */
+    private double parseNumber() {
+
+        checkNumber();
+        int i = 0;
+        boolean negative = chars[i] == '-';
+        if(negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+
+        while(i < length && chars[i] >= '0' && chars[i] <= '9') {
+            mantissa = mantissa * 10 + (chars[i++] - '0');
+            if(mantissa != 0 && ++significantDigits > 15) {
+                return parseSlowly();
+            }
+        }
+        if(i < length && chars[i] == '.') {
+            i++;
+            while(i < length && chars[i] >= '0' && chars[i] <= '9') {
+                mantissa = mantissa * 10 + (chars[i++] - '0');
+                exponent--;
+                if(mantissa != 0 && ++significantDigits > 15) {
+                    return parseSlowly();
+                }
+            }
+        }
+        if(i < length) { // The exponent
+            i++;
+            boolean negativeExponent = chars[i] == '-';
+            if(chars[i] == '-' || chars[i] == '+') {
+                i++;
+            }
+            int value = 0;
+            while(i < length && value < 1000) {
+                value = value * 10 + (chars[i++] - '0');
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if(i != length || exponent < -22 || exponent > 22) {
+            return parseSlowly();
+        }
+
+        // Both the mantissa and the power of ten are exact doubles, so the result is rounded only once, correctly
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+    * Checks that chars is -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?, the grammar of a JSON number.
+    * Double.parseDouble would also take forms such as 01, 1. and -.5.
+    */
+    private void checkNumber() {
+        int i = 0;
+        if(i < length && chars[i] == '-') {
+            i++;
+        }
+        int start = i;
+        i = skipDigits(i);
+        boolean valid = i > start && (chars[start] != '0' || i == start + 1);
+        if(i < length && chars[i] == '.') {
+            start = ++i;
+            i = skipDigits(i);
+            valid = valid && i > start;
+        }
+        if(i < length && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            if(i < length && (chars[i] == '-' || chars[i] == '+')) {
+                i++;
+            }
+            start = i;
+            i = skipDigits(i);
+            valid = valid && i > start;
+        }
+        if(!valid || i != length) {
+            throw syntaxError("Invalid number " + toString());
+        }
+    }
+
+    private int skipDigits(int i) {
+        while(i < length && chars[i] >= '0' && chars[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private double parseSlowly() {
+        try {
+            return Double.parseDouble(toString());
+        } catch(NumberFormatException e) {
+            throw syntaxError("Invalid number " + toString());
+        }
+    }
+
+    /**
+    * Skips a value under a key that is not part of a message, checking that it is valid JSON.
+    * @param c the first character of the value.
+    * @param depth how many arrays and objects the value is in.
+    */
+    private void skipValue(int c, int depth) throws IOException {
+
+        if(depth > MAX_DEPTH) {
+            throw syntaxError("Too deeply nested");
+        }
+        switch(c) {
+            case '"':
+                readChars();
+                return;
+            case '{':
+                Set<String> keys = null;
+                c = nextClean();
+                while(c != '}') {
+                    if(c != '"') {
+                        throw syntaxError("Expected a key");
+                    }
+                    readChars();
+                    if(keys == null) {
+                        keys = new HashSet<>();
+                    }
+                    if(!keys.add(toString())) {
+                        throw syntaxError("Duplicate key \"" + this + "\"");
+                    }
+                    if(nextClean() != ':') {
+                        throw syntaxError("Expected a ':' after a key");
+                    }
+                    skipValue(nextClean(), depth + 1);
+                    c = nextSeparator('}');
+                }
+                return;
+            case '[':
+                c = nextClean();
+                while(c != ']') {
+                    skipValue(c, depth + 1);
+                    c = nextSeparator(']');
+                }
+                return;
+            case 't':
+                expect("rue");
+                return;
+            case 'f':
+                expect("alse");
+                return;
+            case 'n':
+                expect("ull");
+                return;
+            default:
+                if(c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    parseNumber();
+                    return;
+                }
+                throw syntaxError("Unexpected character");
+        }
+    }
+
+    /**
+    * Reads the ',' after a value in an array or object, or its end.
+    * @return the first character of the next value, or the end.
+    */
+    private int nextSeparator(char end) throws IOException {
+        int c = nextClean();
+        if(c == ',') {
+            c = nextClean();
+            if(c == end) {
+                throw syntaxError("Expected a value after ','");
+            }
+            return c;
+        }
+        if(c != end) {
+            throw syntaxError("Expected a ',' or '" + end + "'");
+        }
+        return c;
+    }
+
+    private void expect(String rest) throws IOException {
+        for(int i = 0; i < rest.length(); i++) {
+            if(next() != rest.charAt(i)) {
+                throw syntaxError("Unexpected character");
+            }
+        }
+    }
+
+    // Skips whitespace, like org.json all characters up to the space except NUL, which org.json reads as the end of the text
+    int nextClean() throws IOException {
+        while(true) {
+            int c = next();
+            if(c == -1 || c > ' ' || c == 0) {
+                return c;
+            }
+        }
+    }
+
+    // Reads the last byte again; only one byte can be read again
+    void back() {
+        position--;
+    }
+
+    // Returns the next byte, or -1 at the end of the body
+    int next() throws IOException {
+        if(position == limit) {
+            int read = input.read(buffer, 0, buffer.length);
+            if(read <= 0) {
+                return -1;
+            }
+            bytesRead += read;
+            if(bytesRead > maxBytes) {
+                throw new TooLargeException(maxBytes);
+            }
+            position = 0;
+            limit = read;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > chars.length) {
+            char[] larger = new char[Math.max(capacity, chars.length * 2)];
+            System.arraycopy(chars, 0, larger, 0, length);
+            chars = larger;
+        }
+    }
+
+    SyntaxException syntaxError(String message) {
+        return new SyntaxException(message + " at " + (bytesRead - limit + position));
+    }
+
+    private static JSONException wrongType(int key, String type) {
+        return new JSONException("JSONObject[\"" + KEYS[key] + "\"] is not " + type + ".");
+    }
+
+    // The current string or number as a CharSequence, so that it can be compared and parsed without creating a String
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    /**
+    * Thrown when the body is not valid JSON, as opposed to a JSONException about valid JSON that is not a valid message.
+    */
+    public static class SyntaxException extends JSONException {
+
+        public SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+    * Thrown when the body is longer than allowed.
+    */
+    public static class TooLargeException extends IOException {
+
+        private final long maxBytes;
+
+        public TooLargeException(long maxBytes) {
+            super("Body is longer than " + maxBytes + " bytes");
+            this.maxBytes = maxBytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+* The authenticated user of a request. Carries the nickname resolved during authentication,
+* so handlers do not have to query it again.
+*/
+public class UserPrincipal extends HttpPrincipal {
+
+    private final String nickname;
+
+    public UserPrincipal(String username, String nickname, String realm) {
+        super(username, realm);
+        this.nickname = nickname;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+}
@@ -0,0 +1,211 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Caches weather information from WeatherLookup so that GET requests do not have to wait for the weather service for every message.
+* Coordinates are rounded to two decimals (roughly one kilometre) and the weather is kept for a configurable time.
+* Lookups for the same coordinates that are already in progress are shared, and at most a configurable amount of lookups run at once.
+* If the weather service fails or is too slow, the last known weather for the coordinates is used.
+*/
+public class WeatherCache {
+
+    private static WeatherCache cacheInstance = null;
+
+    private final long timeToLive = Long.getLong("weather.cacheTtlMillis", 10 * 60 * 1000);
+    private final long deadline = Long.getLong("weather.deadlineMillis", 2000);
+    private final int maxEntries = Integer.getInteger("weather.cacheSize", 10000);
+    private final int maxConcurrentLookups = Integer.getInteger("weather.maxConcurrentLookups", 8);
+
+    private final Map<String, CachedWeather> cache;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService lookupExecutor;
+
+    // Changes whenever a cached value changes, so that listings containing weather can be versioned
+    private final AtomicLong version = new AtomicLong();
+    private volatile long lastChanged = 0;
+
+    // The settings are read when the cache is created
+    WeatherCache() {
+        // Least recently used entries are dropped once the cache is full
+        cache = new LinkedHashMap<String, CachedWeather>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedWeather> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        lookupExecutor = Executors.newFixedThreadPool(maxConcurrentLookups, runnable -> {
+            Thread thread = new Thread(runnable, "weather-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+    * Gets the weather cache instance. If one does not exist, a new instance is created.
+    * @return the weather cache instance.
+    */
+    public static synchronized WeatherCache getInstance() {
+        if(cacheInstance == null){
+            cacheInstance = new WeatherCache();
+        }
+        return cacheInstance;
+    }
+
+    /**
+    * Refreshes the weather for all the given coordinates that are missing from the cache or have expired.
+    * The lookups are done in parallel and this waits for them at most until the deadline has passed.
+    * Lookups that did not finish in time keep running and update the cache for later requests.
+    * @param coordinates list of {latitude, longitude} pairs.
+    */
+    public void refresh(List<double[]> coordinates) {
+
+        List<CompletableFuture<String>> lookups = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for(double[] coordinate : coordinates) {
+            String key = createKey(coordinate[0], coordinate[1]);
+            CachedWeather cached;
+            synchronized(cache) {
+                cached = cache.get(key);
+            }
+            if(cached == null || cached.fetchedAt + timeToLive < now) {
+                lookups.add(lookup(key, round(coordinate[0]), round(coordinate[1])));
+            }
+        }
+
+        if(lookups.isEmpty()) {
+            return;
+        }
+
+        try {
+            CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).get(deadline, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            // Slow lookups fall back to the last known weather
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * Gets the cached weather for the coordinates. Does not contact the weather service.
+    * @param latitude
+    * @param longitude
+    * @return The latest known temperature as a string, which may have expired, or null if the weather has never been fetched.
+    */
+    public String getWeather(double latitude, double longitude) {
+        CachedWeather cached;
+        synchronized(cache) {
+            cached = cache.get(createKey(latitude, longitude));
+        }
+        return cached != null ? cached.weather : null;
+    }
+
+    /**
+    * Starts a lookup for the coordinates or joins the one already in progress for them.
+    */
+    private CompletableFuture<String> lookup(String key, double latitude, double longitude) {
+
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, lookup);
+        if(existing != null) {
+            return existing;
+        }
+
+        lookupExecutor.execute(() -> {
+            String weather = null;
+            try {
+                weather = WeatherLookup.getWeatherInformation(latitude, longitude);
+                if(weather != null) { // Failed lookups keep the last known weather
+                    CachedWeather previous;
+                    synchronized(cache) {
+                        previous = cache.put(key, new CachedWeather(weather, System.currentTimeMillis()));
+                    }
+                    if(previous == null || !previous.weather.equals(weather)) {
+                        lastChanged = System.currentTimeMillis();
+                        version.incrementAndGet();
+                    }
+                }
+            } finally {
+                inFlight.remove(key, lookup);
+                lookup.complete(weather);
+            }
+        });
+        return lookup;
+    }
+
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+    * @return the number of lookups to the weather service in progress.
+    */
+    public int getLookupsInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+    * @return a number that changes whenever a cached weather value changes.
+    */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+    * @return the time the last cached weather value changed, in Epoch milliseconds.
+    */
+    public long getLastChanged() {
+        return lastChanged;
+    }
+
+    /**
+    * Cached weather may expire at any time, so time is divided into windows as long as the time to live.
+    * A response that depends on cached weather is not reused across windows.
+    * @return the number of the current window.
+    */
+    public long getExpiryWindow() {
+        return System.currentTimeMillis() / timeToLive;
+    }
+
+    /**
+    * @return the start of the current expiry window, in Epoch milliseconds.
+    */
+    public long getExpiryWindowStart() {
+        return getExpiryWindow() * timeToLive;
+    }
+
+    private static double round(double coordinate) {
+        return Math.round(coordinate * 100) / 100.0;
+    }
+
+    private static String createKey(double latitude, double longitude) {
+        return Math.round(latitude * 100) + ":" + Math.round(longitude * 100);
+    }
+
+    private static class CachedWeather {
+
+        final String weather;
+        final long fetchedAt;
+
+        CachedWeather(String weather, long fetchedAt) {
+            this.weather = weather;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
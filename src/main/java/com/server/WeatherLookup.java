@@ -2,27 +2,45 @@ package com.server;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 public class WeatherLookup {
 
+    private static final String serviceUrl = System.getProperty("weather.url", "http://localhost:4001/weather");
+
+    // One client is shared by all lookups so that connections to the weather service are pooled and kept alive
+    private static final CloseableHttpClient httpClient = createHttpClient();
+
+    private static final LatencyHistogram lookupTime = Metrics.getInstance().histogram("weather_lookup_duration_seconds",
+        "Time spent on requests to the weather service, including failed ones");
+    private static final LongAdder lookupFailures = Metrics.getInstance().counter("weather_lookup_failures_total",
+        "Weather lookups that failed or returned no temperature");
+
+    // XMLInputFactory is not guaranteed to be thread safe, so each thread creates its readers from its own factory
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+
     /**
     * Gets the current weather information (temperature) at the given coordinates from an external weather service.
     * An XML string is created from the coordinates and sent to the service which responds with another XML string containing weather information.
@@ -32,8 +50,9 @@ public class WeatherLookup {
     */
     public static String getWeatherInformation(double latitude, double longitude) {
 
+        long start = System.nanoTime();
         String coordinates = createXMLString(latitude, longitude);
-        String url = "http://localhost:4001/weather";
+        String url = serviceUrl;
         String weather = null;
         
         try {
@@ -47,24 +66,26 @@ public class WeatherLookup {
             weather = parseWeatherResponse(weather);
         } catch(Exception e){
             e.printStackTrace();
+            weather = null; // Not the unparsed response
         }
 
+        lookupTime.recordSince(start);
+        if(weather == null) {
+            lookupFailures.increment();
+        }
         return weather; // Null if could not get weather
     }
 
     /**
-    * Creates the POST request using a HttpClient and reads the response message from the weather service.
+    * Creates the POST request and reads the response message from the weather service.
+    * The shared HttpClient keeps the connections to the service open, and the response is always consumed so that the connection returns to the pool.
     * @param url The URL of the weather service.
     * @param coordinatesXML The coordinates in XML String format.
     * @return The response from the service as a string (which follows XML format). Example: {@code <weather><longitude>20.1</longitude><latitude>30.1</latitude><temperature>2</temperature><Unit>Celcius</Unit></weather>}
     * @throws ClientProtocolException in case of an http protocol error
     * @throws IOException in case of a problem or the connection was aborted
     */
-    private static String handleRequest(String url, String coordinatesXML) throws ClientProtocolException, IOException {
-
-        String weatherXML = null;
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        // HttpClient example from: https://www.educative.io/answers/how-to-make-post-requests-in-java-using-httpclient
+    static String handleRequest(String url, String coordinatesXML) throws ClientProtocolException, IOException {
 
         // Set up and build the request
         HttpPost httpPost = new HttpPost(url);
@@ -73,35 +94,65 @@ public class WeatherLookup {
         httpPost.setEntity(postRequest);
                 
         // Send the request and get the response
-        HttpResponse httpResponse = httpClient.execute(httpPost);
-        HttpEntity responseEntity = httpResponse.getEntity();
-        weatherXML = EntityUtils.toString(responseEntity);
-
-        return weatherXML;
+        try (CloseableHttpResponse httpResponse = httpClient.execute(httpPost)) {
+            HttpEntity responseEntity = httpResponse.getEntity();
+            return EntityUtils.toString(responseEntity);
+        }
     }
 
     /**
-    * Parses the response string into an XML document and gets the temperature element out of it.
-    * @param weatherResponse
-    * @return The temperature as a string or null if weatherResponse is null.
+    * Reads the temperature element out of the response with a streaming XML reader.
+    * @param weatherXML the response from the weather service.
+    * @return The temperature as a string or null if weatherXML is null.
+    * @throws XMLStreamException if the response is not valid XML or does not contain a temperature.
     */
-    private static String parseWeatherResponse(String weatherXML) throws ParserConfigurationException, SAXException, IOException {
+    static String parseWeatherResponse(String weatherXML) throws XMLStreamException {
 
-        String temperature = null;
-        
-        if(weatherXML != null){ // If response is null, something went wrong with the post request or the service
-            
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builer = factory.newDocumentBuilder();
-            Document doc = builer.parse(new InputSource(new StringReader(weatherXML)));
-    
-            NodeList nodes = doc.getElementsByTagName("temperature");
-            Element element = (Element) nodes.item(0);
-            temperature = element.getTextContent();
+        if(weatherXML == null){ // If response is null, something went wrong with the post request or the service
+            return null;
+        }
+
+        XMLStreamReader reader = xmlInputFactory.get().createXMLStreamReader(new StringReader(weatherXML));
+        try {
+            while(reader.hasNext()) {
+                if(reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("temperature")) {
+                    return reader.getElementText();
+                }
+            }
+        } finally {
+            reader.close();
         }
+        throw new XMLStreamException("Weather response did not contain a temperature");
+    }
 
-        return temperature;
-    } 
+    /**
+    * Creates the pooled HttpClient used for all weather lookups.
+    * The timeouts (in milliseconds) and pool sizes can be configured with system properties.
+    * @return the HttpClient.
+    */
+    private static CloseableHttpClient createHttpClient() {
+
+        int connectTimeout = Integer.getInteger("weather.connectTimeoutMillis", 1000);
+        int socketTimeout = Integer.getInteger("weather.socketTimeoutMillis", 2000);
+        int maxPerRoute = Integer.getInteger("weather.maxConnectionsPerRoute", 8);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(Integer.getInteger("weather.maxConnections", maxPerRoute * 2));
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .build();
+
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictIdleConnections(30, TimeUnit.SECONDS)
+            .build();
+    }
 
     private static String createXMLString(double latitude, double longitude) {
         
@@ -0,0 +1,314 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+* What CborWriter and MessageStreamWriter write is read back by CborReader, and the other forms a client's encoder
+* may choose are read too. Malformed input must throw a FormatException and nothing else.
+*/
+public class CborReaderTest {
+
+    static final long TIME = 1608537467123L; // 2020-12-21T07:57:47.123Z
+
+    final Random random = new Random(20241018);
+
+    static String describe(UserMessage message) {
+        return message.getLocationName() + "|" + message.getDescription() + "|" + message.getCity() + "|" + message.getLocationCountry()
+            + "|" + message.getLocationStreetAddress() + "|" + message.getPostDateAsLong() + "|" + message.getLatitude()
+            + "|" + message.getLongitude() + "|" + message.getWeather();
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for(int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] text(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(bytes);
+        writer.writeString(value);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+    * The mandatory values of a message as key and value pairs, without the map around them.
+    */
+    static byte[] mandatoryPairs() throws IOException {
+        return concat(text("locationName"), text("Harbour"), text("locationDescription"), text("Fish market"),
+            text("locationCity"), text("Oulu"), text("locationCountry"), text("Finland"),
+            text("locationStreetAddress"), text("Rantakatu 1"));
+    }
+
+    /**
+    * A map of indefinite length with the mandatory values, the given pairs and a break.
+    */
+    static byte[] message(byte[]... pairs) throws IOException {
+        return concat(bytes(0xbf), mandatoryPairs(), concat(pairs), bytes(0xff));
+    }
+
+    static byte[] postingTime(long epoch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(bytes);
+        writer.writeString("originalPostingTime");
+        writer.writeLong(epoch);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    static UserMessage read(byte[] data) throws CborReader.FormatException {
+        CborReader reader = new CborReader(data);
+        UserMessage message = new UserMessage(reader);
+        reader.checkEnd();
+        return message;
+    }
+
+    static void assertMalformed(String what, byte[] data) {
+        try {
+            read(data);
+            fail(what + " was read");
+        } catch(CborReader.FormatException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void valuesAreReadBack() throws IOException {
+
+        long[] longs = {0, 1, 23, 24, 255, 256, 65535, 65536, 4294967295L, 4294967296L, Long.MAX_VALUE,
+            -1, -24, -25, -256, -257, -65537, -4294967297L, Long.MIN_VALUE};
+        double[] doubles = {0.0, -0.0, 65.0125, -25.47, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY};
+        List<String> strings = new ArrayList<>(List.of("", "a", "Café", "北", "😀"));
+        for(int length : new int[] {23, 24, 255, 256, 8183, 8184, 8192, 65535, 65536}) {
+            strings.add("x".repeat(length));
+            strings.add("é".repeat(length / 2));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(bytes);
+        writer.startArray();
+        for(long value : longs) {
+            writer.writeLong(value);
+        }
+        for(double value : doubles) {
+            writer.writeDouble(value);
+        }
+        for(String value : strings) {
+            writer.writeString(value);
+        }
+        writer.startMap();
+        writer.end();
+        writer.end();
+        writer.close();
+
+        CborReader reader = new CborReader(bytes.toByteArray());
+        assertEquals(-1, reader.readArrayStart());
+        for(long value : longs) {
+            assertEquals(value, reader.readLong());
+        }
+        for(double value : doubles) {
+            assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(reader.readDouble()));
+        }
+        for(String value : strings) {
+            assertTrue(reader.isTextString());
+            assertEquals(value, reader.readString());
+        }
+        assertEquals(-1, reader.readMapStart());
+        assertTrue(reader.readBreak());
+        assertTrue(reader.readBreak());
+        reader.checkEnd();
+    }
+
+    @Test
+    public void listingsAreReadBack() throws IOException {
+
+        List<UserMessage> messages = new ArrayList<>();
+        for(int i = 0; i < 500; i++) {
+            UserMessage message = new UserMessage("Harbour " + i, i % 7 == 0 ? "é".repeat(5000) : "Fish market 😀", "Oulu", TIME + i * 1000003L);
+            message.setLocationCountry("Finland");
+            message.setLocationStreetAddress(i % 2 == 0 ? "" : "Rantakatu " + i);
+            if(i % 3 != 0) {
+                message.setLatitude(-90 + random.nextDouble() * 180);
+                message.setLongitude(-180 + random.nextDouble() * 360);
+                message.setWeather(i % 5 == 0 ? null : "-" + i + " °C");
+            }
+            messages.add(message);
+        }
+
+        // The fields MessageDatabase writes for a listing
+        TestExchange exchange = new TestExchange("GET", "/info", null);
+        try (MessageStreamWriter writer = new MessageStreamWriter(exchange, MessageFormat.CBOR)) {
+            long id = 1;
+            for(UserMessage message : messages) {
+                writer.beginMessage();
+                writer.field("id", id++);
+                writer.field("locationName", message.getLocationName());
+                writer.field("locationDescription", message.getDescription());
+                writer.field("locationCity", message.getCity());
+                writer.field("locationCountry", message.getLocationCountry());
+                writer.field("locationStreetAddress", message.getLocationStreetAddress());
+                writer.field("originalPoster", "nick");
+                writer.timestampField("originalPostingTime", message.getPostDateAsLong());
+                if(message.getLatitude() != 0 || message.getLongitude() != 0) {
+                    writer.field("latitude", message.getLatitude());
+                    writer.field("longitude", message.getLongitude());
+                    writer.field("weather", message.getWeather());
+                }
+                writer.endMessage();
+            }
+        }
+        assertEquals(200, exchange.getResponseCode());
+        assertEquals("application/cbor", exchange.getResponseHeaders().getFirst("Content-Type"));
+
+        CborReader reader = new CborReader(exchange.getResponseBytes());
+        assertEquals(-1, reader.readArrayStart());
+        for(UserMessage message : messages) {
+            assertFalse(reader.readBreak());
+            assertEquals(describe(message), describe(new UserMessage(reader)));
+        }
+        assertTrue(reader.readBreak());
+        reader.checkEnd();
+    }
+
+    @Test
+    public void otherEncodingsAreRead() throws IOException {
+
+        // Definite lengths, a chunked string, a tag before the map and the date, and integers that are not in their shortest form
+        byte[] data = concat(bytes(0xd9, 0xd9, 0xf7, 0xa8), text("locationName"), bytes(0x7f, 0x63), "Har".getBytes("UTF-8"),
+            bytes(0x64), "bour".getBytes("UTF-8"), bytes(0x60, 0xff), text("locationDescription"), text("Fish market"),
+            text("locationCity"), text("Oulu"), text("locationCountry"), text("Finland"), text("locationStreetAddress"), text("Rantakatu 1"),
+            text("originalPostingTime"), bytes(0xc1, 0x1b, 0, 0, 0x01, 0x76, 0x84, 0x4d, 0xe8, 0xf3),
+            text("latitude"), bytes(0x18, 65), text("longitude"), bytes(0x39, 0, 24));
+        assertEquals("Harbour|Fish market|Oulu|Finland|Rantakatu 1|" + TIME + "|65.0|-25.0|null", describe(read(data)));
+
+        // Half and single precision floats
+        double[][] halves = {{0x3c00, 1.0}, {0xc000, -2.0}, {0x7bff, 65504.0}, {0x0001, 5.960464477539063e-8}, {0x0400, 6.103515625e-5},
+            {0x8000, -0.0}, {0x7c00, Double.POSITIVE_INFINITY}, {0xfc00, Double.NEGATIVE_INFINITY}, {0x7e00, Double.NaN}};
+        for(double[] half : halves) {
+            int bits = (int) half[0];
+            CborReader reader = new CborReader(bytes(0xf9, bits >> 8, bits & 0xff));
+            assertEquals(Double.doubleToLongBits(half[1]), Double.doubleToLongBits(reader.readDouble()));
+            reader.checkEnd();
+        }
+        int single = Float.floatToIntBits(65.0125f);
+        UserMessage message = read(message(postingTime(TIME), text("latitude"), bytes(0xfa, single >>> 24, single >> 16 & 0xff, single >> 8 & 0xff, single & 0xff),
+            text("longitude"), bytes(0xf9, 0x4e, 0x60), text("weather"), text("Sunny")));
+        assertEquals((double) 65.0125f, message.getLatitude(), 0);
+        assertEquals(25.5, message.getLongitude(), 0);
+        assertEquals("Sunny", message.getWeather());
+
+        // Unknown keys of any type are skipped, null and undefined values are ignored
+        message = read(message(postingTime(TIME), text("extra"), bytes(0xa1, 0x9f, 0x5f, 0x41, 0, 0xff, 0xf5, 0xff, 0xc0, 0x01),
+            text("tags"), bytes(0x82, 0xf4, 0xfb, 0, 0, 0, 0, 0, 0, 0, 0), text("latitude"), bytes(0xf6), text("longitude"), bytes(0xf7)));
+        assertEquals(0.0, message.getLatitude(), 0);
+
+        // Only one coordinate: the weather is not kept
+        message = read(message(postingTime(TIME), text("latitude"), bytes(0x01), text("weather"), text("Sunny")));
+        assertEquals(null, message.getWeather());
+    }
+
+    @Test
+    public void postingTimesCanBeStrings() throws IOException {
+        UserMessage message = read(message(text("originalPostingTime"), text("2020-12-21T09:57:47.123+02")));
+        assertEquals(TIME, message.getPostDateAsLong());
+        message = read(message(text("originalPostingTime"), bytes(0xc0), text("2020-12-21T07:57:47.123Z")));
+        assertEquals(TIME, message.getPostDateAsLong());
+        assertMalformed("An invalid date", message(text("originalPostingTime"), text("yesterday")));
+        assertMalformed("A date of the wrong type", message(text("originalPostingTime"), bytes(0xfb, 0x42, 0x77, 0x69, 0x3e, 0xb6, 0xbf, 0x30, 0)));
+    }
+
+    @Test
+    public void malformedInputIsRejected() throws IOException {
+
+        assertMalformed("A mandatory value missing", concat(bytes(0xbf), mandatoryPairs(), bytes(0xff)));
+        assertMalformed("A string of the wrong type", message(postingTime(TIME), text("locationCity"), bytes(0x01)));
+        assertMalformed("Data after the message", concat(message(postingTime(TIME)), bytes(0x00)));
+
+        // An integer over 2^63 - 1, as a date and as a coordinate
+        byte[] overLong = bytes(0x1b, 0x80, 0, 0, 0, 0, 0, 0, 0);
+        assertMalformed("An over-long date", message(text("originalPostingTime"), overLong, text("latitude"), bytes(0x01)));
+        assertMalformed("An over-long negative date", message(text("originalPostingTime"), bytes(0x3b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff)));
+        assertMalformed("An over-long coordinate", message(postingTime(TIME), text("latitude"), overLong));
+
+        // Lengths larger than the data
+        assertMalformed("A string longer than the data", message(postingTime(TIME), text("x"), bytes(0x7a, 0xff, 0xff, 0xff, 0xff, 0x41)));
+        assertMalformed("A byte string longer than the data", message(postingTime(TIME), text("x"), bytes(0x5b, 0x7f, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff)));
+        assertMalformed("A string over 2^63 - 1 bytes", message(postingTime(TIME), text("locationName"), bytes(0x7b, 0xff, 0, 0, 0, 0, 0, 0, 0)));
+        assertMalformed("An array longer than the data", message(postingTime(TIME), text("x"), bytes(0x9a, 0x7f, 0xff, 0xff, 0xff)));
+        assertMalformed("A map longer than the data", message(postingTime(TIME), text("x"), bytes(0xbb, 0x40, 0, 0, 0, 0, 0, 0, 0, 0x01, 0x02)));
+        assertMalformed("A message longer than the data", concat(bytes(0xb9, 0xff, 0xff), mandatoryPairs(), postingTime(TIME)));
+
+        // Chunked strings that are not made of definite text strings
+        assertMalformed("A nested chunked string", message(postingTime(TIME), text("locationName"), bytes(0x7f, 0x7f, 0x61, 0x61, 0xff, 0xff)));
+        assertMalformed("A byte string chunk in a text string", message(postingTime(TIME), text("locationName"), bytes(0x7f, 0x41, 0x61, 0xff)));
+        assertMalformed("A nested chunked string under an unknown key", message(postingTime(TIME), text("x"), bytes(0x7f, 0x7f, 0xff, 0xff)));
+
+        // Breaks outside of an item of indefinite length
+        assertMalformed("A break instead of the message", bytes(0xff));
+        assertMalformed("A break as a value", message(postingTime(TIME), text("locationName"), bytes(0xff)));
+        assertMalformed("A break under an unknown key", message(postingTime(TIME), text("x"), bytes(0xff)));
+        assertMalformed("A break in a definite array", message(postingTime(TIME), text("x"), bytes(0x81, 0xff)));
+        assertMalformed("A break in a definite map", concat(bytes(0xa7), mandatoryPairs(), postingTime(TIME), bytes(0xff)));
+
+        // Reserved additional information, and integers of indefinite length
+        assertMalformed("Reserved additional information", message(postingTime(TIME), text("x"), bytes(0x1c)));
+        assertMalformed("An integer of indefinite length", message(postingTime(TIME), text("x"), bytes(0x1f, 0xff)));
+        assertMalformed("A tag without an item", concat(bytes(0xbf), mandatoryPairs(), postingTime(TIME), bytes(0xc1)));
+
+        // Deep nesting under an unknown key
+        byte[] deep = new byte[10000];
+        Arrays.fill(deep, (byte) 0x81);
+        assertMalformed("Deep nesting", message(postingTime(TIME), text("x"), deep, bytes(0x00)));
+    }
+
+    @Test
+    public void truncatedInputIsRejected() throws IOException {
+        byte[] data = message(postingTime(TIME), text("latitude"), bytes(0xf9, 0x3c, 0x00), text("longitude"), bytes(0xfb, 0x40, 0x39, 0x78, 0x51, 0xeb, 0x85, 0x1e, 0xb8),
+            text("weather"), bytes(0x7f, 0x62), "Su".getBytes("UTF-8"), bytes(0x63), "nny".getBytes("UTF-8"), bytes(0xff),
+            text("x"), bytes(0x9f, 0xa1, 0x01, 0x5f, 0x41, 0x00, 0xff, 0xc1, 0x1a, 0x5f, 0xe0, 0x5f, 0x7b, 0xff));
+        read(data);
+        for(int length = 0; length < data.length; length++) {
+            assertMalformed("A message cut at " + length, Arrays.copyOf(data, length));
+        }
+    }
+
+    @Test
+    public void damagedInputThrowsOnlyFormatExceptions() throws IOException {
+        byte[] data = message(postingTime(TIME), text("latitude"), bytes(0xf9, 0x3c, 0x00), text("longitude"), bytes(0xfa, 0x41, 0xcc, 0x00, 0x00),
+            text("x"), bytes(0x9f, 0xa1, 0x01, 0x5f, 0x41, 0x00, 0xff, 0xc1, 0x1a, 0x5f, 0xe0, 0x5f, 0x7b, 0xff));
+        for(int i = 0; i < 100000; i++) {
+            byte[] damaged = data.clone();
+            for(int j = 1 + random.nextInt(3); j > 0; j--) {
+                damaged[random.nextInt(damaged.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                read(damaged);
+            } catch(CborReader.FormatException e) {
+                // Rejected, as it should be if it is not a message anymore
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* Borrowing and returning connections, and replacing the ones that break while borrowed.
+*/
+public class ConnectionPoolTest {
+
+    static final int SIZE = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ConnectionPool pool;
+
+    @Before
+    public void openPool() throws Exception {
+        System.setProperty("db.borrowTimeoutMillis", "200"); // Read when the pool is created
+        pool = new ConnectionPool("jdbc:sqlite:" + folder.newFile("pool.db"), SIZE);
+    }
+
+    @After
+    public void closePool() {
+        pool.close();
+        System.clearProperty("db.borrowTimeoutMillis");
+    }
+
+    static void assertUsable(PooledConnection connection) throws SQLException {
+        try (ResultSet result = connection.prepare("PRAGMA journal_mode").executeQuery()) {
+            assertTrue(result.next());
+            assertEquals("wal", result.getString(1));
+        }
+        try (ResultSet result = connection.prepare("PRAGMA busy_timeout").executeQuery()) {
+            assertTrue(result.next());
+            assertTrue(result.getLong(1) > 0);
+        }
+    }
+
+    /**
+    * Borrows every connection of the pool, checks that each works and that no more can be borrowed, and returns them.
+    */
+    void assertPoolHasAllConnections() throws SQLException {
+        List<PooledConnection> borrowed = new ArrayList<>();
+        Set<PooledConnection> distinct = new HashSet<>();
+        for(int i = 0; i < SIZE; i++) {
+            PooledConnection connection = pool.borrow();
+            assertUsable(connection);
+            borrowed.add(connection);
+            distinct.add(connection);
+        }
+        assertEquals(SIZE, distinct.size());
+        try {
+            pool.borrow().close();
+            fail("Borrowed more connections than the pool has");
+        } catch(SQLException e) {
+            // Expected, all are in use
+        }
+        for(PooledConnection connection : borrowed) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void returnedConnectionsAreBorrowedAgain() throws SQLException {
+        assertPoolHasAllConnections();
+        PooledConnection connection = pool.borrow();
+        connection.getConnection().setAutoCommit(false);
+        connection.close(); // Rolled back and returned
+        assertPoolHasAllConnections();
+    }
+
+    @Test
+    public void aBrokenConnectionIsReplaced() throws SQLException {
+        PooledConnection broken = pool.borrow();
+        broken.getConnection().setAutoCommit(false);
+        broken.getConnection().close(); // The rollback in close() fails
+        broken.close();
+
+        assertPoolHasAllConnections();
+        for(int i = 0; i < SIZE; i++) {
+            PooledConnection connection = pool.borrow();
+            assertNotSame(broken, connection);
+            connection.close();
+        }
+    }
+
+    @Test
+    public void everyConnectionCanBreak() throws SQLException {
+        for(int round = 0; round < 2; round++) {
+            List<PooledConnection> borrowed = new ArrayList<>();
+            for(int i = 0; i < SIZE; i++) {
+                borrowed.add(pool.borrow());
+            }
+            for(PooledConnection connection : borrowed) {
+                connection.getConnection().setAutoCommit(false);
+                connection.getConnection().close();
+                connection.close();
+            }
+        }
+        assertPoolHasAllConnections();
+    }
+
+    @Test
+    public void aConnectionBrokenAfterClosingThePoolIsNotReplaced() throws SQLException {
+        PooledConnection broken = pool.borrow();
+        pool.close();
+        broken.close(); // The connection was closed with the pool
+        try {
+            pool.borrow();
+            fail("Borrowed from a closed pool");
+        } catch(SQLException e) {
+            // Expected
+        }
+    }
+}
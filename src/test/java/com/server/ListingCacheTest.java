@@ -0,0 +1,141 @@
+package com.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+* Listings are used while the ETag they were stored with is current, and the cache stays within its byte limit.
+*/
+public class ListingCacheTest {
+
+    ListingCache cache;
+
+    @Before
+    public void createCache() {
+        System.setProperty("listing.cacheBytes", "1000"); // Read when the cache is created
+        System.setProperty("listing.maxEntryBytes", "400");
+        cache = new ListingCache();
+    }
+
+    @After
+    public void clearProperties() {
+        System.clearProperty("listing.cacheBytes");
+        System.clearProperty("listing.maxEntryBytes");
+    }
+
+    static byte[] body(int length, char fill) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) fill);
+        return body;
+    }
+
+    @Test
+    public void listingsAreUsedWhileTheirETagIsCurrent() {
+
+        byte[] body = body(100, 'a');
+        cache.put("JSON city=Oulu", "W/\"1\"", body);
+        assertSame(body, cache.get("JSON city=Oulu", "W/\"1\"").getBody());
+        assertSame(body, cache.get("JSON city=Oulu", "W/\"1\"").getBody());
+        assertNull(cache.get("CBOR city=Oulu", "W/\"1\""));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // After a write the listing is outdated and dropped
+        assertNull(cache.get("JSON city=Oulu", "W/\"2\""));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCachedBytes());
+        assertNull(cache.get("JSON city=Oulu", "W/\"1\""));
+
+        // A listing read again is stored with the new ETag, replacing any older one
+        cache.put("JSON city=Oulu", "W/\"2\"", body(50, 'b'));
+        cache.put("JSON city=Oulu", "W/\"3\"", body(70, 'c'));
+        assertEquals(1, cache.size());
+        assertEquals(70, cache.getCachedBytes());
+        assertNull(cache.get("JSON city=Oulu", "W/\"2\""));
+        cache.put("JSON city=Oulu", "W/\"3\"", body(70, 'c'));
+        assertArrayEquals(body(70, 'c'), cache.get("JSON city=Oulu", "W/\"3\"").getBody());
+
+        // An empty listing (no messages) is stored too
+        cache.put("JSON city=Turku", "W/\"3\"", new byte[0]);
+        assertEquals(0, cache.get("JSON city=Turku", "W/\"3\"").getBody().length);
+    }
+
+    @Test
+    public void leastRecentlyUsedListingsAreEvictedAtTheByteLimit() {
+
+        cache.put("a", "e", body(300, 'a'));
+        cache.put("b", "e", body(300, 'b'));
+        cache.put("c", "e", body(300, 'c'));
+        assertEquals(900, cache.getCachedBytes());
+        assertNotNull(cache.get("a", "e")); // b is now the least recently used
+
+        cache.put("d", "e", body(300, 'd'));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.size());
+        assertEquals(900, cache.getCachedBytes());
+        assertNull(cache.get("b", "e"));
+        assertNotNull(cache.get("a", "e"));
+        assertNotNull(cache.get("c", "e"));
+        assertNotNull(cache.get("d", "e"));
+
+        // Filling the cache exactly does not evict anything, one byte more evicts the eldest
+        cache.put("e", "e", body(100, 'e'));
+        assertEquals(1000, cache.getCachedBytes());
+        assertEquals(1, cache.getEvictions());
+        cache.put("f", "e", body(1, 'f'));
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get("a", "e"));
+        assertEquals(701, cache.getCachedBytes());
+
+        // A listing that grows when it is read again may evict others
+        cache.put("f", "e", body(400, 'f'));
+        assertEquals(800, cache.getCachedBytes());
+        assertEquals(3, cache.size());
+        assertNull(cache.get("c", "e"));
+    }
+
+    @Test
+    public void listingsLargerThanTheEntryLimitAreNotStored() {
+
+        assertEquals(400, cache.getMaxEntryBytes());
+        cache.put("a", "e", body(300, 'a'));
+        cache.put("b", "e", body(400, 'b'));
+        assertNotNull(cache.get("b", "e"));
+
+        cache.put("c", "e", body(401, 'c'));
+        assertNull(cache.get("c", "e"));
+        assertEquals(700, cache.getCachedBytes());
+        assertEquals(0, cache.getEvictions());
+
+        // A listing that grew too large is not stored, and the older one is left as it was
+        cache.put("a", "f", body(401, 'a'));
+        assertNotNull(cache.get("a", "e"));
+        assertEquals(700, cache.getCachedBytes());
+    }
+
+    @Test
+    public void theGzipCopyIsMadeOnce() throws IOException {
+
+        byte[] body = ("[" + "{\"locationName\":\"Harbour\"},".repeat(10) + "{}]").getBytes("UTF-8");
+        cache.put("a", "e", body);
+        ListingCache.CachedListing listing = cache.get("a", "e");
+        byte[] gzip = listing.getGzipBody();
+        assertSame(gzip, listing.getGzipBody());
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            assertArrayEquals(body, input.readAllBytes());
+        }
+        assertEquals(body.length, cache.getCachedBytes());
+    }
+}
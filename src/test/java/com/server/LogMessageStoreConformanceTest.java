@@ -0,0 +1,19 @@
+package com.server;
+
+import java.sql.SQLException;
+
+/**
+* Runs the MessageStore conformance tests against the log engine, with segments small enough that the messages
+* of a test span several of them.
+*/
+public class LogMessageStoreConformanceTest extends MessageStoreConformanceTest {
+
+    @Override
+    MessageStore open(String name) throws SQLException {
+        System.setProperty("db.name", name); // Only used if the instance is created now
+        System.setProperty("log.segmentBytes", "1024");
+        LogMessageStore store = LogMessageStore.getInstance();
+        store.open(name);
+        return store;
+    }
+}
@@ -0,0 +1,162 @@
+package com.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* Recovery of a single segment file. A crash is simulated by copying the file of an active segment, as it is in the page cache,
+* and then cutting or damaging the copy the way an interrupted write could have left it on the disk.
+*/
+public class LogSegmentTest {
+
+    static final int PAYLOAD_BYTES = 20;
+    static final int RECORD_BYTES = LogSegment.HEADER_BYTES + PAYLOAD_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path directory;
+    Path crashed;
+
+    @Before
+    public void createDirectories() throws IOException {
+        directory = folder.newFolder("written").toPath();
+        crashed = folder.newFolder("crashed").toPath().resolve(LogSegment.fileName(1));
+    }
+
+    static byte[] payload(int value) {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        ByteBuffer.wrap(payload).putInt(value);
+        return payload;
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+    * Writes single record batches 1..records to an active segment and copies its file.
+    */
+    LogSegment writeAndCrash(int records) throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, 4096);
+        for(int i = 1; i <= records; i++) {
+            segment.append(payload(i), false);
+        }
+        Files.copy(segment.getPath(), crashed);
+        return segment;
+    }
+
+    void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), position);
+        }
+    }
+
+    void assertRecovered(LogSegment recovered, int records) throws IOException {
+        assertEquals(records, recovered.getCount());
+        assertEquals(records * RECORD_BYTES, recovered.getSize());
+        assertEquals(records, recovered.getLastSequence());
+        assertEquals(recovered.getSize(), Files.size(recovered.getPath())); // The rest is cut off the file
+        for(int i = 1; i <= records; i++) {
+            assertArrayEquals(payload(i), bytes(recovered.read(i)));
+        }
+    }
+
+    @Test
+    public void recoversAllRecordsOfAnActiveSegment() throws IOException {
+        writeAndCrash(3);
+        assertEquals(4096, Files.size(crashed)); // The unwritten capacity is zeros
+        assertRecovered(LogSegment.recover(crashed, 1, true), 3);
+    }
+
+    @Test
+    public void cutsATornRecordOff() throws IOException {
+        writeAndCrash(3);
+        truncate(crashed, 2 * RECORD_BYTES + LogSegment.HEADER_BYTES + 5);
+        assertRecovered(LogSegment.recover(crashed, 1, true), 2);
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws IOException {
+        writeAndCrash(4);
+        flipByte(crashed, RECORD_BYTES + LogSegment.HEADER_BYTES + 3); // In the payload of the second record
+        assertRecovered(LogSegment.recover(crashed, 1, true), 1);
+    }
+
+    @Test
+    public void stopsAtARecordWithTheWrongSequenceNumber() throws IOException {
+        writeAndCrash(3);
+        flipByte(crashed, 2 * RECORD_BYTES + 15); // In the sequence number of the third record
+        assertRecovered(LogSegment.recover(crashed, 1, true), 2);
+    }
+
+    @Test
+    public void dropsABatchWithoutItsLastRecord() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, 4096);
+        segment.append(payload(1), false);
+        segment.append(payload(2), true); // A batch of three, of which the last was not written
+        segment.append(payload(3), true);
+        Files.copy(segment.getPath(), crashed);
+
+        assertRecovered(LogSegment.recover(crashed, 1, true), 1);
+    }
+
+    @Test
+    public void dropsABatchWhoseLastRecordIsTorn() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, 4096);
+        segment.append(payload(1), false);
+        segment.append(payload(2), false);
+        segment.append(payload(3), true);
+        segment.append(payload(4), true);
+        segment.append(payload(5), false);
+        Files.copy(segment.getPath(), crashed);
+        truncate(crashed, 5 * RECORD_BYTES - 1);
+
+        assertRecovered(LogSegment.recover(crashed, 1, true), 2);
+    }
+
+    @Test
+    public void aSegmentBeforeTheLastMustBeComplete() throws IOException {
+        writeAndCrash(3);
+        truncate(crashed, 3 * RECORD_BYTES - 1);
+        try {
+            LogSegment.recover(crashed, 1, false);
+            fail("A damaged segment before the last one was recovered");
+        } catch(IOException e) {
+            // Expected, and the file is left as it was
+        }
+        assertEquals(3 * RECORD_BYTES - 1, Files.size(crashed));
+    }
+
+    @Test
+    public void aSealedSegmentIsReadAsItWasWritten() throws IOException {
+        LogSegment segment = writeAndCrash(3);
+        segment.seal();
+        assertEquals(3 * RECORD_BYTES, Files.size(segment.getPath()));
+        assertRecovered(LogSegment.recover(segment.getPath(), 1, false), 3);
+    }
+}
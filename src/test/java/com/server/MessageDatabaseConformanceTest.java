@@ -0,0 +1,137 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+* Runs the MessageStore conformance tests against the SQLite engine. The pool has one connection, so that a statement
+* left in a bad state by a failed insert is used by the next one. The tests of this class check that the ids of the
+* messages do not change, since clients keep them as cursors and the indexes refer to the messages with them.
+*/
+public class MessageDatabaseConformanceTest extends MessageStoreConformanceTest {
+
+    @Override
+    MessageStore open(String name) throws SQLException {
+        System.setProperty("db.name", name); // Only used if the instance is created now
+        System.setProperty("db.poolSize", "1");
+        MessageDatabase database = MessageDatabase.getInstance();
+        database.open(name);
+        return database;
+    }
+
+    /**
+    * Runs statements on the database file with a connection of its own, as a maintenance tool would.
+    */
+    static void execute(String file, String... statements) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+            Statement statement = connection.createStatement()) {
+            for(String sql : statements) {
+                statement.executeUpdate(sql);
+            }
+        }
+    }
+
+    static List<Long> ids(List<JSONObject> messages) {
+        List<Long> ids = new ArrayList<>();
+        for(JSONObject message : messages) {
+            ids.add(message.getLong("id"));
+        }
+        return ids;
+    }
+
+    @Test
+    public void idsStayTheSameAfterDeletesAndVacuum() throws Exception {
+
+        store.insertMessage(located("harbour a", 65.0, 25.4), "nick");
+        store.insertMessage(located("harbour b", 65.1, 25.5), "nick");
+        store.insertMessage(located("harbour c", 65.2, 25.6), "nick");
+        store.insertMessage(located("harbour d", 65.3, 25.7), "nick");
+        List<Long> before = ids(listAll());
+
+        // The deleted ids are in the middle and at the end, where a plain rowid would be given to the next message
+        execute(name, "DELETE FROM messages WHERE id = " + before.get(1), "DELETE FROM messages WHERE id = " + before.get(3), "VACUUM");
+        store.close();
+        store.open(name);
+
+        List<JSONObject> messages = listAll();
+        assertEquals(List.of("harbour a", "harbour c"), names(messages));
+        assertEquals(List.of(before.get(0), before.get(2)), ids(messages));
+
+        store.insertMessage(located("harbour e", 65.4, 25.8), "nick");
+        assertTrue(store.getLatestMessageId() > before.get(3));
+
+        // The indexes find the same messages by their ids
+        MessageQuery query = new MessageQuery();
+        query.setSearch("harbour");
+        assertEquals(Set.of("harbour a", "harbour c", "harbour e"), nameSet(list(query)));
+        query = new MessageQuery();
+        query.setBoundingBox(new BoundingBox(65.15, 25.55, 65.25, 25.65));
+        assertEquals(List.of("harbour c"), names(list(query)));
+        query = new MessageQuery();
+        query.setNear(65.41, 25.81);
+        query.setK(1);
+        assertEquals(List.of("harbour e"), names(list(query)));
+    }
+
+    @Test
+    public void anOlderDatabaseKeepsItsRowidsAsIds() throws Exception {
+
+        store.close();
+        String older = folder.getRoot().toPath().resolve("older").toString();
+        String columns = "locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, "
+            + "originalPoster, originalPostingTime, latitude, longitude, weather";
+        execute(older,
+            "create table users (username varchar(50) NOT NULL, password varchar(50) NOT NULL, email varchar(50), userNickname varchar(50) NOT NULL, primary key(username))",
+            "create table messages (" + columns + ")", // Without an id, as the tables were created before
+            "CREATE INDEX messages_time ON messages (originalPostingTime)",
+            "CREATE VIRTUAL TABLE messages_fts USING fts5(locationName, locationDescription, locationCity, locationStreetAddress, content='messages', content_rowid='rowid')",
+            "INSERT INTO messages (rowid, " + columns + ") VALUES (3, 'Old harbour', 'fish', 'Oulu', NULL, NULL, 'nick', " + TIME + ", 65.0, 25.4, NULL)",
+            "INSERT INTO messages (rowid, " + columns + ") VALUES (7, 'Museum', 'boats', 'Oulu', NULL, NULL, 'nick', " + TIME + ", 0, 0, NULL)",
+            "INSERT INTO messages (rowid, " + columns + ") VALUES (8, 'Cathedral', 'by the harbour', 'Turku', NULL, NULL, 'nick', " + TIME + ", 60.45, 22.28, NULL)",
+            "INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')");
+
+        store = open(older);
+        List<JSONObject> messages = listAll();
+        assertEquals(List.of("Old harbour", "Museum", "Cathedral"), names(messages));
+        assertEquals(List.of(3L, 7L, 8L), ids(messages));
+        assertEquals(TimestampConverter.convertToString(TIME), messages.get(0).getString("originalPostingTime"));
+
+        store.insertMessage(located("Park", 65.01, 25.47), "nick");
+        assertEquals(9, store.getLatestMessageId());
+
+        MessageQuery query = new MessageQuery();
+        query.setSearch("harbour");
+        assertEquals(Set.of("Old harbour", "Cathedral"), nameSet(list(query)));
+        query = new MessageQuery();
+        query.setNear(65.0, 25.41);
+        query.setK(3);
+        assertEquals(List.of("Old harbour", "Park", "Cathedral"), names(list(query)));
+        query = new MessageQuery();
+        query.setCity("Oulu");
+        query.setAfter(3);
+        assertEquals(List.of("Museum"), names(list(query)));
+
+        // Opened again, the table is not converted again
+        store.close();
+        store.open(older);
+        assertEquals(List.of(3L, 7L, 8L, 9L), ids(listAll()));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + older);
+            Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery("SELECT count(*) FROM sqlite_master WHERE name LIKE 'messages_migrated%'")) {
+            assertTrue(result.next());
+            assertEquals(0, result.getInt(1));
+        }
+    }
+}
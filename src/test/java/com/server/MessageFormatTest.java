@@ -0,0 +1,64 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+* Choosing the format of a listing from the Accept header, and the format of a posted message from its Content-Type.
+*/
+public class MessageFormatTest {
+
+    static void assertNegotiated(MessageFormat expected, String accept) {
+        assertEquals(accept, expected, MessageFormat.negotiate(accept));
+    }
+
+    @Test
+    public void cborIsSentOnlyWhenPreferred() {
+        assertNegotiated(MessageFormat.JSON, null);
+        assertNegotiated(MessageFormat.JSON, "");
+        assertNegotiated(MessageFormat.JSON, "*/*");
+        assertNegotiated(MessageFormat.JSON, "application/*");
+        assertNegotiated(MessageFormat.JSON, "application/json");
+        assertNegotiated(MessageFormat.JSON, "text/html, application/xhtml+xml, application/xml;q=0.9, */*;q=0.8");
+        assertNegotiated(MessageFormat.JSON, "application/json, application/cbor");
+        assertNegotiated(MessageFormat.JSON, "application/json;q=0.5, application/cbor;q=0.5");
+        assertNegotiated(MessageFormat.JSON, "application/json;q=0.9, application/cbor;q=0.1, */*");
+        assertNegotiated(MessageFormat.JSON, "application/cbor;q=0, */*");
+        assertNegotiated(MessageFormat.JSON, "application/cbor;q=abc");
+        assertNegotiated(MessageFormat.CBOR, "application/cbor");
+        assertNegotiated(MessageFormat.CBOR, "Application/CBOR");
+        assertNegotiated(MessageFormat.CBOR, "application/cbor, application/json;q=0.9");
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.5 , application/cbor ; q=0.8");
+    }
+
+    @Test
+    public void theMostSpecificRangeGivesTheQuality() {
+        // The explicit JSON range counts, not the wildcard that would give JSON a quality of 1
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.1, application/cbor;q=0.5, */*");
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.1, application/cbor;q=0.5, application/*");
+        assertNegotiated(MessageFormat.CBOR, "*/*, application/json;q=0.1, application/cbor;q=0.5");
+        // A wildcard gives CBOR the quality the client did not give JSON
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.5, */*");
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.5, application/*;q=0.8, */*;q=0.1");
+        assertNegotiated(MessageFormat.JSON, "application/cbor;q=0.5, */*");
+        assertNegotiated(MessageFormat.JSON, "application/*;q=0.1, */*;q=1");
+        // The same range twice: the higher quality counts
+        assertNegotiated(MessageFormat.CBOR, "application/json;q=0.4, application/cbor;q=0.3, application/cbor;q=0.6");
+    }
+
+    @Test
+    public void bodiesAreReadByTheirContentType() {
+        assertEquals(MessageFormat.JSON, MessageFormat.fromContentType("application/json"));
+        assertEquals(MessageFormat.JSON, MessageFormat.fromContentType("application/json; charset=utf-8"));
+        assertEquals(MessageFormat.CBOR, MessageFormat.fromContentType("Application/Cbor"));
+        assertEquals(null, MessageFormat.fromContentType("text/plain"));
+        assertEquals(null, MessageFormat.fromContentType(null));
+    }
+
+    @Test
+    public void cborListingsHaveTheirOwnETag() {
+        assertEquals("\"12-5\"", MessageFormat.JSON.tag("\"12-5\""));
+        assertEquals("\"12-5-cbor\"", MessageFormat.CBOR.tag("\"12-5\""));
+    }
+}
@@ -0,0 +1,199 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* Conditional GET requests of the listing: the validators sent with it, and 304 Not Modified without a body when the client's
+* copy is current, and the answers to posts the store cannot take. The handler uses the SQLite store, opened in a temporary folder.
+*/
+public class MessageHandlerTest {
+
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    static final long TIME = 1608537467123L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    String name;
+    MessageStore store;
+    MessageHandler handler;
+
+    @Before
+    public void openStore() throws Exception {
+        name = folder.getRoot().toPath().resolve("messages").toString();
+        System.setProperty("db.name", name); // Only used if the instance is created now
+        store = MessageDatabase.getInstance();
+        store.open(name);
+        store.insertMessage(new UserMessage("Harbour", "Fish market", "Oulu", TIME), "nick");
+        store.insertMessage(new UserMessage("Museum", "Boats", "Oulu", TIME + 1000), "nick");
+        handler = new MessageHandler();
+    }
+
+    @After
+    public void closeStore() throws Exception {
+        store.close();
+    }
+
+    /**
+    * Handles a GET request of the listing.
+    * @param headers the request headers, as name and value in turns.
+    */
+    TestExchange get(String... headers) throws Exception {
+        TestExchange exchange = new TestExchange("GET", "/info", null);
+        for(int i = 0; i < headers.length; i += 2) {
+            exchange.getRequestHeaders().add(headers[i], headers[i + 1]);
+        }
+        handler.handle(exchange);
+        return exchange;
+    }
+
+    /**
+    * Handles a POST request of a message from an authenticated user.
+    */
+    TestExchange post(String body) throws Exception {
+        TestExchange exchange = new TestExchange("POST", "/info", body.getBytes(StandardCharsets.UTF_8));
+        exchange.getRequestHeaders().set("Content-Type", "application/json");
+        exchange.setPrincipal(new UserPrincipal("john", "john123", "info"));
+        handler.handle(exchange);
+        return exchange;
+    }
+
+    static final String MESSAGE = "{\"locationName\":\"Cathedral\",\"locationDescription\":\"Tower\","
+        + "\"locationCity\":\"Turku\",\"locationCountry\":\"Finland\",\"locationStreetAddress\":\"\",\"originalPostingTime\":\"2020-12-21T07:57:47.123Z\"}";
+
+    static void assertListing(TestExchange exchange) {
+        assertEquals(200, exchange.getResponseCode());
+        assertTrue(exchange.getResponseBytes().length > 0);
+    }
+
+    static void assertNotModified(TestExchange exchange) {
+        assertEquals(304, exchange.getResponseCode());
+        assertEquals(-1, exchange.getResponseLength());
+        assertEquals(0, exchange.getResponseBytes().length);
+    }
+
+    static String etag(TestExchange exchange) {
+        return exchange.getResponseHeaders().getFirst("ETag");
+    }
+
+    @Test
+    public void aCurrentListingIsNotSentAgain() throws Exception {
+
+        TestExchange first = get();
+        assertListing(first);
+        String etag = etag(first);
+        assertTrue(etag, etag.startsWith("W/\""));
+        assertEquals("no-cache", first.getResponseHeaders().getFirst("Cache-Control"));
+
+        TestExchange second = get("If-None-Match", etag);
+        assertNotModified(second);
+        assertEquals(etag, etag(second)); // The validators are sent with 304 too
+        assertEquals(first.getResponseHeaders().getFirst("Last-Modified"), second.getResponseHeaders().getFirst("Last-Modified"));
+    }
+
+    @Test
+    public void entityTagsAreComparedWeakly() throws Exception {
+
+        String etag = etag(get());
+        String strong = etag.substring(2);
+
+        assertNotModified(get("If-None-Match", strong));
+        assertNotModified(get("If-None-Match", "*"));
+        assertNotModified(get("If-None-Match", "\"other\", " + etag));
+        assertNotModified(get("If-None-Match", "W/\"other\",W/\"another\" ,  " + strong + " "));
+        assertNotModified(get("If-None-Match", "\"other\"", "If-None-Match", etag)); // Header lines are parts of one list
+        assertListing(get("If-None-Match", "\"other\""));
+        assertListing(get("If-None-Match", "\"other\", W/\"another\""));
+        assertListing(get("If-None-Match", etag.substring(0, etag.length() - 1) + "0\""));
+        assertListing(get("If-None-Match", ""));
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() throws Exception {
+
+        TestExchange first = get();
+        String lastModified = first.getResponseHeaders().getFirst("Last-Modified");
+        String later = HTTP_DATE.format(ZonedDateTime.parse(lastModified, HTTP_DATE).plusDays(1));
+        String earlier = HTTP_DATE.format(ZonedDateTime.parse(lastModified, HTTP_DATE).minusDays(1));
+
+        assertNotModified(get("If-Modified-Since", lastModified));
+        assertNotModified(get("If-Modified-Since", later));
+        assertListing(get("If-Modified-Since", earlier));
+        assertListing(get("If-Modified-Since", "yesterday"));
+
+        // A date that would give 304 does not when the entity tag does not match, and the other way around
+        assertListing(get("If-None-Match", "\"other\"", "If-Modified-Since", later));
+        assertNotModified(get("If-None-Match", etag(first), "If-Modified-Since", earlier));
+    }
+
+    @Test
+    public void eachFormatHasItsOwnEntityTag() throws Exception {
+
+        TestExchange json = get();
+        TestExchange cbor = get("Accept", "application/cbor");
+        assertListing(cbor);
+        assertEquals("application/cbor", cbor.getResponseHeaders().getFirst("Content-Type"));
+        assertNotEquals(etag(json), etag(cbor));
+        assertTrue(cbor.getResponseHeaders().getFirst("Vary").contains("Accept"));
+
+        assertListing(get("Accept", "application/cbor", "If-None-Match", etag(json)));
+        assertListing(get("If-None-Match", etag(cbor)));
+        assertNotModified(get("Accept", "application/cbor", "If-None-Match", etag(cbor)));
+        assertNotModified(get("Accept", "application/cbor", "If-None-Match", etag(cbor).substring(2)));
+    }
+
+    @Test
+    public void aWriteChangesTheEntityTag() throws Exception {
+
+        TestExchange before = get();
+        String etag = etag(before);
+        String cborTag = etag(get("Accept", "application/cbor"));
+
+        assertEquals(200, post(MESSAGE).getResponseCode());
+
+        TestExchange after = get("If-None-Match", etag);
+        assertListing(after);
+        assertNotEquals(etag, etag(after));
+        assertTrue(new String(after.getResponseBytes(), StandardCharsets.UTF_8).contains("Cathedral"));
+        assertListing(get("Accept", "application/cbor", "If-None-Match", cborTag));
+        assertNotModified(get("If-None-Match", etag(after)));
+    }
+
+    @Test
+    public void aMessageTheStoreCannotTakeIsToBeRetried() throws Exception {
+
+        // The store fails every insert, as it would when the database stays locked
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + name); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TRIGGER failing BEFORE INSERT ON messages BEGIN SELECT RAISE(ABORT, 'database is locked'); END");
+        }
+        String etag = etag(get());
+
+        TestExchange post = post(MESSAGE);
+        assertEquals(503, post.getResponseCode());
+        assertEquals("1", post.getResponseHeaders().getFirst("Retry-After"));
+        assertNotModified(get("If-None-Match", etag));
+
+        // A faulty message is still the client's error
+        TestExchange faulty = post(MESSAGE.replace("\"locationName\":\"Cathedral\",", ""));
+        assertEquals(400, faulty.getResponseCode());
+        assertNull(faulty.getResponseHeaders().getFirst("Retry-After"));
+        assertEquals(400, post("{\"locationName\":").getResponseCode());
+    }
+}
@@ -0,0 +1,366 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* The behaviour every MessageStore engine must share, as seen by the clients. Each engine has a subclass that opens it;
+* the same messages and queries are then expected to give the same listings, except that search results are compared
+* as sets, since only SQLite ranks them.
+*/
+public abstract class MessageStoreConformanceTest {
+
+    static final long TIME = 1700000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    MessageStore store;
+    String name;
+
+    /**
+    * Opens a new, empty store of the engine.
+    * @param name the name of the store, in an empty temporary folder.
+    */
+    abstract MessageStore open(String name) throws SQLException;
+
+    @Before
+    public void openStore() throws Exception {
+        name = folder.getRoot().toPath().resolve("messages").toString();
+        store = open(name);
+    }
+
+    @After
+    public void closeStore() throws SQLException {
+        store.close();
+    }
+
+    static UserMessage message(String name, String description, String city, long time) {
+        return new UserMessage(name, description, city, time);
+    }
+
+    static UserMessage located(String name, double latitude, double longitude) {
+        UserMessage msg = message(name, "somewhere", "City", TIME);
+        msg.setLatitude(latitude);
+        msg.setLongitude(longitude);
+        return msg;
+    }
+
+    /**
+    * @return the messages of one page of the listing.
+    */
+    List<JSONObject> list(MessageQuery query) throws SQLException, IOException {
+        StringWriter json = new StringWriter();
+        MessageStreamWriter writer = new MessageStreamWriter(json);
+        int count = store.writeMessages(query, writer);
+        writer.close();
+
+        List<JSONObject> messages = new ArrayList<>();
+        JSONTokener tokener = new JSONTokener(json.toString());
+        while(tokener.nextClean() != 0) {
+            tokener.back();
+            messages.add((JSONObject) tokener.nextValue());
+        }
+        assertEquals(messages.size(), count);
+        return messages;
+    }
+
+    List<JSONObject> listAll() throws SQLException, IOException {
+        MessageQuery query = new MessageQuery();
+        query.setLimit(MessageQuery.MAX_LIMIT);
+        return list(query);
+    }
+
+    static List<String> names(List<JSONObject> messages) {
+        List<String> names = new ArrayList<>();
+        for(JSONObject message : messages) {
+            names.add(message.getString("locationName"));
+        }
+        return names;
+    }
+
+    static Set<String> nameSet(List<JSONObject> messages) {
+        return new HashSet<>(names(messages));
+    }
+
+    static JSONObject user(String username, String password, String nickname) {
+        return new User(username, password, username + "@example.com", nickname).toJsonObject();
+    }
+
+    @Test
+    public void idsIncreaseInCommitOrder() throws Exception {
+
+        assertEquals(0, store.getLatestMessageId());
+        store.insertMessage(message("a", "first", "Oulu", TIME), "nick");
+        store.insertMessage(message("b", "second", "Oulu", TIME - 1000), "nick");
+        store.insertMessages(List.of(message("c", "third", "Oulu", TIME), message("d", "fourth", "Oulu", TIME)), "other");
+        store.insertMessage(message("e", "fifth", "Oulu", TIME), "nick");
+
+        List<JSONObject> messages = listAll();
+        assertEquals(List.of("a", "b", "c", "d", "e"), names(messages));
+        long previous = 0;
+        for(JSONObject message : messages) {
+            assertTrue(message.getLong("id") > previous);
+            previous = message.getLong("id");
+        }
+        assertEquals(previous, store.getLatestMessageId());
+
+        JSONObject second = messages.get(1);
+        assertEquals("second", second.getString("locationDescription"));
+        assertEquals("Oulu", second.getString("locationCity"));
+        assertEquals("nick", second.getString("originalPoster"));
+        assertEquals(TimestampConverter.convertToString(TIME - 1000), second.getString("originalPostingTime"));
+        assertFalse(second.has("latitude"));
+        assertEquals("other", messages.get(2).getString("originalPoster"));
+    }
+
+    @Test
+    public void pagesFollowTheCursor() throws Exception {
+
+        for(int i = 0; i < 10; i++) {
+            store.insertMessage(message("m" + i, "text", "Oulu", TIME + i), "nick");
+        }
+
+        List<String> paged = new ArrayList<>();
+        MessageQuery query = new MessageQuery();
+        query.setLimit(3);
+        List<JSONObject> page;
+        while(!(page = list(query)).isEmpty()) {
+            assertTrue(page.size() <= 3);
+            paged.addAll(names(page));
+            query.setAfter(page.get(page.size() - 1).getLong("id"));
+        }
+        assertEquals(names(listAll()), paged);
+        assertEquals(10, paged.size());
+    }
+
+    @Test
+    public void filtersByTimeCityAndCountry() throws Exception {
+
+        String[] cities = {"Oulu", "Helsinki", "Café Town"};
+        String[] countries = {"Finland", "Sweden", null};
+        for(int i = 0; i < 30; i++) {
+            UserMessage msg = message("m" + i, "text", cities[i % 3], TIME + i * 60000L);
+            msg.setLocationCountry(countries[i % 5 % 3]);
+            store.insertMessage(msg, "nick");
+        }
+
+        MessageQuery query = new MessageQuery();
+        query.setLimit(MessageQuery.MAX_LIMIT);
+        query.setSince(TIME + 5 * 60000L);
+        query.setUntil(TIME + 20 * 60000L);
+        List<String> expected = new ArrayList<>();
+        for(int i = 5; i <= 20; i++) {
+            expected.add("m" + i);
+        }
+        assertEquals(expected, names(list(query)));
+
+        query = new MessageQuery();
+        query.setCity("Café Town");
+        query.setCountry("Finland");
+        expected.clear();
+        for(int i = 0; i < 30; i++) {
+            if(i % 3 == 2 && i % 5 % 3 == 0) {
+                expected.add("m" + i);
+            }
+        }
+        assertEquals(expected, names(list(query)));
+
+        query = new MessageQuery();
+        query.setCity("oulu"); // Cities are compared exactly
+        assertTrue(list(query).isEmpty());
+    }
+
+    @Test
+    public void boundingBoxesIncludingTheDateLine() throws Exception {
+
+        store.insertMessage(located("east of the line", 10, 179.5), "nick");
+        store.insertMessage(located("west of the line", 10.5, -179.5), "nick");
+        store.insertMessage(located("greenwich", 10, 0.5), "nick");
+        store.insertMessage(located("north", 60, 179.5), "nick");
+        store.insertMessage(message("nowhere", "no coordinates", "City", TIME), "nick");
+
+        MessageQuery query = new MessageQuery();
+        query.setBoundingBox(new BoundingBox(5, 179, 15, -179)); // Crosses the date line
+        assertEquals(List.of("east of the line", "west of the line"), names(list(query)));
+
+        query = new MessageQuery();
+        query.setBoundingBox(new BoundingBox(0, -1, 20, 1));
+        assertEquals(List.of("greenwich"), names(list(query)));
+
+        query = new MessageQuery();
+        query.setBoundingBox(new BoundingBox(-90, -180, 90, 180));
+        assertEquals(List.of("east of the line", "west of the line", "greenwich", "north"), names(list(query)));
+    }
+
+    @Test
+    public void nearestAreOrderedByDistanceThenId() throws Exception {
+
+        store.insertMessage(located("far", 65.5, 25.5), "nick");
+        store.insertMessage(located("near", 65.01, 25.47), "nick");
+        store.insertMessage(located("farthest", 60.17, 24.94), "nick");
+        store.insertMessage(located("twin 1", 65.1, 25.4), "nick");
+        store.insertMessage(located("twin 2", 65.1, 25.4), "nick");
+        store.insertMessage(located("across the world", -65, -155), "nick");
+        store.insertMessage(message("nowhere", "no coordinates", "City", TIME), "nick");
+
+        MessageQuery query = new MessageQuery();
+        query.setNear(65.0, 25.5);
+        query.setK(4);
+        List<JSONObject> nearest = list(query);
+        assertEquals(List.of("near", "twin 1", "twin 2", "far"), names(nearest));
+        for(JSONObject message : nearest) {
+            double expected = BoundingBox.distanceKm(65.0, 25.5, message.getDouble("latitude"), message.getDouble("longitude"));
+            assertEquals(expected, message.getDouble("distance"), 1e-6);
+        }
+
+        query.setK(100);
+        assertEquals(6, list(query).size());
+    }
+
+    @Test
+    public void searchFindsWordsAndPagesWithOffset() throws Exception {
+
+        store.insertMessage(message("Old Harbour", "fish market", "Oulu", TIME), "nick");
+        store.insertMessage(message("Cathedral", "by the harbour", "Turku", TIME), "nick");
+        store.insertMessage(message("Café", "coffee near the HARBOUR bridge", "Helsinki", TIME), "nick");
+        store.insertMessage(message("Park", "trees", "Harbourville", TIME), "nick");
+        store.insertMessage(message("Museum", "old boats", "Oulu", TIME), "nick");
+        store.insertMessage(message("Naïve art", "paintings", "Tampere", TIME), "nick");
+
+        MessageQuery query = new MessageQuery();
+        query.setSearch("harbour");
+        Set<String> matches = nameSet(list(query));
+        assertEquals(Set.of("Old Harbour", "Cathedral", "Café"), matches);
+
+        Set<String> paged = new HashSet<>();
+        for(int offset = 0; offset < 4; offset += 2) {
+            query.setLimit(2);
+            query.setOffset(offset);
+            for(String name : names(list(query))) {
+                assertTrue(name + " was listed twice", paged.add(name));
+            }
+        }
+        assertEquals(matches, paged);
+        query.setOffset(4);
+        assertTrue(list(query).isEmpty());
+
+        query = new MessageQuery();
+        query.setSearch("harb*");
+        assertEquals(Set.of("Old Harbour", "Cathedral", "Café", "Park"), nameSet(list(query)));
+
+        query.setSearch("naive"); // Diacritics are ignored
+        assertEquals(Set.of("Naïve art"), nameSet(list(query)));
+
+        query.setSearch("old boats");
+        assertEquals(Set.of("Museum"), nameSet(list(query)));
+
+        query.setSearch("submarine");
+        assertTrue(list(query).isEmpty());
+    }
+
+    @Test
+    public void duplicateUsersAreRejected() throws Exception {
+
+        assertTrue(store.insertUser(user("alice", "secret", "Alice")));
+        assertFalse(store.insertUser(user("alice", "other", "Impostor")));
+        assertTrue(store.insertUser(user("bob", "secret", "Bob")));
+
+        assertEquals("Alice", store.authenticateUser("alice", "secret"));
+        assertNull(store.authenticateUser("alice", "other"));
+        assertNull(store.authenticateUser("carol", "secret"));
+        assertEquals("Bob", store.authenticateUser("bob", "secret"));
+    }
+
+    @Test
+    public void insertMessagesIsAllOrNothing() throws Exception {
+
+        store.insertMessages(List.of(message("a", "text", "Oulu", TIME), message("b", "text", "Oulu", TIME)), "nick");
+        long latest = store.getLatestMessageId();
+
+        UserMessage broken = new UserMessage("broken", "text", "Oulu", TIME) {
+            @Override
+            public String getLocationStreetAddress() {
+                throw new IllegalStateException("Cannot be stored");
+            }
+        };
+        try {
+            store.insertMessages(List.of(message("c", "text", "Oulu", TIME), broken, message("d", "text", "Oulu", TIME)), "nick");
+            fail("The batch with a broken message was inserted");
+        } catch(SQLException | RuntimeException e) {
+            // Expected, none of the batch is stored
+        }
+        assertEquals(latest, store.getLatestMessageId());
+        assertEquals(List.of("a", "b"), names(listAll()));
+
+        store.insertMessages(List.of(message("e", "text", "Oulu", TIME)), "nick");
+        assertEquals(List.of("a", "b", "e"), names(listAll()));
+    }
+
+    @Test
+    public void messagesAfterAreWrittenOldestFirst() throws Exception {
+
+        for(int i = 0; i < 5; i++) {
+            store.insertMessage(message("m" + i, "text", "Oulu", TIME), "nick");
+        }
+        List<JSONObject> all = listAll();
+        long after = all.get(1).getLong("id");
+
+        StringWriter json = new StringWriter();
+        MessageStreamWriter writer = new MessageStreamWriter(json);
+        List<Long> written = new ArrayList<>();
+        assertEquals(2, store.writeMessagesAfter(after, 2, writer, written::add));
+        assertEquals(List.of(all.get(2).getLong("id"), all.get(3).getLong("id")), written);
+        assertEquals(0, store.writeMessagesAfter(store.getLatestMessageId(), 10, writer, written::add));
+    }
+
+    @Test
+    public void commitsChangeTheETagAndNotifyListeners() throws Exception {
+
+        int[] commits = {0};
+        store.addCommitListener(() -> commits[0]++);
+        String before = store.getMessagesETag();
+        store.insertMessage(message("a", "text", "Oulu", TIME), "nick");
+        store.insertMessages(List.of(message("b", "text", "Oulu", TIME)), "nick");
+        assertFalse(before.equals(store.getMessagesETag()));
+        assertEquals(2, commits[0]);
+    }
+
+    @Test
+    public void everythingIsThereAfterReopening() throws Exception {
+
+        store.insertUser(user("alice", "secret", "Alice"));
+        store.insertMessage(message("a", "text", "Oulu", TIME), "nick");
+        store.insertMessages(List.of(message("b", "text", "Oulu", TIME), message("c", "text", "Oulu", TIME)), "nick");
+        List<JSONObject> before = listAll();
+
+        store.close();
+        store.open(name);
+        assertEquals(before.toString(), listAll().toString());
+        assertEquals("Alice", store.authenticateUser("alice", "secret"));
+
+        store.insertMessage(message("d", "text", "Oulu", TIME), "nick");
+        List<JSONObject> after = listAll();
+        assertEquals(List.of("a", "b", "c", "d"), names(after));
+        assertTrue(after.get(3).getLong("id") > after.get(2).getLong("id"));
+    }
+}
@@ -0,0 +1,305 @@
+package com.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* Appending, recovering and compacting a log of several segments. A crash is simulated by copying the directory of an open log,
+* so the copy has the files as they are in the page cache without anything that closing would have done.
+*/
+public class SegmentLogTest {
+
+    static final int SEGMENT_BYTES = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = folder.getRoot().toPath().resolve("log");
+    }
+
+    static SegmentLog open(Path directory) throws IOException {
+        SegmentLog log = new SegmentLog(directory, SEGMENT_BYTES, true, "test");
+        log.open();
+        return log;
+    }
+
+    static byte[] payload(long value) {
+        return ("record-" + value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static List<byte[]> batch(long first, int size) {
+        List<byte[]> payloads = new ArrayList<>();
+        for(int i = 0; i < size; i++) {
+            payloads.add(payload(first + i));
+        }
+        return payloads;
+    }
+
+    static List<String> scan(SegmentLog log) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.scan(1, (sequence, payload) -> {
+            String record = StandardCharsets.UTF_8.decode(payload).toString();
+            assertEquals(new String(payload(sequence), StandardCharsets.UTF_8), record);
+            records.add(record);
+            return true;
+        });
+        return records;
+    }
+
+    static List<String> expected(long last) {
+        List<String> records = new ArrayList<>();
+        for(long sequence = 1; sequence <= last; sequence++) {
+            records.add("record-" + sequence);
+        }
+        return records;
+    }
+
+    static List<Path> files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> sorted = new ArrayList<>(files.toList());
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    Path crash(Path directory) throws IOException {
+        Path copy = folder.newFolder().toPath();
+        for(Path file : files(directory)) {
+            Files.copy(file, copy.resolve(file.getFileName()));
+        }
+        return copy;
+    }
+
+    @Test
+    public void appendsAreReadBackAfterReopening() throws IOException {
+
+        SegmentLog log = open(directory);
+        assertEquals(1, log.append(batch(1, 1)));
+        assertEquals(2, log.append(batch(2, 3)));
+        assertEquals(4, log.getLastSequence());
+        assertArrayEquals(payload(3), bytes(log.read(3)));
+        assertNull(log.read(5));
+        log.close();
+        try {
+            log.append(batch(5, 1));
+            fail("Appended to a closed log");
+        } catch(IOException e) {
+            // Expected
+        }
+
+        log.open(); // The same instance can be opened again
+        assertEquals(expected(4), scan(log));
+        assertEquals(5, log.append(batch(5, 2)));
+        log.close();
+
+        SegmentLog reopened = open(directory);
+        assertEquals(expected(6), scan(reopened));
+        assertEquals(7, reopened.append(batch(7, 1)));
+        reopened.close();
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void rollsToNewSegmentsAndRejectsBatchesLargerThanOne() throws IOException {
+
+        SegmentLog log = open(directory);
+        long next = 1;
+        while(next <= 100) {
+            int size = (int) (next % 4) + 1;
+            assertEquals(next, log.append(batch(next, size)));
+            next += size;
+        }
+        assertTrue(log.getSegmentCount() > 5);
+        assertEquals(expected(next - 1), scan(log));
+
+        try {
+            log.append(List.of(new byte[SEGMENT_BYTES]));
+            fail("A batch larger than a segment was appended");
+        } catch(IOException e) {
+            // Expected, and the log can still be appended to
+        }
+        assertEquals(next, log.append(batch(next, 1)));
+        log.close();
+        assertEquals(expected(next), scan(open(directory)));
+    }
+
+    @Test
+    public void recoversFromACrashWithATornBatch() throws IOException {
+
+        SegmentLog log = open(directory);
+        for(long next = 1; next <= 40; next += 4) {
+            log.append(batch(next, 4));
+        }
+        Path crashed = crash(directory);
+        log.close();
+
+        // Cut the last record of the last batch short, as a write interrupted by the crash would
+        List<Path> files = files(crashed);
+        Path last = files.get(files.size() - 1);
+        long end = 0;
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while(channel.read(header.clear(), end) == 4 && header.getInt(0) != 0) {
+                end += LogSegment.HEADER_BYTES + (header.getInt(0) & ~LogSegment.CONTINUED);
+            }
+            channel.truncate(end - 3);
+        }
+
+        SegmentLog recovered = open(crashed);
+        assertEquals(expected(36), scan(recovered)); // The whole batch 37-40 is gone
+        assertEquals(37, recovered.append(batch(37, 2)));
+        recovered.close();
+        assertEquals(expected(38), scan(open(crashed)));
+    }
+
+    @Test
+    public void recoversAnOpenLogCopiedAtAnyMoment() throws IOException {
+
+        SegmentLog log = open(directory);
+        log.append(batch(1, 5));
+        Path crashed = crash(directory); // The active segment has its full capacity, and zeros after the records
+        log.append(batch(6, 1));
+        log.close();
+
+        SegmentLog recovered = open(crashed);
+        assertEquals(expected(5), scan(recovered));
+        assertEquals(6, recovered.append(batch(6, 1)));
+        recovered.close();
+    }
+
+    /**
+    * Leaves one sealed segment for each batch, since closing seals the active segment.
+    */
+    void appendInSeparateSegments(int segments) throws IOException {
+        for(int i = 0; i < segments; i++) {
+            SegmentLog log = open(directory);
+            log.append(batch(i * 2 + 1, 2));
+            log.close();
+        }
+    }
+
+    @Test
+    public void compactionMergesSmallSegments() throws IOException {
+
+        appendInSeparateSegments(4);
+        SegmentLog log = open(directory);
+        assertEquals(5, log.getSegmentCount()); // And the active one
+        assertEquals(4, log.compact());
+        assertEquals(0, log.compact());
+        assertEquals(2, log.getSegmentCount());
+        assertEquals(expected(8), scan(log));
+        assertEquals(9, log.append(batch(9, 1)));
+        log.close();
+
+        assertEquals(2, files(directory).size());
+        assertEquals(expected(9), scan(open(directory)));
+    }
+
+    @Test
+    public void recoversFromACrashBetweenTheRenameAndTheDeletes() throws IOException {
+
+        appendInSeparateSegments(4);
+        List<Path> before = files(directory);
+        Path saved = folder.newFolder().toPath();
+        for(Path file : before.subList(1, before.size())) {
+            Files.copy(file, saved.resolve(file.getFileName()));
+        }
+
+        SegmentLog log = open(directory);
+        assertEquals(4, log.compact());
+        log.close();
+
+        // The merged segment has replaced the first one, but the others were never deleted
+        for(Path file : files(saved)) {
+            Files.copy(file, directory.resolve(file.getFileName()));
+        }
+        assertEquals(before.size(), files(directory).size());
+
+        SegmentLog recovered = open(directory);
+        assertEquals(expected(8), scan(recovered));
+        assertEquals(9, recovered.append(batch(9, 1)));
+        recovered.close();
+        assertEquals(2, files(directory).size());
+        assertEquals(expected(9), scan(open(directory)));
+    }
+
+    @Test
+    public void recoversFromACrashBeforeTheRename() throws IOException {
+
+        appendInSeparateSegments(3);
+        List<Path> before = files(directory);
+        Path leftover = directory.resolve(before.get(0).getFileName() + ".compacting");
+        Files.write(leftover, new byte[100]); // Partly written merge
+
+        SegmentLog recovered = open(directory);
+        assertFalse(Files.exists(leftover));
+        assertEquals(expected(6), scan(recovered));
+        recovered.close();
+    }
+
+    @Test
+    public void concurrentAppendsGetDistinctSequenceNumbers() throws Exception {
+
+        SegmentLog log = new SegmentLog(directory, 64 * 1024, true, "test");
+        log.open();
+        int threads = 8;
+        int appends = 200;
+        Set<Long> sequences = ConcurrentHashMap.newKeySet();
+        List<Thread> appenders = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for(int t = 0; t < threads; t++) {
+            Thread appender = new Thread(() -> {
+                try {
+                    for(int i = 0; i < appends; i++) {
+                        long sequence = log.append(List.of(new byte[8]));
+                        assertTrue(sequence <= log.getLastSequence()); // Visible once the append returns
+                        assertTrue(sequences.add(sequence));
+                    }
+                } catch(Throwable e) {
+                    failures.add(e);
+                }
+            });
+            appenders.add(appender);
+            appender.start();
+        }
+        for(Thread appender : appenders) {
+            appender.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(threads * appends, sequences.size());
+        assertEquals(threads * appends, log.getLastSequence());
+        log.close();
+    }
+}
@@ -0,0 +1,131 @@
+package com.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+* An HttpExchange without a connection, so that handlers and writers can be tested without the network.
+* The request headers can be set before the exchange is handled, and the response is kept.
+*/
+class TestExchange extends HttpExchange {
+
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final String method;
+    private final URI uri;
+    private final InputStream requestBody;
+    private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    private int responseCode = -1;
+    private long responseLength = -2; // -1 is sent for a response without a body
+    private HttpPrincipal principal = null;
+
+    TestExchange(String method, String uri, byte[] requestBody) {
+        this.method = method;
+        this.uri = URI.create(uri);
+        this.requestBody = new ByteArrayInputStream(requestBody != null ? requestBody : new byte[0]);
+    }
+
+    byte[] getResponseBytes() {
+        return responseBody.toByteArray();
+    }
+
+    /**
+    * @return the length given with the response headers: 0 for a chunked body, -1 for no body.
+    */
+    long getResponseLength() {
+        return responseLength;
+    }
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        responseCode = rCode;
+        this.responseLength = responseLength;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("localhost", 0);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("localhost", 8001);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) { }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) { }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+}
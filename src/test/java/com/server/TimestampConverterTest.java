@@ -0,0 +1,181 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+* The conversions that avoid the formatter must give the same results and errors as the formatter,
+* which is what TimestampConverter used for every date before.
+*/
+public class TimestampConverterTest {
+
+    static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
+
+    // 0001-01-01 to 99999-12-31, so dates on both sides of the four digit years are included
+    static final long MIN_EPOCH = -62135596800000L;
+    static final long MAX_EPOCH = 3093527980799999L;
+
+    final Random random = new Random(20241018);
+
+    static String format(long epoch) {
+        return FORMATTER.format(Instant.ofEpochMilli(epoch));
+    }
+
+    static String parse(String date) {
+        try {
+            return Long.toString(ZonedDateTime.parse(date, FORMATTER).toInstant().toEpochMilli());
+        } catch(DateTimeParseException e) {
+            return "rejected";
+        }
+    }
+
+    static String convertToLong(String date) {
+        try {
+            return Long.toString(TimestampConverter.convertToLong(date));
+        } catch(DateTimeParseException e) {
+            return "rejected";
+        }
+    }
+
+    static String convertToLong(CharSequence date) {
+        try {
+            return Long.toString(TimestampConverter.convertToLong(date));
+        } catch(DateTimeParseException e) {
+            return "rejected";
+        }
+    }
+
+    void assertWrittenLikeTheFormatter(long epoch) {
+
+        String expected = format(epoch);
+        assertEquals(expected, TimestampConverter.convertToString(epoch));
+
+        char[] buffer = new char[TimestampConverter.TIMESTAMP_LENGTH + 3];
+        int written = TimestampConverter.convertToChars(epoch, buffer, 3);
+        if(expected.length() == TimestampConverter.TIMESTAMP_LENGTH && expected.charAt(4) == '-') {
+            assertEquals(expected, TimestampConverter.TIMESTAMP_LENGTH, written);
+            assertEquals(expected, new String(buffer, 3, written));
+        } else {
+            assertEquals(expected, -1, written);
+        }
+    }
+
+    void assertParsedLikeTheFormatter(String date) {
+        String expected = parse(date);
+        assertEquals(date, expected, convertToLong(date));
+        assertEquals(date, expected, convertToLong(new StringBuilder(date)));
+    }
+
+    long randomEpoch() {
+        return MIN_EPOCH + (long) (random.nextDouble() * (MAX_EPOCH - MIN_EPOCH));
+    }
+
+    @Test
+    public void randomDatesAreWrittenAndReadLikeTheFormatter() {
+        for(int i = 0; i < 200000; i++) {
+            // Mostly recent dates, which is what the server sees, and some from any year
+            long epoch = i % 4 == 0 ? randomEpoch() : (long) (random.nextDouble() * 4102444800000L);
+            assertWrittenLikeTheFormatter(epoch);
+            String date = format(epoch);
+            assertParsedLikeTheFormatter(date);
+            assertEquals(date, Long.toString(epoch), convertToLong(date));
+        }
+    }
+
+    @Test
+    public void theEdgesOfTheFastPathAreWrittenLikeTheFormatter() {
+        long[] edges = {
+            -30610224000000L, // 1000-01-01T00:00:00.000Z, the first date with four digits
+            253402300800000L, // 10000-01-01T00:00:00.000Z, the first date with five
+            0L, -1L, 1L,
+            951782400000L, // 2000-02-29
+            4107542400000L, // 2100-03-01, after a February without the 29th
+            -2203977600000L, // 1900-03-01
+            -11670912000000L, // 1600-02-29
+        };
+        for(long edge : edges) {
+            for(long delta = -2; delta <= 2; delta++) {
+                assertWrittenLikeTheFormatter(edge + delta);
+                assertWrittenLikeTheFormatter(edge + delta * 86400000L);
+            }
+        }
+    }
+
+    @Test
+    public void datesAroundTheEndOfFebruaryAreReadLikeTheFormatter() {
+        int[] years = {1000, 1600, 1700, 1900, 1999, 2000, 2023, 2024, 2100, 2400, 9999};
+        for(int year : years) {
+            for(int day = 27; day <= 32; day++) {
+                assertParsedLikeTheFormatter(String.format("%04d-02-%02dT12:00:00.000Z", year, day));
+            }
+        }
+        for(int month = 0; month <= 13; month++) {
+            assertParsedLikeTheFormatter(String.format("2023-%02d-31T00:00:00.000Z", month));
+            assertParsedLikeTheFormatter(String.format("2023-%02d-30T23:59:59.999Z", month));
+        }
+    }
+
+    @Test
+    public void otherFormsAreReadLikeTheFormatter() {
+        String[] dates = {
+            "2020-12-21T07:57:47.123Z",
+            "2020-12-21T07:57:47.123+02",
+            "2020-12-21T07:57:47.123+0230",
+            "2020-12-21T07:57:47.123-05",
+            "2020-12-21T07:57:47.123+02:00",
+            "2020-12-21T07:57:47.123+00",
+            "999-12-31T23:59:59.999Z",
+            "0999-12-31T23:59:59.999Z",
+            "0001-01-01T00:00:00.000Z",
+            "10000-01-01T00:00:00.000Z",
+            "+10000-01-01T00:00:00.000Z",
+            "-2020-12-21T07:57:47.123Z",
+            "2020-12-21T24:00:00.000Z",
+            "2020-12-21T23:60:00.000Z",
+            "2020-12-21T23:59:60.000Z",
+            "2020-12-21T07:57:47.12Z",
+            "2020-12-21T07:57:47.1234Z",
+            "2020-12-21T07:57:47Z",
+            "2020-12-21 07:57:47.123Z",
+            "2020-12-21t07:57:47.123z",
+            "2020-12-2107:57:47.123Z",
+            "2020-1a-21T07:57:47.123Z",
+            "2020-12-21T07:57:47.123",
+            "",
+        };
+        for(String date : dates) {
+            assertParsedLikeTheFormatter(date);
+        }
+    }
+
+    @Test
+    public void damagedDatesAreReadLikeTheFormatter() {
+        char[] replacements = {'0', '1', '2', '3', '9', '-', ':', '.', 'T', 'Z', '+', ' ', 'x', '/', '٠'};
+        for(int i = 0; i < 50000; i++) {
+            char[] date = format((long) (random.nextDouble() * 4102444800000L)).toCharArray();
+            date[random.nextInt(date.length)] = replacements[random.nextInt(replacements.length)];
+            assertParsedLikeTheFormatter(new String(date));
+        }
+    }
+
+    @Test
+    public void writtenDatesAreReadBack() {
+        List<Long> epochs = new ArrayList<>();
+        for(int i = 0; i < 10000; i++) {
+            epochs.add(randomEpoch());
+        }
+        for(long epoch : epochs) {
+            assertEquals(epoch, TimestampConverter.convertToLong(TimestampConverter.convertToString(epoch)));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+* Tokens are accepted until they expire, in the realm they were issued in, and only as they were signed.
+*/
+public class TokenServiceTest {
+
+    static final String KEY = Base64.getEncoder().encodeToString("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+
+    static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    TokenService tokens;
+
+    @Before
+    public void createService() {
+        System.setProperty("auth.tokenKey", KEY); // Read when the service is created
+        tokens = new TokenService();
+    }
+
+    @After
+    public void clearProperties() {
+        System.clearProperty("auth.tokenKey");
+        System.clearProperty("auth.tokenTtlMillis");
+    }
+
+    /**
+    * Signs a payload as TokenService does, so that tokens with any content can be made.
+    */
+    static String sign(String payload, String base64Key) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(Base64.getDecoder().decode(base64Key), "HmacSHA256"));
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return encoder.encodeToString(bytes) + "." + encoder.encodeToString(mac.doFinal(bytes));
+    }
+
+    static String field(String value) {
+        return encoder.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void issuedTokensAreAccepted() {
+        String token = tokens.issue(new UserPrincipal("john", "Jöhn:123", "info"));
+        UserPrincipal user = tokens.verify(token, "info");
+        assertNotNull(user);
+        assertEquals("john", user.getUsername());
+        assertEquals("Jöhn:123", user.getNickname());
+        assertEquals("info", user.getRealm());
+        assertEquals(15 * 60, tokens.getTimeToLiveSeconds());
+
+        // Another service with the same key accepts it too, as after a restart
+        assertNotNull(new TokenService().verify(token, "info"));
+    }
+
+    @Test
+    public void expiredTokensAreRejected() throws Exception {
+        long now = System.currentTimeMillis();
+        assertNull(tokens.verify(sign((now - 1) + ":" + field("info") + ":" + field("john") + ":" + field("john"), KEY), "info"));
+        assertNotNull(tokens.verify(sign((now + 60000) + ":" + field("info") + ":" + field("john") + ":" + field("john"), KEY), "info"));
+
+        System.setProperty("auth.tokenTtlMillis", "-1");
+        TokenService expiring = new TokenService();
+        assertNull(expiring.verify(expiring.issue(new UserPrincipal("john", "john", "info")), "info"));
+    }
+
+    @Test
+    public void tamperedTokensAreRejected() throws Exception {
+
+        String token = tokens.issue(new UserPrincipal("john", "john", "info"));
+        int separator = token.indexOf('.');
+        String payload = new String(decoder.decode(token.substring(0, separator)), StandardCharsets.UTF_8);
+        String signature = token.substring(separator + 1);
+
+        // Another user or a later expiry with the original signature
+        String otherUser = payload.substring(0, payload.lastIndexOf(':', payload.lastIndexOf(':') - 1)) + ":" + field("admin") + ":" + field("admin");
+        assertNull(tokens.verify(encoder.encodeToString(otherUser.getBytes(StandardCharsets.UTF_8)) + "." + signature, "info"));
+        String later = Long.MAX_VALUE + payload.substring(payload.indexOf(':'));
+        assertNull(tokens.verify(encoder.encodeToString(later.getBytes(StandardCharsets.UTF_8)) + "." + signature, "info"));
+
+        // Every changed character of the signature
+        for(int i = 0; i < signature.length(); i++) {
+            char[] changed = signature.toCharArray();
+            changed[i] = changed[i] == 'A' ? 'B' : 'A';
+            assertNull(tokens.verify(token.substring(0, separator + 1) + new String(changed), "info"));
+        }
+        assertNull(tokens.verify(token.substring(0, token.length() - 2), "info"));
+        assertNull(tokens.verify(token + "A", "info"));
+
+        // Signed with another key
+        String otherKey = Base64.getEncoder().encodeToString(new byte[32]);
+        assertNull(tokens.verify(sign(payload, otherKey), "info"));
+    }
+
+    @Test
+    public void tokensAreOnlyAcceptedInTheirRealm() throws Exception {
+        String token = tokens.issue(new UserPrincipal("john", "john", "info"));
+        assertNull(tokens.verify(token, "admin"));
+        assertNull(tokens.verify(token, "Info"));
+        assertNotNull(tokens.verify(tokens.issue(new UserPrincipal("john", "john", "admin")), "admin"));
+
+        // The format before the realm was added
+        long expiresAt = System.currentTimeMillis() + 60000;
+        assertNull(tokens.verify(sign(expiresAt + ":" + field("john") + ":" + field("john"), KEY), "info"));
+    }
+
+    @Test
+    public void malformedTokensAreRejected() throws Exception {
+        long expiresAt = System.currentTimeMillis() + 60000;
+        String[] malformed = {
+            "", ".", "abc", ".abc", "abc.", "a.b.c", "!!!.???", "YWJj.!!!",
+            sign("", KEY), sign("abc", KEY), sign(expiresAt + ":" + field("info"), KEY),
+            sign("soon:" + field("info") + ":" + field("john") + ":" + field("john"), KEY),
+            sign(expiresAt + ":" + field("info") + ":" + field("john") + ":" + field("john") + ":x", KEY),
+            sign(expiresAt + ":" + field("info") + ":!:" + field("john"), KEY),
+            sign(expiresAt + ":info:" + field("john") + ":" + field("john"), KEY),
+        };
+        for(String token : malformed) {
+            assertNull(token, tokens.verify(token, "info"));
+        }
+    }
+}
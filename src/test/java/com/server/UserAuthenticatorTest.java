@@ -0,0 +1,149 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.Authenticator;
+
+/**
+* Requests are authenticated with a token or Basic credentials, and /login's authenticator only takes Basic credentials.
+* The users are kept in a log store in a temporary folder.
+*/
+public class UserAuthenticatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    MessageStore store;
+    UserAuthenticator authenticator;
+
+    @Before
+    public void openStore() throws Exception {
+        String name = folder.getRoot().toPath().resolve("users").toString();
+        System.setProperty("db.name", name); // Only used if the instance is created now
+        store = LogMessageStore.getInstance();
+        store.open(name);
+        authenticator = new UserAuthenticator("info", store, new TokenService());
+        assertTrue(authenticator.addUser("john", "secret", "john@example.com", "john123"));
+    }
+
+    @After
+    public void closeStore() throws Exception {
+        store.close();
+    }
+
+    static Authenticator.Result authenticate(UserAuthenticator authenticator, String authorization) {
+        TestExchange exchange = new TestExchange("GET", "/info", null);
+        if(authorization != null) {
+            exchange.getRequestHeaders().set("Authorization", authorization);
+        }
+        Authenticator.Result result = authenticator.authenticate(exchange);
+        if(result instanceof Authenticator.Failure || result instanceof Authenticator.Retry) {
+            assertTrue(exchange.getResponseHeaders().containsKey("WWW-Authenticate"));
+        }
+        return result;
+    }
+
+    static String basic(String credentials) {
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static UserPrincipal assertSuccess(Authenticator.Result result) {
+        assertTrue(result.toString(), result instanceof Authenticator.Success);
+        return (UserPrincipal) ((Authenticator.Success) result).getPrincipal();
+    }
+
+    static void assertFailure(Authenticator.Result result) {
+        assertTrue(result.toString(), result instanceof Authenticator.Failure);
+        assertEquals(401, ((Authenticator.Failure) result).getResponseCode());
+    }
+
+    @Test
+    public void basicCredentialsAreChecked() {
+        UserPrincipal user = assertSuccess(authenticate(authenticator, basic("john:secret")));
+        assertEquals("john", user.getUsername());
+        assertEquals("john123", user.getNickname());
+        assertEquals("info", user.getRealm());
+
+        assertFailure(authenticate(authenticator, basic("john:wrong")));
+        assertFailure(authenticate(authenticator, basic("jane:secret")));
+        assertFailure(authenticate(authenticator, basic("john")));
+        assertFailure(authenticate(authenticator, "Basic !!!"));
+        assertFailure(authenticate(authenticator, "Digest username=\"john\""));
+
+        Authenticator.Result result = authenticate(authenticator, null);
+        assertTrue(result instanceof Authenticator.Retry);
+        assertEquals(401, ((Authenticator.Retry) result).getResponseCode());
+    }
+
+    @Test
+    public void validTokensAreAccepted() {
+        UserPrincipal john = assertSuccess(authenticate(authenticator, basic("john:secret")));
+        String token = authenticator.issueToken(john);
+        UserPrincipal user = assertSuccess(authenticate(authenticator, "Bearer " + token));
+        assertEquals("john", user.getUsername());
+        assertEquals("john123", user.getNickname());
+        assertSuccess(authenticate(authenticator, "bearer  " + token + " "));
+    }
+
+    @Test
+    public void invalidTokensAreRejected() {
+        String token = authenticator.issueToken(new UserPrincipal("john", "john123", "info"));
+        String[] invalid = {
+            "", "abc", token.substring(0, token.length() - 1) + (token.endsWith("A") ? "B" : "A"), // Tampered signature
+            "eA" + token, // Tampered payload
+            new UserAuthenticator("info", store, new TokenService()).issueToken(new UserPrincipal("john", "john123", "info")), // Another key
+        };
+        for(String value : invalid) {
+            TestExchange exchange = new TestExchange("GET", "/info", null);
+            exchange.getRequestHeaders().set("Authorization", "Bearer " + value);
+            assertFailure(authenticator.authenticate(exchange));
+            assertTrue(exchange.getResponseHeaders().getFirst("WWW-Authenticate").contains("error=\"invalid_token\""));
+        }
+    }
+
+    @Test
+    public void expiredTokensAreRejected() {
+        System.setProperty("auth.tokenTtlMillis", "-1");
+        try {
+            UserAuthenticator expiring = new UserAuthenticator("info", store, new TokenService());
+            assertFailure(authenticate(expiring, "Bearer " + expiring.issueToken(new UserPrincipal("john", "john123", "info"))));
+        } finally {
+            System.clearProperty("auth.tokenTtlMillis");
+        }
+    }
+
+    @Test
+    public void tokensOfAnotherRealmAreRejected() {
+        TokenService tokens = new TokenService();
+        UserAuthenticator info = new UserAuthenticator("info", store, tokens);
+        UserAuthenticator admin = new UserAuthenticator("admin", store, tokens);
+        String token = admin.issueToken(assertSuccess(authenticate(admin, basic("john:secret"))));
+        assertSuccess(authenticate(admin, "Bearer " + token));
+        assertFailure(authenticate(info, "Bearer " + token));
+    }
+
+    @Test
+    public void loginOnlyAcceptsBasicCredentials() {
+        UserAuthenticator login = authenticator.basicOnly();
+        String token = login.issueToken(assertSuccess(authenticate(login, basic("john:secret"))));
+
+        // The token of the login authenticator is valid, but it cannot be used to log in again
+        assertSuccess(authenticate(authenticator, "Bearer " + token));
+        TestExchange exchange = new TestExchange("POST", "/login", null);
+        exchange.getRequestHeaders().set("Authorization", "Bearer " + token);
+        assertFailure(login.authenticate(exchange));
+        assertTrue(exchange.getResponseHeaders().getFirst("WWW-Authenticate").startsWith("Basic "));
+        assertNull(exchange.getPrincipal());
+    }
+}
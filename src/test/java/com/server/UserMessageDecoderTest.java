@@ -0,0 +1,413 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+* UserMessageDecoder must accept and reject the same standard JSON as the way the body was read before,
+* new UserMessage(new JSONObject(body)), and give the same messages and the same kind of error.
+* Every body is also decoded from a stream that returns one byte per read, so that every buffer boundary is crossed.
+*/
+public class UserMessageDecoderTest {
+
+    static final String TIME = "2020-12-21T07:57:47.123Z";
+
+    final Random random = new Random(20241018);
+
+    static String describe(UserMessage message) {
+        return message.getLocationName() + "|" + message.getDescription() + "|" + message.getCity() + "|" + message.getLocationCountry()
+            + "|" + message.getLocationStreetAddress() + "|" + message.getPostDateAsLong() + "|" + message.getLatitude()
+            + "|" + message.getLongitude() + "|" + message.getWeather();
+    }
+
+    static String reference(byte[] body) {
+        if(body.length == 0) {
+            return "empty";
+        }
+        try {
+            return describe(new UserMessage(new JSONObject(new String(body, StandardCharsets.UTF_8))));
+        } catch(JSONException e) {
+            return "JSONException";
+        } catch(DateTimeParseException e) {
+            return "DateTimeParseException";
+        }
+    }
+
+    static String decoded(InputStream input) throws IOException {
+        try {
+            UserMessage message = UserMessageDecoder.decode(input, Long.MAX_VALUE);
+            return message == null ? "empty" : describe(message);
+        } catch(JSONException e) {
+            return "JSONException";
+        } catch(DateTimeParseException e) {
+            return "DateTimeParseException";
+        }
+    }
+
+    /**
+    * A body that arrives one byte at a time.
+    */
+    static InputStream trickle(byte[] body) {
+        return new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        };
+    }
+
+    static void assertDecodedLikeJSONObject(byte[] body) throws IOException {
+        String expected = reference(body);
+        String text = new String(body, StandardCharsets.UTF_8);
+        assertEquals(text, expected, decoded(new ByteArrayInputStream(body)));
+        assertEquals(text, expected, decoded(trickle(body)));
+    }
+
+    static void assertDecodedLikeJSONObject(String body) throws IOException {
+        assertDecodedLikeJSONObject(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String message(String extra) {
+        return "{\"locationName\":\"Harbour\",\"locationDescription\":\"Fish market\",\"locationCity\":\"Oulu\","
+            + "\"locationCountry\":\"Finland\",\"locationStreetAddress\":\"Rantakatu 1\",\"originalPostingTime\":\"" + TIME + "\"" + extra + "}";
+    }
+
+    @Test
+    public void valuesAreReadLikeJSONObject() throws IOException {
+        String[] bodies = {
+            message(""),
+            message(",\"latitude\":65.01,\"longitude\":25.47"),
+            message(",\"latitude\":\"65.01\",\"longitude\":\" 25.47 \""), // Numbers in strings, as org.json's getDouble allows
+            message(",\"latitude\":65,\"longitude\":-25e-1,\"weather\":\"Sunny\""),
+            message(",\"latitude\":1e400,\"longitude\":-0,\"weather\":\"Sunny\""),
+            message(",\"latitude\":12345678901234567890,\"longitude\":0.1234567890123456789"),
+            message(",\"latitude\":\"NaN\",\"longitude\":\"0x1p3\""),
+            message(",\"latitude\":null,\"longitude\":25.47"), // Null coordinates
+            message(",\"latitude\":65.01,\"longitude\":null"),
+            message(",\"latitude\":true,\"longitude\":25.47"),
+            message(",\"latitude\":\"north\",\"longitude\":25.47"),
+            message(",\"latitude\":[65],\"longitude\":25.47"),
+            message(",\"latitude\":65.01"), // Only one coordinate, the weather is not looked at
+            message(",\"latitude\":65.01,\"weather\":5"),
+            message(",\"latitude\":65.01,\"longitude\":25.47,\"weather\":5"), // Weather that is not a string
+            message(",\"latitude\":65.01,\"longitude\":25.47,\"weather\":null"),
+            message(",\"latitude\":65.01,\"longitude\":25.47,\"weather\":{\"temperature\":5}"),
+            message(",\"x\":{\"a\":[1,2,{\"b\":null}],\"c\":\"d\"},\"y\":[],\"z\":{}"),
+            "{\"locationName\":5,\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\",\"originalPostingTime\":\"" + TIME + "\"}",
+            "{\"locationName\":null,\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\",\"originalPostingTime\":\"" + TIME + "\"}",
+            "{\"locationName\":\"a\",\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\"}",
+            "{\"locationName\":\"a\",\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\",\"originalPostingTime\":1608537467123}",
+            "{\"originalPostingTime\":\"2020-02-30T07:57:47.123Z\",\"locationName\":\"a\",\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\"}",
+            "{\"originalPostingTime\":\"yesterday\",\"locationName\":\"a\",\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\"}",
+            "{\"originalPostingTime\":\"2020-12-21T09:57:47.123+02\",\"locationName\":\"a\",\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\"}",
+            "{\"originalPostingTime\":\"yesterday\",\"locationName\":7,\"locationDescription\":\"a\",\"locationCity\":\"a\",\"locationCountry\":\"a\",\"locationStreetAddress\":\"a\"}",
+            "{}",
+            "[" + message("") + "]",
+            "\"" + TIME + "\"",
+            "5",
+            message("") + " trailing data is ignored",
+            message("") + "}",
+            " \t\r\n" + message("") + "\n",
+        };
+        for(String body : bodies) {
+            assertDecodedLikeJSONObject(body);
+        }
+    }
+
+    @Test
+    public void duplicateKeysAreRejectedLikeJSONObject() throws IOException {
+        String[] bodies = {
+            message(",\"locationName\":\"Again\""),
+            message(",\"x\":1,\"x\":2"),
+            message(",\"x\":1,\"y\":2,\"x\":null"),
+            message(",\"latitude\":1,\"longitude\":2,\"latitude\":1"),
+            message(",\"x\":{\"a\":1,\"a\":2}"),
+            message(",\"x\":[{\"a\":1},{\"a\":2}]"), // The same key in different objects is not a duplicate
+            message(",\"x\":[{\"a\":1,\"b\":{\"a\":1,\"a\":1}}]"),
+            message(",\"locati\\u006fnName\":\"Escaped\""),
+            message(",\"\\u0078\":1,\"x\":2"),
+            message(",\"x\":1,\"X\":2"),
+        };
+        for(String body : bodies) {
+            assertDecodedLikeJSONObject(body);
+        }
+    }
+
+    @Test
+    public void escapesAndUnicodeAreReadLikeJSONObject() throws IOException {
+        String[] names = {
+            "Caf\\u00e9", "\\\"quoted\\\"", "back\\\\slash", "\\/\\b\\f\\n\\r\\t", "\\ud83d\\ude00", "\\ud83d", "\\uDE00 alone",
+            "Café 北 😀", "tab\tinside", "\u0001control", "\\u0000", "\\x", "\\u12", "\\u12g4", "line\nbreak", "\\", "\u007f",
+        };
+        for(String name : names) {
+            assertDecodedLikeJSONObject("{\"locationName\":\"" + name + "\"," + message("").substring(26));
+        }
+    }
+
+    @Test
+    public void malformedUtf8IsReplacedLikeString() throws IOException {
+
+        int[] interesting = {0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xbf, 0xc0, 0xc1, 0xc2, 0xdf, 0xe0, 0xed, 0xee, 0xef, 0xf0, 0xf1, 0xf4, 0xf5,
+            0xf8, 0xff, 'a', ' ', '"', '}', 0};
+        byte[] prefix = "{\"locationName\":\"a".getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = ("b\"," + message("").substring(26)).getBytes(StandardCharsets.UTF_8);
+
+        // Every pair of interesting bytes, and random longer sequences
+        List<byte[]> sequences = new ArrayList<>();
+        for(int first : interesting) {
+            for(int second : interesting) {
+                sequences.add(new byte[] {(byte) first, (byte) second});
+            }
+        }
+        for(int i = 0; i < 20000; i++) {
+            byte[] sequence = new byte[1 + random.nextInt(5)];
+            for(int j = 0; j < sequence.length; j++) {
+                sequence[j] = (byte) (random.nextInt(4) == 0 ? interesting[random.nextInt(interesting.length)] : 0x80 + random.nextInt(0x80));
+            }
+            sequences.add(sequence);
+        }
+
+        for(byte[] sequence : sequences) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(prefix);
+            body.write(sequence);
+            body.write(suffix);
+            assertDecodedLikeJSONObject(body.toByteArray());
+        }
+    }
+
+    /**
+    * Builds random messages of standard JSON: the known keys in any order, some missing, repeated or of the wrong type,
+    * unknown keys with nested values, and any whitespace between the tokens.
+    */
+    String randomMessage() {
+
+        List<String> pairs = new ArrayList<>();
+        String[] strings = {"locationName", "locationDescription", "locationCity", "locationCountry", "locationStreetAddress"};
+        for(String key : strings) {
+            if(random.nextInt(20) != 0) {
+                pairs.add(pair(key, random.nextInt(15) == 0 ? randomValue(2) : randomString()));
+            }
+        }
+        if(random.nextInt(20) != 0) {
+            String[] times = {TIME, "2024-02-29T00:00:00.000Z", "2023-02-29T00:00:00.000Z", "2020-12-21T09:57:47.123+02", "0999-12-31T23:59:59.999Z", "later"};
+            pairs.add(pair("originalPostingTime", random.nextInt(15) == 0 ? randomValue(2) : quote(times[random.nextInt(times.length)])));
+        }
+        for(String key : new String[] {"latitude", "longitude", "weather"}) {
+            if(random.nextInt(3) != 0) {
+                pairs.add(pair(key, random.nextInt(4) == 0 ? randomValue(2) : key.equals("weather") ? randomString() : randomNumber()));
+            }
+        }
+        for(int i = random.nextInt(3); i > 0; i--) {
+            pairs.add(pair(new String[] {"x", "y", "LocationName", "extra"}[random.nextInt(4)], randomValue(3)));
+        }
+        if(random.nextInt(10) == 0 && !pairs.isEmpty()) {
+            pairs.add(pairs.get(random.nextInt(pairs.size()))); // A duplicate key
+        }
+        Collections.shuffle(pairs, random);
+        return "{" + space() + String.join(space() + "," + space(), pairs) + space() + "}";
+    }
+
+    String pair(String key, String value) {
+        return quote(key) + space() + ":" + space() + value;
+    }
+
+    String space() {
+        return new String[] {"", "", "", " ", "\n", "\t ", "\r\n  "}[random.nextInt(7)];
+    }
+
+    static String quote(String text) {
+        return "\"" + text + "\"";
+    }
+
+    String randomString() {
+        String[] pieces = {"Oulu", "Café", "北", "😀", "\\n", "\\u00e9", "\\ud83d\\ude00", "\\\"", "\\\\", "\\/", " ", "\t", "12.5", ""};
+        StringBuilder text = new StringBuilder();
+        for(int i = random.nextInt(4); i > 0; i--) {
+            text.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return quote(text.toString());
+    }
+
+    String randomNumber() {
+        String[] numbers = {"0", "-0", "65", "65.0125", "-25.47", "1e2", "1E-2", "-1.5e+3", "123456789012345678", "0.000001",
+            "1.7976931348623157e308", "4.9e-324", "1e-400", "\"65.5\"", "\"-25\"", "\"abc\"", "\"\""};
+        return numbers[random.nextInt(numbers.length)];
+    }
+
+    String randomValue(int depth) {
+        switch(random.nextInt(depth > 0 ? 7 : 5)) {
+            case 0: return randomString();
+            case 1: return randomNumber();
+            case 2: return "null";
+            case 3: return random.nextBoolean() ? "true" : "false";
+            case 4: return "[]";
+            case 5:
+                List<String> items = new ArrayList<>();
+                for(int i = random.nextInt(3); i > 0; i--) {
+                    items.add(randomValue(depth - 1));
+                }
+                return "[" + String.join("," + space(), items) + "]";
+            default:
+                List<String> pairs = new ArrayList<>();
+                for(int i = random.nextInt(3); i > 0; i--) {
+                    pairs.add(pair(new String[] {"a", "b", "c"}[random.nextInt(3)], randomValue(depth - 1)));
+                }
+                return "{" + String.join(",", pairs) + "}";
+        }
+    }
+
+    @Test
+    public void randomMessagesAreReadLikeJSONObject() throws IOException {
+        for(int i = 0; i < 20000; i++) {
+            assertDecodedLikeJSONObject(randomMessage());
+        }
+    }
+
+    @Test
+    public void faultyJsonIsRejected() throws IOException {
+        String[] bodies = {
+            "{", "{\"locationName\"", "{\"locationName\":", "{\"locationName\":\"a", message("").replace(":\"Oulu\"", "\"Oulu\""),
+            message(",\"x\":[1,2"), message(",\"x\":\"\\u\""),
+            "\u0000" + message(""), message("").replace(",\"locationCity\"", "\u0000,\"locationCity\""),
+            "[", "}", "nul",
+        };
+        for(String body : bodies) {
+            assertDecodedLikeJSONObject(body);
+            assertEquals(body, "JSONException", decoded(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    @Test
+    public void onlyStandardJsonIsAccepted() throws IOException {
+        // org.json accepts these, the decoder does not; the difference is intended
+        String[] bodies = {
+            message(",'x':1"), message(",x:1"), message(",\"x\":'a'"), message(",\"x\":abc"), message(",\"x\":1,"),
+            message(",\"x\":[1,]"), message(",\"x\":TRUE"), message(";\"x\":1"), message(",\"x\":\"\\'\""), message(",\"x\":\"\\u+041\""),
+            message(",\"x\":01"), message(",\"x\":-.5"), message(",\"x\":1."), message(",\"x\":1e"),
+            message(",\"x\":tru"), message(",\"x\":-"), message(",\"x\":1.5.5"), message(",\"x\":.5"),
+        };
+        for(String body : bodies) {
+            try {
+                UserMessageDecoder.decode(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), Long.MAX_VALUE);
+                fail("Accepted " + body);
+            } catch(UserMessageDecoder.SyntaxException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void emptyBodiesHaveNoMessage() throws IOException {
+        assertNull(UserMessageDecoder.decode(new ByteArrayInputStream(new byte[0]), 100));
+        assertNull(UserMessageDecoder.decode(new ByteArrayInputStream(" \r\n\t".getBytes(StandardCharsets.UTF_8)), 100));
+    }
+
+    @Test
+    public void bodiesLongerThanTheLimitAreRejected() throws IOException {
+
+        byte[] body = message(",\"x\":\"" + "a".repeat(20000) + "\"").getBytes(StandardCharsets.UTF_8);
+        assertEquals("Harbour", UserMessageDecoder.decode(new ByteArrayInputStream(body), body.length).getLocationName());
+        for(InputStream input : new InputStream[] {new ByteArrayInputStream(body), trickle(body)}) {
+            try {
+                UserMessageDecoder.decode(input, body.length - 1);
+                fail("A body longer than the limit was read");
+            } catch(UserMessageDecoder.TooLargeException e) {
+                assertEquals(body.length - 1, e.getMaxBytes());
+            }
+        }
+        // A decoder that grew for the long value is not reused, the next message is decoded normally
+        assertDecodedLikeJSONObject(message(""));
+    }
+
+    /**
+    * Reads a batch body with BatchMessageHandler's framing and the decoder.
+    * @return the outcome of each item, or "SyntaxException" if the body could not be read.
+    */
+    static List<String> readBatch(String body) throws IOException {
+        List<String> outcomes = new ArrayList<>();
+        try (UserMessageDecoder decoder = UserMessageDecoder.open(trickle(body.getBytes(StandardCharsets.UTF_8)), Long.MAX_VALUE)) {
+            BatchMessageHandler.ItemReader items = new BatchMessageHandler.ItemReader(decoder);
+            int first;
+            while((first = items.next()) != -1) {
+                try {
+                    UserMessage message = decoder.readItem(first);
+                    outcomes.add(message == null ? "not an object" : describe(message));
+                } catch(UserMessageDecoder.SyntaxException e) {
+                    throw e;
+                } catch(JSONException e) {
+                    outcomes.add("JSONException");
+                } catch(DateTimeParseException e) {
+                    outcomes.add("DateTimeParseException");
+                }
+            }
+        } catch(UserMessageDecoder.SyntaxException e) {
+            return List.of("SyntaxException");
+        }
+        return outcomes;
+    }
+
+    @Test
+    public void batchItemsAreDecodedLikeSingleMessages() throws IOException {
+
+        for(int batch = 0; batch < 500; batch++) {
+            List<String> items = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for(int i = random.nextInt(5); i >= 0; i--) {
+                String item = random.nextInt(10) == 0 ? randomValue(2) : randomMessage();
+                String outcome = reference(item.getBytes(StandardCharsets.UTF_8));
+                if(!item.startsWith("{")) {
+                    outcome = "not an object";
+                }
+                else if(outcome.equals("JSONException")) {
+                    try {
+                        new JSONObject(item);
+                    } catch(JSONException e) { // Not even valid JSON, the whole batch is rejected
+                        outcome = "SyntaxException";
+                    }
+                }
+                items.add(item.replace("\n", " ").replace("\r", " "));
+                expected.add(outcome);
+            }
+            if(expected.contains("SyntaxException")) {
+                expected = List.of("SyntaxException");
+            }
+            assertEquals(items.toString(), expected, readBatch("[" + String.join(",\n", items) + "]"));
+            if(items.get(0).startsWith("{")) { // Lines that start with '[' are an array
+                assertEquals(items.toString(), expected, readBatch(String.join("\n", items) + "\n"));
+            }
+        }
+    }
+
+    @Test
+    public void batchFramingIsStrict() throws IOException {
+        String item = message("");
+        assertEquals(2, readBatch(" [ " + item + " , " + item + " ] \n").size());
+        assertEquals(2, readBatch(item + " \r\n\n  " + item).size());
+        assertTrue(readBatch("[]").isEmpty());
+        assertTrue(readBatch("").isEmpty());
+        assertEquals(List.of("not an object", "not an object"), readBatch("[1, [" + item + "]]"));
+        String[] faulty = {"[", "[" + item, "[" + item + ",", "[" + item + ",]", "[" + item + "] x", "[" + item + " " + item + "]",
+            item + " " + item, item + "\n" + item + " x", "[,]"};
+        for(String body : faulty) {
+            assertEquals(body, List.of("SyntaxException"), readBatch(body));
+        }
+    }
+}
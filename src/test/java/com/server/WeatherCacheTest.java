@@ -0,0 +1,263 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+* WeatherCache against a stub weather service in the same JVM, listening where -Dweather.url points
+* (the build sets it to a port of its own). Each test creates a cache with the settings it needs.
+*/
+public class WeatherCacheTest {
+
+    StubService service;
+
+    @Before
+    public void startService() throws IOException {
+        service = new StubService(URI.create(System.getProperty("weather.url", "http://localhost:4001/weather")));
+    }
+
+    @After
+    public void stopService() {
+        service.stop();
+        System.clearProperty("weather.cacheTtlMillis");
+        System.clearProperty("weather.deadlineMillis");
+        System.clearProperty("weather.maxConcurrentLookups");
+    }
+
+    static WeatherCache createCache(long timeToLiveMillis, long deadlineMillis, int maxConcurrentLookups) {
+        System.setProperty("weather.cacheTtlMillis", Long.toString(timeToLiveMillis));
+        System.setProperty("weather.deadlineMillis", Long.toString(deadlineMillis));
+        System.setProperty("weather.maxConcurrentLookups", Integer.toString(maxConcurrentLookups));
+        return new WeatherCache();
+    }
+
+    static List<double[]> coordinates(double... values) {
+        List<double[]> coordinates = new ArrayList<>();
+        for(int i = 0; i < values.length; i += 2) {
+            coordinates.add(new double[] {values[i], values[i + 1]});
+        }
+        return coordinates;
+    }
+
+    /**
+    * Waits for lookups that are left running after the deadline.
+    */
+    static void awaitWeather(WeatherCache cache, double latitude, double longitude, String expected) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 5000;
+        while(!expected.equals(cache.getWeather(latitude, longitude)) && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, cache.getWeather(latitude, longitude));
+    }
+
+    @Test
+    public void lookupsOfTheSameCoordinatesAreShared() throws Exception {
+
+        WeatherCache cache = createCache(60000, 100, 8);
+        service.block();
+
+        // Coordinates that round to the same place, in one refresh and in refreshes running at the same time
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> cache.refresh(coordinates(65.0101, 25.4699, 65.0149, 25.4651)));
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, cache.getLookupsInFlight());
+        assertNull(cache.getWeather(65.01, 25.47));
+
+        service.release();
+        awaitWeather(cache, 65.01, 25.47, "1");
+        assertEquals(1, service.requests.get());
+        assertEquals(0, cache.getLookupsInFlight());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void atMostTheConfiguredLookupsRunAtOnce() throws Exception {
+
+        WeatherCache cache = createCache(60000, 10000, 3);
+        service.delayMillis = 100;
+
+        List<double[]> places = new ArrayList<>();
+        for(int i = 0; i < 12; i++) {
+            places.add(new double[] {60 + i, 25});
+        }
+        cache.refresh(places);
+
+        assertEquals(12, service.requests.get());
+        assertEquals(3, service.maxConcurrent.get());
+        for(double[] place : places) {
+            assertEquals("1", cache.getWeather(place[0], place[1]));
+        }
+    }
+
+    @Test
+    public void refreshWaitsOnlyUntilTheDeadline() throws Exception {
+
+        WeatherCache cache = createCache(60000, 200, 8);
+        service.delayMillis = 1000;
+
+        long start = System.nanoTime();
+        cache.refresh(coordinates(65.01, 25.47));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited + " ms", waited >= 200 && waited < 900);
+        assertNull(cache.getWeather(65.01, 25.47));
+
+        // The lookup goes on and is there for the next request
+        awaitWeather(cache, 65.01, 25.47, "1");
+        assertEquals(1, service.requests.get());
+    }
+
+    @Test
+    public void expiredWeatherIsLookedUpAgain() throws Exception {
+
+        WeatherCache cache = createCache(300, 2000, 8);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals("1", cache.getWeather(65.01, 25.47));
+        long version = cache.getVersion();
+
+        service.temperature = 2;
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals(1, service.requests.get()); // Not expired yet
+        assertEquals("1", cache.getWeather(65.01, 25.47));
+
+        Thread.sleep(400);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals(2, service.requests.get());
+        assertEquals("2", cache.getWeather(65.01, 25.47));
+        assertNotEquals(version, cache.getVersion());
+
+        // The same weather again does not change the version
+        version = cache.getVersion();
+        Thread.sleep(400);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals(3, service.requests.get());
+        assertEquals(version, cache.getVersion());
+    }
+
+    @Test
+    public void theLastKnownWeatherIsKeptWhenTheServiceFails() throws Exception {
+
+        WeatherCache cache = createCache(300, 300, 8);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals("1", cache.getWeather(65.01, 25.47));
+        long version = cache.getVersion();
+
+        // An error response
+        service.failing = true;
+        Thread.sleep(400);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals(2, service.requests.get());
+        assertEquals("1", cache.getWeather(65.01, 25.47));
+
+        // A response after the deadline
+        service.failing = false;
+        service.temperature = 2;
+        service.delayMillis = 1000;
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals("1", cache.getWeather(65.01, 25.47));
+        assertEquals(version, cache.getVersion());
+
+        // No service at all
+        awaitWeather(cache, 65.01, 25.47, "2");
+        service.stop();
+        Thread.sleep(400);
+        cache.refresh(coordinates(65.01, 25.47));
+        assertEquals("2", cache.getWeather(65.01, 25.47));
+        assertNull(cache.getWeather(60, 25));
+    }
+
+    /**
+    * Answers lookups like the weather service, with a temperature the test sets, and counts them.
+    */
+    static class StubService {
+
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private CountDownLatch blocked = new CountDownLatch(0);
+        private boolean stopped = false;
+
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        volatile long delayMillis = 0;
+        volatile int temperature = 1;
+        volatile boolean failing = false;
+
+        StubService(URI url) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(url.getHost(), url.getPort()), 0);
+            server.createContext(url.getPath(), this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        // Lookups wait until release() is called
+        void block() {
+            blocked = new CountDownLatch(1);
+        }
+
+        void release() {
+            blocked.countDown();
+        }
+
+        void stop() {
+            if(!stopped) {
+                stopped = true;
+                release();
+                server.stop(0);
+                executor.shutdownNow();
+            }
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+
+            int running = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(running, Math::max);
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+                blocked.await();
+                Thread.sleep(delayMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+
+            byte[] response = (failing ? "Internal error" : "<weather><latitude>65.01</latitude><longitude>25.47</longitude><temperature>"
+                + temperature + "</temperature><Unit>Celcius</Unit></weather>").getBytes(StandardCharsets.UTF_8);
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("Connection", "close"); // No kept alive connections to a stub that is stopped after the test
+            exchange.sendResponseHeaders(failing ? 500 : 200, response.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(response);
+            }
+        }
+    }
+}